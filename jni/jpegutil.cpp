@@ -24,6 +24,7 @@
 
 extern "C" {
 #include "jpeglib.h"
+#include "jerror.h"
 }
 
 using namespace std;
@@ -361,3 +362,206 @@ int jpegutil::Compress(
   return Compress(finalWidth, finalHeight, yIter, cbIter, crIter, outBuf,
                   outBufCapacity, flush, quality);
 }
+
+int jpegutil::CropLossless(
+    /** Input */
+    const unsigned char* inBuf, size_t inBufSize,
+    /** Output */
+    unsigned char* outBuf, size_t outBufCapacity,
+    /** Crop */
+    int cropLeft, int cropTop, int cropRight, int cropBottom) {
+  // See Compress() for why the structs are volatile.
+  volatile jpeg_decompress_struct srcinfov;
+  volatile jpeg_compress_struct dstinfov;
+
+  jpeg_decompress_struct& srcinfo =
+      *const_cast<struct jpeg_decompress_struct*>(&srcinfov);
+  jpeg_compress_struct& dstinfo =
+      *const_cast<struct jpeg_compress_struct*>(&dstinfov);
+
+  // Error handling, shared by the decompressor and the compressor.
+
+  struct my_error_mgr {
+    struct jpeg_error_mgr pub;
+    jmp_buf setjmp_buffer;
+  } err;
+
+  srcinfo.err = jpeg_std_error(&err.pub);
+  dstinfo.err = &err.pub;
+  // Lets the jpeg_destroy_* calls below skip structs not yet created.
+  srcinfo.mem = nullptr;
+  dstinfo.mem = nullptr;
+
+  err.pub.error_exit = [](j_common_ptr cinfo) {
+    my_error_mgr* myerr = reinterpret_cast<my_error_mgr*>(cinfo->err);
+
+    (*cinfo->err->output_message)(cinfo);
+
+    // Return control to the setjmp point (see call to setjmp()).
+    longjmp(myerr->setjmp_buffer, 1);
+  };
+
+  // Set the setjmp point to return to in case of error.
+  if (setjmp(err.setjmp_buffer)) {
+    jpeg_destroy_compress(&dstinfo);
+    jpeg_destroy_decompress(&srcinfo);
+    return -1;
+  }
+
+  jpeg_create_decompress(&srcinfo);
+  jpeg_create_compress(&dstinfo);
+
+  // Initialize source manager to read straight from inBuf.
+  jpeg_source_mgr src;
+
+  src.next_input_byte = inBuf;
+  src.bytes_in_buffer = inBufSize;
+
+  src.init_source = [](j_decompress_ptr cinfo __unused) {
+    // do nothing, the whole input is already in the buffer
+  };
+
+  src.fill_input_buffer = [](j_decompress_ptr cinfo) -> boolean {
+    // The input is truncated; insert a fake EOI marker, as libjpeg's own
+    // memory source does.
+    static const JOCTET eoi[2] = {0xFF, JPEG_EOI};
+    WARNMS(cinfo, JWRN_JPEG_EOF);
+    cinfo->src->next_input_byte = eoi;
+    cinfo->src->bytes_in_buffer = 2;
+    return true;
+  };
+
+  src.skip_input_data = [](j_decompress_ptr cinfo, long numBytes) {
+    if (numBytes <= 0) {
+      return;
+    }
+    size_t skip = (size_t)numBytes < cinfo->src->bytes_in_buffer
+                      ? (size_t)numBytes
+                      : cinfo->src->bytes_in_buffer;
+    cinfo->src->next_input_byte += skip;
+    cinfo->src->bytes_in_buffer -= skip;
+  };
+
+  src.resync_to_restart = jpeg_resync_to_restart;
+
+  src.term_source = [](j_decompress_ptr cinfo __unused) {
+    // do nothing
+  };
+
+  srcinfo.src = &src;
+
+  // Keep the APPn markers, so that EXIF survives the crop.
+  for (int m = 0; m < 16; m++) {
+    jpeg_save_markers(&srcinfo, JPEG_APP0 + m, 0xFFFF);
+  }
+
+  jpeg_read_header(&srcinfo, true);
+
+  const int mcuWidth = srcinfo.max_h_samp_factor * DCTSIZE;
+  const int mcuHeight = srcinfo.max_v_samp_factor * DCTSIZE;
+  const int cropWidth = cropRight - cropLeft;
+  const int cropHeight = cropBottom - cropTop;
+
+  if (cropLeft < 0 || cropTop < 0 || cropWidth <= 0 || cropHeight <= 0 ||
+      cropRight > (int)srcinfo.image_width ||
+      cropBottom > (int)srcinfo.image_height || cropLeft % mcuWidth != 0 ||
+      cropTop % mcuHeight != 0) {
+    jpeg_destroy_compress(&dstinfo);
+    jpeg_destroy_decompress(&srcinfo);
+    return -2;
+  }
+
+  // Request the coefficient arrays of the output before the input is read,
+  // so that the memory manager realizes them all at once.
+  jvirt_barray_ptr dstCoefs[MAX_COMPONENTS];
+  JDIMENSION widthInBlocks[MAX_COMPONENTS];
+  JDIMENSION heightInBlocks[MAX_COMPONENTS];
+  for (int ci = 0; ci < srcinfo.num_components; ci++) {
+    jpeg_component_info* compptr = srcinfo.comp_info + ci;
+    widthInBlocks[ci] =
+        (cropWidth * compptr->h_samp_factor + mcuWidth - 1) / mcuWidth;
+    heightInBlocks[ci] =
+        (cropHeight * compptr->v_samp_factor + mcuHeight - 1) / mcuHeight;
+    // Round up to whole MCUs, as libjpeg expects of coefficient arrays.
+    JDIMENSION paddedWidth =
+        (widthInBlocks[ci] + compptr->h_samp_factor - 1) /
+        compptr->h_samp_factor * compptr->h_samp_factor;
+    JDIMENSION paddedHeight =
+        (heightInBlocks[ci] + compptr->v_samp_factor - 1) /
+        compptr->v_samp_factor * compptr->v_samp_factor;
+    dstCoefs[ci] = (*srcinfo.mem->request_virt_barray)(
+        (j_common_ptr)&srcinfo, JPOOL_IMAGE, true, paddedWidth, paddedHeight,
+        compptr->v_samp_factor);
+  }
+
+  jvirt_barray_ptr* srcCoefs = jpeg_read_coefficients(&srcinfo);
+
+  jpeg_copy_critical_parameters(&srcinfo, &dstinfo);
+  dstinfo.image_width = cropWidth;
+  dstinfo.image_height = cropHeight;
+  // The source tables may not suit the cropped image.
+  dstinfo.optimize_coding = true;
+
+  // Copy the blocks inside the crop, a row of MCUs at a time.
+  for (int ci = 0; ci < srcinfo.num_components; ci++) {
+    jpeg_component_info* compptr = srcinfo.comp_info + ci;
+    const int vSamp = compptr->v_samp_factor;
+    const JDIMENSION xOffset = cropLeft / mcuWidth * compptr->h_samp_factor;
+    const JDIMENSION yOffset = cropTop / mcuHeight * vSamp;
+    for (JDIMENSION y = 0; y < heightInBlocks[ci]; y += vSamp) {
+      JBLOCKARRAY dstRows = (*srcinfo.mem->access_virt_barray)(
+          (j_common_ptr)&srcinfo, dstCoefs[ci], y, vSamp, true);
+      JBLOCKARRAY srcRows = (*srcinfo.mem->access_virt_barray)(
+          (j_common_ptr)&srcinfo, srcCoefs[ci], y + yOffset, vSamp, false);
+      for (int row = 0; row < vSamp; row++) {
+        memcpy(dstRows[row], srcRows[row] + xOffset,
+               widthInBlocks[ci] * sizeof(JBLOCK));
+      }
+    }
+  }
+
+  // Initialize destination manager
+  jpeg_destination_mgr dest;
+
+  dest.next_output_byte = outBuf;
+  dest.free_in_buffer = outBufCapacity;
+
+  dest.init_destination = [](j_compress_ptr cinfo __unused) {
+    // do nothing, the buffer is set up above
+  };
+
+  dest.empty_output_buffer = [](j_compress_ptr cinfo) -> boolean {
+    // The output does not fit; report it as an error.
+    ERREXIT(cinfo, JERR_BUFFER_SIZE);
+    return false;
+  };
+
+  dest.term_destination = [](j_compress_ptr cinfo __unused) {
+    // do nothing to terminate the output buffer
+  };
+
+  dstinfo.dest = &dest;
+
+  jpeg_write_coefficients(&dstinfo, dstCoefs);
+
+  for (jpeg_saved_marker_ptr marker = srcinfo.marker_list; marker != nullptr;
+       marker = marker->next) {
+    // The compressor already wrote its own JFIF header.
+    if (dstinfo.write_JFIF_header && marker->marker == JPEG_APP0 &&
+        marker->data_length >= 5 && memcmp(marker->data, "JFIF", 5) == 0) {
+      continue;
+    }
+    jpeg_write_marker(&dstinfo, marker->marker, marker->data,
+                      marker->data_length);
+  }
+
+  jpeg_finish_compress(&dstinfo);
+  jpeg_finish_decompress(&srcinfo);
+
+  int numBytes = dest.next_output_byte - outBuf;
+
+  jpeg_destroy_compress(&dstinfo);
+  jpeg_destroy_decompress(&srcinfo);
+
+  return numBytes;
+}
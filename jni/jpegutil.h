@@ -167,6 +167,25 @@ int Compress(
     int cropLeft, int cropTop, int cropRight, int cropBottom,
     /** Rotation */
     int rot90);
+
+/**
+ * Crops a JPEG without decoding it, by copying the DCT coefficients of the
+ * blocks inside the crop into a new JPEG, so there is no generation loss. The
+ * left and top edges of the crop must lie on MCU boundaries; the right and
+ * bottom edges may be anywhere inside the image. APPn markers, such as EXIF,
+ * are copied to the output. Output is written into outBuf.
+ *
+ * Returns the number of bytes written, -1 if outBuf is too small or the JPEG
+ * could not be transcoded, or -2 if the crop is not aligned to MCU
+ * boundaries or is outside the image.
+ */
+int CropLossless(
+    /** Input */
+    const unsigned char* inBuf, size_t inBufSize,
+    /** Output */
+    unsigned char* outBuf, size_t outBufCapacity,
+    /** Crop */
+    int cropLeft, int cropTop, int cropRight, int cropBottom);
 }
 
 template <unsigned int ROWS>
@@ -165,3 +165,32 @@ Java_com_android_camera_util_JpegUtilNative_copyImagePlaneToBitmap(
 
   AndroidBitmap_unlockPixels(env, outBitmap);
 }
+
+/**
+ * Crops a JPEG losslessly, see jpegutil::CropLossless.
+ *
+ * @param env the JNI environment
+ * @param inArray the JPEG to crop
+ * @param inLength the number of bytes of the JPEG in inArray
+ * @param outArray the array to write the cropped JPEG to
+ * @param crop[Left|Top|Right|Bottom] the bounds of the image to crop to
+ * @return the number of bytes written, -1 if outArray is too small or the
+ * JPEG could not be transcoded, or -2 if the crop is not MCU-aligned
+ */
+extern "C" JNIEXPORT jint JNICALL
+Java_com_android_camera_util_JpegUtilNative_cropJpegLosslessNative(
+    JNIEnv* env, jclass clazz __unused, jbyteArray inArray, jint inLength,
+    jbyteArray outArray, jint cropLeft, jint cropTop, jint cropRight,
+    jint cropBottom) {
+  jbyte* in = env->GetByteArrayElements(inArray, nullptr);
+  jbyte* out = env->GetByteArrayElements(outArray, nullptr);
+  jsize outCapacity = env->GetArrayLength(outArray);
+
+  int result = CropLossless((const unsigned char*)in, (size_t)inLength,  //
+                            (unsigned char*)out, (size_t)outCapacity,    //
+                            cropLeft, cropTop, cropRight, cropBottom);
+
+  env->ReleaseByteArrayElements(inArray, in, JNI_ABORT);
+  env->ReleaseByteArrayElements(outArray, out, result > 0 ? 0 : JNI_ABORT);
+  return result;
+}
@@ -117,6 +117,7 @@ import com.android.camera.one.OneCameraModule;
 import com.android.camera.one.OneCameraOpener;
 import com.android.camera.one.config.OneCameraFeatureConfig;
 import com.android.camera.one.config.OneCameraFeatureConfigCreator;
+import com.android.camera.processing.ProcessingServiceManager;
 import com.android.camera.session.CaptureSession;
 import com.android.camera.session.CaptureSessionManager;
 import com.android.camera.session.CaptureSessionManager.SessionListener;
@@ -1860,6 +1861,7 @@ public class CameraActivity extends QuickActivity
         mPanoramaViewHelper.onPause();
 
         mLocalImagesObserver.setForegroundChangeListener(null);
+        mLocalVideosObserver.setForegroundChangeListener(null);
         mLocalImagesObserver.setActivityPaused(true);
         mLocalVideosObserver.setActivityPaused(true);
         if (mPreloader != null) {
@@ -2114,13 +2116,15 @@ public class CameraActivity extends QuickActivity
         mLocalImagesObserver.setActivityPaused(false);
         mLocalVideosObserver.setActivityPaused(false);
         if (!mSecureCamera) {
-            mLocalImagesObserver.setForegroundChangeListener(
+            FilmstripContentObserver.ChangeListener changeListener =
                     new FilmstripContentObserver.ChangeListener() {
                 @Override
                 public void onChange() {
                     mDataAdapter.requestLoadNewPhotos();
                 }
-            });
+            };
+            mLocalImagesObserver.setForegroundChangeListener(changeListener);
+            mLocalVideosObserver.setForegroundChangeListener(changeListener);
         }
 
         keepScreenOnForAWhile();
@@ -2960,6 +2964,7 @@ public class CameraActivity extends QuickActivity
             hideSessionProgress();
             return;
         }
+        prioritizeSessionProcessing(currentData);
         updateActionBarMenu(currentData);
 
         /* Bottom controls. */
@@ -2979,6 +2984,18 @@ public class CameraActivity extends QuickActivity
         }
     }
 
+    /**
+     * Moves the processing of the given item's session, if it is one, ahead
+     * of the processing of other sessions, as the user is now looking at it.
+     */
+    private void prioritizeSessionProcessing(FilmstripItem item) {
+        CaptureSession session = getServices().getCaptureSessionManager()
+                .getSession(item.getData().getUri());
+        if (session != null) {
+            ProcessingServiceManager.instance().setForegroundSession(session);
+        }
+    }
+
     /**
      * Updates the bottom controls based on the data.
      */
@@ -22,15 +22,22 @@ import android.graphics.BitmapFactory;
 import android.location.Location;
 import android.net.Uri;
 import android.os.AsyncTask;
+import android.os.Handler;
+import android.os.Looper;
 import android.provider.MediaStore.Video;
 
 import com.android.camera.app.MediaSaver;
+import com.android.camera.app.MemoryManager;
 import com.android.camera.data.FilmstripItemData;
 import com.android.camera.debug.Log;
 import com.android.camera.exif.ExifInterface;
+import com.android.camera.session.SessionStorageManager;
+import com.google.common.io.Files;
 
 import java.io.File;
 import java.io.IOException;
+import java.util.concurrent.Executor;
+import java.util.concurrent.Executors;
 
 /**
  * A class implementing {@link com.android.camera.app.MediaSaver}.
@@ -39,30 +46,53 @@ public class MediaSaverImpl implements MediaSaver {
     private static final Log.Tag TAG = new Log.Tag("MediaSaverImpl");
     private static final String VIDEO_BASE_URI = "content://media/external/video/media";
 
-    /** The memory limit for unsaved image is 30MB. */
-    // TODO: Revert this back to 20 MB when CaptureSession API supports saving
-    // bursts.
-    private static final int SAVE_TASK_MEMORY_LIMIT = 30 * 1024 * 1024;
+    /** Session sub-directory holding images spilled out of memory. */
+    private static final String SPILL_DIRECTORY = "media_saver_spill";
+    private static final String SPILL_FILE_PREFIX = "image";
+    private static final String SPILL_FILE_SUFFIX = ".spill";
 
     private final ContentResolver mContentResolver;
+    private final MediaStoreBatchWriter mMediaStoreWriter;
+    private final SessionStorageManager mSessionStorageManager;
+    private final Handler mMainHandler;
+    /** Writes images which do not fit in the memory budget to disk. */
+    private final Executor mSpillExecutor;
 
-    /** Memory used by the total queued save request, in bytes. */
-    private long mMemoryUse;
+    /** Decides which queued images may be held in memory. */
+    private final SaveAdmissionController mAdmissionController;
 
     private QueueListener mQueueListener;
+    private MemoryManager mMemoryManager;
 
     /**
      * @param contentResolver The {@link android.content.ContentResolver} to be
      *                 updated.
+     * @param mediaStoreWriter Batches the MediaStore inserts of saved images.
+     * @param sessionStorageManager Provides the directory that images are
+     *            spilled to when they do not fit in memory.
      */
-    public MediaSaverImpl(ContentResolver contentResolver) {
+    public MediaSaverImpl(ContentResolver contentResolver,
+            MediaStoreBatchWriter mediaStoreWriter,
+            SessionStorageManager sessionStorageManager) {
         mContentResolver = contentResolver;
-        mMemoryUse = 0;
+        mMediaStoreWriter = mediaStoreWriter;
+        mSessionStorageManager = sessionStorageManager;
+        mMainHandler = new Handler(Looper.getMainLooper());
+        mSpillExecutor = Executors.newSingleThreadExecutor();
+        mAdmissionController = new SaveAdmissionController();
+    }
+
+    /**
+     * Sets the memory manager that the memory budget of queued images is
+     * derived from. Until this is set, a fixed budget is used.
+     */
+    public void setMemoryManager(MemoryManager memoryManager) {
+        mMemoryManager = memoryManager;
     }
 
     @Override
     public boolean isQueueFull() {
-        return (mMemoryUse >= SAVE_TASK_MEMORY_LIMIT);
+        return mAdmissionController.isFull();
     }
 
     @Override
@@ -76,19 +106,21 @@ public class MediaSaverImpl implements MediaSaver {
     public void addImage(final byte[] data, String title, long date, Location loc, int width,
             int height, int orientation, ExifInterface exif, OnMediaSavedListener l,
             String mimeType) {
-        if (isQueueFull()) {
-            Log.e(TAG, "Cannot add image when the queue is full");
-            return;
-        }
+        boolean previouslyFull = isQueueFull();
         ImageSaveTask t = new ImageSaveTask(data, title, date,
                 (loc == null) ? null : new Location(loc),
-                width, height, orientation, mimeType, exif, mContentResolver, l);
+                width, height, orientation, mimeType, exif, l);
 
-        mMemoryUse += data.length;
-        if (isQueueFull()) {
-            onQueueFull();
+        if (mAdmissionController.tryReserve(data.length)) {
+            t.mReserved = true;
+            t.execute();
+        } else {
+            // Rather than refusing the shot, move its bytes out of memory and
+            // save it from disk once its turn comes.
+            mAdmissionController.startSpill(data.length);
+            mSpillExecutor.execute(new SpillTask(t));
         }
-        t.execute();
+        updateQueueStatus(previouslyFull);
     }
 
     @Override
@@ -122,20 +154,72 @@ public class MediaSaverImpl implements MediaSaver {
         l.onQueueStatus(isQueueFull());
     }
 
-    private void onQueueFull() {
-        if (mQueueListener != null) {
-            mQueueListener.onQueueStatus(true);
+    private void updateQueueStatus(boolean previouslyFull) {
+        boolean full = isQueueFull();
+        if (full != previouslyFull && mQueueListener != null) {
+            mQueueListener.onQueueStatus(full);
         }
     }
 
-    private void onQueueAvailable() {
-        if (mQueueListener != null) {
-            mQueueListener.onQueueStatus(false);
+    /**
+     * Writes the bytes of an image to the spill directory and then runs its
+     * save task, which reads them back. If the image cannot be spilled, it is
+     * saved from memory.
+     */
+    private class SpillTask implements Runnable {
+        private final ImageSaveTask mSaveTask;
+
+        SpillTask(ImageSaveTask saveTask) {
+            mSaveTask = saveTask;
+        }
+
+        @Override
+        public void run() {
+            File spillFile = null;
+            try {
+                File directory = mSessionStorageManager.getSessionDirectory(SPILL_DIRECTORY);
+                // Titles are not unique, e.g. within a burst, so let the
+                // name be chosen for us.
+                spillFile = File.createTempFile(SPILL_FILE_PREFIX, SPILL_FILE_SUFFIX, directory);
+                Files.write(mSaveTask.data, spillFile);
+            } catch (IOException e) {
+                Log.e(TAG, "Could not spill image, saving it from memory", e);
+                if (spillFile != null) {
+                    spillFile.delete();
+                }
+                spillFile = null;
+            }
+
+            final File spilled = spillFile;
+            mMainHandler.post(new Runnable() {
+                @Override
+                public void run() {
+                    boolean previouslyFull = isQueueFull();
+                    mAdmissionController.finishSpill(mSaveTask.length);
+                    if (spilled != null) {
+                        mSaveTask.data = null;
+                        mSaveTask.mSpillFile = spilled;
+                    } else {
+                        mAdmissionController.reserve(mSaveTask.length);
+                        mSaveTask.mReserved = true;
+                    }
+                    updateQueueStatus(previouslyFull);
+                    mSaveTask.execute();
+                }
+            });
         }
     }
 
-    private class ImageSaveTask extends AsyncTask <Void, Void, Uri> {
-        private final byte[] data;
+    /**
+     * Writes the image file in the background and queues its MediaStore
+     * insert with {@link #mMediaStoreWriter}, so that images saved in quick
+     * succession share a single provider transaction.
+     */
+    private class ImageSaveTask extends AsyncTask <Void, Void, Boolean>
+            implements MediaStoreBatchWriter.Callback {
+        /** The image, or null if it was spilled to {@link #mSpillFile}. */
+        private byte[] data;
+        private final int length;
         private final String title;
         private final long date;
         private final Location loc;
@@ -143,14 +227,16 @@ public class MediaSaverImpl implements MediaSaver {
         private final int orientation;
         private final String mimeType;
         private final ExifInterface exif;
-        private final ContentResolver resolver;
         private final OnMediaSavedListener listener;
+        /** Whether memory was reserved for the image. Main thread only. */
+        private boolean mReserved;
+        private File mSpillFile;
 
         public ImageSaveTask(byte[] data, String title, long date, Location loc,
                              int width, int height, int orientation, String mimeType,
-                             ExifInterface exif, ContentResolver resolver,
-                             OnMediaSavedListener listener) {
+                             ExifInterface exif, OnMediaSavedListener listener) {
             this.data = data;
+            this.length = data.length;
             this.title = title;
             this.date = date;
             this.loc = loc;
@@ -159,7 +245,6 @@ public class MediaSaverImpl implements MediaSaver {
             this.orientation = orientation;
             this.mimeType = mimeType;
             this.exif = exif;
-            this.resolver = resolver;
             this.listener = listener;
         }
 
@@ -169,7 +254,21 @@ public class MediaSaverImpl implements MediaSaver {
         }
 
         @Override
-        protected Uri doInBackground(Void... v) {
+        protected Boolean doInBackground(Void... v) {
+            if (mMemoryManager != null) {
+                mAdmissionController.refreshBudget(mMemoryManager);
+            }
+            byte[] data = this.data;
+            if (mSpillFile != null) {
+                try {
+                    data = Files.toByteArray(mSpillFile);
+                } catch (IOException e) {
+                    Log.e(TAG, "Failed to read spilled image", e);
+                    return false;
+                } finally {
+                    mSpillFile.delete();
+                }
+            }
             if (width == 0 || height == 0) {
                 // Decode bounds
                 BitmapFactory.Options options = new BitmapFactory.Options();
@@ -179,25 +278,44 @@ public class MediaSaverImpl implements MediaSaver {
                 height = options.outHeight;
             }
             try {
-                return Storage.addImage(
-                        resolver, title, date, loc, orientation, exif, data, width, height,
-                        mimeType);
+                Storage.addImage(mMediaStoreWriter, title, date, loc, orientation, exif, data,
+                        width, height, mimeType, this);
+                return true;
             } catch (IOException e) {
                 Log.e(TAG, "Failed to write data", e);
-                return null;
+                return false;
             }
         }
 
         @Override
-        protected void onPostExecute(Uri uri) {
+        protected void onPostExecute(Boolean queued) {
+            if (!queued) {
+                onSaved(null);
+            }
+        }
+
+        @Override
+        public void onComplete(final Uri uri) {
+            // Called on the writer's thread.
+            mMainHandler.post(new Runnable() {
+                @Override
+                public void run() {
+                    onSaved(uri);
+                }
+            });
+        }
+
+        private void onSaved(Uri uri) {
             if (listener != null) {
                 listener.onMediaSaved(uri);
             }
             boolean previouslyFull = isQueueFull();
-            mMemoryUse -= data.length;
-            if (isQueueFull() != previouslyFull) {
-                onQueueAvailable();
+            if (mReserved) {
+                mAdmissionController.release(length);
+                mReserved = false;
             }
+            data = null;
+            updateQueueStatus(previouslyFull);
         }
     }
 
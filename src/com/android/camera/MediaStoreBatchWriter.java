@@ -0,0 +1,262 @@
+/*
+ * Copyright (C) 2015 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.camera;
+
+import android.content.ContentProviderOperation;
+import android.content.ContentProviderResult;
+import android.content.ContentResolver;
+import android.content.ContentValues;
+import android.net.Uri;
+import android.provider.MediaStore;
+import android.provider.MediaStore.Images;
+
+import com.android.camera.debug.Log;
+import com.google.common.base.Preconditions;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+
+import javax.annotation.Nullable;
+import javax.annotation.concurrent.GuardedBy;
+import javax.annotation.concurrent.ThreadSafe;
+
+/**
+ * Writes image rows to the MediaStore in batches. Inserts and updates are
+ * queued and sent to the provider in a single
+ * {@link ContentResolver#applyBatch} once a maximum number of operations is
+ * pending, or a maximum latency after the first of them was queued, whichever
+ * comes first. A burst of N images thus costs a few IPC round trips instead
+ * of N, while every operation still gets its own completion callback.
+ * <p>
+ * If a batch fails as a whole, its operations are retried one at a time, so
+ * that one bad row does not fail the others.
+ */
+@ThreadSafe
+public class MediaStoreBatchWriter {
+    private static final Log.Tag TAG = new Log.Tag("MediaStoreBatch");
+
+    /** Default maximum number of operations sent in one batch. */
+    public static final int DEFAULT_MAX_BATCH_SIZE = 16;
+    /** Default maximum time an operation waits for others to join its batch. */
+    public static final long DEFAULT_MAX_LATENCY_MS = 50;
+
+    /**
+     * Receives the result of a single queued operation.
+     */
+    public interface Callback {
+        /**
+         * Called on the writer's thread once the operation has been applied.
+         *
+         * @param uri The inserted or updated row, or null if the operation
+         *            failed.
+         */
+        public void onComplete(@Nullable Uri uri);
+    }
+
+    private static class PendingOperation {
+        final ContentProviderOperation operation;
+        /** The row being updated, or null for an insert. */
+        @Nullable
+        final Uri updatedUri;
+        @Nullable
+        final Callback callback;
+
+        PendingOperation(ContentProviderOperation operation, @Nullable Uri updatedUri,
+                @Nullable Callback callback) {
+            this.operation = operation;
+            this.updatedUri = updatedUri;
+            this.callback = callback;
+        }
+    }
+
+    private final ContentResolver mContentResolver;
+    private final int mMaxBatchSize;
+    private final long mMaxLatencyMs;
+    private final ScheduledExecutorService mExecutor;
+
+    private final Object mLock = new Object();
+    @GuardedBy("mLock")
+    private List<PendingOperation> mPending = new ArrayList<>();
+    @GuardedBy("mLock")
+    private ScheduledFuture<?> mScheduledFlush = null;
+
+    private final Runnable mFlushTask = new Runnable() {
+        @Override
+        public void run() {
+            applyPending();
+        }
+    };
+
+    /**
+     * Creates a writer with the default batch size and latency bound.
+     */
+    public MediaStoreBatchWriter(ContentResolver contentResolver) {
+        this(contentResolver, DEFAULT_MAX_BATCH_SIZE, DEFAULT_MAX_LATENCY_MS);
+    }
+
+    /**
+     * @param contentResolver The resolver used to reach the MediaStore.
+     * @param maxBatchSize The number of pending operations which triggers an
+     *            immediate flush.
+     * @param maxLatencyMs The maximum time an operation is held back waiting
+     *            for others to batch with.
+     */
+    public MediaStoreBatchWriter(ContentResolver contentResolver, int maxBatchSize,
+            long maxLatencyMs) {
+        Preconditions.checkArgument(maxBatchSize > 0);
+        Preconditions.checkArgument(maxLatencyMs >= 0);
+        mContentResolver = contentResolver;
+        mMaxBatchSize = maxBatchSize;
+        mMaxLatencyMs = maxLatencyMs;
+        mExecutor = Executors.newSingleThreadScheduledExecutor();
+    }
+
+    /**
+     * Queues the insertion of an image row.
+     *
+     * @param values The values of the new row.
+     * @param callback Notified with the content URI of the new row.
+     */
+    public void insertImage(ContentValues values, @Nullable Callback callback) {
+        enqueue(new PendingOperation(
+                ContentProviderOperation.newInsert(Images.Media.EXTERNAL_CONTENT_URI)
+                        .withValues(values).build(), null, callback));
+    }
+
+    /**
+     * Queues an update of an existing row.
+     *
+     * @param uri The row to update.
+     * @param values The values to update.
+     * @param callback Notified with the given URI, or null if no row was
+     *            updated.
+     */
+    public void update(Uri uri, ContentValues values, @Nullable Callback callback) {
+        enqueue(new PendingOperation(
+                ContentProviderOperation.newUpdate(uri).withValues(values).build(), uri,
+                callback));
+    }
+
+    /**
+     * Sends any pending operations without waiting for the latency bound, for
+     * when the caller knows no more operations are coming.
+     */
+    public void flush() {
+        synchronized (mLock) {
+            if (mPending.isEmpty()) {
+                return;
+            }
+            cancelScheduledFlush();
+        }
+        mExecutor.execute(mFlushTask);
+    }
+
+    private void enqueue(PendingOperation operation) {
+        synchronized (mLock) {
+            mPending.add(operation);
+            if (mPending.size() >= mMaxBatchSize) {
+                cancelScheduledFlush();
+                mExecutor.execute(mFlushTask);
+            } else if (mScheduledFlush == null) {
+                mScheduledFlush = mExecutor.schedule(mFlushTask, mMaxLatencyMs,
+                        TimeUnit.MILLISECONDS);
+            }
+        }
+    }
+
+    @GuardedBy("mLock")
+    private void cancelScheduledFlush() {
+        if (mScheduledFlush != null) {
+            mScheduledFlush.cancel(false);
+            mScheduledFlush = null;
+        }
+    }
+
+    /**
+     * Runs on the executor: takes everything pending and applies it in
+     * batches of at most the maximum batch size.
+     */
+    private void applyPending() {
+        List<PendingOperation> pending;
+        synchronized (mLock) {
+            pending = mPending;
+            if (pending.isEmpty()) {
+                return;
+            }
+            mPending = new ArrayList<>();
+            cancelScheduledFlush();
+        }
+
+        for (int start = 0; start < pending.size(); start += mMaxBatchSize) {
+            applyBatch(pending.subList(start, Math.min(start + mMaxBatchSize, pending.size())));
+        }
+    }
+
+    private void applyBatch(List<PendingOperation> batch) {
+        ArrayList<ContentProviderOperation> operations = new ArrayList<>(batch.size());
+        for (PendingOperation pending : batch) {
+            operations.add(pending.operation);
+        }
+
+        ContentProviderResult[] results = null;
+        try {
+            results = mContentResolver.applyBatch(MediaStore.AUTHORITY, operations);
+        } catch (Throwable th) {
+            // This can happen when the external volume is mounted but not yet
+            // known to MediaProvider; see Storage#addImageToMediaStore.
+            Log.e(TAG, "Failed to apply batch of " + batch.size() + ", retrying singly", th);
+        }
+
+        for (int i = 0; i < batch.size(); i++) {
+            PendingOperation pending = batch.get(i);
+            Uri uri;
+            if (results != null && i < results.length) {
+                uri = getResultUri(pending, results[i]);
+            } else {
+                uri = applySingle(pending);
+            }
+            if (pending.callback != null) {
+                pending.callback.onComplete(uri);
+            }
+        }
+    }
+
+    @Nullable
+    private Uri applySingle(PendingOperation pending) {
+        ArrayList<ContentProviderOperation> operations = new ArrayList<>(1);
+        operations.add(pending.operation);
+        try {
+            return getResultUri(pending,
+                    mContentResolver.applyBatch(MediaStore.AUTHORITY, operations)[0]);
+        } catch (Throwable th) {
+            Log.e(TAG, "Failed to write MediaStore" + th);
+            return null;
+        }
+    }
+
+    @Nullable
+    private static Uri getResultUri(PendingOperation pending, ContentProviderResult result) {
+        if (pending.updatedUri == null) {
+            return result.uri;
+        }
+        return (result.count != null && result.count > 0) ? pending.updatedUri : null;
+    }
+}
@@ -0,0 +1,185 @@
+/*
+ * Copyright (C) 2015 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.camera;
+
+import android.os.SystemClock;
+
+import com.android.camera.app.MemoryManager;
+import com.android.camera.app.MemoryQuery;
+import com.android.camera.debug.Log;
+
+import java.util.Map;
+
+import javax.annotation.concurrent.GuardedBy;
+import javax.annotation.concurrent.ThreadSafe;
+
+/**
+ * Decides how many encoded bytes {@link MediaSaverImpl} may hold in memory
+ * while they wait to be written. The budget follows the memory actually
+ * available to the app, as reported by {@link MemoryManager#queryMemory()}
+ * and the Java heap, rather than being a fixed number. Images that do not fit
+ * are spilled to disk by the caller; only when the bytes waiting to be
+ * spilled exceed the budget as well, are further captures refused.
+ */
+@ThreadSafe
+class SaveAdmissionController {
+    private static final Log.Tag TAG = new Log.Tag("SaveAdmission");
+
+    private static final long BYTES_IN_MEGABYTE = 1024 * 1024;
+    /** Budget used until memory has been queried; the former fixed limit. */
+    private static final long INITIAL_BUDGET_BYTES = 30 * BYTES_IN_MEGABYTE;
+    /** Enough to always hold at least one large image in memory. */
+    private static final long MIN_BUDGET_BYTES = 12 * BYTES_IN_MEGABYTE;
+    /** Fraction of the free Java heap that queued images may use. */
+    private static final float HEAP_FRACTION = 0.5f;
+    /** Fraction of the system memory above the low memory threshold. */
+    private static final float SYSTEM_FRACTION = 0.25f;
+    /** Queued bytes may exceed the budget by this much while being spilled. */
+    private static final float SPILL_OVERCOMMIT = 1.5f;
+    /** Querying memory is not free, so it is done at most this often. */
+    private static final long BUDGET_REFRESH_INTERVAL_MS = 2000;
+    /** Weight of the latest image in the predicted size. */
+    private static final float SIZE_SMOOTHING = 0.25f;
+
+    @GuardedBy("this")
+    private long mBudgetBytes = INITIAL_BUDGET_BYTES;
+    /** Bytes of images held in memory until they are written. */
+    @GuardedBy("this")
+    private long mReservedBytes = 0;
+    /** Bytes of images in memory until they are spilled to disk. */
+    @GuardedBy("this")
+    private long mSpillingBytes = 0;
+    /** Smoothed size of recent images, used to admit the next capture. */
+    @GuardedBy("this")
+    private long mPredictedBytes = 0;
+    @GuardedBy("this")
+    private long mLastRefreshMs = 0;
+
+    /**
+     * Reserves memory for an image if it fits in the budget. An image is
+     * always admitted when nothing else is reserved, so that a single image
+     * larger than the budget can still be saved.
+     *
+     * @return Whether the image may be held in memory. If not, it should be
+     *         spilled with {@link #startSpill(long)}.
+     */
+    public synchronized boolean tryReserve(long bytes) {
+        updatePrediction(bytes);
+        if (mReservedBytes == 0 || mReservedBytes + bytes <= mBudgetBytes) {
+            mReservedBytes += bytes;
+            return true;
+        }
+        return false;
+    }
+
+    /**
+     * Reserves memory for an image regardless of the budget, for an image
+     * which could not be spilled.
+     */
+    public synchronized void reserve(long bytes) {
+        mReservedBytes += bytes;
+    }
+
+    /** Releases memory reserved by {@link #tryReserve(long)}. */
+    public synchronized void release(long bytes) {
+        mReservedBytes -= bytes;
+    }
+
+    /** Records an image which is held in memory until it is spilled. */
+    public synchronized void startSpill(long bytes) {
+        mSpillingBytes += bytes;
+    }
+
+    /** Records that an image passed to {@link #startSpill(long)} is on disk. */
+    public synchronized void finishSpill(long bytes) {
+        mSpillingBytes -= bytes;
+    }
+
+    /**
+     * @return Whether an image of the predicted size can not be accepted,
+     *         even by spilling it.
+     */
+    public synchronized boolean isFull() {
+        return mReservedBytes + mSpillingBytes + mPredictedBytes
+                > mBudgetBytes * SPILL_OVERCOMMIT;
+    }
+
+    /**
+     * Recomputes the budget from the current memory state, unless this was
+     * done recently. This queries the system and should not be called on the
+     * main thread.
+     */
+    public void refreshBudget(MemoryManager memoryManager) {
+        synchronized (this) {
+            long now = SystemClock.elapsedRealtime();
+            if (mLastRefreshMs != 0 && now - mLastRefreshMs < BUDGET_REFRESH_INTERVAL_MS) {
+                return;
+            }
+            mLastRefreshMs = now;
+        }
+
+        Runtime runtime = Runtime.getRuntime();
+        long heapHeadroomBytes =
+                runtime.maxMemory() - (runtime.totalMemory() - runtime.freeMemory());
+        long budgetBytes = computeBudget(memoryManager.queryMemory(), heapHeadroomBytes);
+        synchronized (this) {
+            if (budgetBytes != mBudgetBytes) {
+                Log.v(TAG, "Save queue budget: " + budgetBytes / BYTES_IN_MEGABYTE + " MB");
+            }
+            mBudgetBytes = budgetBytes;
+        }
+    }
+
+    /**
+     * @param memory The result of {@link MemoryManager#queryMemory()}.
+     * @param heapHeadroomBytes The number of bytes the Java heap can still
+     *            grow by.
+     * @return The number of bytes queued images may hold in memory.
+     */
+    static long computeBudget(Map memory, long heapHeadroomBytes) {
+        Boolean lowMemory = (Boolean) memory.get(MemoryQuery.KEY_LOW_MEMORY);
+        if (lowMemory != null && lowMemory) {
+            return MIN_BUDGET_BYTES;
+        }
+
+        long budgetBytes = (long) (heapHeadroomBytes * HEAP_FRACTION);
+        Long availableMb = (Long) memory.get(MemoryQuery.KEY_MEMORY_AVAILABLE);
+        Long thresholdMb = (Long) memory.get(MemoryQuery.KEY_THRESHOLD);
+        if (availableMb != null && thresholdMb != null) {
+            long systemHeadroomBytes = (availableMb - thresholdMb) * BYTES_IN_MEGABYTE;
+            budgetBytes = Math.min(budgetBytes, (long) (systemHeadroomBytes * SYSTEM_FRACTION));
+        }
+        return Math.max(MIN_BUDGET_BYTES, budgetBytes);
+    }
+
+    @GuardedBy("this")
+    private void updatePrediction(long bytes) {
+        if (mPredictedBytes == 0) {
+            mPredictedBytes = bytes;
+        } else {
+            mPredictedBytes += (long) ((bytes - mPredictedBytes) * SIZE_SMOOTHING);
+        }
+    }
+
+    @Override
+    public synchronized String toString() {
+        return "SaveAdmissionController budget = " + mBudgetBytes
+                + ", reserved = " + mReservedBytes
+                + ", spilling = " + mSpillingBytes
+                + ", predicted = " + mPredictedBytes;
+    }
+}
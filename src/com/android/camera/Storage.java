@@ -19,6 +19,7 @@ package com.android.camera;
 import android.content.ContentResolver;
 import android.content.ContentValues;
 import android.graphics.Bitmap;
+import android.graphics.BitmapFactory;
 import android.graphics.Point;
 import android.location.Location;
 import android.net.Uri;
@@ -36,6 +37,7 @@ import com.android.camera.util.ApiHelper;
 import com.android.camera.util.Size;
 import com.google.common.base.Optional;
 
+import java.io.ByteArrayOutputStream;
 import java.io.File;
 import java.io.FileOutputStream;
 import java.io.IOException;
@@ -60,6 +62,15 @@ public class Storage {
     public static final String CAMERA_SESSION_SCHEME = "camera_session";
     private static final Log.Tag TAG = new Log.Tag("Storage");
     private static final String GOOGLE_COM = "google.com";
+    /** Quality of the thumbnails embedded into EXIF headers. */
+    private static final int EXIF_THUMBNAIL_QUALITY = 85;
+    /**
+     * Largest thumbnail to embed, which leaves room for the rest of the EXIF
+     * header within its 64kB limit.
+     */
+    private static final int MAX_EXIF_THUMBNAIL_BYTES = 32 * 1024;
+    /** Longer edge of the EXIF thumbnails to embed, or 0 to embed none. */
+    private static volatile int sExifThumbnailSize = 320;
     private static HashMap<Uri, Uri> sSessionsToContentUris = new HashMap<>();
     private static HashMap<Uri, Uri> sContentUrisToSessions = new HashMap<>();
     private static LruCache<Uri, Bitmap> sSessionsToPlaceholderBitmap =
@@ -130,6 +141,43 @@ public class Storage {
         return null;
     }
 
+    /**
+     * Saves the media with a given MIME type and queues it to be added to the
+     * MediaStore in a batch with other saves.
+     * <p>
+     * The path will be automatically generated according to the title.
+     * </p>
+     *
+     * @param writer The batch writer to queue the MediaStore insert with.
+     * @param title The title of the media file.
+     * @param date The date for the media file.
+     * @param location The location of the media file.
+     * @param orientation The orientation of the media file.
+     * @param exif The EXIF info. Can be {@code null}.
+     * @param data The data to save.
+     * @param width The width of the media file after the orientation is
+     *            applied.
+     * @param height The height of the media file after the orientation is
+     *            applied.
+     * @param mimeType The MIME type of the data.
+     * @param callback Notified with the URI of the added image, or null if
+     *            the image could not be added.
+     */
+    public static void addImage(MediaStoreBatchWriter writer, String title, long date,
+            Location location, int orientation, ExifInterface exif, byte[] data, int width,
+            int height, String mimeType, MediaStoreBatchWriter.Callback callback)
+            throws IOException {
+
+        String path = generateFilepath(title, mimeType);
+        long fileLength = writeFile(path, data, exif);
+        if (fileLength >= 0) {
+            addImageToMediaStore(writer, title, date, location, orientation, fileLength, path,
+                    width, height, mimeType, callback);
+        } else {
+            callback.onComplete(null);
+        }
+    }
+
     /**
      * Add the entry for the media file to media store.
      *
@@ -168,6 +216,30 @@ public class Storage {
         return uri;
     }
 
+    /**
+     * Queues the entry for the media file to be added to media store in a
+     * batch with other entries.
+     *
+     * @param writer The batch writer to queue the insert with.
+     * @param title The title of the media file.
+     * @param date The date for the media file.
+     * @param location The location of the media file.
+     * @param orientation The orientation of the media file.
+     * @param width The width of the media file after the orientation is
+     *            applied.
+     * @param height The height of the media file after the orientation is
+     *            applied.
+     * @param mimeType The MIME type of the data.
+     * @param callback Notified with the content URI of the inserted media
+     *            file, or null if the image could not be added.
+     */
+    public static void addImageToMediaStore(MediaStoreBatchWriter writer, String title,
+            long date, Location location, int orientation, long jpegLength, String path,
+            int width, int height, String mimeType, MediaStoreBatchWriter.Callback callback) {
+        writer.insertImage(getContentValuesForData(title, date, location, orientation,
+                jpegLength, path, width, height, mimeType), callback);
+    }
+
     // Get a ContentValues object for the given photo data
     public static ContentValues getContentValuesForData(String title,
             long date, Location location, int orientation, long jpegLength,
@@ -290,9 +362,22 @@ public class Storage {
         }
     }
 
+    /**
+     * Sets the size of the thumbnails which {@link #writeFile(String, byte[],
+     * ExifInterface)} embeds into EXIF headers. The filmstrip decodes these
+     * instead of the full image where they are large enough.
+     *
+     * @param size The length of the longer edge of the thumbnails, or 0 to
+     *            only keep the thumbnails that the EXIF info already has.
+     */
+    public static void setExifThumbnailSize(int size) {
+        sExifThumbnailSize = size;
+    }
+
     /**
      * Writes the JPEG data to a file. If there's EXIF info, the EXIF header
-     * will be added.
+     * will be added, with a thumbnail of the size set by
+     * {@link #setExifThumbnailSize} unless it already has one as large.
      *
      * @param path The path to the target file.
      * @param jpeg The JPEG data.
@@ -306,6 +391,7 @@ public class Storage {
             return -1;
         }
         if (exif != null) {
+                embedExifThumbnail(jpeg, exif);
                 exif.writeExif(jpeg, path);
                 File f = new File(path);
                 return f.length();
@@ -315,6 +401,65 @@ public class Storage {
 //        return -1;
     }
 
+    /**
+     * Sets a downscaled copy of the JPEG as the thumbnail of the EXIF info,
+     * unless it already has a thumbnail that is large enough.
+     */
+    private static void embedExifThumbnail(byte[] jpeg, ExifInterface exif) {
+        int size = sExifThumbnailSize;
+        if (size <= 0) {
+            return;
+        }
+        BitmapFactory.Options options = new BitmapFactory.Options();
+        options.inJustDecodeBounds = true;
+        byte[] thumbnail = exif.getThumbnail();
+        if (thumbnail != null) {
+            BitmapFactory.decodeByteArray(thumbnail, 0, thumbnail.length, options);
+            if (Math.max(options.outWidth, options.outHeight) >= size) {
+                return;
+            }
+        }
+
+        BitmapFactory.decodeByteArray(jpeg, 0, jpeg.length, options);
+        int longerEdge = Math.max(options.outWidth, options.outHeight);
+        if (longerEdge <= 0) {
+            Log.w(TAG, "Could not decode JPEG bounds for the EXIF thumbnail");
+            return;
+        }
+        // Let the decoder do most of the downscaling, which is much cheaper
+        // than decoding the full image.
+        options.inJustDecodeBounds = false;
+        options.inSampleSize = 1;
+        while (longerEdge / (options.inSampleSize * 2) >= size) {
+            options.inSampleSize *= 2;
+        }
+        Bitmap bitmap = BitmapFactory.decodeByteArray(jpeg, 0, jpeg.length, options);
+        if (bitmap == null) {
+            Log.w(TAG, "Could not decode JPEG for the EXIF thumbnail");
+            return;
+        }
+        float scale = (float) size / Math.max(bitmap.getWidth(), bitmap.getHeight());
+        if (scale < 1f) {
+            Bitmap scaled = Bitmap.createScaledBitmap(bitmap,
+                    Math.max(1, Math.round(bitmap.getWidth() * scale)),
+                    Math.max(1, Math.round(bitmap.getHeight() * scale)), true);
+            if (scaled != bitmap) {
+                bitmap.recycle();
+                bitmap = scaled;
+            }
+        }
+
+        ByteArrayOutputStream compressed = new ByteArrayOutputStream();
+        boolean success = bitmap.compress(Bitmap.CompressFormat.JPEG, EXIF_THUMBNAIL_QUALITY,
+                compressed);
+        bitmap.recycle();
+        if (!success || compressed.size() > MAX_EXIF_THUMBNAIL_BYTES) {
+            Log.w(TAG, "Not embedding EXIF thumbnail of " + compressed.size() + " bytes");
+            return;
+        }
+        exif.setCompressedThumbnail(compressed.toByteArray());
+    }
+
     /**
      * Renames a file.
      *
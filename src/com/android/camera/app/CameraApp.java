@@ -21,11 +21,14 @@ import android.app.NotificationManager;
 import android.content.Context;
 import android.os.Debug;
 
+import com.android.camera.Storage;
+import com.android.camera.data.ThumbnailStore;
 import com.android.camera.stats.UsageStatistics;
 import com.android.camera.stats.profiler.Profile;
 import com.android.camera.stats.profiler.Profilers;
 import com.android.camera.util.AndroidContext;
 import com.android.camera.util.AndroidServices;
+import com.android.camera2.R;
 
 
 /**
@@ -67,6 +70,13 @@ public class CameraApp extends Application {
         UsageStatistics.instance().initialize(this);
         guard.mark("UsageStatistics.initialize");
 
+        Storage.setExifThumbnailSize(getResources().getInteger(R.integer.exif_thumbnail_size));
+
+        // Start reading the newest filmstrip thumbnails while the activity
+        // starts, so they are in memory by the time the filmstrip is bound.
+        ThumbnailStore.instance(context);
+        guard.mark("ThumbnailStore.instance");
+
         clearNotifications();
         guard.stop("clearNotifications");
     }
@@ -19,6 +19,7 @@ package com.android.camera.app;
 import android.content.Context;
 
 import com.android.camera.MediaSaverImpl;
+import com.android.camera.MediaStoreBatchWriter;
 import com.android.camera.Storage;
 import com.android.camera.async.MainThread;
 import com.android.camera.remote.RemoteShutterListener;
@@ -61,17 +62,22 @@ public class CameraServicesImpl implements CameraServices {
     private final SettingsManager mSettingsManager;
 
     private CameraServicesImpl(Context context) {
-        mMediaSaver = new MediaSaverImpl(context.getContentResolver());
+        MediaStoreBatchWriter mediaStoreWriter =
+                new MediaStoreBatchWriter(context.getContentResolver());
         PlaceholderManager mPlaceHolderManager = new PlaceholderManager(context);
         SessionStorageManager mSessionStorageManager = SessionStorageManagerImpl.create(context);
+        MediaSaverImpl mediaSaver = new MediaSaverImpl(context.getContentResolver(),
+                mediaStoreWriter, mSessionStorageManager);
+        mMediaSaver = mediaSaver;
 
         StackSaverFactory mStackSaverFactory = new StackSaverFactory(Storage.DIRECTORY,
-              context.getContentResolver());
+              mediaStoreWriter);
         CaptureSessionFactory captureSessionFactory = new CaptureSessionFactoryImpl(
                 mMediaSaver, mPlaceHolderManager, mSessionStorageManager, mStackSaverFactory);
         mSessionManager = new CaptureSessionManagerImpl(
                 captureSessionFactory, mSessionStorageManager, MainThread.create());
         mMemoryManager = MemoryManagerImpl.create(context, mMediaSaver);
+        mediaSaver.setMemoryManager(mMemoryManager);
         mRemoteShutterListener = RemoteShutterHelper.create(context);
         mSettingsManager = new SettingsManager(context);
 
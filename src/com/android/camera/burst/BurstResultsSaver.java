@@ -16,9 +16,11 @@
 
 package com.android.camera.burst;
 
+import android.net.Uri;
 import android.os.AsyncTask;
 import android.text.TextUtils;
 
+import com.android.camera.app.MediaSaver.OnMediaSavedListener;
 import com.android.camera.debug.Log;
 import com.android.camera.debug.Log.Tag;
 import com.android.camera.session.StackSaver;
@@ -26,6 +28,7 @@ import com.android.camera.session.StackSaver;
 import java.util.ArrayList;
 import java.util.List;
 import java.util.Map;
+import java.util.concurrent.CountDownLatch;
 import java.util.concurrent.TimeUnit;
 
 class BurstResultsSaver {
@@ -102,10 +105,19 @@ class BurstResultsSaver {
                         // timestamps in order and use it to save timestamps.
                         SequentialTimestampGenerator timestampGen =
                                 new SequentialTimestampGenerator(System.currentTimeMillis());
+                        // The media store inserts are batched, so wait for
+                        // all of them before reporting completion.
+                        CountDownLatch saved = new CountDownLatch(countMediaItems(burstResult));
                         for (String artifactType : burstResult.getTypes()) {
                             publishProgress(artifactType);
                             saveArtifacts(stackSaver, burstResult, artifactType,
-                                    timestampGen);
+                                    timestampGen, saved);
+                        }
+                        try {
+                            saved.await();
+                        } catch (InterruptedException e) {
+                            Log.w(TAG, "Interrupted waiting for burst results to be saved.");
+                            Thread.currentThread().interrupt();
                         }
                         return null;
                     }
@@ -127,23 +139,35 @@ class BurstResultsSaver {
      * Save individual artifacts for bursts.
      */
     private static void saveArtifacts(final StackSaver stackSaver, final BurstResult burstResult,
-            final String artifactType, SequentialTimestampGenerator timestampGenerator) {
+            final String artifactType, SequentialTimestampGenerator timestampGenerator,
+            CountDownLatch saved) {
         List<BurstArtifact> artifactList = burstResult.getArtifactsByType(artifactType);
         for (int artifactIndex = 0; artifactIndex < artifactList.size(); artifactIndex++) {
             List<BurstMediaItem> mediaItems = artifactList.get(artifactIndex).getMediaItems();
             for (int index = 0; index < mediaItems.size(); index++) {
                 saveBurstMediaItem(stackSaver, mediaItems.get(index),
-                        artifactType, artifactIndex + 1, index + 1, timestampGenerator);
+                        artifactType, artifactIndex + 1, index + 1, timestampGenerator, saved);
             }
         }
     }
 
+    private static int countMediaItems(BurstResult burstResult) {
+        int count = 0;
+        for (String artifactType : burstResult.getTypes()) {
+            for (BurstArtifact artifact : burstResult.getArtifactsByType(artifactType)) {
+                count += artifact.getMediaItems().size();
+            }
+        }
+        return count;
+    }
+
     private static void saveBurstMediaItem(StackSaver stackSaver,
             BurstMediaItem mediaItem,
             String artifactType,
             int artifactIndex,
             int index,
-            SequentialTimestampGenerator timestampGenerator) {
+            SequentialTimestampGenerator timestampGenerator,
+            final CountDownLatch saved) {
         // Use ordered timestamp for saving the media item, this way media
         // items appear to be in the correct order when user swipes to the
         // film strip.
@@ -158,7 +182,13 @@ class BurstResultsSaver {
                 mediaItem.getHeight(),
                 0, // Artifacts returned from burst have upright orientation.
                 timestamp,
-                mimeType);
+                mimeType,
+                new OnMediaSavedListener() {
+                    @Override
+                    public void onMediaSaved(Uri uri) {
+                        saved.countDown();
+                    }
+                });
     }
 
     private static void logProgressUpdate(String[] artifactTypes, BurstResult burstResult) {
@@ -16,10 +16,11 @@
 
 package com.android.camera.data;
 
-import android.content.ContentResolver;
 import android.content.Context;
 import android.net.Uri;
 import android.os.AsyncTask;
+import android.os.Handler;
+import android.os.Looper;
 import android.view.View;
 
 import com.android.camera.Storage;
@@ -29,9 +30,16 @@ import com.android.camera.util.Callback;
 import com.google.common.base.Optional;
 
 import java.util.ArrayList;
-import java.util.Comparator;
+import java.util.Arrays;
+import java.util.Collections;
 import java.util.Date;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
 import java.util.List;
+import java.util.Map;
+import java.util.Set;
 
 /**
  * A {@link LocalFilmstripDataAdapter} that provides data in the camera folder.
@@ -40,6 +48,17 @@ public class CameraFilmstripDataAdapter implements LocalFilmstripDataAdapter {
     private static final Log.Tag TAG = new Log.Tag("CameraDataAdapter");
 
     private static final int DEFAULT_DECODE_SIZE = 1600;
+    /** Items loaded before the filmstrip is first shown. */
+    private static final int FIRST_PAGE_SIZE = 64;
+    /** Items loaded by each background page task afterwards. */
+    private static final int PAGE_SIZE = 512;
+    /**
+     * The longest the first page waits for the stored thumbnails to be read,
+     * after which they are decoded instead.
+     */
+    private static final long THUMBNAIL_PRELOAD_TIMEOUT_MS = 300;
+    /** Time over which metadata updates are gathered into one notification. */
+    private static final int METADATA_UPDATE_BATCH_MS = 32;
 
     private final Context mContext;
     private final PhotoItemFactory mPhotoItemFactory;
@@ -54,9 +73,41 @@ public class CameraFilmstripDataAdapter implements LocalFilmstripDataAdapter {
     private int mSuggestedWidth = DEFAULT_DECODE_SIZE;
     private int mSuggestedHeight = DEFAULT_DECODE_SIZE;
     private long mLastPhotoId = FilmstripItemBase.QUERY_ALL_MEDIA_ID;
+    private long mLastVideoId = FilmstripItemBase.QUERY_ALL_MEDIA_ID;
+    /** The latest modification date of the loaded items, in seconds. */
+    private long mLastDateModified = 0;
+    /** Whether a {@link QueryTask} has loaded the list since it was cleared. */
+    private boolean mLoaded = false;
+    /** Whether a {@link LoadChangesTask} is running. */
+    private boolean mLoadingChanges = false;
+    /** Whether changes were requested while a LoadChangesTask was running. */
+    private boolean mChangesPending = false;
+    /**
+     * Incremented whenever the list is replaced, so that pages of an older
+     * load are dropped.
+     */
+    private int mLoadGeneration = 0;
+    /** Whether {@link PageTask}s are still appending older items. */
+    private boolean mPaging = false;
+    /**
+     * Changed rows which sort after the last loaded item while paging, kept
+     * until the last page is appended: inserting them earlier would put them
+     * in front of the newer items of the pages still to come.
+     */
+    private final Map<Uri, FilmstripItem> mDeferredChanges = new LinkedHashMap<>();
 
     private FilmstripItem mFilmstripItemToDelete;
 
+    private final Handler mMainHandler = new Handler(Looper.getMainLooper());
+    /** Items whose metadata was updated since the listeners were notified. */
+    private final Set<FilmstripItem> mPendingMetadataUpdates = new LinkedHashSet<>();
+    private final Runnable mNotifyMetadataUpdates = new Runnable() {
+        @Override
+        public void run() {
+            notifyMetadataUpdates();
+        }
+    };
+
     public CameraFilmstripDataAdapter(Context context,
             PhotoItemFactory photoItemFactory, VideoItemFactory videoItemFactory) {
         mContext = context;
@@ -72,8 +123,18 @@ public class CameraFilmstripDataAdapter implements LocalFilmstripDataAdapter {
 
     @Override
     public void requestLoadNewPhotos() {
-        LoadNewPhotosTask ltask = new LoadNewPhotosTask(mContext, mLastPhotoId);
-        ltask.execute(mContext.getContentResolver());
+        if (!mLoaded) {
+            // The QueryTask looks for changes once it is done.
+            return;
+        }
+        if (mLoadingChanges) {
+            // Run once more when done, to pick up what this one may miss.
+            mChangesPending = true;
+            return;
+        }
+        mLoadingChanges = true;
+        new LoadChangesTask(mLastPhotoId, mLastVideoId, mLastDateModified, mLoadGeneration)
+                .execute();
     }
 
     @Override
@@ -89,7 +150,7 @@ public class CameraFilmstripDataAdapter implements LocalFilmstripDataAdapter {
 
     private AsyncTask updateMetadataAt(int index, boolean forceItemUpdate) {
         MetadataUpdateTask result = new MetadataUpdateTask(forceItemUpdate);
-        result.executeOnExecutor(AsyncTask.THREAD_POOL_EXECUTOR, index);
+        result.executeOnExecutor(MetadataLoader.getExecutor(), index);
         return result;
     }
 
@@ -218,6 +279,10 @@ public class CameraFilmstripDataAdapter implements LocalFilmstripDataAdapter {
 
     @Override
     public void clear() {
+        mLoadGeneration++;
+        mLoaded = false;
+        mPaging = false;
+        mDeferredChanges.clear();
         replaceItemList(new FilmstripItemList());
     }
 
@@ -246,21 +311,147 @@ public class CameraFilmstripDataAdapter implements LocalFilmstripDataAdapter {
     }
 
     private void insertItem(FilmstripItem item) {
-        // Since this function is mostly for adding the newest data,
-        // a simple linear search should yield the best performance over a
-        // binary search.
-        int pos = 0;
-        Comparator<FilmstripItem> comp = new NewestFirstComparator(
-                new Date());
-        for (; pos < mFilmstripItems.size()
-                && comp.compare(item, mFilmstripItems.get(pos)) > 0; pos++) {
-        }
-        mFilmstripItems.add(pos, item);
+        int pos = mFilmstripItems.insertSorted(item);
         if (mListener != null) {
             mListener.onFilmstripItemInserted(pos, item);
         }
     }
 
+    /**
+     * Advances the highest ids and the latest modification date seen to
+     * include the given item, if it is a media store item.
+     */
+    private void trackNewest(FilmstripItem item) {
+        FilmstripItemData data = item.getData();
+        if (data.getContentId() < 0) {
+            return;
+        }
+        if (item instanceof PhotoItem) {
+            mLastPhotoId = Math.max(mLastPhotoId, data.getContentId());
+        } else if (item instanceof VideoItem) {
+            mLastVideoId = Math.max(mLastVideoId, data.getContentId());
+        } else {
+            return;
+        }
+        mLastDateModified = Math.max(mLastDateModified,
+                data.getLastModifiedDate().getTime() / 1000);
+    }
+
+    /**
+     * Applies the result of a {@link LoadChangesTask}: removes the media store
+     * items whose rows are gone, and inserts or updates the changed rows.
+     */
+    private void applyChanges(LoadChangesTask task, ChangesResult changes) {
+        // Rows inserted after the ids were queried are not in the ids, so
+        // items with higher ids than any of them are left alone.
+        long maxPhotoId = getMaxId(changes.mPhotoIds, task.mMinPhotoId);
+        long maxVideoId = getMaxId(changes.mVideoIds, task.mMinVideoId);
+        int removed = 0;
+        for (int i = mFilmstripItems.size() - 1; i >= 0; i--) {
+            FilmstripItem item = mFilmstripItems.get(i);
+            if (isDeleted(item, changes, maxPhotoId, maxVideoId)) {
+                mFilmstripItems.remove(i);
+                removed++;
+                if (mListener != null) {
+                    mListener.onFilmstripItemRemoved(i, item);
+                }
+            }
+        }
+        Iterator<FilmstripItem> deferredItems = mDeferredChanges.values().iterator();
+        while (deferredItems.hasNext()) {
+            if (isDeleted(deferredItems.next(), changes, maxPhotoId, maxVideoId)) {
+                deferredItems.remove();
+            }
+        }
+
+        int inserted = 0;
+        int updated = 0;
+        int deferred = 0;
+        for (FilmstripItem item : changes.mChangedItems) {
+            trackNewest(item);
+            Uri uri = item.getData().getUri();
+            // Sessions replace their placeholders by themselves, and an item
+            // pending deletion must not come back.
+            if (Storage.getSessionUriFromContentUri(uri) != null
+                    || (mFilmstripItemToDelete != null
+                            && uri.equals(mFilmstripItemToDelete.getData().getUri()))) {
+                continue;
+            }
+            int pos = findByContentUri(uri);
+            if (pos == -1) {
+                if (mPaging && sortsAfterLoadedItems(item)) {
+                    mDeferredChanges.put(uri, item);
+                    deferred++;
+                } else {
+                    insertItem(item);
+                    inserted++;
+                }
+            } else if (!item.getData().getLastModifiedDate().equals(
+                    mFilmstripItems.get(pos).getData().getLastModifiedDate())) {
+                updateItemAt(pos, item);
+                updated++;
+            }
+        }
+        Log.v(TAG, "applied media store changes, inserted: " + inserted + ", updated: "
+                + updated + ", removed: " + removed + ", deferred: " + deferred);
+    }
+
+    /**
+     * @return Whether the item sorts at or after the last loaded item, where
+     *         the pages not appended yet belong.
+     */
+    private boolean sortsAfterLoadedItems(FilmstripItem item) {
+        int size = mFilmstripItems.size();
+        return size > 0 && mFilmstripItems.getComparator()
+                .compare(item, mFilmstripItems.get(size - 1)) >= 0;
+    }
+
+    /**
+     * Applies the changes deferred while paging, once all pages are
+     * appended. Rows a page reached in the meantime are only updated if the
+     * deferred row is the more recent one.
+     */
+    private void applyDeferredChanges() {
+        int inserted = 0;
+        for (FilmstripItem item : mDeferredChanges.values()) {
+            int pos = findByContentUri(item.getData().getUri());
+            if (pos == -1) {
+                insertItem(item);
+                inserted++;
+            } else if (item.getData().getLastModifiedDate().after(
+                    mFilmstripItems.get(pos).getData().getLastModifiedDate())) {
+                updateItemAt(pos, item);
+            }
+        }
+        if (!mDeferredChanges.isEmpty()) {
+            Log.v(TAG, "applied deferred media store changes: " + mDeferredChanges.size()
+                    + ", inserted: " + inserted);
+        }
+        mDeferredChanges.clear();
+    }
+
+    private static long getMaxId(long[] ids, long minimumId) {
+        if (ids == null || ids.length == 0) {
+            return minimumId;
+        }
+        return Math.max(minimumId, ids[ids.length - 1]);
+    }
+
+    private static boolean isDeleted(FilmstripItem item, ChangesResult changes,
+            long maxPhotoId, long maxVideoId) {
+        long id = item.getData().getContentId();
+        if (item instanceof PhotoItem) {
+            return isDeleted(changes.mPhotoIds, id, maxPhotoId);
+        } else if (item instanceof VideoItem) {
+            return isDeleted(changes.mVideoIds, id, maxVideoId);
+        }
+        return false;
+    }
+
+    private static boolean isDeleted(long[] ids, long id, long maxId) {
+        return ids != null && id >= 0 && id <= maxId && Arrays.binarySearch(ids, id) < 0;
+    }
+
     /** Update all the data */
     private void replaceItemList(FilmstripItemList list) {
         if (list.size() == 0 && mFilmstripItems.size() == 0) {
@@ -306,55 +497,58 @@ public class CameraFilmstripDataAdapter implements LocalFilmstripDataAdapter {
         return getTotalNumber();
     }
 
-    private class LoadNewPhotosTask extends AsyncTask<ContentResolver, Void, List<PhotoItem>> {
+    private static class ChangesResult {
+        public final List<FilmstripItem> mChangedItems = new ArrayList<>();
+        public long[] mPhotoIds;
+        public long[] mVideoIds;
+    }
 
+    /**
+     * Loads what changed in the camera folder since the loaded items were
+     * queried: the rows which were added or modified since, and the ids of
+     * all rows to find the ones which were deleted. While {@link PageTask}s
+     * are running, new rows which sort after the last loaded item are
+     * deferred until the last page is appended, so that the list stays
+     * sorted.
+     */
+    private class LoadChangesTask extends AsyncTask<Void, Void, ChangesResult> {
         private final long mMinPhotoId;
-        private final Context mContext;
+        private final long mMinVideoId;
+        private final long mMinDateModified;
+        private final int mGeneration;
 
-        public LoadNewPhotosTask(Context context, long lastPhotoId) {
-            mContext = context;
+        public LoadChangesTask(long lastPhotoId, long lastVideoId, long lastDateModified,
+                int generation) {
             mMinPhotoId = lastPhotoId;
+            mMinVideoId = lastVideoId;
+            mMinDateModified = lastDateModified;
+            mGeneration = generation;
         }
 
-        /**
-         * Loads any new photos added to our storage directory since our last query.
-         * @param contentResolvers {@link android.content.ContentResolver} to load data.
-         * @return An {@link java.util.ArrayList} containing any new data.
-         */
         @Override
-        protected List<PhotoItem> doInBackground(ContentResolver... contentResolvers) {
-            if (mMinPhotoId != FilmstripItemBase.QUERY_ALL_MEDIA_ID) {
-                Log.v(TAG, "updating media metadata with photos newer than id: " + mMinPhotoId);
-                final ContentResolver cr = contentResolvers[0];
-                return mPhotoItemFactory.queryAll(PhotoDataQuery.CONTENT_URI, mMinPhotoId);
-            }
-            return new ArrayList<>(0);
+        protected ChangesResult doInBackground(Void... v) {
+            Log.v(TAG, "loading media changes since photo id: " + mMinPhotoId
+                    + ", video id: " + mMinVideoId + ", modified: " + mMinDateModified);
+            ChangesResult result = new ChangesResult();
+            result.mChangedItems.addAll(
+                    mPhotoItemFactory.queryChangedSince(mMinPhotoId, mMinDateModified));
+            result.mChangedItems.addAll(
+                    mVideoItemFactory.queryChangedSince(mMinVideoId, mMinDateModified));
+            result.mPhotoIds = mPhotoItemFactory.queryIds();
+            result.mVideoIds = mVideoItemFactory.queryIds();
+            return result;
         }
 
         @Override
-        protected void onPostExecute(List<PhotoItem> newPhotoData) {
-            if (newPhotoData == null) {
-                Log.w(TAG, "null data returned from new photos query");
-                return;
-            }
-            Log.v(TAG, "new photos query return num items: " + newPhotoData.size());
-            if (!newPhotoData.isEmpty()) {
-                FilmstripItem newestPhoto = newPhotoData.get(0);
-                // We may overlap with another load task or a query task, in which case we want
-                // to be sure we never decrement the oldest seen id.
-                long newLastPhotoId = newestPhoto.getData().getContentId();
-                Log.v(TAG, "updating last photo id (old:new) " +
-                        mLastPhotoId + ":" + newLastPhotoId);
-                mLastPhotoId = Math.max(mLastPhotoId, newLastPhotoId);
+        protected void onPostExecute(ChangesResult result) {
+            mLoadingChanges = false;
+            // Changes of an older load are part of the current one already.
+            if (mGeneration == mLoadGeneration) {
+                applyChanges(this, result);
             }
-            // We may add data that is already present, but if we do, it will be deduped in addOrUpdate.
-            // addOrUpdate does not dedupe session items, so we ignore them here
-            for (FilmstripItem filmstripItem : newPhotoData) {
-                Uri sessionUri = Storage.getSessionUriFromContentUri(
-                      filmstripItem.getData().getUri());
-                if (sessionUri == null) {
-                    addOrUpdate(filmstripItem);
-                }
+            if (mChangesPending) {
+                mChangesPending = false;
+                requestLoadNewPhotos();
             }
         }
     }
@@ -374,75 +568,130 @@ public class CameraFilmstripDataAdapter implements LocalFilmstripDataAdapter {
         private static final int MAX_METADATA = 5;
 
         private final Callback<Void> mDoneCallback;
+        private final NewestFirstComparator mComparator;
+        private final FilmstripItemPager mPager;
+        private final int mGeneration;
 
         public QueryTask(Callback<Void> doneCallback) {
             mDoneCallback = doneCallback;
+            mComparator = new NewestFirstComparator(new Date());
+            mPager = new FilmstripItemPager(mPhotoItemFactory, mVideoItemFactory, mComparator);
+            mGeneration = ++mLoadGeneration;
         }
 
         /**
-         * Loads all the photo and video data in the camera folder in background
-         * and combine them into one single list.
+         * Loads the newest photo and video data in the camera folder in
+         * background, combined into one single list. The remaining items are
+         * loaded in pages by {@link PageTask}s once this is done, so that a
+         * large camera folder does not delay showing the newest items.
          *
          * @param contexts {@link Context} to load all the data.
          * @return An {@link CameraFilmstripDataAdapter.QueryTaskResult} containing
-         *  all loaded data and the highest photo id in the dataset.
+         *  the first page of data and the highest photo id in it.
          */
         @Override
         protected QueryTaskResult doInBackground(Context... contexts) {
             final Context context = contexts[0];
-            FilmstripItemList l = new FilmstripItemList();
-            // Photos and videos
-            List<PhotoItem> photoData = mPhotoItemFactory.queryAll();
-            List<VideoItem> videoData = mVideoItemFactory.queryAll();
-
-            long lastPhotoId = FilmstripItemBase.QUERY_ALL_MEDIA_ID;
-            if (photoData != null && !photoData.isEmpty()) {
-                // This relies on {@link LocalMediaData.QUERY_ORDER} returning
-                // items sorted descending by ID, as such we can just pull the
-                // ID from the first item in the result to establish the last
-                // (max) photo ID.
-                FilmstripItemData firstPhotoData = photoData.get(0).getData();
-
-                if(firstPhotoData != null) {
-                    lastPhotoId = firstPhotoData.getContentId();
-                }
-            }
-
-            if (photoData != null) {
-                Log.v(TAG, "retrieved photo metadata, number of items: " + photoData.size());
-                l.addAll(photoData);
-            }
-            if (videoData != null) {
-                Log.v(TAG, "retrieved video metadata, number of items: " + videoData.size());
-                l.addAll(videoData);
-            }
-            Log.v(TAG, "sorting video/photo metadata");
-            // Photos should be sorted within photo/video by ID, which in most
-            // cases should correlate well to the date taken/modified. This sort
-            // operation makes all photos/videos sorted by date in one list.
-            l.sort(new NewestFirstComparator(new Date()));
-            Log.v(TAG, "sorted video/photo metadata");
+            // Photos and videos, merged newest first in the order of the
+            // list, so that later pages and changes can be added in place.
+            FilmstripItemList l = new FilmstripItemList(mComparator);
+            l.addAll(mPager.nextPage(FIRST_PAGE_SIZE));
+            Log.v(TAG, "retrieved first page of metadata, number of items: " + l.size());
 
             // Load enough metadata so it's already loaded when we open the filmstrip.
+            List<FilmstripItem> newest = new ArrayList<>(MAX_METADATA);
             for (int i = 0; i < MAX_METADATA && i < l.size(); i++) {
-                FilmstripItem data = l.get(i);
-                MetadataLoader.loadMetadata(context, data);
+                newest.add(l.get(i));
             }
-            return new QueryTaskResult(l, lastPhotoId);
+            MetadataLoader.loadMetadata(context, newest);
+
+            // The newest stored thumbnails are read in the meantime; wait for
+            // them so the first bind finds them in memory.
+            if (!ThumbnailStore.instance(context).awaitPreload(THUMBNAIL_PRELOAD_TIMEOUT_MS)) {
+                Log.v(TAG, "Binding the first page before stored thumbnails were read");
+            }
+            return new QueryTaskResult(l, mPager.getLastPhotoId());
         }
 
         @Override
         protected void onPostExecute(QueryTaskResult result) {
+            if (mGeneration != mLoadGeneration) {
+                return;
+            }
             // Since we're wiping away all of our data, we should always replace any existing last
             // photo id with the new one we just obtained so it matches the data we're showing.
             mLastPhotoId = result.mLastPhotoId;
-            replaceItemList(result.mFilmstripItemList);
+            mLastVideoId = FilmstripItemBase.QUERY_ALL_MEDIA_ID;
+            mLastDateModified = 0;
+            FilmstripItemList items = result.mFilmstripItemList;
+            for (int i = 0; i < items.size(); i++) {
+                trackNewest(items.get(i));
+            }
+            mLoaded = true;
+            mPaging = mPager.hasMore();
+            mDeferredChanges.clear();
+            replaceItemList(items);
             if (mDoneCallback != null) {
                 mDoneCallback.onCallback(null);
             }
-            // Now check for any photos added since this task was kicked off
-            LoadNewPhotosTask ltask = new LoadNewPhotosTask(mContext, mLastPhotoId);
-            ltask.execute(mContext.getContentResolver());
+            // Now check for any changes made since this task was kicked off
+            requestLoadNewPhotos();
+
+            if (mPager.hasMore()) {
+                new PageTask(mPager, mGeneration).execute();
+            }
+        }
+    }
+
+    /**
+     * Loads the next page of items of a {@link QueryTask} and appends it, then
+     * starts the task for the following page. Every page is older than the
+     * items already loaded, so existing indexes do not change.
+     */
+    private class PageTask extends AsyncTask<Void, Void, List<FilmstripItem>> {
+        private final FilmstripItemPager mPager;
+        private final int mGeneration;
+
+        public PageTask(FilmstripItemPager pager, int generation) {
+            mPager = pager;
+            mGeneration = generation;
+        }
+
+        @Override
+        protected List<FilmstripItem> doInBackground(Void... v) {
+            return mPager.nextPage(PAGE_SIZE);
+        }
+
+        @Override
+        protected void onPostExecute(List<FilmstripItem> page) {
+            if (mGeneration != mLoadGeneration) {
+                return;
+            }
+            mLastPhotoId = Math.max(mLastPhotoId, mPager.getLastPhotoId());
+
+            int start = mFilmstripItems.size();
+            List<FilmstripItem> newItems = new ArrayList<>(page.size());
+            for (FilmstripItem item : page) {
+                // Items may already have been added by LoadChangesTask.
+                if (mFilmstripItems.get(item.getData().getUri()) == null) {
+                    newItems.add(item);
+                    trackNewest(item);
+                }
+            }
+            // Append in one copy of the list, rather than one per item.
+            mFilmstripItems.addAll(newItems);
+            int count = newItems.size();
+            Log.v(TAG, "appended page of metadata, number of items: " + count);
+            if (count > 0 && mListener != null) {
+                mListener.onFilmstripItemsAppended(start, count);
+            }
+
+            if (mPager.hasMore()) {
+                new PageTask(mPager, mGeneration).execute();
+            } else {
+                mPaging = false;
+                applyDeferredChanges();
+            }
         }
     }
 
@@ -460,7 +709,50 @@ public class CameraFilmstripDataAdapter implements LocalFilmstripDataAdapter {
         }
     }
 
-    private class MetadataUpdateTask extends AsyncTask<Integer, Void, List<Integer> > {
+    /**
+     * Notifies the listeners of the metadata updates gathered since the last
+     * notification, at the current indexes of the updated items.
+     */
+    private void notifyMetadataUpdates() {
+        final Set<Integer> updatedIndexes = new HashSet<>();
+        for (FilmstripItem item : mPendingMetadataUpdates) {
+            int index = mFilmstripItems.indexOf(item.getData().getUri());
+            // Skip items which were removed or replaced in the meantime.
+            if (index >= 0 && mFilmstripItems.get(index) == item) {
+                updatedIndexes.add(index);
+            }
+        }
+        mPendingMetadataUpdates.clear();
+        if (updatedIndexes.isEmpty()) {
+            return;
+        }
+
+        // Since the metadata will affect the width and height of the data
+        // if it's a video, we need to notify the DataAdapter listener
+        // because ImageData.getWidth() and ImageData.getHeight() now may
+        // return different values due to the metadata.
+        if (mListener != null) {
+            mListener.onFilmstripItemUpdated(new UpdateReporter() {
+                @Override
+                public boolean isDataRemoved(int index) {
+                    return false;
+                }
+
+                @Override
+                public boolean isDataUpdated(int index) {
+                    return updatedIndexes.contains(index);
+                }
+            });
+        }
+        if (mFilmstripItemListener == null) {
+            return;
+        }
+        List<Integer> sortedIndexes = new ArrayList<>(updatedIndexes);
+        Collections.sort(sortedIndexes);
+        mFilmstripItemListener.onMetadataUpdated(sortedIndexes);
+    }
+
+    private class MetadataUpdateTask extends AsyncTask<Integer, Void, List<FilmstripItem> > {
         private final boolean mForceUpdate;
 
         MetadataUpdateTask(boolean forceUpdate) {
@@ -473,43 +765,31 @@ public class CameraFilmstripDataAdapter implements LocalFilmstripDataAdapter {
         }
 
         @Override
-        protected List<Integer> doInBackground(Integer... dataId) {
-            List<Integer> updatedList = new ArrayList<>();
+        protected List<FilmstripItem> doInBackground(Integer... dataId) {
+            List<FilmstripItem> updatedList = new ArrayList<>();
             for (Integer id : dataId) {
                 if (id < 0 || id >= mFilmstripItems.size()) {
                     continue;
                 }
                 final FilmstripItem data = mFilmstripItems.get(id);
                 if (MetadataLoader.loadMetadata(mContext, data) || mForceUpdate) {
-                    updatedList.add(id);
+                    updatedList.add(data);
                 }
             }
             return updatedList;
         }
 
         @Override
-        protected void onPostExecute(final List<Integer> updatedData) {
-            // Since the metadata will affect the width and height of the data
-            // if it's a video, we need to notify the DataAdapter listener
-            // because ImageData.getWidth() and ImageData.getHeight() now may
-            // return different values due to the metadata.
-            if (mListener != null) {
-                mListener.onFilmstripItemUpdated(new UpdateReporter() {
-                    @Override
-                    public boolean isDataRemoved(int index) {
-                        return false;
-                    }
-
-                    @Override
-                    public boolean isDataUpdated(int index) {
-                        return updatedData.contains(index);
-                    }
-                });
-            }
-            if (mFilmstripItemListener == null) {
+        protected void onPostExecute(List<FilmstripItem> updatedData) {
+            if (updatedData.isEmpty()) {
                 return;
             }
-            mFilmstripItemListener.onMetadataUpdated(updatedData);
+            // Notify of the updates of all tasks completing within a short
+            // time at once, rather than relayout the filmstrip for each.
+            if (mPendingMetadataUpdates.isEmpty()) {
+                mMainHandler.postDelayed(mNotifyMetadataUpdates, METADATA_UPDATE_BATCH_MS);
+            }
+            mPendingMetadataUpdates.addAll(updatedData);
         }
     }
 }
@@ -0,0 +1,138 @@
+/*
+ * Copyright (C) 2015 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.camera.data;
+
+import android.content.Context;
+import android.graphics.Bitmap;
+import android.graphics.BitmapFactory;
+
+import com.android.camera.debug.Log;
+import com.android.camera.exif.ExifInterface;
+import com.android.camera.exif.ExifThumbnail;
+import com.bumptech.glide.Glide;
+import com.bumptech.glide.load.ResourceDecoder;
+import com.bumptech.glide.load.engine.Resource;
+import com.bumptech.glide.load.engine.bitmap_recycle.BitmapPool;
+import com.bumptech.glide.load.model.ImageVideoWrapper;
+import com.bumptech.glide.load.resource.bitmap.BitmapResource;
+import com.bumptech.glide.load.resource.bitmap.FileDescriptorBitmapDecoder;
+import com.bumptech.glide.load.resource.bitmap.ImageVideoBitmapDecoder;
+import com.bumptech.glide.load.resource.bitmap.StreamBitmapDecoder;
+import com.bumptech.glide.load.resource.bitmap.TransformationUtils;
+
+import java.io.BufferedInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+
+/**
+ * Decodes filmstrip thumbnails from the compressed thumbnail in the EXIF
+ * header of a JPEG, where there is one large enough for the requested size.
+ * Only the header is read from the stream, and only the thumbnail bytes are
+ * decoded. Otherwise, the stream is rewound and the whole image is decoded and
+ * downsampled, as Glide does by default.
+ */
+class ExifThumbnailBitmapDecoder implements ResourceDecoder<ImageVideoWrapper, Bitmap> {
+    private static final Log.Tag TAG = new Log.Tag("ExifThumbDecoder");
+
+    private final BitmapPool mBitmapPool;
+    private final ResourceDecoder<ImageVideoWrapper, Bitmap> mFullDecoder;
+
+    public ExifThumbnailBitmapDecoder(Context context) {
+        mBitmapPool = Glide.get(context).getBitmapPool();
+        mFullDecoder = new ImageVideoBitmapDecoder(new StreamBitmapDecoder(context),
+                new FileDescriptorBitmapDecoder(context));
+    }
+
+    @Override
+    public Resource<Bitmap> decode(ImageVideoWrapper source, int width, int height)
+            throws IOException {
+        InputStream stream = source.getStream();
+        if (stream == null) {
+            return mFullDecoder.decode(source, width, height);
+        }
+
+        // Keep the header around, to rewind to for a full decode.
+        BufferedInputStream bufferedStream = new BufferedInputStream(stream);
+        bufferedStream.mark(ExifThumbnail.MAX_HEADER_BYTES);
+        ExifThumbnail thumbnail = ExifThumbnail.read(bufferedStream);
+        if (thumbnail != null) {
+            Bitmap bitmap = decodeThumbnail(thumbnail, width, height);
+            if (bitmap != null) {
+                return BitmapResource.obtain(bitmap, mBitmapPool);
+            }
+        }
+        bufferedStream.reset();
+        return mFullDecoder.decode(new ImageVideoWrapper(bufferedStream,
+                source.getFileDescriptor()), width, height);
+    }
+
+    /**
+     * @return The oriented thumbnail, downsampled as far as possible while
+     *         still filling the requested size, or null if the thumbnail is
+     *         smaller than that.
+     */
+    private Bitmap decodeThumbnail(ExifThumbnail thumbnail, int width, int height) {
+        byte[] jpeg = thumbnail.getJpeg();
+        BitmapFactory.Options options = new BitmapFactory.Options();
+        options.inJustDecodeBounds = true;
+        BitmapFactory.decodeByteArray(jpeg, 0, jpeg.length, options);
+        int thumbnailWidth = options.outWidth;
+        int thumbnailHeight = options.outHeight;
+        if (isTransposed(thumbnail.getOrientation())) {
+            thumbnailWidth = options.outHeight;
+            thumbnailHeight = options.outWidth;
+        }
+        // Scaling to fit within the requested size upscales the thumbnail
+        // unless one of its edges reaches the requested one.
+        if (thumbnailWidth < width && thumbnailHeight < height) {
+            return null;
+        }
+
+        int sampleSize = 1;
+        while (thumbnailWidth / (sampleSize * 2) >= width
+                || thumbnailHeight / (sampleSize * 2) >= height) {
+            sampleSize *= 2;
+        }
+        options.inJustDecodeBounds = false;
+        options.inSampleSize = sampleSize;
+        // Match Glide's default decode format, which thumbnails are cached in.
+        options.inPreferredConfig = Bitmap.Config.RGB_565;
+        Bitmap bitmap = BitmapFactory.decodeByteArray(jpeg, 0, jpeg.length, options);
+        if (bitmap == null) {
+            Log.w(TAG, "Could not decode the EXIF thumbnail");
+            return null;
+        }
+        Bitmap oriented = TransformationUtils.rotateImageExif(bitmap, mBitmapPool,
+                thumbnail.getOrientation());
+        if (oriented != bitmap && !mBitmapPool.put(bitmap)) {
+            bitmap.recycle();
+        }
+        return oriented;
+    }
+
+    private static boolean isTransposed(short orientation) {
+        return orientation == ExifInterface.Orientation.LEFT_TOP
+                || orientation == ExifInterface.Orientation.RIGHT_TOP
+                || orientation == ExifInterface.Orientation.RIGHT_BOTTOM
+                || orientation == ExifInterface.Orientation.LEFT_BOTTOM;
+    }
+
+    @Override
+    public String getId() {
+        return "ExifThumbnailBitmapDecoder.com.android.camera.data";
+    }
+}
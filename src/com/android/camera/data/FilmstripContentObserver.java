@@ -17,14 +17,35 @@
 package com.android.camera.data;
 
 import android.database.ContentObserver;
+import android.os.Handler;
+import android.os.Looper;
 
 /**
  * Listening to the changes to the local image and video data. onChange will
  * happen on the main thread.
+ * <p>
+ * MediaStore notifies once per inserted or updated row, so a burst of shots
+ * results in dozens of notifications. These are coalesced: the listener is
+ * called once per {@link #COALESCE_WINDOW_MS}, at the end of the window that
+ * the first notification opened, however many notifications arrive in it.
  */
 public class FilmstripContentObserver extends ContentObserver {
+    /** Time over which change notifications are coalesced. */
+    private static final long COALESCE_WINDOW_MS = 300;
+
+    private final Handler mHandler;
+    private final Runnable mNotifyChange = new Runnable() {
+        @Override
+        public void run() {
+            mChangePending = false;
+            if (mChangeListener != null) {
+                mChangeListener.onChange();
+            }
+        }
+    };
 
     private ChangeListener mChangeListener;
+    private boolean mChangePending = false;
 
     public interface ChangeListener {
         public void onChange();
@@ -34,7 +55,12 @@ public class FilmstripContentObserver extends ContentObserver {
     private boolean mMediaDataChangedDuringPause = false;
 
     public FilmstripContentObserver() {
-        super(null);
+        this(new Handler(Looper.getMainLooper()));
+    }
+
+    private FilmstripContentObserver(Handler handler) {
+        super(handler);
+        mHandler = handler;
     }
 
     public void setForegroundChangeListener(ChangeListener changeListener) {
@@ -51,17 +77,26 @@ public class FilmstripContentObserver extends ContentObserver {
      */
     @Override
     public void onChange(boolean selfChange) {
-        if (mChangeListener != null) {
-            mChangeListener.onChange();
-        }
         if (mActivityPaused) {
             mMediaDataChangedDuringPause = true;
+            return;
+        }
+        if (!mChangePending) {
+            mChangePending = true;
+            mHandler.postDelayed(mNotifyChange, COALESCE_WINDOW_MS);
         }
     }
 
     public void setActivityPaused(boolean paused) {
         mActivityPaused = paused;
-        if (!paused) {
+        if (paused) {
+            // Changes which were not delivered yet are picked up on resume.
+            if (mChangePending) {
+                mHandler.removeCallbacks(mNotifyChange);
+                mChangePending = false;
+                mMediaDataChangedDuringPause = true;
+            }
+        } else {
             mMediaDataChangedDuringPause = false;
         }
     }
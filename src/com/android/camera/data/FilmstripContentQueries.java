@@ -25,8 +25,11 @@ import com.android.camera.Storage;
 import com.android.camera.debug.Log;
 
 import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.List;
 
+import javax.annotation.Nullable;
+
 /**
  * A set of queries for loading data from a content resolver.
  */
@@ -34,6 +37,15 @@ public class FilmstripContentQueries {
     private static final Log.Tag TAG = new Log.Tag("LocalDataQuery");
     private static final String CAMERA_PATH = Storage.DIRECTORY + "%";
     private static final String SELECT_BY_PATH = MediaStore.MediaColumns.DATA + " LIKE ?";
+    /**
+     * Date taken, which has the same column name for images and videos. Rows
+     * without one sort as the oldest.
+     */
+    private static final String DATE_TAKEN =
+            "COALESCE(" + MediaStore.Images.ImageColumns.DATE_TAKEN + ", 0)";
+    /** Modification date in seconds, 0 for rows without one. */
+    private static final String DATE_MODIFIED =
+            "COALESCE(" + MediaStore.MediaColumns.DATE_MODIFIED + ", 0)";
 
     public interface CursorToFilmstripItemFactory<I extends FilmstripItem> {
 
@@ -46,6 +58,138 @@ public class FilmstripContentQueries {
         public I get(Cursor cursor);
     }
 
+    /**
+     * The position of a row in the order of {@link #forCameraPathPage}, which
+     * is the order of {@link NewestFirstComparator}: newest date first, then
+     * latest modification date, then highest id.
+     */
+    public static class PageKey implements Comparable<PageKey> {
+        /**
+         * The date taken in milliseconds, or the modification date if the
+         * date taken is in the future.
+         */
+        public final long date;
+        /** The modification date in seconds. */
+        public final long dateModified;
+        public final long id;
+
+        public PageKey(long date, long dateModified, long id) {
+            this.date = date;
+            this.dateModified = dateModified;
+            this.id = id;
+        }
+
+        /** Orders keys newest first. */
+        @Override
+        public int compareTo(PageKey other) {
+            if (date != other.date) {
+                return date > other.date ? -1 : 1;
+            }
+            if (dateModified != other.dateModified) {
+                return dateModified > other.dateModified ? -1 : 1;
+            }
+            return id == other.id ? 0 : (id > other.id ? -1 : 1);
+        }
+    }
+
+    /**
+     * A page of items, along with the key to continue after it.
+     */
+    public static class Page<I extends FilmstripItem> {
+        /** Items in the page, with their keys at the same positions. */
+        public final List<I> items = new ArrayList<>();
+        public final List<PageKey> keys = new ArrayList<>();
+        /** The key of the last row, or null if the query is exhausted. */
+        @Nullable
+        public PageKey next;
+    }
+
+    /**
+     * Query a page of the camera storage directory, newest first, and convert
+     * it to local data objects. Pages are chained by passing the
+     * {@link Page#next} key of one page as the start key of the next, which
+     * keeps each query cheap regardless of how far into the folder it is.
+     * <p>
+     * Rows are in the order of a {@link NewestFirstComparator} with the same
+     * future cutoff, so that pages can be appended to a
+     * {@link FilmstripItemList} sorted by it.
+     *
+     * @param contentResolver to resolve content with.
+     * @param contentUri to resolve an item at
+     * @param projection the columns to extract
+     * @param futureCutoff the date, in milliseconds, after which dates taken
+     *            are ignored in favor of the modification date, see
+     *            {@link NewestFirstComparator#getFutureCutoff()}.
+     * @param after the key of the last row of the previous page, or null for
+     *            the first page.
+     * @param limit the maximum number of rows in the page.
+     * @param factory an object that can turn a given cursor into a LocalData object.
+     * @return The page of LocalData objects that satisfy the query.
+     */
+    public static <I extends FilmstripItem> Page<I> forCameraPathPage(
+          ContentResolver contentResolver, Uri contentUri, String[] projection,
+          long futureCutoff, @Nullable PageKey after, int limit,
+          CursorToFilmstripItemFactory<I> factory) {
+        // The cutoff is also needed by the order, which has no arguments, so
+        // it is inlined; it is a number, so this is safe.
+        String date = "(CASE WHEN " + DATE_TAKEN + " > " + futureCutoff + " THEN "
+              + DATE_MODIFIED + " * 1000 ELSE " + DATE_TAKEN + " END)";
+        String selection = SELECT_BY_PATH;
+        String[] selectionArgs;
+        if (after == null) {
+            selectionArgs = new String[] { CAMERA_PATH };
+        } else {
+            // Selection arguments are bound as text, and the expressions have
+            // no column affinity to convert them, so they are cast
+            // explicitly: comparing an integer with text is always less.
+            selection += " AND (" + date + " < CAST(? AS INTEGER) OR (" + date
+                  + " = CAST(? AS INTEGER) AND (" + DATE_MODIFIED + " < CAST(? AS INTEGER) OR ("
+                  + DATE_MODIFIED + " = CAST(? AS INTEGER) AND "
+                  + MediaStore.MediaColumns._ID + " < CAST(? AS INTEGER)))))";
+            selectionArgs = new String[] { CAMERA_PATH, Long.toString(after.date),
+                  Long.toString(after.date), Long.toString(after.dateModified),
+                  Long.toString(after.dateModified), Long.toString(after.id) };
+        }
+        String order = date + " DESC, " + DATE_MODIFIED + " DESC, "
+              + MediaStore.MediaColumns._ID + " DESC";
+
+        Page<I> page = new Page<>();
+        Cursor cursor = contentResolver.query(contentUri, projection,
+              selection, selectionArgs, order + " LIMIT " + limit);
+        if (cursor == null) {
+            return page;
+        }
+        try {
+            final int idIndex = cursor.getColumnIndexOrThrow(MediaStore.MediaColumns._ID);
+            final int dateTakenIndex = cursor.getColumnIndexOrThrow(
+                  MediaStore.Images.ImageColumns.DATE_TAKEN);
+            final int dateModifiedIndex = cursor.getColumnIndexOrThrow(
+                  MediaStore.MediaColumns.DATE_MODIFIED);
+            PageKey key = null;
+            while (cursor.moveToNext()) {
+                long dateTaken = cursor.getLong(dateTakenIndex);
+                long dateModified = cursor.getLong(dateModifiedIndex);
+                key = new PageKey(dateTaken > futureCutoff ? dateModified * 1000 : dateTaken,
+                      dateModified, cursor.getLong(idIndex));
+                I item = factory.get(cursor);
+                if (item != null) {
+                    page.items.add(item);
+                    page.keys.add(key);
+                } else {
+                    final int dataIndex =
+                          cursor.getColumnIndexOrThrow(MediaStore.MediaColumns.DATA);
+                    Log.e(TAG, "Error loading data:" + cursor.getString(dataIndex));
+                }
+            }
+            if (cursor.getCount() >= limit) {
+                page.next = key;
+            }
+        } finally {
+            cursor.close();
+        }
+        return page;
+    }
+
     /**
      * Query the camera storage directory and convert it to local data
      * objects.
@@ -63,7 +207,69 @@ public class FilmstripContentQueries {
           CursorToFilmstripItemFactory<I> factory) {
         String selection = SELECT_BY_PATH + " AND " + MediaStore.MediaColumns._ID + " > ?";
         String[] selectionArgs = new String[] { CAMERA_PATH, Long.toString(minimumId) };
+        return query(contentResolver, contentUri, projection, selection, selectionArgs, orderBy,
+              factory);
+    }
+
+    /**
+     * Query the rows of the camera storage directory which were added or
+     * modified since a previous query, and convert them to local data
+     * objects. Since modification dates only have a resolution of seconds,
+     * rows modified in the same second as the given one are included again.
+     *
+     * @param contentResolver to resolve content with.
+     * @param contentUri to resolve an item at
+     * @param projection the columns to extract
+     * @param minimumId the highest id seen by the previous query.
+     * @param minimumDateModified the latest modification date seen by the
+     *            previous query, in seconds.
+     * @param orderBy the order by clause
+     * @param factory an object that can turn a given cursor into a LocalData object.
+     * @return A list of LocalData objects that satisfy the query.
+     */
+    public static <I extends FilmstripItem> List<I> forCameraPathChangedSince(
+          ContentResolver contentResolver, Uri contentUri, String[] projection, long minimumId,
+          long minimumDateModified, String orderBy, CursorToFilmstripItemFactory<I> factory) {
+        String selection = SELECT_BY_PATH + " AND (" + MediaStore.MediaColumns._ID + " > ? OR "
+              + MediaStore.MediaColumns.DATE_MODIFIED + " >= ?)";
+        String[] selectionArgs = new String[] { CAMERA_PATH, Long.toString(minimumId),
+              Long.toString(minimumDateModified) };
+        return query(contentResolver, contentUri, projection, selection, selectionArgs, orderBy,
+              factory);
+    }
+
+    /**
+     * Query the ids of all the rows of the camera storage directory, which is
+     * much cheaper than loading the rows themselves, to find the ones that
+     * were deleted.
+     *
+     * @param contentResolver to resolve content with.
+     * @param contentUri to resolve an item at
+     * @return The ids in ascending order, or null if the query failed.
+     */
+    @Nullable
+    public static long[] idsForCameraPath(ContentResolver contentResolver, Uri contentUri) {
+        Cursor cursor = contentResolver.query(contentUri,
+              new String[] { MediaStore.MediaColumns._ID }, SELECT_BY_PATH,
+              new String[] { CAMERA_PATH }, MediaStore.MediaColumns._ID + " ASC");
+        if (cursor == null) {
+            return null;
+        }
+        try {
+            long[] ids = new long[cursor.getCount()];
+            int count = 0;
+            while (cursor.moveToNext() && count < ids.length) {
+                ids[count++] = cursor.getLong(0);
+            }
+            return count == ids.length ? ids : Arrays.copyOf(ids, count);
+        } finally {
+            cursor.close();
+        }
+    }
 
+    private static <I extends FilmstripItem> List<I> query(ContentResolver contentResolver,
+          Uri contentUri, String[] projection, String selection, String[] selectionArgs,
+          String orderBy, CursorToFilmstripItemFactory<I> factory) {
         Cursor cursor = contentResolver.query(contentUri, projection,
               selection, selectionArgs, orderBy);
         List<I> result = new ArrayList<>();
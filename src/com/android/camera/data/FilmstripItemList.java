@@ -17,46 +17,66 @@
 package com.android.camera.data;
 
 import android.net.Uri;
+import android.provider.MediaStore;
 
 import com.android.camera.debug.Log;
 import com.android.camera.debug.Log.Tag;
 
-import java.util.Collections;
+import java.util.Arrays;
 import java.util.Comparator;
+import java.util.Date;
 import java.util.HashMap;
-import java.util.LinkedList;
 import java.util.List;
 
 /**
  * Fast access data structure for an ordered LocalData list.
+ * <p>
+ * Items are kept in an array which is replaced on every change, so that
+ * positional reads ({@link #get(int)}, {@link #size()}) are lock-free and
+ * safe from any thread. Changes, and lookups by uri, must all be made from
+ * one thread. The copy makes every change O(n), but it is a single
+ * arraycopy of references made once per capture or delete, while positional
+ * reads happen for every frame the filmstrip draws; a tree would make those
+ * O(log n) and need locking.
+ * <p>
+ * Items with a MediaStore uri are indexed by their row id in a primitive
+ * open-addressing map, which also records the position each item was added
+ * at. Lookups by uri are O(1) while that position is still right, and
+ * otherwise fall back to a binary search with the list's comparator, which
+ * holds as long as the list is kept sorted by
+ * {@link #insertSorted(FilmstripItem)} or {@link #sort(Comparator)}. Lookups
+ * never write to the index.
  */
 public class FilmstripItemList {
-    /**
-     * We use this as a way to compare a Uri to LocalData instances inside a
-     * LinkedList. A linked list in indexOf does a other.equals(get(i)).
-     */
-    private static class UriWrapper {
-        private final Uri mUri;
+    private static final Tag TAG = new Tag("LocalDataList");
 
-        public UriWrapper(Uri uri) {
-            mUri = uri;
-        }
+    private static final FilmstripItem[] EMPTY = new FilmstripItem[0];
+    /** Returned by {@link #keyOf(Uri)} for uris which are not MediaStore rows. */
+    private static final long NO_KEY = -1;
+    private static final int TABLE_IMAGES = 0;
+    private static final int TABLE_VIDEO = 1;
+    private static final int TABLE_OTHER = 2;
 
-        @Override
-        public boolean equals(Object o) {
-            if (!(o instanceof FilmstripItem)) {
-                return false;
-            }
-            return mUri.equals(((FilmstripItem) o).getData().getUri());
-        }
+    private volatile FilmstripItem[] mItems = EMPTY;
+    private final ItemIndex mIndex = new ItemIndex();
+    /** Items whose uri is not a MediaStore row, such as session placeholders. */
+    private final HashMap<Uri, FilmstripItem> mUnindexed = new HashMap<>();
+    private Comparator<FilmstripItem> mComparator;
+
+    public FilmstripItemList() {
+        this(new NewestFirstComparator(new Date()));
     }
 
-    private static final Tag TAG = new Tag("LocalDataList");
-    private final LinkedList<FilmstripItem> mList = new LinkedList<FilmstripItem>();
-    private final HashMap<Uri, FilmstripItem> mUriMap = new HashMap<Uri, FilmstripItem>();
+    /**
+     * @param comparator The order the items are kept in, see
+     *            {@link #insertSorted(FilmstripItem)}.
+     */
+    public FilmstripItemList(Comparator<FilmstripItem> comparator) {
+        mComparator = comparator;
+    }
 
     public FilmstripItem get(int index) {
-        return mList.get(index);
+        return mItems[index];
     }
 
     /**
@@ -66,59 +86,330 @@ public class FilmstripItemList {
      * @return If the item was found and deleted, it is returned. If the item
      *         was not found, null is returned.
      */
-    public synchronized FilmstripItem remove(int index) {
-        try {
-            FilmstripItem removedItem = mList.remove(index);
-            mUriMap.remove(removedItem);
-            return removedItem;
-        } catch (IndexOutOfBoundsException ex) {
-            Log.w(TAG, "Could not remove item. Not found: " + index, ex);
+    public FilmstripItem remove(int index) {
+        FilmstripItem[] items = mItems;
+        if (index < 0 || index >= items.length) {
+            Log.w(TAG, "Could not remove item. Not found: " + index);
             return null;
         }
+        FilmstripItem removedItem = items[index];
+        FilmstripItem[] newItems = new FilmstripItem[items.length - 1];
+        System.arraycopy(items, 0, newItems, 0, index);
+        System.arraycopy(items, index + 1, newItems, index, newItems.length - index);
+        mItems = newItems;
+        unindex(removedItem);
+        return removedItem;
     }
 
     public FilmstripItem get(Uri uri) {
-        return mUriMap.get(uri);
+        long key = keyOf(uri);
+        if (key == NO_KEY) {
+            return mUnindexed.get(uri);
+        }
+        return mIndex.get(key);
     }
 
     public void set(int pos, FilmstripItem data) {
-        mList.set(pos, data);
-        mUriMap.put(data.getData().getUri(), data);
+        FilmstripItem[] newItems = mItems.clone();
+        FilmstripItem replaced = newItems[pos];
+        newItems[pos] = data;
+        mItems = newItems;
+        if (replaced != data) {
+            unindex(replaced);
+        }
+        index(data, pos);
     }
 
     public void add(FilmstripItem data) {
-        mList.add(data);
-        mUriMap.put(data.getData().getUri(), data);
+        add(mItems.length, data);
     }
 
     public void add(int pos, FilmstripItem data) {
-        mList.add(pos, data);
-        mUriMap.put(data.getData().getUri(), data);
+        FilmstripItem[] items = mItems;
+        FilmstripItem[] newItems = new FilmstripItem[items.length + 1];
+        System.arraycopy(items, 0, newItems, 0, pos);
+        newItems[pos] = data;
+        System.arraycopy(items, pos, newItems, pos + 1, items.length - pos);
+        mItems = newItems;
+        index(data, pos);
     }
 
     public void addAll(List<? extends FilmstripItem> filmstripItemList) {
-        for (FilmstripItem filmstripItem : filmstripItemList) {
-            add(filmstripItem);
+        FilmstripItem[] items = mItems;
+        FilmstripItem[] newItems =
+                Arrays.copyOf(items, items.length + filmstripItemList.size());
+        for (int i = 0; i < filmstripItemList.size(); i++) {
+            FilmstripItem item = filmstripItemList.get(i);
+            newItems[items.length + i] = item;
+            index(item, items.length + i);
+        }
+        mItems = newItems;
+    }
+
+    /**
+     * Inserts an item at its position in the order of the list's comparator,
+     * found by binary search. Items which compare equal keep their insertion
+     * order.
+     *
+     * @return The position the item was inserted at.
+     */
+    public int insertSorted(FilmstripItem data) {
+        FilmstripItem[] items = mItems;
+        int low = 0;
+        int high = items.length;
+        while (low < high) {
+            int mid = (low + high) >>> 1;
+            if (mComparator.compare(data, items[mid]) >= 0) {
+                low = mid + 1;
+            } else {
+                high = mid;
+            }
         }
+        add(low, data);
+        return low;
     }
 
     public int size() {
-        return mList.size();
+        return mItems.length;
     }
 
+    /**
+     * @return The comparator the list is sorted by.
+     */
+    public Comparator<FilmstripItem> getComparator() {
+        return mComparator;
+    }
+
+    /**
+     * Sorts the list, and keeps the comparator for
+     * {@link #insertSorted(FilmstripItem)} and lookups.
+     */
     public void sort(Comparator<FilmstripItem> comparator) {
-        Collections.sort(mList, comparator);
+        FilmstripItem[] newItems = mItems.clone();
+        Arrays.sort(newItems, comparator);
+        mComparator = comparator;
+        mItems = newItems;
     }
 
     /**
-     * This implementation routes through to LinkedList.indexOf, so performs in
-     * O(n) but has a fast exit path for when the uri is not contained in the
-     * list, and immediately returns -1;
+     * Returns the position of the item with the given uri. Returns -1
+     * immediately if there is none, and is O(1) or O(log n) otherwise, see
+     * the class documentation.
      */
     public int indexOf(Uri uri) {
-        if (!mUriMap.containsKey(uri)) {
+        long key = keyOf(uri);
+        if (key == NO_KEY) {
+            FilmstripItem item = mUnindexed.get(uri);
+            return item == null ? -1 : linearIndexOf(mItems, item);
+        }
+
+        int slot = mIndex.find(key);
+        if (slot < 0) {
             return -1;
         }
-        return mList.indexOf(new UriWrapper(uri));
+        FilmstripItem item = mIndex.mValues[slot];
+        FilmstripItem[] items = mItems;
+        int hint = mIndex.mHints[slot];
+        if (hint < items.length && items[hint] == item) {
+            return hint;
+        }
+        int index = binaryIndexOf(items, item);
+        if (index < 0) {
+            // The list is not sorted by the comparator.
+            index = linearIndexOf(items, item);
+        }
+        return index;
+    }
+
+    private int binaryIndexOf(FilmstripItem[] items, FilmstripItem item) {
+        int low = 0;
+        int high = items.length - 1;
+        while (low <= high) {
+            int mid = (low + high) >>> 1;
+            int cmp = mComparator.compare(item, items[mid]);
+            if (cmp > 0) {
+                low = mid + 1;
+            } else if (cmp < 0) {
+                high = mid - 1;
+            } else {
+                // Scan the run of equal items for this one.
+                for (int i = mid; i >= 0 && mComparator.compare(item, items[i]) == 0; i--) {
+                    if (items[i] == item) {
+                        return i;
+                    }
+                }
+                for (int i = mid + 1;
+                        i < items.length && mComparator.compare(item, items[i]) == 0; i++) {
+                    if (items[i] == item) {
+                        return i;
+                    }
+                }
+                return -1;
+            }
+        }
+        return -1;
+    }
+
+    private static int linearIndexOf(FilmstripItem[] items, FilmstripItem item) {
+        for (int i = 0; i < items.length; i++) {
+            if (items[i] == item) {
+                return i;
+            }
+        }
+        return -1;
+    }
+
+    private void index(FilmstripItem item, int pos) {
+        Uri uri = item.getData().getUri();
+        long key = keyOf(uri);
+        if (key == NO_KEY) {
+            mUnindexed.put(uri, item);
+        } else {
+            mIndex.put(key, item, pos);
+        }
+    }
+
+    private void unindex(FilmstripItem item) {
+        Uri uri = item.getData().getUri();
+        long key = keyOf(uri);
+        if (key == NO_KEY) {
+            if (mUnindexed.get(uri) == item) {
+                mUnindexed.remove(uri);
+            }
+        } else if (mIndex.get(key) == item) {
+            mIndex.remove(key);
+        }
+    }
+
+    /**
+     * Returns the row id of a MediaStore uri, such as
+     * content://media/external/images/media/42, combined with its table, or
+     * {@link #NO_KEY}.
+     */
+    static long keyOf(Uri uri) {
+        if (uri == null || !MediaStore.AUTHORITY.equals(uri.getAuthority())) {
+            return NO_KEY;
+        }
+        List<String> segments = uri.getPathSegments();
+        int size = segments.size();
+        if (size < 3) {
+            return NO_KEY;
+        }
+        long id;
+        try {
+            id = Long.parseLong(segments.get(size - 1));
+        } catch (NumberFormatException e) {
+            return NO_KEY;
+        }
+        if (id < 0) {
+            return NO_KEY;
+        }
+        String table = segments.get(size - 3);
+        int tableId = "images".equals(table) ? TABLE_IMAGES
+                : "video".equals(table) ? TABLE_VIDEO : TABLE_OTHER;
+        return (id << 2) | tableId;
+    }
+
+    /**
+     * Open-addressing hash map from a non-negative long key to an item and
+     * the position that item was added at, with linear probing and
+     * backward-shift deletion.
+     */
+    private static final class ItemIndex {
+        private static final long EMPTY_KEY = -1;
+        private static final int INITIAL_CAPACITY = 64;
+
+        private long[] mKeys;
+        private int[] mHints;
+        private FilmstripItem[] mValues;
+        private int mSize = 0;
+
+        ItemIndex() {
+            allocate(INITIAL_CAPACITY);
+        }
+
+        private void allocate(int capacity) {
+            mKeys = new long[capacity];
+            Arrays.fill(mKeys, EMPTY_KEY);
+            mHints = new int[capacity];
+            mValues = new FilmstripItem[capacity];
+        }
+
+        private static int hash(long key) {
+            long h = key * 0x9E3779B97F4A7C15L;
+            return (int) (h ^ (h >>> 32));
+        }
+
+        /** @return The slot of the key, or -1. */
+        int find(long key) {
+            int mask = mKeys.length - 1;
+            for (int slot = hash(key) & mask; ; slot = (slot + 1) & mask) {
+                long k = mKeys[slot];
+                if (k == key) {
+                    return slot;
+                }
+                if (k == EMPTY_KEY) {
+                    return -1;
+                }
+            }
+        }
+
+        FilmstripItem get(long key) {
+            int slot = find(key);
+            return slot < 0 ? null : mValues[slot];
+        }
+
+        void put(long key, FilmstripItem value, int hint) {
+            if ((mSize + 1) * 4 > mKeys.length * 3) {
+                grow();
+            }
+            int mask = mKeys.length - 1;
+            int slot = hash(key) & mask;
+            while (mKeys[slot] != EMPTY_KEY && mKeys[slot] != key) {
+                slot = (slot + 1) & mask;
+            }
+            if (mKeys[slot] == EMPTY_KEY) {
+                mSize++;
+            }
+            mKeys[slot] = key;
+            mValues[slot] = value;
+            mHints[slot] = hint;
+        }
+
+        void remove(long key) {
+            int slot = find(key);
+            if (slot < 0) {
+                return;
+            }
+            mSize--;
+            int mask = mKeys.length - 1;
+            // Shift back any following entries which probed past this slot.
+            int next = (slot + 1) & mask;
+            while (mKeys[next] != EMPTY_KEY) {
+                int home = hash(mKeys[next]) & mask;
+                if (((next - home) & mask) >= ((next - slot) & mask)) {
+                    mKeys[slot] = mKeys[next];
+                    mValues[slot] = mValues[next];
+                    mHints[slot] = mHints[next];
+                    slot = next;
+                }
+                next = (next + 1) & mask;
+            }
+            mKeys[slot] = EMPTY_KEY;
+            mValues[slot] = null;
+        }
+
+        private void grow() {
+            long[] keys = mKeys;
+            int[] hints = mHints;
+            FilmstripItem[] values = mValues;
+            allocate(keys.length * 2);
+            mSize = 0;
+            for (int i = 0; i < keys.length; i++) {
+                if (keys[i] != EMPTY_KEY) {
+                    put(keys[i], values[i], hints[i]);
+                }
+            }
+        }
     }
 }
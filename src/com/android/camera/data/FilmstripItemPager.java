@@ -0,0 +1,176 @@
+/*
+ * Copyright (C) 2015 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.camera.data;
+
+import com.android.camera.data.FilmstripContentQueries.Page;
+import com.android.camera.data.FilmstripContentQueries.PageKey;
+
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.List;
+
+import javax.annotation.Nullable;
+
+/**
+ * Loads the photos and videos of the camera folder a page at a time, newest
+ * first, merging the two into a single sequence. Every page only contains
+ * items which are newer than anything not loaded yet, so appending the pages
+ * in turn never requires inserting an item before one already loaded, and
+ * the indexes of loaded items stay stable.
+ * <p>
+ * Not thread safe; pages are meant to be loaded one after another by
+ * background tasks.
+ */
+class FilmstripItemPager {
+    /** Runs the paged query of one media type. */
+    private interface PageSource {
+        public Page<? extends FilmstripItem> query(@Nullable PageKey after, int limit);
+    }
+
+    /** The items of one media type that have been queried but not returned. */
+    private static class Stream {
+        final PageSource source;
+        final ArrayDeque<FilmstripItem> items = new ArrayDeque<>();
+        final ArrayDeque<PageKey> keys = new ArrayDeque<>();
+        /** The key of the last row queried; everything not queried is older. */
+        PageKey next = null;
+        boolean exhausted = false;
+
+        Stream(PageSource source) {
+            this.source = source;
+        }
+
+        void fill(int limit) {
+            Page<? extends FilmstripItem> page = source.query(next, limit);
+            items.addAll(page.items);
+            keys.addAll(page.keys);
+            next = page.next;
+            exhausted = (page.next == null);
+        }
+    }
+
+    private final Stream mPhotos;
+    private final Stream mVideos;
+    private long mLastPhotoId = FilmstripItemBase.QUERY_ALL_MEDIA_ID;
+
+    /**
+     * @param comparator The comparator of the list the pages are appended
+     *            to, whose order the pages are in.
+     */
+    public FilmstripItemPager(final PhotoItemFactory photoItemFactory,
+            final VideoItemFactory videoItemFactory, NewestFirstComparator comparator) {
+        final long futureCutoff = comparator.getFutureCutoff();
+        mPhotos = new Stream(new PageSource() {
+            @Override
+            public Page<? extends FilmstripItem> query(PageKey after, int limit) {
+                return photoItemFactory.queryPage(futureCutoff, after, limit);
+            }
+        });
+        mVideos = new Stream(new PageSource() {
+            @Override
+            public Page<? extends FilmstripItem> query(PageKey after, int limit) {
+                return videoItemFactory.queryPage(futureCutoff, after, limit);
+            }
+        });
+    }
+
+    /**
+     * @return Whether there may be items left to load.
+     */
+    public boolean hasMore() {
+        return hasMore(mPhotos) || hasMore(mVideos);
+    }
+
+    /**
+     * @return The highest id of the photos queried so far.
+     */
+    public long getLastPhotoId() {
+        return mLastPhotoId;
+    }
+
+    /**
+     * Loads the next items, newest first.
+     *
+     * @param limit The maximum number of items to return.
+     * @return The next items, which are all newer than any item returned by
+     *         later calls. Empty once everything has been loaded.
+     */
+    public List<FilmstripItem> nextPage(int limit) {
+        List<FilmstripItem> result = new ArrayList<>(limit);
+        while (result.size() < limit && hasMore()) {
+            fillIfEmpty(mPhotos, limit);
+            fillIfEmpty(mVideos, limit);
+
+            // Items can only be returned up to the newest of the keys past
+            // which a stream has not been queried yet.
+            PageKey bound = newest(boundOf(mPhotos), boundOf(mVideos));
+            while (result.size() < limit) {
+                Stream stream = newestHead(mPhotos, mVideos);
+                if (stream == null
+                        || (bound != null && stream.keys.peekFirst().compareTo(bound) > 0)) {
+                    break;
+                }
+                stream.keys.pollFirst();
+                result.add(stream.items.pollFirst());
+            }
+        }
+        return result;
+    }
+
+    private void fillIfEmpty(Stream stream, int limit) {
+        if (!stream.items.isEmpty() || stream.exhausted) {
+            return;
+        }
+        stream.fill(limit);
+        if (stream == mPhotos) {
+            for (PageKey key : stream.keys) {
+                mLastPhotoId = Math.max(mLastPhotoId, key.id);
+            }
+        }
+    }
+
+    private static boolean hasMore(Stream stream) {
+        return !stream.items.isEmpty() || !stream.exhausted;
+    }
+
+    @Nullable
+    private static PageKey boundOf(Stream stream) {
+        return stream.exhausted ? null : stream.next;
+    }
+
+    @Nullable
+    private static PageKey newest(@Nullable PageKey a, @Nullable PageKey b) {
+        if (a == null) {
+            return b;
+        }
+        if (b == null) {
+            return a;
+        }
+        return a.compareTo(b) <= 0 ? a : b;
+    }
+
+    @Nullable
+    private static Stream newestHead(Stream a, Stream b) {
+        if (a.keys.isEmpty()) {
+            return b.keys.isEmpty() ? null : b;
+        }
+        if (b.keys.isEmpty()) {
+            return a;
+        }
+        return a.keys.peekFirst().compareTo(b.keys.peekFirst()) <= 0 ? a : b;
+    }
+}
@@ -184,6 +184,11 @@ public class FixedFirstProxyAdapter extends FilmstripDataAdapterProxy
         mListener.onFilmstripItemInserted(index + 1, item);
     }
 
+    @Override
+    public void onFilmstripItemsAppended(int index, int count) {
+        mListener.onFilmstripItemsAppended(index + 1, count);
+    }
+
     @Override
     public void onFilmstripItemRemoved(int index, FilmstripItem item) {
         mListener.onFilmstripItemRemoved(index + 1, item);
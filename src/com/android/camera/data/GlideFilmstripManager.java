@@ -96,8 +96,10 @@ public final class GlideFilmstripManager {
 
     private final GenericRequestBuilder<Uri, ?, ?, GlideDrawable> mTinyImageBuilder;
     private final DrawableRequestBuilder<Uri> mLargeImageBuilder;
+    private final ThumbnailStore mThumbnailStore;
 
     public GlideFilmstripManager(Context context) {
+        mThumbnailStore = ThumbnailStore.instance(context);
         Glide glide = Glide.get(context);
         BitmapEncoder bitmapEncoder = new BitmapEncoder(Bitmap.CompressFormat.JPEG,
               JPEG_COMPRESS_QUALITY);
@@ -110,6 +112,8 @@ public final class GlideFilmstripManager {
               .fromMediaStore()
               .asBitmap() // This prevents gifs from animating at tiny sizes.
               .transcode(new BitmapToGlideDrawableTranscoder(context), GlideDrawable.class)
+              // Decode from the EXIF thumbnail rather than the whole JPEG.
+              .decoder(new ExifThumbnailBitmapDecoder(context))
               .fitCenter()
               .placeholder(DEFAULT_PLACEHOLDER_RESOURCE)
               .dontAnimate();
@@ -122,6 +126,14 @@ public final class GlideFilmstripManager {
               .dontAnimate();
     }
 
+    /**
+     * @return The store of the tiny and media store sized thumbnails, which
+     *         persists them across app restarts.
+     */
+    public ThumbnailStore getThumbnailStore() {
+        return mThumbnailStore;
+    }
+
     /**
      * Create a full size drawable request for a given width and height that is
      * as large as we can reasonably load into a view without causing massive
@@ -169,7 +181,8 @@ public final class GlideFilmstripManager {
 
     /**
      * Create very tiny thumbnail request that should complete as fast
-     * as possible.
+     * as possible. JPEGs with a large enough thumbnail in their EXIF header
+     * only have that thumbnail decoded.
      *
      * If the Uri points at an animated gif, the gif will not play.
      */
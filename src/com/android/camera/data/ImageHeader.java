@@ -0,0 +1,227 @@
+/*
+ * Copyright (C) 2015 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.camera.data;
+
+import com.android.camera.debug.Log;
+
+import java.io.ByteArrayInputStream;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.charset.Charset;
+import java.util.Arrays;
+
+import javax.annotation.Nullable;
+
+/**
+ * The leading bytes of an image file, read once and shared by the metadata
+ * loaders of a filmstrip item. For JPEGs, these are the segments before the
+ * compressed image data, read up to the SOS marker. They are scanned for an
+ * XMP packet, which panorama and RGBZ metadata are stored in, so these
+ * loaders can be skipped for the many images without one, and are handed to
+ * the loaders of the images with one, so that they do not read the file
+ * again.
+ */
+final class ImageHeader {
+    private static final Log.Tag TAG = new Log.Tag("ImageHeader");
+
+    /**
+     * The most bytes read from the start of a file: enough for an Exif and a
+     * standard XMP APP1 segment, each of which is at most 64kB.
+     */
+    static final int MAX_HEADER_BYTES = 128 * 1024;
+    /** Enough for the Exif segment of most captures. */
+    private static final int INITIAL_BUFFER_BYTES = 16 * 1024;
+
+    private static final int MARKER_SOI = 0xffd8;
+    private static final int MARKER_APP1 = 0xffe1;
+    private static final int MARKER_SOS = 0xffda;
+    private static final byte[] XMP_SIGNATURE = "http://ns.adobe.com/xap/1.0/\0"
+            .getBytes(Charset.forName("US-ASCII"));
+
+    private final byte[] mBytes;
+    private final int mLength;
+    private final boolean mIsJpeg;
+    private final boolean mComplete;
+    private final boolean mHasXmp;
+
+    /**
+     * @param complete Whether the bytes hold every segment of the JPEG up to
+     *            its SOS marker.
+     */
+    ImageHeader(byte[] bytes, int length, boolean complete) {
+        mBytes = bytes;
+        mLength = length;
+        mIsJpeg = length >= 2 && readU16(0) == MARKER_SOI;
+        mComplete = mIsJpeg && complete;
+        mHasXmp = mIsJpeg && findXmp();
+    }
+
+    /**
+     * Reads the header of the given file, segment by segment, up to the SOS
+     * marker of a JPEG or {@link #MAX_HEADER_BYTES}, whichever comes first.
+     * Only the first two bytes of other files are read.
+     *
+     * @return The header, or null if the file could not be read.
+     */
+    @Nullable
+    static ImageHeader read(String path) {
+        InputStream in = null;
+        try {
+            in = new FileInputStream(path);
+            byte[] bytes = new byte[INITIAL_BUFFER_BYTES];
+            int length = readFully(in, bytes, 0, 2);
+            if (length < 2 || readU16(bytes, 0) != MARKER_SOI) {
+                return new ImageHeader(bytes, length, false);
+            }
+            boolean complete = false;
+            while (length + 4 <= MAX_HEADER_BYTES) {
+                bytes = ensureCapacity(bytes, length + 4);
+                int read = readFully(in, bytes, length, 4);
+                length += read;
+                if (read < 4) {
+                    break;
+                }
+                int marker = readU16(bytes, length - 4);
+                if (marker == MARKER_SOS) {
+                    complete = true;
+                    break;
+                }
+                int segmentLength = readU16(bytes, length - 2);
+                if ((marker & 0xff00) != 0xff00 || segmentLength < 2
+                        || length + segmentLength - 2 > MAX_HEADER_BYTES) {
+                    break;
+                }
+                bytes = ensureCapacity(bytes, length + segmentLength - 2);
+                read = readFully(in, bytes, length, segmentLength - 2);
+                length += read;
+                if (read < segmentLength - 2) {
+                    break;
+                }
+            }
+            return new ImageHeader(bytes, length, complete);
+        } catch (IOException e) {
+            Log.w(TAG, "Could not read header of " + path, e);
+            return null;
+        } finally {
+            if (in != null) {
+                try {
+                    in.close();
+                } catch (IOException e) {
+                    Log.w(TAG, "Could not close " + path, e);
+                }
+            }
+        }
+    }
+
+    boolean isJpeg() {
+        return mIsJpeg;
+    }
+
+    /**
+     * @return Whether the image is a JPEG with an XMP APP1 segment, or may
+     *         have one past the bytes that were read.
+     */
+    boolean mayHaveXmp() {
+        return mHasXmp;
+    }
+
+    /**
+     * @return Whether the header holds every segment of a JPEG up to its SOS
+     *         marker, so that its metadata can be parsed from
+     *         {@link #newInputStream} instead of the file.
+     */
+    boolean isComplete() {
+        return mComplete;
+    }
+
+    /**
+     * @return A stream over the bytes read, which ends after the SOS marker of
+     *         a complete header.
+     */
+    InputStream newInputStream() {
+        return new ByteArrayInputStream(mBytes, 0, mLength);
+    }
+
+    private boolean findXmp() {
+        int pos = 2;
+        while (pos + 4 <= mLength) {
+            int marker = readU16(pos);
+            if (marker == MARKER_SOS || (marker & 0xff00) != 0xff00) {
+                // The metadata segments are over, or the file is broken.
+                return false;
+            }
+            int segmentLength = readU16(pos + 2);
+            if (marker == MARKER_APP1 && startsWith(pos + 4, XMP_SIGNATURE)) {
+                return true;
+            }
+            if (segmentLength < 2) {
+                return false;
+            }
+            pos += 2 + segmentLength;
+        }
+        // Unless the SOS marker was read, the segments continue past the
+        // bytes read.
+        return !mComplete;
+    }
+
+    private boolean startsWith(int offset, byte[] prefix) {
+        if (offset + prefix.length > mLength) {
+            // Cannot tell from the bytes read.
+            return true;
+        }
+        for (int i = 0; i < prefix.length; i++) {
+            if (mBytes[offset + i] != prefix[i]) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    private int readU16(int offset) {
+        return readU16(mBytes, offset);
+    }
+
+    private static int readU16(byte[] bytes, int offset) {
+        return ((bytes[offset] & 0xff) << 8) | (bytes[offset + 1] & 0xff);
+    }
+
+    private static byte[] ensureCapacity(byte[] bytes, int capacity) {
+        if (capacity <= bytes.length) {
+            return bytes;
+        }
+        return Arrays.copyOf(bytes, Math.min(Math.max(capacity, bytes.length * 2),
+                MAX_HEADER_BYTES));
+    }
+
+    /**
+     * @return The number of bytes read, which is less than count only at the
+     *         end of the stream.
+     */
+    private static int readFully(InputStream in, byte[] bytes, int offset, int count)
+            throws IOException {
+        int total = 0;
+        while (total < count) {
+            int read = in.read(bytes, offset + total, count - total);
+            if (read < 0) {
+                break;
+            }
+            total += read;
+        }
+        return total;
+    }
+}
@@ -44,8 +44,9 @@ public interface LocalFilmstripDataAdapter extends FilmstripDataAdapter,
     }
 
     /**
-     * Request for loading any photos that may have been added to the
-     * media store since the last update.
+     * Request for loading any photos and videos that may have been added to,
+     * modified in or deleted from the media store since the last update.
+     * Requests made while one is being loaded are coalesced into one more.
      */
     public void requestLoadNewPhotos();
 
@@ -137,7 +137,7 @@ public class MediaDetails implements Iterable<Entry<Integer, Object>> {
     public static void extractExifInfo(MediaDetails details, String filePath) {
         ExifInterface exif = new ExifInterface();
         try {
-            exif.readExif(filePath);
+            exif.readExifLazily(filePath);
         } catch (FileNotFoundException e) {
             Log.w(TAG, "Could not find file to read exif: " + filePath, e);
         } catch (IOException e) {
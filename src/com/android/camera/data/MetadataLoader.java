@@ -17,12 +17,74 @@
 package com.android.camera.data;
 
 import android.content.Context;
+import android.os.Process;
+
+import com.android.camera.debug.Log;
+
+import java.io.File;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
 
 /**
  * A helper class to load the metadata of
  * {@link FilmstripItem}.
+ * <p>
+ * Metadata is extracted on a small pool of background threads, which bounds
+ * the number of files read at once. Each image file's header is read once,
+ * and shared by its loaders. Loaded metadata is kept in a persistent
+ * {@link MetadataStore}, and restored from it as long as the item has not
+ * been modified.
  */
 public class MetadataLoader {
+    private static final Log.Tag TAG = new Log.Tag("MetadataLoader");
+
+    /** The maximum number of files to extract metadata from at once. */
+    private static final int MAX_IO_CONCURRENCY = 2;
+    private static final String STORE_FILE_NAME = "filmstrip_metadata";
+    /** Marks video keys in the store, since their row ids may equal photos'. */
+    private static final long VIDEO_KEY_FLAG = 1L << 62;
+
+    private static final ExecutorService sExecutor = Executors.newFixedThreadPool(
+            MAX_IO_CONCURRENCY, new ThreadFactory() {
+                private final AtomicInteger mThreadCount = new AtomicInteger(0);
+
+                @Override
+                public Thread newThread(final Runnable runnable) {
+                    return new Thread(new Runnable() {
+                        @Override
+                        public void run() {
+                            Process.setThreadPriority(Process.THREAD_PRIORITY_BACKGROUND);
+                            runnable.run();
+                        }
+                    }, "MetadataLoader-" + mThreadCount.getAndIncrement());
+                }
+            });
+    private static final AtomicBoolean sFlushScheduled = new AtomicBoolean(false);
+    private static final Runnable sFlushRunnable = new Runnable() {
+        @Override
+        public void run() {
+            sFlushScheduled.set(false);
+            sStore.flush();
+        }
+    };
+    private static MetadataStore sStore;
+
+    /**
+     * @return The executor of the metadata loading threads, on which
+     *         {@link #loadMetadata(Context, FilmstripItem)} may be run.
+     */
+    public static Executor getExecutor() {
+        return sExecutor;
+    }
 
     /**
      * Adds information to the data's metadata bundle if any is available and returns
@@ -37,17 +99,107 @@ public class MetadataLoader {
      * @return true if any metadata was added to the data, false otherwise.
      */
     public static boolean loadMetadata(final Context context, final FilmstripItem data) {
+        MetadataStore store = getStore(context);
+        long key = getKey(data);
+        long dateModified = data.getData().getLastModifiedDate().getTime();
+        Metadata metadata = data.getMetadata();
+        if (key >= 0 && store.restore(key, dateModified, metadata)) {
+            metadata.setLoaded(true);
+            return data.getAttributes().isVideo() || metadata.isPanorama()
+                    || metadata.isHasRgbzData();
+        }
+
         boolean metadataAdded = false;
+        boolean complete = true;
         if (data.getAttributes().isImage()) {
-            metadataAdded |= PanoramaMetadataLoader.loadPanoramaMetadata(
-                    context, data.getData().getUri(), data.getMetadata());
-            metadataAdded |=  RgbzMetadataLoader.loadRgbzMetadata(
-                    context, data.getData().getUri(), data.getMetadata());
+            // Panorama and RGBZ metadata are stored as XMP, so there is no need
+            // to look for them in JPEGs without any. For JPEGs with XMP, they
+            // are parsed from the header rather than by reading the file
+            // again.
+            String path = data.getData().getFilePath();
+            ImageHeader header = (path == null || path.isEmpty()) ? null
+                    : ImageHeader.read(path);
+            if (header == null || !header.isJpeg() || header.mayHaveXmp()) {
+                boolean parseHeader = header != null && header.isComplete();
+                metadataAdded |= PanoramaMetadataLoader.loadPanoramaMetadata(
+                        context, data.getData().getUri(),
+                        parseHeader ? header.newInputStream() : null, metadata);
+                metadataAdded |=  RgbzMetadataLoader.loadRgbzMetadata(
+                        context, data.getData().getUri(),
+                        parseHeader ? header.newInputStream() : null, metadata);
+            }
         } else if (data.getAttributes().isVideo()) {
             metadataAdded = VideoRotationMetadataLoader.loadRotationMetadata(data);
+            // The loader leaves the size unset if the video could not be
+            // read, e.g. while it is still being written.
+            complete = metadata.getVideoWidth() > 0 && metadata.getVideoHeight() > 0;
+        }
+        metadata.setLoaded(true);
+
+        // Only store complete results, so that a failure is retried on the
+        // next launch rather than restored until the file changes.
+        if (key >= 0 && complete) {
+            store.put(key, dateModified, metadata);
+            if (sFlushScheduled.compareAndSet(false, true)) {
+                // Queued behind the pending loads, so that a burst of them
+                // is written at once.
+                sExecutor.execute(sFlushRunnable);
+            }
         }
-        data.getMetadata().setLoaded(true);
         return metadataAdded;
     }
-}
 
+    /**
+     * Loads the metadata of several items in parallel, and waits for all of
+     * them to be loaded. Must not be called on the {@link #getExecutor}
+     * threads.
+     *
+     * @return The items to which any metadata was added.
+     */
+    public static List<FilmstripItem> loadMetadata(final Context context,
+            List<? extends FilmstripItem> items) {
+        List<Future<Boolean>> results = new ArrayList<>(items.size());
+        for (final FilmstripItem item : items) {
+            results.add(sExecutor.submit(new Callable<Boolean>() {
+                @Override
+                public Boolean call() {
+                    return loadMetadata(context, item);
+                }
+            }));
+        }
+
+        List<FilmstripItem> updated = new ArrayList<>();
+        for (int i = 0; i < items.size(); i++) {
+            try {
+                if (results.get(i).get()) {
+                    updated.add(items.get(i));
+                }
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                break;
+            } catch (ExecutionException e) {
+                Log.e(TAG, "Could not load metadata of " + items.get(i), e.getCause());
+            }
+        }
+        return updated;
+    }
+
+    /**
+     * @return The key of the item in the store, or -1 if it has no MediaStore
+     *         row to be keyed by.
+     */
+    private static long getKey(FilmstripItem data) {
+        long contentId = data.getData().getContentId();
+        if (contentId < 0) {
+            return -1;
+        }
+        return data.getAttributes().isVideo() ? (contentId | VIDEO_KEY_FLAG) : contentId;
+    }
+
+    private static synchronized MetadataStore getStore(Context context) {
+        if (sStore == null) {
+            sStore = new MetadataStore(new File(context.getCacheDir(), STORE_FILE_NAME));
+        }
+        return sStore;
+    }
+}
@@ -0,0 +1,254 @@
+/*
+ * Copyright (C) 2015 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.camera.data;
+
+import com.android.camera.debug.Log;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileNotFoundException;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+import javax.annotation.ParametersAreNonnullByDefault;
+import javax.annotation.concurrent.GuardedBy;
+import javax.annotation.concurrent.ThreadSafe;
+
+/**
+ * A small persistent store of the {@link Metadata} loaded for filmstrip
+ * items, so that it is not extracted from the files again on every launch.
+ * <p>
+ * Entries are keyed by the caller, and are only valid for the date modified
+ * they were stored with. The store is read from its file on first use, and
+ * kept in memory, holding the most recently used {@link #MAX_ENTRIES}
+ * entries. {@link #flush} writes it back in full, which is cheap at a few
+ * dozen bytes per entry.
+ */
+@ThreadSafe
+@ParametersAreNonnullByDefault
+final class MetadataStore {
+    private static final Log.Tag TAG = new Log.Tag("MetadataStore");
+
+    private static final int FILE_MAGIC = 0x4d455441; // "META"
+    private static final int FILE_VERSION = 1;
+    static final int MAX_ENTRIES = 4096;
+
+    private static final int FLAG_PANORAMA = 1;
+    private static final int FLAG_PANORAMA_360 = 1 << 1;
+    private static final int FLAG_USE_PANORAMA_VIEWER = 1 << 2;
+    private static final int FLAG_RGBZ = 1 << 3;
+
+    private static final class Entry {
+        final long dateModified;
+        final int flags;
+        final String videoOrientation;
+        final int videoWidth;
+        final int videoHeight;
+
+        Entry(long dateModified, int flags, String videoOrientation, int videoWidth,
+                int videoHeight) {
+            this.dateModified = dateModified;
+            this.flags = flags;
+            this.videoOrientation = videoOrientation;
+            this.videoWidth = videoWidth;
+            this.videoHeight = videoHeight;
+        }
+    }
+
+    private final File mFile;
+    /** Serializes writes of the file. */
+    private final Object mFlushLock = new Object();
+    private final Object mLock = new Object();
+    @GuardedBy("mLock")
+    private final LinkedHashMap<Long, Entry> mEntries =
+            new LinkedHashMap<Long, Entry>(16, 0.75f, true /* accessOrder */) {
+                @Override
+                protected boolean removeEldestEntry(Map.Entry<Long, Entry> eldest) {
+                    return size() > MAX_ENTRIES;
+                }
+            };
+    @GuardedBy("mLock")
+    private boolean mLoaded = false;
+    @GuardedBy("mLock")
+    private boolean mDirty = false;
+
+    /**
+     * @param file The file to persist the store in. It is not read until the
+     *            store is first used.
+     */
+    MetadataStore(File file) {
+        mFile = file;
+    }
+
+    /**
+     * Fills the metadata from the store.
+     *
+     * @return Whether the store had an entry for the key and date modified.
+     */
+    public boolean restore(long key, long dateModified, Metadata metadata) {
+        Entry entry;
+        synchronized (mLock) {
+            loadIfNeeded();
+            entry = mEntries.get(key);
+        }
+        if (entry == null || entry.dateModified != dateModified) {
+            return false;
+        }
+        metadata.setPanorama((entry.flags & FLAG_PANORAMA) != 0);
+        metadata.setPanorama360((entry.flags & FLAG_PANORAMA_360) != 0);
+        metadata.setUsePanoramaViewer((entry.flags & FLAG_USE_PANORAMA_VIEWER) != 0);
+        metadata.setHasRgbzData((entry.flags & FLAG_RGBZ) != 0);
+        metadata.setVideoOrientation(entry.videoOrientation);
+        metadata.setVideoWidth(entry.videoWidth);
+        metadata.setVideoHeight(entry.videoHeight);
+        return true;
+    }
+
+    /**
+     * Stores the metadata loaded for the given key and date modified,
+     * replacing any older entry. It is written to disk by the next
+     * {@link #flush}.
+     */
+    public void put(long key, long dateModified, Metadata metadata) {
+        int flags = (metadata.isPanorama() ? FLAG_PANORAMA : 0)
+                | (metadata.isPanorama360() ? FLAG_PANORAMA_360 : 0)
+                | (metadata.isUsePanoramaViewer() ? FLAG_USE_PANORAMA_VIEWER : 0)
+                | (metadata.isHasRgbzData() ? FLAG_RGBZ : 0);
+        String videoOrientation = metadata.getVideoOrientation();
+        Entry entry = new Entry(dateModified, flags,
+                videoOrientation == null ? "" : videoOrientation,
+                metadata.getVideoWidth(), metadata.getVideoHeight());
+        synchronized (mLock) {
+            loadIfNeeded();
+            mEntries.put(key, entry);
+            mDirty = true;
+        }
+    }
+
+    /**
+     * @return The number of entries in the store.
+     */
+    public int size() {
+        synchronized (mLock) {
+            loadIfNeeded();
+            return mEntries.size();
+        }
+    }
+
+    /**
+     * Writes the store to its file if it changed since it was last written.
+     * Readers of the store are only blocked while its entries are copied.
+     */
+    public void flush() {
+        synchronized (mFlushLock) {
+            List<Long> keys;
+            List<Entry> entries;
+            synchronized (mLock) {
+                if (!mDirty) {
+                    return;
+                }
+                mDirty = false;
+                keys = new ArrayList<>(mEntries.keySet());
+                entries = new ArrayList<>(mEntries.values());
+            }
+
+            File tempFile = new File(mFile.getPath() + ".tmp");
+            try {
+                write(tempFile, keys, entries);
+                if (!tempFile.renameTo(mFile)) {
+                    throw new IOException("Could not rename " + tempFile);
+                }
+            } catch (IOException e) {
+                Log.w(TAG, "Could not write metadata store", e);
+                tempFile.delete();
+                synchronized (mLock) {
+                    mDirty = true;
+                }
+            }
+        }
+    }
+
+    private static void write(File file, List<Long> keys, List<Entry> entries)
+            throws IOException {
+        DataOutputStream out = new DataOutputStream(new BufferedOutputStream(
+                new FileOutputStream(file)));
+        try {
+            out.writeInt(FILE_MAGIC);
+            out.writeInt(FILE_VERSION);
+            out.writeInt(entries.size());
+            // Least recently used first, so reading back restores the order.
+            for (int i = 0; i < entries.size(); i++) {
+                Entry entry = entries.get(i);
+                out.writeLong(keys.get(i));
+                out.writeLong(entry.dateModified);
+                out.writeInt(entry.flags);
+                out.writeUTF(entry.videoOrientation);
+                out.writeInt(entry.videoWidth);
+                out.writeInt(entry.videoHeight);
+            }
+        } finally {
+            out.close();
+        }
+    }
+
+    @GuardedBy("mLock")
+    private void loadIfNeeded() {
+        if (mLoaded) {
+            return;
+        }
+        mLoaded = true;
+        DataInputStream in;
+        try {
+            in = new DataInputStream(new BufferedInputStream(new FileInputStream(mFile)));
+        } catch (FileNotFoundException e) {
+            return;
+        }
+        try {
+            if (in.readInt() != FILE_MAGIC || in.readInt() != FILE_VERSION) {
+                throw new IOException("Unknown file format");
+            }
+            int count = in.readInt();
+            for (int i = 0; i < count; i++) {
+                long key = in.readLong();
+                long dateModified = in.readLong();
+                int flags = in.readInt();
+                String videoOrientation = in.readUTF();
+                int videoWidth = in.readInt();
+                int videoHeight = in.readInt();
+                mEntries.put(key, new Entry(dateModified, flags, videoOrientation, videoWidth,
+                        videoHeight));
+            }
+        } catch (IOException e) {
+            Log.w(TAG, "Discarding unreadable metadata store", e);
+            mEntries.clear();
+        } finally {
+            try {
+                in.close();
+            } catch (IOException e) {
+                Log.w(TAG, "Could not close metadata store", e);
+            }
+        }
+    }
+}
@@ -60,12 +60,24 @@ public class NewestFirstComparator implements Comparator<FilmstripItem> {
             cmp = compareDate(d1Data.getLastModifiedDate(),
                   d2Data.getLastModifiedDate());
         }
+        if (cmp == 0) {
+            // Newest row first, as in FilmstripContentQueries#forCameraPathPage.
+            cmp = Long.compare(d2Data.getContentId(), d1Data.getContentId());
+        }
         if (cmp == 0) {
             cmp = d1Data.getTitle().compareTo(d2Data.getTitle());
         }
         return cmp;
     }
 
+    /**
+     * @return The date, in milliseconds, after which creation dates are
+     *         ignored in favor of the modification date.
+     */
+    public long getFutureCutoff() {
+        return mNow.getTime();
+    }
+
     /**
      * Normal date comparison will sort these oldest first,
      * so invert the order by multiplying by -1.
@@ -21,6 +21,10 @@ import android.net.Uri;
 
 import com.android.camera.util.PhotoSphereHelper;
 
+import java.io.InputStream;
+
+import javax.annotation.Nullable;
+
 /**
  * This class breaks out the off-thread panorama support.
  */
@@ -28,11 +32,15 @@ public class PanoramaMetadataLoader {
     /**
      * Extracts panorama metadata from the item with the given URI and fills the
      * {@code metadata}.
+     *
+     * @param header The metadata segments of the item's JPEG, up to its SOS
+     *            marker, which are parsed instead of the file if not null.
      */
     public static boolean loadPanoramaMetadata(final Context context, Uri contentUri,
-            Metadata metadata) {
-        PhotoSphereHelper.PanoramaMetadata panoramaMetadata =
-              PhotoSphereHelper.getPanoramaMetadata(context, contentUri);
+            @Nullable InputStream header, Metadata metadata) {
+        PhotoSphereHelper.PanoramaMetadata panoramaMetadata = (header != null)
+              ? PhotoSphereHelper.getPanoramaMetadata(context, header)
+              : PhotoSphereHelper.getPanoramaMetadata(context, contentUri);
         // Note: The use of '==' here is in purpose as this is a singleton that
         // is returned if this is not a panorama, so pointer comparison works.
         if (panoramaMetadata == null || panoramaMetadata == PhotoSphereHelper.NOT_PANORAMA) {
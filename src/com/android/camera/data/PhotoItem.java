@@ -130,7 +130,7 @@ public class PhotoItem extends FilmstripItemBase<FilmstripItemData> {
     }
 
     protected void fillImageView(final ImageView imageView) {
-        renderTinySize(mData.getUri()).into(imageView);
+        renderTiny(imageView);
 
         // TODO consider having metadata have a "get description" string
         // or some other way of selecting rendering details based on metadata.
@@ -164,7 +164,15 @@ public class PhotoItem extends FilmstripItemBase<FilmstripItemData> {
     @Override
     public void renderTiny(@Nonnull View view) {
         if (view instanceof ImageView) {
-            renderTinySize(mData.getUri()).into((ImageView) view);
+            Bitmap storedThumb = getStoredTinyThumb();
+            if (storedThumb != null) {
+                // Cancel any load into the view, which would replace the
+                // stored thumbnail once done.
+                Glide.clear(view);
+                ((ImageView) view).setImageBitmap(storedThumb);
+            } else {
+                renderTinySize(mData.getUri()).into((ImageView) view);
+            }
         } else {
             Log.w(TAG, "renderTiny was called with an object that is not an ImageView!");
         }
@@ -189,7 +197,18 @@ public class PhotoItem extends FilmstripItemBase<FilmstripItemData> {
     }
 
     private GenericRequestBuilder<Uri, ?, ?, GlideDrawable> renderTinySize(Uri uri) {
-        return mGlideManager.loadTinyThumb(uri, generateSignature(mData));
+        return mGlideManager.loadTinyThumb(uri, generateSignature(mData))
+              .listener(mGlideManager.getThumbnailStore().storeOnLoad(
+                    getItemViewType(), mData, ThumbnailStore.SizeClass.TINY));
+    }
+
+    /**
+     * @return The tiny thumbnail from the thumbnail store, which is shown
+     *         without decoding the image, or null if it is not in memory.
+     */
+    private Bitmap getStoredTinyThumb() {
+        return mGlideManager.getThumbnailStore().get(getItemViewType(), mData,
+              ThumbnailStore.SizeClass.TINY);
     }
 
     private DrawableRequestBuilder<Uri> renderScreenSize(Uri uri) {
@@ -204,6 +223,14 @@ public class PhotoItem extends FilmstripItemBase<FilmstripItemData> {
                   mSessionPlaceholderBitmap.get()));
         }
 
+        // If the tiny thumbnail is stored, show it while loading, rather than
+        // decoding it again.
+        Bitmap storedThumb = getStoredTinyThumb();
+        if (storedThumb != null) {
+            return request.placeholder(new BitmapDrawable(mContext.getResources(),
+                  storedThumb));
+        }
+
         // If we do not have a placeholder bitmap, render a thumbnail with
         // the default placeholder resource like normal.
         return request
@@ -26,6 +26,8 @@ import com.android.camera.debug.Log;
 
 import java.util.List;
 
+import javax.annotation.Nullable;
+
 public class PhotoItemFactory implements CursorToFilmstripItemFactory<PhotoItem> {
     private static final Log.Tag TAG = new Log.Tag("PhotoItemFact");
 
@@ -79,6 +81,40 @@ public class PhotoItemFactory implements CursorToFilmstripItemFactory<PhotoItem>
                     PhotoDataQuery.QUERY_ORDER, this);
     }
 
+    /**
+     * Query for the photo data items added or modified since a previous query.
+     *
+     * @param lastId the highest id seen by the previous query.
+     * @param lastDateModified the latest modification date seen by the
+     *            previous query, in seconds.
+     */
+    public List<PhotoItem> queryChangedSince(long lastId, long lastDateModified) {
+        return FilmstripContentQueries
+              .forCameraPathChangedSince(mContentResolver, PhotoDataQuery.CONTENT_URI,
+                    PhotoDataQuery.QUERY_PROJECTION, lastId, lastDateModified, PhotoDataQuery.QUERY_ORDER, this);
+    }
+
+    /** Query for the ids of all the photo data items, in ascending order. */
+    @Nullable
+    public long[] queryIds() {
+        return FilmstripContentQueries.idsForCameraPath(mContentResolver, PhotoDataQuery.CONTENT_URI);
+    }
+
+    /**
+     * Query a page of the photo data items, newest first.
+     *
+     * @param futureCutoff the date, in milliseconds, after which dates
+     *            taken are ignored in favor of the modification date.
+     * @param after the key to continue after, or null for the first page.
+     * @param limit the maximum number of items.
+     */
+    public FilmstripContentQueries.Page<PhotoItem> queryPage(
+          long futureCutoff, @Nullable FilmstripContentQueries.PageKey after, int limit) {
+        return FilmstripContentQueries
+              .forCameraPathPage(mContentResolver, PhotoDataQuery.CONTENT_URI,
+                    PhotoDataQuery.QUERY_PROJECTION, futureCutoff, after, limit, this);
+    }
+
     /** Query for a single data item */
     public PhotoItem queryContentUri(Uri uri) {
         // TODO: Consider refactoring this, this approach may be slow.
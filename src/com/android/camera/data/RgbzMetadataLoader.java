@@ -21,6 +21,10 @@ import android.net.Uri;
 
 import com.android.camera.util.RefocusHelper;
 
+import java.io.InputStream;
+
+import javax.annotation.Nullable;
+
 /**
  * Loads RGBZ data.
  */
@@ -30,10 +34,15 @@ public class RgbzMetadataLoader {
      * Checks whether this file is an RGBZ file and fill in the metadata.
      *
      * @param context  The app context.
+     * @param header The metadata segments of the file's JPEG, up to its SOS
+     *            marker, which are parsed instead of the file if not null.
      */
-    public static boolean loadRgbzMetadata(
-            final Context context, Uri contentUri, Metadata metadata) {
-        if (RefocusHelper.isRGBZ(context, contentUri)) {
+    public static boolean loadRgbzMetadata(final Context context, Uri contentUri,
+            @Nullable InputStream header, Metadata metadata) {
+        boolean isRgbz = (header != null)
+                ? RefocusHelper.isRGBZ(context, header)
+                : RefocusHelper.isRGBZ(context, contentUri);
+        if (isRgbz) {
             metadata.setHasRgbzData(true);
             return true;
         }
@@ -0,0 +1,434 @@
+/*
+ * Copyright (C) 2015 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.camera.data;
+
+import com.google.common.base.Preconditions;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import javax.annotation.Nullable;
+import javax.annotation.ParametersAreNonnullByDefault;
+import javax.annotation.concurrent.GuardedBy;
+import javax.annotation.concurrent.ThreadSafe;
+
+/**
+ * An append-only file of raw thumbnail pixels. The records which are in the
+ * file when it is opened are read through a memory mapping, and records
+ * appended afterwards are read with {@link FileChannel#read}, so that an
+ * append never remaps the whole file.
+ * <p>
+ * Each record holds the pixels of one thumbnail, keyed by the MediaStore row
+ * id of the item, its kind (the media type and size class) and its date
+ * modified. Putting a thumbnail for a key which already has one appends a new
+ * record, which supersedes the old one. Superseded records, and records which
+ * would not fit under the size limit, are only dropped by {@link #compact},
+ * which rewrites the live records to a new file.
+ * <p>
+ * A record that was partially written when the process died is detected and
+ * truncated when the file is opened.
+ */
+@ThreadSafe
+@ParametersAreNonnullByDefault
+final class ThumbnailJournal {
+    private static final int FILE_MAGIC = 0x54484d42; // "THMB"
+    private static final int FILE_VERSION = 1;
+    private static final int FILE_HEADER_SIZE = 8;
+
+    private static final int RECORD_MAGIC = 0x52454344; // "RECD"
+    /**
+     * magic, row id, kind, date modified, width, height, format, pixel byte
+     * count.
+     */
+    private static final int RECORD_HEADER_SIZE = 4 + 8 + 4 + 8 + 4 + 4 + 4 + 4;
+
+    /** The pixels of a thumbnail, and how to interpret them. */
+    public static final class Thumbnail {
+        public final int width;
+        public final int height;
+        /** Caller-defined pixel format, e.g. a Bitmap.Config ordinal. */
+        public final int format;
+        /**
+         * The pixels, as a read-only view of the mapping or of a copy of the
+         * record. This stays valid even if the journal is compacted or closed
+         * afterwards.
+         */
+        public final ByteBuffer pixels;
+
+        private Thumbnail(int width, int height, int format, ByteBuffer pixels) {
+            this.width = width;
+            this.height = height;
+            this.format = format;
+            this.pixels = pixels;
+        }
+    }
+
+    /** The location of the live record for a (row id, kind). */
+    private static final class Entry {
+        final long dateModified;
+        final long offset;
+        final int length;
+        /** Used to drop the oldest records first when over the size limit. */
+        final long sequence;
+
+        Entry(long dateModified, long offset, int length, long sequence) {
+            this.dateModified = dateModified;
+            this.offset = offset;
+            this.length = length;
+            this.sequence = sequence;
+        }
+    }
+
+    private final File mFile;
+    private final long mMaxBytes;
+
+    @GuardedBy("this")
+    private final Map<Long, Entry> mIndex = new HashMap<>();
+    @GuardedBy("this")
+    private RandomAccessFile mRandomAccessFile;
+    @GuardedBy("this")
+    private FileChannel mChannel;
+    /**
+     * Maps the records which were in the file when it was opened, or null if
+     * there were none.
+     */
+    @GuardedBy("this")
+    @Nullable
+    private MappedByteBuffer mMapping;
+    @GuardedBy("this")
+    private long mLength;
+    @GuardedBy("this")
+    private long mLiveBytes;
+    @GuardedBy("this")
+    private long mNextSequence;
+
+    /**
+     * Opens the journal in the given file, creating it if necessary. A file
+     * which cannot be read as a journal is discarded.
+     *
+     * @param maxBytes The size above which {@link #needsCompaction} asks for
+     *            the oldest records to be dropped.
+     */
+    public ThumbnailJournal(File file, long maxBytes) throws IOException {
+        mFile = file;
+        mMaxBytes = maxBytes;
+        synchronized (this) {
+            openFile();
+        }
+    }
+
+    /**
+     * @return The thumbnail for the given key, or null if there is none for
+     *         this date modified.
+     */
+    @Nullable
+    public synchronized Thumbnail get(long rowId, int kind, long dateModified)
+            throws IOException {
+        Entry entry = mIndex.get(makeKey(rowId, kind));
+        if (entry == null || entry.dateModified != dateModified) {
+            return null;
+        }
+        ByteBuffer record = getRecord(entry);
+        int width = record.getInt(24);
+        int height = record.getInt(28);
+        int format = record.getInt(32);
+        record.position(RECORD_HEADER_SIZE);
+        return new Thumbnail(width, height, format, record.slice().asReadOnlyBuffer());
+    }
+
+    /**
+     * @return Whether there is a thumbnail for the given key.
+     */
+    public synchronized boolean contains(long rowId, int kind, long dateModified) {
+        Entry entry = mIndex.get(makeKey(rowId, kind));
+        return entry != null && entry.dateModified == dateModified;
+    }
+
+    /**
+     * Appends a thumbnail, superseding any previous one for the row id and
+     * kind.
+     *
+     * @param pixels The pixels to store, from its position to its limit.
+     */
+    public synchronized void put(long rowId, int kind, long dateModified, int width, int height,
+            int format, ByteBuffer pixels) throws IOException {
+        int pixelBytes = pixels.remaining();
+        ByteBuffer header = ByteBuffer.allocate(RECORD_HEADER_SIZE);
+        header.putInt(RECORD_MAGIC).putLong(rowId).putInt(kind).putLong(dateModified)
+                .putInt(width).putInt(height).putInt(format).putInt(pixelBytes);
+        header.flip();
+
+        long offset = mLength;
+        writeFully(mChannel, header, offset);
+        writeFully(mChannel, pixels.duplicate(), offset + RECORD_HEADER_SIZE);
+        mLength = offset + RECORD_HEADER_SIZE + pixelBytes;
+        addToIndex(rowId, kind, dateModified, offset, RECORD_HEADER_SIZE + pixelBytes);
+    }
+
+    /**
+     * @return The keys of the most recently put thumbnails, newest first, as
+     *         {row id, kind, date modified} triples.
+     */
+    public synchronized List<long[]> getNewest(int count) {
+        List<Map.Entry<Long, Entry>> entries = getEntriesNewestFirst();
+        List<long[]> newest = new ArrayList<>();
+        for (int i = 0; i < entries.size() && i < count; i++) {
+            Map.Entry<Long, Entry> entry = entries.get(i);
+            newest.add(new long[] {
+                    getRowId(entry.getKey()), getKind(entry.getKey()),
+                    entry.getValue().dateModified
+            });
+        }
+        return newest;
+    }
+
+    /**
+     * @return Whether enough of the file is superseded, or the file is large
+     *         enough, that it should be compacted.
+     */
+    public synchronized boolean needsCompaction() {
+        long deadBytes = mLength - FILE_HEADER_SIZE - mLiveBytes;
+        return deadBytes > mLiveBytes || mLength > mMaxBytes;
+    }
+
+    /**
+     * Rewrites the live records to a new file, dropping the oldest ones until
+     * they fit in half of the maximum size. The new file is written without
+     * blocking readers. If a thumbnail is put in the meantime, the compaction
+     * is abandoned.
+     */
+    public void compact() throws IOException {
+        List<ByteBuffer> keptRecords = new ArrayList<>();
+        long snapshotLength;
+        synchronized (this) {
+            snapshotLength = mLength;
+            long budget = mMaxBytes / 2;
+            long keptBytes = FILE_HEADER_SIZE;
+            for (Map.Entry<Long, Entry> entry : getEntriesNewestFirst()) {
+                if (keptBytes + entry.getValue().length > budget) {
+                    break;
+                }
+                keptBytes += entry.getValue().length;
+                keptRecords.add(getRecord(entry.getValue()));
+            }
+        }
+        // Write oldest first, so that the order survives the next reopen.
+        Collections.reverse(keptRecords);
+
+        File tempFile = new File(mFile.getPath() + ".tmp");
+        RandomAccessFile tempRandomAccessFile = new RandomAccessFile(tempFile, "rw");
+        try {
+            FileChannel tempChannel = tempRandomAccessFile.getChannel();
+            tempRandomAccessFile.setLength(0);
+            writeFully(tempChannel, createFileHeader(), 0);
+            long offset = FILE_HEADER_SIZE;
+            for (ByteBuffer record : keptRecords) {
+                int length = record.remaining();
+                writeFully(tempChannel, record, offset);
+                offset += length;
+            }
+            tempChannel.force(false);
+        } finally {
+            tempRandomAccessFile.close();
+        }
+
+        synchronized (this) {
+            if (mLength != snapshotLength) {
+                tempFile.delete();
+                return;
+            }
+            closeFile();
+            if (!tempFile.renameTo(mFile)) {
+                tempFile.delete();
+                openFile();
+                throw new IOException("Could not replace " + mFile);
+            }
+            openFile();
+        }
+    }
+
+    /**
+     * @return The size of the file, in bytes.
+     */
+    public synchronized long getLength() {
+        return mLength;
+    }
+
+    /**
+     * @return The number of thumbnails which are not superseded.
+     */
+    public synchronized int size() {
+        return mIndex.size();
+    }
+
+    public synchronized void close() throws IOException {
+        closeFile();
+    }
+
+    @GuardedBy("this")
+    private void openFile() throws IOException {
+        mIndex.clear();
+        mLiveBytes = 0;
+        mNextSequence = 0;
+        mMapping = null;
+        mRandomAccessFile = new RandomAccessFile(mFile, "rw");
+        mChannel = mRandomAccessFile.getChannel();
+        long fileLength = mChannel.size();
+        if (fileLength < FILE_HEADER_SIZE || !readIndex(fileLength)) {
+            mRandomAccessFile.setLength(0);
+            writeFully(mChannel, createFileHeader(), 0);
+            mLength = FILE_HEADER_SIZE;
+            mIndex.clear();
+            mLiveBytes = 0;
+        }
+    }
+
+    @GuardedBy("this")
+    private void closeFile() throws IOException {
+        mMapping = null;
+        if (mRandomAccessFile != null) {
+            mRandomAccessFile.close();
+            mRandomAccessFile = null;
+            mChannel = null;
+        }
+    }
+
+    /**
+     * Builds the index from the records in the file, truncating any partial
+     * record at its end.
+     *
+     * @return False if the file is not a journal.
+     */
+    @GuardedBy("this")
+    private boolean readIndex(long fileLength) throws IOException {
+        MappedByteBuffer mapping = mChannel.map(FileChannel.MapMode.READ_ONLY, 0, fileLength);
+        if (mapping.getInt(0) != FILE_MAGIC || mapping.getInt(4) != FILE_VERSION) {
+            return false;
+        }
+        long offset = FILE_HEADER_SIZE;
+        while (offset + RECORD_HEADER_SIZE <= fileLength) {
+            int position = (int) offset;
+            int pixelBytes = mapping.getInt(position + 36);
+            if (mapping.getInt(position) != RECORD_MAGIC || pixelBytes < 0
+                    || offset + RECORD_HEADER_SIZE + pixelBytes > fileLength) {
+                break;
+            }
+            addToIndex(mapping.getLong(position + 4), mapping.getInt(position + 12),
+                    mapping.getLong(position + 16), offset, RECORD_HEADER_SIZE + pixelBytes);
+            offset += RECORD_HEADER_SIZE + pixelBytes;
+        }
+        if (offset < fileLength) {
+            // Do not keep a mapping of the truncated bytes, which appended
+            // records will overwrite.
+            mRandomAccessFile.setLength(offset);
+            mapping = mChannel.map(FileChannel.MapMode.READ_ONLY, 0, offset);
+        }
+        mMapping = (offset > FILE_HEADER_SIZE) ? mapping : null;
+        mLength = offset;
+        return true;
+    }
+
+    @GuardedBy("this")
+    private List<Map.Entry<Long, Entry>> getEntriesNewestFirst() {
+        List<Map.Entry<Long, Entry>> entries = new ArrayList<>(mIndex.entrySet());
+        Collections.sort(entries, new Comparator<Map.Entry<Long, Entry>>() {
+            @Override
+            public int compare(Map.Entry<Long, Entry> lhs, Map.Entry<Long, Entry> rhs) {
+                return Long.compare(rhs.getValue().sequence, lhs.getValue().sequence);
+            }
+        });
+        return entries;
+    }
+
+    @GuardedBy("this")
+    private void addToIndex(long rowId, int kind, long dateModified, long offset, int length) {
+        Entry previous = mIndex.put(makeKey(rowId, kind),
+                new Entry(dateModified, offset, length, mNextSequence++));
+        if (previous != null) {
+            mLiveBytes -= previous.length;
+        }
+        mLiveBytes += length;
+    }
+
+    /**
+     * @return The whole record, including its header, from the mapping if it
+     *         covers the record, or otherwise read from the file.
+     */
+    @GuardedBy("this")
+    private ByteBuffer getRecord(Entry entry) throws IOException {
+        if (mMapping != null && entry.offset + entry.length <= mMapping.capacity()) {
+            ByteBuffer record = mMapping.duplicate();
+            record.position((int) entry.offset);
+            record.limit((int) (entry.offset + entry.length));
+            return record.slice();
+        }
+        // Appended since the file was opened. Records are small, so reading
+        // one is cheaper than remapping a file of up to the maximum size.
+        ByteBuffer record = ByteBuffer.allocate(entry.length);
+        long position = entry.offset;
+        while (record.hasRemaining()) {
+            int read = mChannel.read(record, position);
+            if (read < 0) {
+                throw new IOException("Record at " + entry.offset + " is past the end of "
+                        + mFile);
+            }
+            position += read;
+        }
+        record.flip();
+        return record;
+    }
+
+    private static ByteBuffer createFileHeader() {
+        ByteBuffer header = ByteBuffer.allocate(FILE_HEADER_SIZE);
+        header.putInt(FILE_MAGIC).putInt(FILE_VERSION);
+        header.flip();
+        return header;
+    }
+
+    private static void writeFully(FileChannel channel, ByteBuffer buffer, long position)
+            throws IOException {
+        while (buffer.hasRemaining()) {
+            position += channel.write(buffer, position);
+        }
+    }
+
+    /**
+     * Row ids are well below 2^48, so the kind fits in the top bits.
+     */
+    private static long makeKey(long rowId, int kind) {
+        Preconditions.checkArgument(kind >= 0 && kind < (1 << 15));
+        return ((long) kind << 48) | rowId;
+    }
+
+    private static long getRowId(long key) {
+        return key & ((1L << 48) - 1);
+    }
+
+    private static int getKind(long key) {
+        return (int) (key >>> 48);
+    }
+}
@@ -0,0 +1,334 @@
+/*
+ * Copyright (C) 2015 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.camera.data;
+
+import android.content.Context;
+import android.graphics.Bitmap;
+import android.util.LruCache;
+
+import com.android.camera.debug.Log;
+import com.bumptech.glide.load.resource.bitmap.GlideBitmapDrawable;
+import com.bumptech.glide.load.resource.drawable.GlideDrawable;
+import com.bumptech.glide.request.RequestListener;
+import com.bumptech.glide.request.target.Target;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.Executor;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+
+import javax.annotation.Nullable;
+import javax.annotation.ParametersAreNonnullByDefault;
+
+/**
+ * A two-tier store of the small filmstrip thumbnails, which survives app
+ * restarts, so that the filmstrip does not decode the same images again
+ * after a cold start.
+ * <p>
+ * Thumbnails are keyed by the MediaStore row id and date modified of their
+ * item, along with the item type and the size class of the thumbnail, so an
+ * edited item never shows a stale thumbnail. They are kept as raw RGB_565
+ * pixels in an LRU memory cache, and in a memory-mapped, append-only
+ * {@link ThumbnailJournal} on disk, from which they are copied into a bitmap.
+ * <p>
+ * Views are bound from the memory cache only, so binding never waits for the
+ * disk. The journal is only touched on a background thread, which opens it,
+ * reads the newest thumbnails into memory, promotes the thumbnails missed by
+ * a bind into memory for the next one, writes new thumbnails and compacts
+ * it. There is one store per process, which is opened when the app starts,
+ * and the filmstrip waits for {@link #awaitPreload} before its first page is
+ * bound, so the newest thumbnails are in memory for it.
+ */
+@ParametersAreNonnullByDefault
+public final class ThumbnailStore {
+    private static final Log.Tag TAG = new Log.Tag("ThumbnailStore");
+
+    private static final String FILE_NAME = "filmstrip_thumbnails";
+    private static final long MAX_DISK_BYTES = 32 * 1024 * 1024;
+    private static final int MAX_MEMORY_BYTES = 6 * 1024 * 1024;
+    /** The number of newest thumbnails read into memory on open. */
+    private static final int PRELOAD_COUNT = 20;
+    private static final Bitmap.Config CONFIG = Bitmap.Config.RGB_565;
+    private static final int NUM_SIZE_CLASSES = SizeClass.values().length;
+
+    /** The sizes of thumbnail which are stored. */
+    public static enum SizeClass {
+        /** {@link GlideFilmstripManager#TINY_THUMB_SIZE}. */
+        TINY,
+        /** {@link GlideFilmstripManager#MEDIASTORE_THUMB_SIZE}. */
+        MEDIASTORE
+    }
+
+    private static final class Key {
+        final long rowId;
+        final int kind;
+        final long dateModified;
+
+        Key(long rowId, int kind, long dateModified) {
+            this.rowId = rowId;
+            this.kind = kind;
+            this.dateModified = dateModified;
+        }
+
+        @Override
+        public boolean equals(Object other) {
+            if (!(other instanceof Key)) {
+                return false;
+            }
+            Key otherKey = (Key) other;
+            return rowId == otherKey.rowId && kind == otherKey.kind
+                    && dateModified == otherKey.dateModified;
+        }
+
+        @Override
+        public int hashCode() {
+            int hash = (int) (rowId ^ (rowId >>> 32));
+            hash = 31 * hash + kind;
+            return 31 * hash + (int) (dateModified ^ (dateModified >>> 32));
+        }
+    }
+
+    private static ThumbnailStore sInstance;
+
+    private final File mFile;
+    private final Executor mExecutor;
+    /** Counted down once the newest thumbnails were read, or failed to be. */
+    private final CountDownLatch mPreloaded = new CountDownLatch(1);
+    private final LruCache<Key, Bitmap> mMemoryCache;
+    /** Keys missed by {@link #get} which are being read from the journal. */
+    private final Set<Key> mPendingReads = Collections.synchronizedSet(new HashSet<Key>());
+    /** Null until opened on the executor, or if it could not be opened. */
+    @Nullable
+    private volatile ThumbnailJournal mJournal;
+
+    private ThumbnailStore(File file, Executor executor) {
+        mFile = file;
+        mExecutor = executor;
+        mMemoryCache = new LruCache<Key, Bitmap>(MAX_MEMORY_BYTES) {
+            @Override
+            protected int sizeOf(Key key, Bitmap bitmap) {
+                return bitmap.getByteCount();
+            }
+        };
+    }
+
+    /**
+     * Returns the store in the app's cache directory. The first call creates
+     * it and starts opening it in the background.
+     */
+    public static synchronized ThumbnailStore instance(Context context) {
+        if (sInstance == null) {
+            final ThumbnailStore store = new ThumbnailStore(
+                    new File(context.getCacheDir(), FILE_NAME),
+                    Executors.newSingleThreadExecutor());
+            store.mExecutor.execute(new Runnable() {
+                @Override
+                public void run() {
+                    store.openJournal();
+                }
+            });
+            sInstance = store;
+        }
+        return sInstance;
+    }
+
+    /**
+     * Blocks until the newest thumbnails were read into memory, so that
+     * binding them does not fall back to decoding. Must not be called on the
+     * main thread.
+     *
+     * @return Whether the thumbnails were read before the timeout.
+     */
+    public boolean awaitPreload(long timeoutMs) {
+        try {
+            return mPreloaded.await(timeoutMs, TimeUnit.MILLISECONDS);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            return false;
+        }
+    }
+
+    /**
+     * Returns the thumbnail of the given item if it is in memory, without
+     * blocking on the disk. Otherwise the thumbnail is read from the journal
+     * in the background, if stored there, so that it is in memory the next
+     * time it is asked for.
+     *
+     * @return The stored thumbnail of the given item, or null if there is
+     *         none in memory for its current date modified. The bitmap is
+     *         owned by the store and must not be recycled.
+     */
+    @Nullable
+    public Bitmap get(FilmstripItemType type, FilmstripItemData data, SizeClass sizeClass) {
+        final Key key = new Key(data.getContentId(), getKind(type, sizeClass),
+                getDateModified(data));
+        Bitmap bitmap = mMemoryCache.get(key);
+        if (bitmap == null && mPendingReads.add(key)) {
+            mExecutor.execute(new Runnable() {
+                @Override
+                public void run() {
+                    if (mMemoryCache.get(key) == null) {
+                        readFromJournal(key);
+                    }
+                    mPendingReads.remove(key);
+                }
+            });
+        }
+        return bitmap;
+    }
+
+    /**
+     * Stores a thumbnail of the given item, if it is not stored already. The
+     * pixels are copied before this returns, so the bitmap may be recycled
+     * afterwards. They are written to the journal in the background.
+     */
+    public void put(FilmstripItemType type, FilmstripItemData data, SizeClass sizeClass,
+            Bitmap bitmap) {
+        final Key key = new Key(data.getContentId(), getKind(type, sizeClass),
+                getDateModified(data));
+        if (mMemoryCache.get(key) != null) {
+            return;
+        }
+        final Bitmap copy = bitmap.copy(CONFIG, false);
+        if (copy == null) {
+            return;
+        }
+        mMemoryCache.put(key, copy);
+        mExecutor.execute(new Runnable() {
+            @Override
+            public void run() {
+                writeToJournal(key, copy);
+            }
+        });
+    }
+
+    /**
+     * @return A listener for a Glide request which loads the given item's
+     *         thumbnail, which stores the thumbnail once loaded.
+     */
+    public RequestListener<Object, GlideDrawable> storeOnLoad(final FilmstripItemType type,
+            final FilmstripItemData data, final SizeClass sizeClass) {
+        return new RequestListener<Object, GlideDrawable>() {
+            @Override
+            public boolean onException(Exception e, Object model, Target<GlideDrawable> target,
+                    boolean isFirstResource) {
+                return false;
+            }
+
+            @Override
+            public boolean onResourceReady(GlideDrawable resource, Object model,
+                    Target<GlideDrawable> target, boolean isFromMemoryCache,
+                    boolean isFirstResource) {
+                if (resource instanceof GlideBitmapDrawable) {
+                    put(type, data, sizeClass, ((GlideBitmapDrawable) resource).getBitmap());
+                }
+                // Let Glide show the resource as usual.
+                return false;
+            }
+        };
+    }
+
+    private void openJournal() {
+        try {
+            preload();
+        } finally {
+            mPreloaded.countDown();
+        }
+    }
+
+    private void preload() {
+        ThumbnailJournal journal;
+        try {
+            journal = new ThumbnailJournal(mFile, MAX_DISK_BYTES);
+        } catch (IOException e) {
+            Log.w(TAG, "Could not open the thumbnail store", e);
+            return;
+        }
+        mJournal = journal;
+
+        // The newest thumbnails are the likeliest to be shown first, so read
+        // them into memory now. Go from oldest to newest so that the newest
+        // are the last to be evicted.
+        List<long[]> newest = journal.getNewest(PRELOAD_COUNT);
+        for (int i = newest.size() - 1; i >= 0; i--) {
+            long[] key = newest.get(i);
+            readFromJournal(new Key(key[0], (int) key[1], key[2]));
+        }
+        Log.v(TAG, "Opened with " + journal.size() + " thumbnails in " + journal.getLength()
+                + " bytes, preloaded " + newest.size());
+    }
+
+    @Nullable
+    private Bitmap readFromJournal(Key key) {
+        ThumbnailJournal journal = mJournal;
+        if (journal == null) {
+            return null;
+        }
+        try {
+            ThumbnailJournal.Thumbnail thumbnail = journal.get(key.rowId, key.kind,
+                    key.dateModified);
+            if (thumbnail == null || thumbnail.format != CONFIG.ordinal()) {
+                return null;
+            }
+            Bitmap bitmap = Bitmap.createBitmap(thumbnail.width, thumbnail.height, CONFIG);
+            bitmap.copyPixelsFromBuffer(thumbnail.pixels);
+            mMemoryCache.put(key, bitmap);
+            return bitmap;
+        } catch (IOException | RuntimeException e) {
+            Log.w(TAG, "Could not read a stored thumbnail", e);
+            return null;
+        }
+    }
+
+    private void writeToJournal(Key key, Bitmap bitmap) {
+        ThumbnailJournal journal = mJournal;
+        if (journal == null || journal.contains(key.rowId, key.kind, key.dateModified)) {
+            return;
+        }
+        ByteBuffer pixels = ByteBuffer.allocate(bitmap.getByteCount());
+        bitmap.copyPixelsToBuffer(pixels);
+        pixels.flip();
+        try {
+            journal.put(key.rowId, key.kind, key.dateModified, bitmap.getWidth(),
+                    bitmap.getHeight(), CONFIG.ordinal(), pixels);
+            if (journal.needsCompaction()) {
+                long before = journal.getLength();
+                journal.compact();
+                Log.v(TAG, "Compacted from " + before + " to " + journal.getLength()
+                        + " bytes");
+            }
+        } catch (IOException e) {
+            Log.w(TAG, "Could not store a thumbnail", e);
+        }
+    }
+
+    private static int getKind(FilmstripItemType type, SizeClass sizeClass) {
+        return type.ordinal() * NUM_SIZE_CLASSES + sizeClass.ordinal();
+    }
+
+    private static long getDateModified(FilmstripItemData data) {
+        return (data.getLastModifiedDate() == null) ? 0
+                : data.getLastModifiedDate().getTime() / 1000;
+    }
+}
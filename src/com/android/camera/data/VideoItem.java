@@ -19,6 +19,8 @@ package com.android.camera.data;
 import android.content.ContentResolver;
 import android.content.Context;
 import android.graphics.Bitmap;
+import android.graphics.drawable.BitmapDrawable;
+import android.net.Uri;
 import android.provider.MediaStore;
 import android.view.LayoutInflater;
 import android.view.View;
@@ -28,7 +30,10 @@ import com.android.camera.data.FilmstripItemAttributes.Attributes;
 import com.android.camera.debug.Log;
 import com.android.camera.util.Size;
 import com.android.camera2.R;
+import com.bumptech.glide.DrawableRequestBuilder;
+import com.bumptech.glide.GenericRequestBuilder;
 import com.bumptech.glide.Glide;
+import com.bumptech.glide.load.resource.drawable.GlideDrawable;
 import com.google.common.base.Optional;
 
 import java.util.concurrent.TimeUnit;
@@ -192,10 +197,18 @@ public class VideoItem extends FilmstripItemBase<VideoItemData> {
 
     @Override
     public void renderThumbnail(@Nonnull View view) {
-        mGlideManager.loadScreen(mData.getUri(), generateSignature(mData), mSuggestedSize)
-              .thumbnail(mGlideManager.loadMediaStoreThumb(mData.getUri(),
-                    generateSignature(mData)))
-              .into(getViewHolder(view).mVideoView);
+        DrawableRequestBuilder<Uri> request = mGlideManager.loadScreen(mData.getUri(),
+              generateSignature(mData), mSuggestedSize);
+        Bitmap storedThumb = getStoredThumb();
+        if (storedThumb != null) {
+            // Show the stored thumbnail while loading, rather than decoding
+            // it again.
+            request = request.placeholder(new BitmapDrawable(mContext.getResources(),
+                  storedThumb));
+        } else {
+            request = request.thumbnail(loadMediaStoreThumb());
+        }
+        request.into(getViewHolder(view).mVideoView);
     }
 
     @Override
@@ -226,8 +239,31 @@ public class VideoItem extends FilmstripItemBase<VideoItemData> {
     }
 
     private void renderTiny(@Nonnull VideoViewHolder viewHolder) {
-        mGlideManager.loadMediaStoreThumb(mData.getUri(), generateSignature(mData))
-              .into(viewHolder.mVideoView);
+        Bitmap storedThumb = getStoredThumb();
+        if (storedThumb != null) {
+            // Cancel any load into the view, which would replace the stored
+            // thumbnail once done.
+            Glide.clear(viewHolder.mVideoView);
+            viewHolder.mVideoView.setImageBitmap(storedThumb);
+        } else {
+            loadMediaStoreThumb().into(viewHolder.mVideoView);
+        }
+    }
+
+    private GenericRequestBuilder<Uri, ?, ?, GlideDrawable> loadMediaStoreThumb() {
+        return mGlideManager.loadMediaStoreThumb(mData.getUri(), generateSignature(mData))
+              .listener(mGlideManager.getThumbnailStore().storeOnLoad(
+                    getItemViewType(), mData, ThumbnailStore.SizeClass.MEDIASTORE));
+    }
+
+    /**
+     * @return The media store sized thumbnail from the thumbnail store, which
+     *         is shown without decoding the video frame, or null if it is not
+     *         in memory.
+     */
+    private Bitmap getStoredThumb() {
+        return mGlideManager.getThumbnailStore().get(getItemViewType(), mData,
+              ThumbnailStore.SizeClass.MEDIASTORE);
     }
 
     private VideoViewHolder getViewHolder(@Nonnull View view) {
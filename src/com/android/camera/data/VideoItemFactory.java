@@ -27,6 +27,8 @@ import com.android.camera.debug.Log;
 
 import java.util.List;
 
+import javax.annotation.Nullable;
+
 public class VideoItemFactory implements CursorToFilmstripItemFactory<VideoItem> {
     private static final Log.Tag TAG = new Log.Tag("VideoItemFact");
     private static final String QUERY_ORDER = MediaStore.Video.VideoColumns.DATE_TAKEN
@@ -84,6 +86,40 @@ public class VideoItemFactory implements CursorToFilmstripItemFactory<VideoItem>
                     QUERY_ORDER, this);
     }
 
+    /**
+     * Query for the video data items added or modified since a previous query.
+     *
+     * @param lastId the highest id seen by the previous query.
+     * @param lastDateModified the latest modification date seen by the
+     *            previous query, in seconds.
+     */
+    public List<VideoItem> queryChangedSince(long lastId, long lastDateModified) {
+        return FilmstripContentQueries
+              .forCameraPathChangedSince(mContentResolver, VideoDataQuery.CONTENT_URI,
+                    VideoDataQuery.QUERY_PROJECTION, lastId, lastDateModified, QUERY_ORDER, this);
+    }
+
+    /** Query for the ids of all the video data items, in ascending order. */
+    @Nullable
+    public long[] queryIds() {
+        return FilmstripContentQueries.idsForCameraPath(mContentResolver, VideoDataQuery.CONTENT_URI);
+    }
+
+    /**
+     * Query a page of the video data items, newest first.
+     *
+     * @param futureCutoff the date, in milliseconds, after which dates
+     *            taken are ignored in favor of the modification date.
+     * @param after the key to continue after, or null for the first page.
+     * @param limit the maximum number of items.
+     */
+    public FilmstripContentQueries.Page<VideoItem> queryPage(
+          long futureCutoff, @Nullable FilmstripContentQueries.PageKey after, int limit) {
+        return FilmstripContentQueries
+              .forCameraPathPage(mContentResolver, VideoDataQuery.CONTENT_URI,
+                    VideoDataQuery.QUERY_PROJECTION, futureCutoff, after, limit, this);
+    }
+
     /** Query for a single data item */
     public VideoItem queryContentUri(Uri uri) {
         // TODO: Consider refactoring this, this approach may be slow.
@@ -38,6 +38,12 @@ public class DebugPropertyHelper {
     private static final String PROP_WRITE_CAPTURE_DATA = PREFIX + ".capture_write";
     /** Is RAW support enabled. */
     private static final String PROP_CAPTURE_DNG = PREFIX + ".capture_dng";
+    /** Trace which ImageBackend tasks hold and release each image. */
+    private static final String PROP_IMAGE_TRACE = PREFIX + ".image_trace";
+    /** Also keep the stacks of every image acquire and release. */
+    private static final String PROP_IMAGE_TRACE_STACKS = PREFIX + ".image_trace_stacks";
+    /** Analyze the preview frame pacing, even if jank statistics are off. */
+    private static final String PROP_FRAME_PACING = PREFIX + ".frame_pacing";
 
     private static boolean isPropertyOn(String property) {
         return ON_VALUE.equals(SystemProperties.get(property, OFF_VALUE));
@@ -58,4 +64,16 @@ public class DebugPropertyHelper {
     public static boolean isCaptureDngEnabled() {
         return isPropertyOn(PROP_CAPTURE_DNG);
     }
+
+    public static boolean traceImageLifecycle() {
+        return isPropertyOn(PROP_IMAGE_TRACE);
+    }
+
+    public static boolean traceImageLifecycleStacks() {
+        return isPropertyOn(PROP_IMAGE_TRACE_STACKS);
+    }
+
+    public static boolean analyzeFramePacing() {
+        return isPropertyOn(PROP_FRAME_PACING);
+    }
 }
@@ -0,0 +1,187 @@
+/*
+ * Copyright (C) 2015 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.camera.exif;
+
+import com.android.camera.debug.Log;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.FileChannel.MapMode;
+
+/**
+ * Replaces the Exif APP1 segment of a jpeg file without reading the image
+ * data into memory. If the new segment fits in the old one, the old segment
+ * is overwritten through a memory map and the remainder padded with zeros,
+ * so that nothing else in the file moves. Otherwise the file is rebuilt by
+ * splicing the bytes before and after the old segment around the new one
+ * with {@link FileChannel#transferTo}, and renamed over the original.
+ */
+class ExifFileRewriter {
+    private static final Log.Tag TAG = new Log.Tag("ExifFileRewriter");
+    private static final boolean DEBUG = false;
+
+    private static final int EXIF_HEADER = 0x45786966;
+    private static final short EXIF_HEADER_TAIL = (short) 0x0000;
+    private static final String TEMP_FILE_SUFFIX = ".exif.tmp";
+
+    private final File mFile;
+
+    /** Offset of the existing Exif segment's marker, or of the insertion point. */
+    private long mSegmentStart;
+    /** Offset just past the existing Exif segment; equal to the start if none. */
+    private long mSegmentEnd;
+
+    protected ExifFileRewriter(File file) {
+        mFile = file;
+    }
+
+    /**
+     * Writes the given APP1 segment, including its marker and length, into the
+     * file in place of the existing Exif segment, or after SOI if there is
+     * none.
+     *
+     * @return the path that was taken.
+     */
+    protected ExifInterface.RewritePath rewrite(byte[] app1Segment) throws IOException {
+        RandomAccessFile file = new RandomAccessFile(mFile, "rw");
+        try {
+            findExifSegment(file);
+            long oldLength = mSegmentEnd - mSegmentStart;
+            if (oldLength > 0 && app1Segment.length <= oldLength) {
+                patchSegment(file.getChannel(), app1Segment, (int) oldLength);
+                return ExifInterface.RewritePath.PATCHED_SEGMENT;
+            }
+        } finally {
+            ExifInterface.closeSilently(file);
+        }
+
+        spliceSegment(app1Segment);
+        return ExifInterface.RewritePath.SPLICED;
+    }
+
+    /**
+     * Walks the jpeg segments up to the first SOF, in the same way as
+     * {@link ExifParser}, looking for an APP1 segment with an Exif header.
+     */
+    private void findExifSegment(RandomAccessFile file) throws IOException {
+        file.seek(0);
+        if (file.readShort() != JpegHeader.SOI) {
+            throw new IOException("Not a valid jpeg image, cannot rewrite exif");
+        }
+        mSegmentStart = mSegmentEnd = file.getFilePointer();
+
+        long length = file.length();
+        while (file.getFilePointer() + 4 <= length) {
+            long start = file.getFilePointer();
+            short marker = file.readShort();
+            if (marker == JpegHeader.EOI || JpegHeader.isSofMarker(marker)) {
+                return;
+            }
+            int segmentLength = file.readUnsignedShort();
+            if (segmentLength < 2) {
+                throw new IOException("Invalid jpeg segment length: " + segmentLength);
+            }
+            long end = start + 2 + segmentLength;
+            if (marker == JpegHeader.APP1 && segmentLength >= 8) {
+                if (file.readInt() == EXIF_HEADER && file.readShort() == EXIF_HEADER_TAIL) {
+                    if (end > length) {
+                        throw new IOException("Exif segment extends past end of file");
+                    }
+                    mSegmentStart = start;
+                    mSegmentEnd = end;
+                    return;
+                }
+            }
+            file.seek(end);
+        }
+    }
+
+    private void patchSegment(FileChannel channel, byte[] app1Segment, int oldLength)
+            throws IOException {
+        if (DEBUG) {
+            Log.v(TAG, "Patching " + app1Segment.length + " byte exif segment over "
+                    + oldLength + " bytes at " + mSegmentStart);
+        }
+        MappedByteBuffer buf = channel.map(MapMode.READ_WRITE, mSegmentStart, oldLength);
+        buf.put(app1Segment);
+        // Grow the segment's length field to cover the padding, which
+        // parsers skip since everything in the segment is found by offset.
+        buf.putShort(2, (short) (oldLength - 2));
+        while (buf.hasRemaining()) {
+            buf.put((byte) 0);
+        }
+        buf.force();
+    }
+
+    private void spliceSegment(byte[] app1Segment) throws IOException {
+        File temp = new File(mFile.getPath() + TEMP_FILE_SUFFIX);
+        if (DEBUG) {
+            Log.v(TAG, "Splicing " + app1Segment.length + " byte exif segment in place of "
+                    + (mSegmentEnd - mSegmentStart) + " bytes at " + mSegmentStart);
+        }
+        FileInputStream in = null;
+        FileOutputStream out = null;
+        boolean success = false;
+        try {
+            in = new FileInputStream(mFile);
+            out = new FileOutputStream(temp);
+            FileChannel inChannel = in.getChannel();
+            FileChannel outChannel = out.getChannel();
+
+            transferFully(inChannel, 0, mSegmentStart, outChannel);
+            ByteBuffer segment = ByteBuffer.wrap(app1Segment);
+            while (segment.hasRemaining()) {
+                outChannel.write(segment);
+            }
+            transferFully(inChannel, mSegmentEnd, inChannel.size() - mSegmentEnd, outChannel);
+            success = true;
+        } finally {
+            ExifInterface.closeSilently(in);
+            ExifInterface.closeSilently(out);
+            if (!success) {
+                temp.delete();
+            }
+        }
+
+        if (!temp.renameTo(mFile)) {
+            temp.delete();
+            throw new IOException("Could not replace " + mFile + " with rewritten file");
+        }
+    }
+
+    /**
+     * Transfers exactly count bytes, since a single transferTo may transfer
+     * fewer than requested.
+     */
+    private static void transferFully(FileChannel in, long position, long count,
+            FileChannel out) throws IOException {
+        while (count > 0) {
+            long transferred = in.transferTo(position, count, out);
+            if (transferred <= 0) {
+                throw new IOException("Unexpected end of file while copying jpeg");
+            }
+            position += transferred;
+            count -= transferred;
+        }
+    }
+}
@@ -0,0 +1,421 @@
+/*
+ * Copyright (C) 2015 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.camera.exif;
+
+import com.android.camera.debug.Log;
+
+import java.io.ByteArrayInputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteOrder;
+import java.nio.charset.Charset;
+
+/**
+ * A lazily decoded view of the EXIF header of a JPEG. Instead of building an
+ * {@link ExifTag} for every entry, the IFDs are walked once to record the id,
+ * type, count and value offset of each tag in parallel primitive arrays, and a
+ * tag's value is only decoded, and cached, the first time it is asked for.
+ * The header bytes are kept to decode from, so no value ever needs to be
+ * copied out up front; {@link #toExifData()} falls back to the regular
+ * {@link ExifReader} when the whole header is needed.
+ */
+class ExifIndex {
+    private static final Log.Tag TAG = new Log.Tag("ExifIndex");
+
+    private static final int EXIF_HEADER = 0x45786966;
+    private static final short EXIF_HEADER_TAIL = (short) 0x0000;
+    private static final short LITTLE_ENDIAN_TAG = (short) 0x4949;
+    private static final short BIG_ENDIAN_TAG = (short) 0x4d4d;
+    private static final short TIFF_HEADER_TAIL = 0x002A;
+    private static final int TAG_SIZE = 12;
+    private static final int INITIAL_CAPACITY = 64;
+    private static final Charset US_ASCII = Charset.forName("US-ASCII");
+
+    private static final short TAG_EXIF_IFD = ExifInterface
+            .getTrueTagKey(ExifInterface.TAG_EXIF_IFD);
+    private static final short TAG_GPS_IFD = ExifInterface.getTrueTagKey(ExifInterface.TAG_GPS_IFD);
+    private static final short TAG_INTEROPERABILITY_IFD = ExifInterface
+            .getTrueTagKey(ExifInterface.TAG_INTEROPERABILITY_IFD);
+
+    private final ExifInterface mInterface;
+    /** Bytes from SOI up to the end of the Exif APP1 segment, or longer. */
+    private final byte[] mJpeg;
+    /** Offset of the TIFF header in mJpeg, which tag offsets are relative to. */
+    private int mTiffStart;
+    /** Length of the TIFF data, i.e. of the APP1 payload after the Exif header. */
+    private int mTiffLength;
+    private ByteOrder mByteOrder = ExifInterface.DEFAULT_BYTE_ORDER;
+
+    private int mTagCount = 0;
+    /** Per tag: {@link ExifInterface#defineTag}(ifd, tag id). */
+    private int[] mKeys = new int[INITIAL_CAPACITY];
+    /** Per tag: (type << 16) | hasDefinedCount flag. */
+    private int[] mTypes = new int[INITIAL_CAPACITY];
+    private int[] mCounts = new int[INITIAL_CAPACITY];
+    /** Per tag: offset of the value, relative to the TIFF header. */
+    private int[] mValueOffsets = new int[INITIAL_CAPACITY];
+    private ExifTag[] mDecoded;
+
+    private ExifIndex(ExifInterface iRef, byte[] jpeg) {
+        mInterface = iRef;
+        mJpeg = jpeg;
+    }
+
+    /**
+     * Indexes the EXIF header of a JPEG held in memory. The array is kept, not
+     * copied, and must not be modified while the index is in use.
+     */
+    protected static ExifIndex parse(byte[] jpeg, ExifInterface iRef) throws IOException,
+            ExifInvalidFormatException {
+        ExifIndex index = new ExifIndex(iRef, jpeg);
+        index.index();
+        return index;
+    }
+
+    /**
+     * Indexes the EXIF header of a JPEG file. Only the bytes up to the end of
+     * the EXIF header are read, with a single allocation.
+     */
+    protected static ExifIndex parse(File file, ExifInterface iRef) throws IOException,
+            ExifInvalidFormatException {
+        RandomAccessFile raf = new RandomAccessFile(file, "r");
+        try {
+            if (raf.readShort() != JpegHeader.SOI) {
+                throw new ExifInvalidFormatException("Invalid JPEG format");
+            }
+            long headerEnd = 2;
+            long length = raf.length();
+            while (raf.getFilePointer() + 4 <= length) {
+                long start = raf.getFilePointer();
+                short marker = raf.readShort();
+                if (marker == JpegHeader.EOI || JpegHeader.isSofMarker(marker)) {
+                    break;
+                }
+                long end = start + 2 + raf.readUnsignedShort();
+                if (marker == JpegHeader.APP1 && end - start >= 10
+                        && raf.readInt() == EXIF_HEADER) {
+                    headerEnd = Math.min(end, length);
+                    break;
+                }
+                raf.seek(end);
+            }
+
+            byte[] jpeg = new byte[(int) headerEnd];
+            raf.seek(0);
+            raf.readFully(jpeg);
+            return parse(jpeg, iRef);
+        } finally {
+            ExifInterface.closeSilently(raf);
+        }
+    }
+
+    protected ByteOrder getByteOrder() {
+        return mByteOrder;
+    }
+
+    /**
+     * @return the number of tags in the index.
+     */
+    protected int getTagCount() {
+        return mTagCount;
+    }
+
+    /**
+     * Returns the tag with the given id in the given IFD, decoding its value
+     * on first access, or null if there is no such tag.
+     */
+    protected ExifTag getTag(short tagId, int ifd) {
+        int key = ExifInterface.defineTag(ifd, tagId);
+        // Search backwards, so that as with IfdData the last duplicate wins.
+        for (int i = mTagCount - 1; i >= 0; i--) {
+            if (mKeys[i] == key) {
+                if (mDecoded[i] == null) {
+                    mDecoded[i] = decode(i);
+                }
+                return mDecoded[i];
+            }
+        }
+        return null;
+    }
+
+    /**
+     * Fully parses the header with {@link ExifReader}, including thumbnails,
+     * for callers that need all of it.
+     */
+    protected ExifData toExifData() throws IOException, ExifInvalidFormatException {
+        return new ExifReader(mInterface).read(
+                new ByteArrayInputStream(mJpeg, 0, mTiffStart + mTiffLength));
+    }
+
+    private void index() throws ExifInvalidFormatException {
+        if (!seekTiffData()) {
+            mDecoded = new ExifTag[0];
+            return;
+        }
+
+        short byteOrder = (short) readU16BigEndian(mTiffStart);
+        if (byteOrder == LITTLE_ENDIAN_TAG) {
+            mByteOrder = ByteOrder.LITTLE_ENDIAN;
+        } else if (byteOrder == BIG_ENDIAN_TAG) {
+            mByteOrder = ByteOrder.BIG_ENDIAN;
+        } else {
+            throw new ExifInvalidFormatException("Invalid TIFF header");
+        }
+        if ((short) readU16(2) != TIFF_HEADER_TAIL) {
+            throw new ExifInvalidFormatException("Invalid TIFF header");
+        }
+
+        int ifd0Offset = readU32AsInt(4);
+        int ifd1Offset = indexIfd(IfdId.TYPE_IFD_0, ifd0Offset);
+        int exifOffset = findOffsetTag(IfdId.TYPE_IFD_0, TAG_EXIF_IFD);
+        if (exifOffset > 0) {
+            indexIfd(IfdId.TYPE_IFD_EXIF, exifOffset);
+            int interopOffset = findOffsetTag(IfdId.TYPE_IFD_EXIF, TAG_INTEROPERABILITY_IFD);
+            if (interopOffset > 0) {
+                indexIfd(IfdId.TYPE_IFD_INTEROPERABILITY, interopOffset);
+            }
+        }
+        int gpsOffset = findOffsetTag(IfdId.TYPE_IFD_0, TAG_GPS_IFD);
+        if (gpsOffset > 0) {
+            indexIfd(IfdId.TYPE_IFD_GPS, gpsOffset);
+        }
+        if (ifd1Offset > 0) {
+            indexIfd(IfdId.TYPE_IFD_1, ifd1Offset);
+        }
+        mDecoded = new ExifTag[mTagCount];
+    }
+
+    /**
+     * Finds the Exif APP1 segment in the same way as {@link ExifParser}.
+     */
+    private boolean seekTiffData() throws ExifInvalidFormatException {
+        if (mJpeg.length < 2 || (short) readU16BigEndian(0) != JpegHeader.SOI) {
+            throw new ExifInvalidFormatException("Invalid JPEG format");
+        }
+        int pos = 2;
+        while (pos + 4 <= mJpeg.length) {
+            short marker = (short) readU16BigEndian(pos);
+            if (marker == JpegHeader.EOI || JpegHeader.isSofMarker(marker)) {
+                return false;
+            }
+            int length = readU16BigEndian(pos + 2);
+            if (marker == JpegHeader.APP1 && length >= 8 && pos + 10 <= mJpeg.length
+                    && readU32BigEndian(pos + 4) == EXIF_HEADER
+                    && (short) readU16BigEndian(pos + 8) == EXIF_HEADER_TAIL) {
+                mTiffStart = pos + 10;
+                mTiffLength = Math.min(length - 8, mJpeg.length - mTiffStart);
+                return mTiffLength >= 8;
+            }
+            if (length < 2) {
+                Log.w(TAG, "Invalid JPEG format.");
+                return false;
+            }
+            pos += 2 + length;
+        }
+        return false;
+    }
+
+    /**
+     * Records the tags of one IFD.
+     *
+     * @return the offset of the next IFD, or 0.
+     */
+    private int indexIfd(int ifd, int offset) {
+        if (offset < 8 || offset + 2 > mTiffLength) {
+            Log.w(TAG, "Invalid offset of IFD " + ifd + ": " + offset);
+            return 0;
+        }
+        int numTags = readU16(offset);
+        int entry = offset + 2;
+        if (entry + numTags * TAG_SIZE > mTiffLength) {
+            Log.w(TAG, "Invalid size of IFD " + ifd);
+            return 0;
+        }
+
+        for (int i = 0; i < numTags; i++, entry += TAG_SIZE) {
+            short tagId = (short) readU16(entry);
+            short type = (short) readU16(entry + 2);
+            int count = readU32AsInt(entry + 4);
+            if (!ExifTag.isValidType(type) || count < 0) {
+                Log.w(TAG, String.format("Tag %04x: Invalid data type %d", tagId, type));
+                continue;
+            }
+            long dataSize = (long) count * ExifTag.getElementSize(type);
+            int valueOffset = dataSize > 4 ? readU32AsInt(entry + 8) : entry + 8;
+            if (valueOffset < 0 || valueOffset + dataSize > mTiffLength) {
+                Log.w(TAG, String.format("Tag %04x: Value out of bounds", tagId));
+                continue;
+            }
+            add(ExifInterface.defineTag(ifd, tagId), type,
+                    count != ExifTag.SIZE_UNDEFINED, count, valueOffset);
+        }
+
+        if (entry + 4 > mTiffLength) {
+            return 0;
+        }
+        int next = readU32AsInt(entry);
+        return next > 0 ? next : 0;
+    }
+
+    private void add(int key, short type, boolean hasDefinedCount, int count,
+            int valueOffset) {
+        if (mTagCount == mKeys.length) {
+            int capacity = mTagCount * 2;
+            mKeys = copyOf(mKeys, capacity);
+            mTypes = copyOf(mTypes, capacity);
+            mCounts = copyOf(mCounts, capacity);
+            mValueOffsets = copyOf(mValueOffsets, capacity);
+        }
+        mKeys[mTagCount] = key;
+        mTypes[mTagCount] = (type << 16) | (hasDefinedCount ? 1 : 0);
+        mCounts[mTagCount] = count;
+        mValueOffsets[mTagCount] = valueOffset;
+        mTagCount++;
+    }
+
+    /**
+     * Reads an IFD pointer tag directly from the index, without decoding it.
+     */
+    private int findOffsetTag(int ifd, short tagId) {
+        int key = ExifInterface.defineTag(ifd, tagId);
+        for (int i = mTagCount - 1; i >= 0; i--) {
+            if (mKeys[i] == key && mCounts[i] > 0) {
+                short type = (short) (mTypes[i] >>> 16);
+                if (type == ExifTag.TYPE_UNSIGNED_LONG || type == ExifTag.TYPE_LONG) {
+                    return readU32AsInt(mValueOffsets[i]);
+                }
+                return 0;
+            }
+        }
+        return 0;
+    }
+
+    private ExifTag decode(int i) {
+        int key = mKeys[i];
+        short type = (short) (mTypes[i] >>> 16);
+        boolean hasDefinedCount = (mTypes[i] & 1) != 0;
+        int count = mCounts[i];
+        int offset = mValueOffsets[i];
+        ExifTag tag = new ExifTag(ExifInterface.getTrueTagKey(key), type, count,
+                ExifInterface.getTrueIfd(key), hasDefinedCount);
+        // As in ExifParser, values stored inside the entry are set without a
+        // defined count so that non-terminated strings get their \0.
+        if (ExifTag.getElementSize(type) * count <= 4) {
+            tag.setHasDefinedCount(false);
+        }
+
+        switch (type) {
+            case ExifTag.TYPE_UNSIGNED_BYTE:
+            case ExifTag.TYPE_UNDEFINED: {
+                byte[] value = new byte[count];
+                System.arraycopy(mJpeg, mTiffStart + offset, value, 0, count);
+                tag.setValue(value);
+            }
+                break;
+            case ExifTag.TYPE_ASCII:
+                tag.setValue(count > 0
+                        ? new String(mJpeg, mTiffStart + offset, count, US_ASCII) : "");
+                break;
+            case ExifTag.TYPE_UNSIGNED_LONG: {
+                long[] value = new long[count];
+                for (int j = 0; j < count; j++) {
+                    value[j] = readU32(offset + 4 * j);
+                }
+                tag.setValue(value);
+            }
+                break;
+            case ExifTag.TYPE_UNSIGNED_RATIONAL: {
+                Rational[] value = new Rational[count];
+                for (int j = 0; j < count; j++) {
+                    value[j] = new Rational(readU32(offset + 8 * j),
+                            readU32(offset + 8 * j + 4));
+                }
+                tag.setValue(value);
+            }
+                break;
+            case ExifTag.TYPE_UNSIGNED_SHORT: {
+                int[] value = new int[count];
+                for (int j = 0; j < count; j++) {
+                    value[j] = readU16(offset + 2 * j);
+                }
+                tag.setValue(value);
+            }
+                break;
+            case ExifTag.TYPE_LONG: {
+                int[] value = new int[count];
+                for (int j = 0; j < count; j++) {
+                    value[j] = (int) readU32(offset + 4 * j);
+                }
+                tag.setValue(value);
+            }
+                break;
+            case ExifTag.TYPE_RATIONAL: {
+                Rational[] value = new Rational[count];
+                for (int j = 0; j < count; j++) {
+                    value[j] = new Rational((int) readU32(offset + 8 * j),
+                            (int) readU32(offset + 8 * j + 4));
+                }
+                tag.setValue(value);
+            }
+                break;
+        }
+        tag.setHasDefinedCount(hasDefinedCount);
+        tag.setOffset(offset);
+        return tag;
+    }
+
+    /** Reads an unsigned short at the given offset from the TIFF header. */
+    private int readU16(int offset) {
+        int pos = mTiffStart + offset;
+        if (mByteOrder == ByteOrder.BIG_ENDIAN) {
+            return readU16BigEndian(pos);
+        }
+        return (mJpeg[pos] & 0xff) | (mJpeg[pos + 1] & 0xff) << 8;
+    }
+
+    /** Reads an unsigned int at the given offset from the TIFF header. */
+    private long readU32(int offset) {
+        int pos = mTiffStart + offset;
+        if (mByteOrder == ByteOrder.BIG_ENDIAN) {
+            return readU32BigEndian(pos) & 0xffffffffL;
+        }
+        return ((mJpeg[pos] & 0xff) | (mJpeg[pos + 1] & 0xff) << 8
+                | (mJpeg[pos + 2] & 0xff) << 16 | (mJpeg[pos + 3] & 0xff) << 24) & 0xffffffffL;
+    }
+
+    /** Reads an offset, mapping values which do not fit in an int to -1. */
+    private int readU32AsInt(int offset) {
+        long value = readU32(offset);
+        return value > Integer.MAX_VALUE ? -1 : (int) value;
+    }
+
+    private int readU16BigEndian(int pos) {
+        return (mJpeg[pos] & 0xff) << 8 | (mJpeg[pos + 1] & 0xff);
+    }
+
+    private int readU32BigEndian(int pos) {
+        return (mJpeg[pos] & 0xff) << 24 | (mJpeg[pos + 1] & 0xff) << 16
+                | (mJpeg[pos + 2] & 0xff) << 8 | (mJpeg[pos + 3] & 0xff);
+    }
+
+    private static int[] copyOf(int[] array, int length) {
+        int[] copy = new int[length];
+        System.arraycopy(array, 0, copy, 0, array.length);
+        return copy;
+    }
+}
@@ -711,6 +711,8 @@ public class ExifInterface {
 
     private static final String NULL_ARGUMENT_STRING = "Argument is null";
     private ExifData mData = new ExifData(DEFAULT_BYTE_ORDER);
+    /** Set instead of mData after a lazy read, until the full data is needed. */
+    private ExifIndex mIndex = null;
     public static final ByteOrder DEFAULT_BYTE_ORDER = ByteOrder.BIG_ENDIAN;
 
     public ExifInterface() {
@@ -746,6 +748,7 @@ public class ExifInterface {
             throw new IOException("Invalid exif format : " + e);
         }
         mData = d;
+        mIndex = null;
     }
 
     /**
@@ -768,6 +771,50 @@ public class ExifInterface {
         is.close();
     }
 
+    /**
+     * Reads the exif tags from a byte array lazily, clearing this
+     * ExifInterface object's existing exif tags. Only the location of every
+     * tag is recorded, and a tag's value is decoded the first time it is
+     * requested with {@link #getTag}, which makes reading a few tags from many
+     * images much cheaper than with {@link #readExif(byte[])}. Any other use of
+     * this object parses the header in full. The byte array must not be
+     * modified until then.
+     *
+     * @param jpeg a byte array containing a jpeg compressed image.
+     * @throws IOException
+     */
+    public void readExifLazily(byte[] jpeg) throws IOException {
+        if (jpeg == null) {
+            throw new IllegalArgumentException(NULL_ARGUMENT_STRING);
+        }
+        try {
+            mIndex = ExifIndex.parse(jpeg, this);
+        } catch (ExifInvalidFormatException e) {
+            throw new IOException("Invalid exif format : " + e);
+        }
+        mData = null;
+    }
+
+    /**
+     * Reads the exif tags from a file lazily, reading only the exif header.
+     *
+     * @param inFileName a string representing the filepath to jpeg file.
+     * @throws FileNotFoundException
+     * @throws IOException
+     * @see #readExifLazily(byte[])
+     */
+    public void readExifLazily(String inFileName) throws FileNotFoundException, IOException {
+        if (inFileName == null) {
+            throw new IllegalArgumentException(NULL_ARGUMENT_STRING);
+        }
+        try {
+            mIndex = ExifIndex.parse(new File(inFileName), this);
+        } catch (ExifInvalidFormatException e) {
+            throw new IOException("Invalid exif format : " + e);
+        }
+        mData = null;
+    }
+
     /**
      * Sets the exif tags, clearing this ExifInterface object's existing exif
      * tags.
@@ -784,6 +831,7 @@ public class ExifInterface {
      */
     public void clearExif() {
         mData = new ExifData(DEFAULT_BYTE_ORDER);
+        mIndex = null;
     }
 
     /**
@@ -948,7 +996,7 @@ public class ExifInterface {
             throw new IllegalArgumentException(NULL_ARGUMENT_STRING);
         }
         ExifOutputStream eos = new ExifOutputStream(outStream, this);
-        eos.setExifData(mData);
+        eos.setExifData(getData());
         return eos;
     }
 
@@ -1060,42 +1108,68 @@ public class ExifInterface {
         }
     }
 
+    /**
+     * The way {@link #forceRewriteExif} updated a file.
+     */
+    public enum RewritePath {
+        /** The tag values were overwritten in place, see {@link #rewriteExif}. */
+        IN_PLACE_TAGS,
+        /**
+         * The Exif segment was rebuilt and, fitting in the old one, written
+         * over it through a memory map.
+         */
+        PATCHED_SEGMENT,
+        /**
+         * The Exif segment was rebuilt and did not fit, so the rest of the file
+         * was copied around it.
+         */
+        SPLICED,
+    }
+
     /**
      * Attempts to do an in-place rewrite of the exif metadata. If this fails,
-     * fall back to overwriting file. This preserves tags that are not being
+     * fall back to rebuilding the exif header, which is written over the old
+     * one if it fits, and otherwise spliced into a copy of the file. The image
+     * data is never read into memory. This preserves tags that are not being
      * rewritten.
      *
      * @param filename a String containing a filepath for a jpeg file.
      * @param tags tags that will be written into the jpeg file over existing
      *            tags if possible.
+     * @return the way the file was updated.
      * @throws FileNotFoundException
      * @throws IOException
      * @see #rewriteExif
      */
-    public void forceRewriteExif(String filename, Collection<ExifTag> tags)
+    public RewritePath forceRewriteExif(String filename, Collection<ExifTag> tags)
             throws FileNotFoundException,
             IOException {
         // Attempt in-place write
-        if (!rewriteExif(filename, tags)) {
-            // Fall back to doing a copy
-            ExifData tempData = mData;
-            mData = new ExifData(DEFAULT_BYTE_ORDER);
-            FileInputStream is = null;
-            ByteArrayOutputStream bytes = null;
-            try {
-                is = new FileInputStream(filename);
-                bytes = new ByteArrayOutputStream();
-                doExifStreamIO(is, bytes);
-                byte[] imageBytes = bytes.toByteArray();
-                readExif(imageBytes);
-                setTags(tags);
-                writeExif(imageBytes, filename);
-            } finally {
-                is.close();
-                // Prevent clobbering of mData
-                mData = tempData;
-            }
+        if (rewriteExif(filename, tags)) {
+            return RewritePath.IN_PLACE_TAGS;
+        }
+
+        // Fall back to rebuilding the exif header
+        ExifData tempData = mData;
+        ExifIndex tempIndex = mIndex;
+        mData = new ExifData(DEFAULT_BYTE_ORDER);
+        mIndex = null;
+        InputStream is = null;
+        byte[] app1Segment;
+        try {
+            is = new BufferedInputStream(new FileInputStream(filename));
+            readExif(is);
+            setTags(tags);
+            app1Segment = getExifSegment();
+        } finally {
+            closeSilently(is);
+            // Prevent clobbering of mData
+            mData = tempData;
+            mIndex = tempIndex;
         }
+        RewritePath path = new ExifFileRewriter(new File(filename)).rewrite(app1Segment);
+        Log.v(TAG, "Rewrote exif of " + filename + ": " + path);
+        return path;
     }
 
     /**
@@ -1104,12 +1178,14 @@ public class ExifInterface {
      * This preserves tags that are not being rewritten.
      *
      * @param filename a String containing a filepath for a jpeg file.
+     * @return the way the file was updated.
      * @throws FileNotFoundException
      * @throws IOException
      * @see #rewriteExif
      */
-    public void forceRewriteExif(String filename) throws FileNotFoundException, IOException {
-        forceRewriteExif(filename, getAllTags());
+    public RewritePath forceRewriteExif(String filename)
+            throws FileNotFoundException, IOException {
+        return forceRewriteExif(filename, getAllTags());
     }
 
     /**
@@ -1118,7 +1194,7 @@ public class ExifInterface {
      * @return a List of {@link ExifTag}s.
      */
     public List<ExifTag> getAllTags() {
-        return mData.getAllTags();
+        return getData().getAllTags();
     }
 
     /**
@@ -1131,7 +1207,7 @@ public class ExifInterface {
      * @return a List of {@link ExifTag}s.
      */
     public List<ExifTag> getTagsForTagId(short tagId) {
-        return mData.getAllTagsForTagId(tagId);
+        return getData().getAllTagsForTagId(tagId);
     }
 
     /**
@@ -1144,7 +1220,7 @@ public class ExifInterface {
      * @return a List of {@link ExifTag}s.
      */
     public List<ExifTag> getTagsForIfdId(int ifdId) {
-        return mData.getAllTagsForIfd(ifdId);
+        return getData().getAllTagsForIfd(ifdId);
     }
 
     /**
@@ -1156,6 +1232,9 @@ public class ExifInterface {
         if (!ExifTag.isValidIfd(ifdId)) {
             return null;
         }
+        if (mIndex != null) {
+            return mIndex.getTag(getTrueTagKey(tagId), ifdId);
+        }
         return mData.getTag(getTrueTagKey(tagId), ifdId);
     }
 
@@ -1559,7 +1638,7 @@ public class ExifInterface {
      *         exists.
      */
     public ExifTag setTag(ExifTag tag) {
-        return mData.addTag(tag);
+        return getData().addTag(tag);
     }
 
     /**
@@ -1582,7 +1661,7 @@ public class ExifInterface {
      * @param ifdId the IFD of the ExifTag to remove.
      */
     public void deleteTag(int tagId, int ifdId) {
-        mData.removeTag(getTrueTagKey(tagId), ifdId);
+        getData().removeTag(getTrueTagKey(tagId), ifdId);
     }
 
     /**
@@ -1731,10 +1810,10 @@ public class ExifInterface {
      * @return the thumbnail as a bitmap.
      */
     public Bitmap getThumbnailBitmap() {
-        if (mData.hasCompressedThumbnail()) {
-            byte[] thumb = mData.getCompressedThumbnail();
+        if (getData().hasCompressedThumbnail()) {
+            byte[] thumb = getData().getCompressedThumbnail();
             return BitmapFactory.decodeByteArray(thumb, 0, thumb.length);
-        } else if (mData.hasUncompressedStrip()) {
+        } else if (getData().hasUncompressedStrip()) {
             // TODO: implement uncompressed
         }
         return null;
@@ -1748,9 +1827,9 @@ public class ExifInterface {
      * @return the thumbnail as a byte array.
      */
     public byte[] getThumbnailBytes() {
-        if (mData.hasCompressedThumbnail()) {
-            return mData.getCompressedThumbnail();
-        } else if (mData.hasUncompressedStrip()) {
+        if (getData().hasCompressedThumbnail()) {
+            return getData().getCompressedThumbnail();
+        } else if (getData().hasUncompressedStrip()) {
             // TODO: implement this
         }
         return null;
@@ -1762,7 +1841,7 @@ public class ExifInterface {
      * @return the thumbnail as a byte array.
      */
     public byte[] getThumbnail() {
-        return mData.getCompressedThumbnail();
+        return getData().getCompressedThumbnail();
     }
 
     /**
@@ -1771,7 +1850,7 @@ public class ExifInterface {
      * @return true if the thumbnail is compressed.
      */
     public boolean isThumbnailCompressed() {
-        return mData.hasCompressedThumbnail();
+        return getData().hasCompressedThumbnail();
     }
 
     /**
@@ -1781,7 +1860,7 @@ public class ExifInterface {
      */
     public boolean hasThumbnail() {
         // TODO: add back in uncompressed strip
-        return mData.hasCompressedThumbnail();
+        return getData().hasCompressedThumbnail();
     }
 
     // TODO: uncompressed thumbnail setters
@@ -1794,8 +1873,8 @@ public class ExifInterface {
      * @return true if the thumbnail was set.
      */
     public boolean setCompressedThumbnail(byte[] thumb) {
-        mData.clearThumbnailAndStrips();
-        mData.setCompressedThumbnail(thumb);
+        getData().clearThumbnailAndStrips();
+        getData().setCompressedThumbnail(thumb);
         return true;
     }
 
@@ -1818,7 +1897,7 @@ public class ExifInterface {
      * Clears the compressed thumbnail if it exists.
      */
     public void removeCompressedThumbnail() {
-        mData.setCompressedThumbnail(null);
+        getData().setCompressedThumbnail(null);
     }
 
     // Convenience methods:
@@ -1828,7 +1907,7 @@ public class ExifInterface {
      * standard. Returns null if decoding failed.
      */
     public String getUserComment() {
-        return mData.getUserComment();
+        return getData().getUserComment();
     }
 
     /**
@@ -2019,6 +2098,41 @@ public class ExifInterface {
         };
     }
 
+    /**
+     * Returns the exif data, first parsing it in full if it was read lazily.
+     */
+    private ExifData getData() {
+        if (mIndex != null) {
+            ExifIndex index = mIndex;
+            mIndex = null;
+            try {
+                mData = index.toExifData();
+            } catch (IOException | ExifInvalidFormatException e) {
+                // The index was built from the same bytes, so this should not
+                // happen; keep the tags that could be indexed.
+                Log.w(TAG, "Failed to parse exif after lazy read", e);
+                mData = new ExifData(index.getByteOrder());
+            }
+        }
+        return mData;
+    }
+
+    /**
+     * Serializes the exif tags in this object into a complete APP1 segment,
+     * including its marker and length.
+     */
+    private byte[] getExifSegment() throws IOException {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        OutputStream s = getExifWriterStream(bytes);
+        // The exif header is written as soon as SOI has been seen.
+        s.write(new byte[] {
+                (byte) (JpegHeader.SOI >> 8), (byte) JpegHeader.SOI
+        });
+        s.flush();
+        byte[] jpeg = bytes.toByteArray();
+        return Arrays.copyOfRange(jpeg, 2, jpeg.length);
+    }
+
     private void doExifStreamIO(InputStream is, OutputStream os) throws IOException {
         byte[] buf = new byte[1024];
         int ret = is.read(buf, 0, 1024);
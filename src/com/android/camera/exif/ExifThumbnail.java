@@ -0,0 +1,131 @@
+/*
+ * Copyright (C) 2015 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.camera.exif;
+
+import com.android.camera.debug.Log;
+import com.google.common.io.ByteStreams;
+
+import java.io.IOException;
+import java.io.InputStream;
+
+/**
+ * The compressed thumbnail embedded in IFD1 of a JPEG's EXIF header, along
+ * with the orientation from IFD0 that applies to it.
+ * <p>
+ * {@link #read} walks the header with {@link ExifParser}, requesting nothing
+ * but IFD0 and the thumbnail, and stops as soon as the thumbnail bytes have
+ * been read. Since the header must fit in a single APP1 segment, this never
+ * reads more than {@link #MAX_HEADER_BYTES} of the JPEG, however large the
+ * image is.
+ */
+public final class ExifThumbnail {
+    private static final Log.Tag TAG = new Log.Tag("ExifThumbnail");
+
+    /**
+     * Maximum number of bytes read from the start of a JPEG: its SOI marker,
+     * room for a JFIF APP0 segment, and a full Exif APP1 segment.
+     */
+    public static final int MAX_HEADER_BYTES = 2 + 2 * (2 + 0xffff);
+
+    private static final short TAG_ORIENTATION = ExifInterface
+            .getTrueTagKey(ExifInterface.TAG_ORIENTATION);
+
+    /**
+     * Provides the tag definitions to the parser. The definitions are built
+     * here, so that concurrent reads only ever look them up.
+     */
+    private static final ExifInterface sTagDefinitions = new ExifInterface();
+    static {
+        sTagDefinitions.getTagInfo();
+    }
+
+    private final byte[] mJpeg;
+    private final short mOrientation;
+
+    private ExifThumbnail(byte[] jpeg, short orientation) {
+        mJpeg = jpeg;
+        mOrientation = orientation;
+    }
+
+    /**
+     * Reads the compressed thumbnail from the start of a JPEG stream. At most
+     * {@link #MAX_HEADER_BYTES} are consumed from the stream, which is not
+     * closed.
+     *
+     * @return The thumbnail, or null if the JPEG has no EXIF header or no
+     *         compressed thumbnail in it.
+     */
+    public static ExifThumbnail read(InputStream jpegStream) throws IOException {
+        InputStream headerStream = ByteStreams.limit(jpegStream, MAX_HEADER_BYTES);
+        try {
+            ExifParser parser = ExifParser.parse(headerStream,
+                    ExifParser.OPTION_IFD_0 | ExifParser.OPTION_THUMBNAIL, sTagDefinitions);
+            short orientation = ExifInterface.Orientation.TOP_LEFT;
+            for (int event = parser.next(); event != ExifParser.EVENT_END;
+                    event = parser.next()) {
+                if (event == ExifParser.EVENT_NEW_TAG) {
+                    ExifTag tag = parser.getTag();
+                    if (tag.getTagId() == TAG_ORIENTATION && tag.getIfd() == IfdId.TYPE_IFD_0
+                            && tag.hasValue() && tag.getComponentCount() > 0) {
+                        orientation = (short) tag.getValueAt(0);
+                    }
+                } else if (event == ExifParser.EVENT_COMPRESSED_IMAGE) {
+                    byte[] jpeg = readCompressedImage(parser);
+                    return jpeg == null ? null : new ExifThumbnail(jpeg, orientation);
+                }
+            }
+        } catch (ExifInvalidFormatException e) {
+            Log.v(TAG, "No valid EXIF header: " + e);
+        }
+        return null;
+    }
+
+    private static byte[] readCompressedImage(ExifParser parser) throws IOException {
+        int size = parser.getCompressedImageSize();
+        if (size <= 0 || size > MAX_HEADER_BYTES) {
+            Log.w(TAG, "Invalid thumbnail size: " + size);
+            return null;
+        }
+        byte[] jpeg = new byte[size];
+        int offset = 0;
+        while (offset < size) {
+            int read = parser.read(jpeg, offset, size - offset);
+            if (read < 0) {
+                Log.w(TAG, "Thumbnail truncated after " + offset + " of " + size + " bytes");
+                return null;
+            }
+            offset += read;
+        }
+        return jpeg;
+    }
+
+    /**
+     * @return The compressed thumbnail.
+     */
+    public byte[] getJpeg() {
+        return mJpeg;
+    }
+
+    /**
+     * @return The EXIF orientation of the image, one of
+     *         {@link ExifInterface.Orientation}, which applies to the
+     *         thumbnail as well.
+     */
+    public short getOrientation() {
+        return mOrientation;
+    }
+}
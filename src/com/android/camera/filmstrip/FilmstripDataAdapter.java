@@ -66,6 +66,15 @@ public interface FilmstripDataAdapter {
          */
         public void onFilmstripItemInserted(int index, FilmstripItem item);
 
+        /**
+         * Called when data items are added at the end, such as when the data
+         * is loaded in pages.
+         *
+         * @param index The ID of the first added data.
+         * @param count The number of added data.
+         */
+        public void onFilmstripItemsAppended(int index, int count);
+
         /**
          * Called when a data item is removed.
          *
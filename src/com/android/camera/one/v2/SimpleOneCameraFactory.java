@@ -31,6 +31,7 @@ import com.android.camera.async.Observable;
 import com.android.camera.async.Observables;
 import com.android.camera.async.Updatable;
 import com.android.camera.burst.BurstFacade;
+import com.android.camera.debug.DebugPropertyHelper;
 import com.android.camera.debug.Loggers;
 import com.android.camera.one.OneCamera;
 import com.android.camera.one.OneCameraCharacteristics;
@@ -194,7 +195,8 @@ public class SimpleOneCameraFactory implements OneCameraFactory {
                         mImageRotationCalculator.getSupplier());
 
                 if (GservicesHelper.isJankStatisticsEnabled(AndroidContext.instance().get()
-                      .getContentResolver())) {
+                      .getContentResolver())
+                        || DebugPropertyHelper.analyzeFramePacing()) {
                     rootBuilder.addResponseListener(
                           new FramerateJankDetector(Loggers.tagFactory(),
                                 UsageStatistics.instance()));
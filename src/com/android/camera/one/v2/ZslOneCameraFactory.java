@@ -17,13 +17,17 @@
 package com.android.camera.one.v2;
 
 import android.annotation.TargetApi;
+import android.graphics.ImageFormat;
 import android.hardware.camera2.CameraDevice;
 import android.hardware.camera2.CaptureRequest;
 import android.os.Build.VERSION_CODES;
+import android.os.Handler;
+import android.os.Looper;
 import android.util.Range;
 import android.view.Surface;
 
 import com.android.camera.FatalErrorHandler;
+import com.android.camera.app.CameraServicesImpl;
 import com.android.camera.async.HandlerFactory;
 import com.android.camera.async.Lifetime;
 import com.android.camera.async.MainThread;
@@ -35,6 +39,7 @@ import com.android.camera.burst.BurstTaker;
 import com.android.camera.burst.BurstTakerImpl;
 import com.android.camera.debug.Log.Tag;
 import com.android.camera.debug.Logger;
+import com.android.camera.debug.DebugPropertyHelper;
 import com.android.camera.debug.Loggers;
 import com.android.camera.one.OneCamera;
 import com.android.camera.one.OneCameraCharacteristics;
@@ -45,6 +50,7 @@ import com.android.camera.one.v2.camera2proxy.CameraDeviceProxy;
 import com.android.camera.one.v2.camera2proxy.CameraDeviceRequestBuilderFactory;
 import com.android.camera.one.v2.camera2proxy.ImageReaderProxy;
 import com.android.camera.one.v2.camera2proxy.TotalCaptureResultProxy;
+import com.android.camera.one.v2.autofocus.ManualAutoFocus;
 import com.android.camera.one.v2.commands.CameraCommandExecutor;
 import com.android.camera.one.v2.commands.ZslPreviewCommandFactory;
 import com.android.camera.one.v2.common.BasicCameraFactory;
@@ -59,8 +65,11 @@ import com.android.camera.one.v2.errorhandling.RepeatFailureHandlerComponent;
 import com.android.camera.one.v2.imagesaver.ImageSaver;
 import com.android.camera.one.v2.initialization.CameraStarter;
 import com.android.camera.one.v2.initialization.InitializedOneCameraFactory;
+import com.android.camera.one.v2.photo.PictureTaker;
 import com.android.camera.one.v2.photo.ZslPictureTakerFactory;
 import com.android.camera.one.v2.sharedimagereader.ZslSharedImageReaderFactory;
+import com.android.camera.one.v2.sharedimagereader.ringbuffer.AdaptiveRingBufferDepth;
+import com.android.camera.session.CaptureSession;
 import com.android.camera.stats.UsageStatistics;
 import com.android.camera.util.AndroidContext;
 import com.android.camera.util.ApiHelper;
@@ -79,6 +88,12 @@ import java.util.concurrent.Executors;
 public class ZslOneCameraFactory implements OneCameraFactory {
     private static Tag TAG = new Tag("ZslOneCamFactory");
 
+    /**
+     * The ZSL ring-buffer size while the user is shooting, which allows the
+     * best of several recent frames to be picked.
+     */
+    private static final int ACTIVE_RING_BUFFER_SIZE = 3;
+
     private final Logger mLogger;
     private final int mImageFormat;
     private final int mMaxImageCount;
@@ -106,9 +121,25 @@ public class ZslOneCameraFactory implements OneCameraFactory {
         // A value of 1 here is adequate for single-frame ZSL capture, but
         // *must* be increased to support multi-frame burst capture with
         // zero-shutter-lag.
+        // The ring-buffer only grows beyond this while the user is shooting,
+        // and only shrinks to nothing when memory is low, see
+        // AdaptiveRingBufferDepth.
         maxRingBufferSize = 1;
     }
 
+    /**
+     * @return The approximate number of bytes of a single image of the given
+     *         size and format.
+     */
+    private static long getImageSizeBytes(Size size, int imageFormat) {
+        int bitsPerPixel = ImageFormat.getBitsPerPixel(imageFormat);
+        if (bitsPerPixel <= 0) {
+            // Compressed formats, assume the worst case.
+            bitsPerPixel = 32;
+        }
+        return (long) size.getWidth() * size.getHeight() * bitsPerPixel / 8;
+    }
+
     /**
      * Slows down the requested camera frame for Nexus 5 back camera issue. This
      * hack is for the Back Camera for Nexus 5. Requesting on full YUV frames at
@@ -134,7 +165,7 @@ public class ZslOneCameraFactory implements OneCameraFactory {
             final OneCameraCharacteristics characteristics,
             CaptureSupportLevel featureConfig,
             final MainThread mainThread,
-            Size pictureSize,
+            final Size pictureSize,
             final ImageSaver.Builder imageSaverBuilder,
             final Observable<OneCamera.PhotoCaptureParameters.Flash> flashSetting,
             final Observable<Integer> exposureSetting,
@@ -177,10 +208,24 @@ public class ZslOneCameraFactory implements OneCameraFactory {
                 FrameServer ephemeralFrameServer = frameServerComponent
                         .provideEphemeralFrameServer();
 
+                // Size the ZSL ring-buffer from shutter activity and memory
+                // pressure.
+                final AdaptiveRingBufferDepth ringBufferDepth = new AdaptiveRingBufferDepth(
+                        Loggers.tagFactory(),
+                        new Handler(Looper.getMainLooper()),
+                        CameraServicesImpl.instance().getMemoryManager(),
+                        0 /* lowMemoryDepth */,
+                        maxRingBufferSize /* idleDepth */,
+                        maxRingBufferSize,
+                        Math.max(maxRingBufferSize,
+                                Math.min(ACTIVE_RING_BUFFER_SIZE, mMaxImageCount - 2)),
+                        getImageSizeBytes(pictureSize, mImageFormat));
+                cameraLifetime.add(ringBufferDepth);
+
                 // Create the shared image reader.
                 ZslSharedImageReaderFactory sharedImageReaderFactory =
                         new ZslSharedImageReaderFactory(new Lifetime(cameraLifetime),
-                                imageReader, new HandlerFactory(), maxRingBufferSize);
+                                imageReader, new HandlerFactory(), ringBufferDepth.getDepth());
 
                 CameraCommandExecutor cameraCommandExecutor = new CameraCommandExecutor(
                         Loggers.tagFactory(),
@@ -285,7 +330,8 @@ public class ZslOneCameraFactory implements OneCameraFactory {
                 }
 
                 if (GservicesHelper.isJankStatisticsEnabled(AndroidContext.instance().get()
-                        .getContentResolver())) {
+                        .getContentResolver())
+                        || DebugPropertyHelper.analyzeFramePacing()) {
                     // Don't add jank detection unless the preview is running.
                     zslAndPreviewTemplate.addResponseListener(
                           new FramerateJankDetector(Loggers.tagFactory(),
@@ -312,9 +358,26 @@ public class ZslOneCameraFactory implements OneCameraFactory {
 
                 basicCameraFactory.providePreviewUpdater().run();
 
+                // Shots and focus triggers drive the ring-buffer size.
+                final PictureTaker pictureTaker = pictureTakerFactory.providePictureTaker();
+                final ManualAutoFocus manualAutoFocus =
+                        basicCameraFactory.provideManualAutoFocus();
                 return new CameraControls(
-                        pictureTakerFactory.providePictureTaker(),
-                        basicCameraFactory.provideManualAutoFocus());
+                        new PictureTaker() {
+                            @Override
+                            public void takePicture(OneCamera.PhotoCaptureParameters params,
+                                    CaptureSession session) {
+                                ringBufferDepth.onShotTaken();
+                                pictureTaker.takePicture(params, session);
+                            }
+                        },
+                        new ManualAutoFocus() {
+                            @Override
+                            public void triggerFocusAndMeterAtPoint(float nx, float ny) {
+                                ringBufferDepth.onCaptureIntent();
+                                manualAutoFocus.triggerFocusAndMeterAtPoint(nx, ny);
+                            }
+                        });
             }
         };
 
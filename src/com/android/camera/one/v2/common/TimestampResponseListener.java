@@ -38,6 +38,11 @@ public class TimestampResponseListener extends ResponseListener {
         mTimestamps = timestamps;
     }
 
+    @Override
+    public boolean receivesPartialResults() {
+        return false;
+    }
+
     @Override
     public void onStarted(long timestamp) {
         mTimestamps.update(timestamp);
@@ -38,6 +38,11 @@ public class TotalCaptureResultResponseListener extends ResponseListener {
         mResults = results;
     }
 
+    @Override
+    public boolean receivesPartialResults() {
+        return false;
+    }
+
     @Override
     public void onCompleted(TotalCaptureResult result) {
         mResults.update(new AndroidTotalCaptureResultProxy(result));
@@ -27,6 +27,16 @@ import android.hardware.camera2.TotalCaptureResult;
  * See {@link ResponseListeners} for helper functions.
  */
 public abstract class ResponseListener {
+    /**
+     * Listeners which ignore partial results should override this to return
+     * false, so that they are skipped when dispatching each partial result.
+     *
+     * @return Whether {@link #onProgressed} should be invoked.
+     */
+    public boolean receivesPartialResults() {
+        return true;
+    }
+
     /**
      * Note that this is typically invoked on the camera thread and at high
      * frequency, so implementations must execute quickly and not make
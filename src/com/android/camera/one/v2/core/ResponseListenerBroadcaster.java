@@ -22,6 +22,7 @@ import android.hardware.camera2.TotalCaptureResult;
 
 import com.google.common.collect.ImmutableList;
 
+import java.util.Arrays;
 import java.util.Collection;
 
 /**
@@ -30,13 +31,34 @@ import java.util.Collection;
  */
 class ResponseListenerBroadcaster extends ResponseListener {
     private final ImmutableList<ResponseListener> mListeners;
+    /** The subset of mListeners which receive partial results. */
+    private final ImmutableList<ResponseListener> mPartialResultListeners;
 
     public ResponseListenerBroadcaster(ResponseListener[] listeners) {
-        mListeners = ImmutableList.copyOf(listeners);
+        this(Arrays.asList(listeners));
     }
 
     public ResponseListenerBroadcaster(Collection<ResponseListener> listeners) {
         mListeners = ImmutableList.copyOf(listeners);
+        ImmutableList.Builder<ResponseListener> partialResultListeners = ImmutableList.builder();
+        for (ResponseListener listener : mListeners) {
+            if (listener.receivesPartialResults()) {
+                partialResultListeners.add(listener);
+            }
+        }
+        mPartialResultListeners = partialResultListeners.build();
+    }
+
+    /**
+     * @return The listeners to which this dispatches, in order.
+     */
+    ImmutableList<ResponseListener> getListeners() {
+        return mListeners;
+    }
+
+    @Override
+    public boolean receivesPartialResults() {
+        return !mPartialResultListeners.isEmpty();
     }
 
     @Override
@@ -48,7 +70,7 @@ class ResponseListenerBroadcaster extends ResponseListener {
 
     @Override
     public void onProgressed(CaptureResult partialResult) {
-        for (ResponseListener listener : mListeners) {
+        for (ResponseListener listener : mPartialResultListeners) {
             listener.onProgressed(partialResult);
         }
     }
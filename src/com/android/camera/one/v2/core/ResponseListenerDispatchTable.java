@@ -0,0 +1,144 @@
+/*
+ * Copyright (C) 2015 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.camera.one.v2.core;
+
+import android.hardware.camera2.CaptureFailure;
+import android.hardware.camera2.CaptureResult;
+import android.hardware.camera2.TotalCaptureResult;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import javax.annotation.ParametersAreNonnullByDefault;
+
+/**
+ * Dispatches the callbacks for a burst of requests to the
+ * {@link ResponseListener} of each request, without allocating or hashing on
+ * the camera thread.
+ * <p>
+ * The requests of a burst are tagged with consecutive {@link Long}s, so the
+ * listeners for a tag are found by indexing into an array. Any
+ * {@link ResponseListenerBroadcaster}s are flattened into the array of
+ * listeners for their request when the table is built, and listeners which do
+ * not receive partial results are left out of the arrays used to dispatch
+ * them.
+ */
+@ParametersAreNonnullByDefault
+final class ResponseListenerDispatchTable {
+    private static final ResponseListener[] NO_LISTENERS = new ResponseListener[0];
+
+    private final long mFirstTag;
+    /** The listener of each request, as given. */
+    private final ResponseListener[] mRequestListeners;
+    /** The flattened listeners of each request. */
+    private final ResponseListener[][] mListeners;
+    /** The flattened listeners of each request which receive partial results. */
+    private final ResponseListener[][] mPartialResultListeners;
+
+    /**
+     * @param firstTag The tag of the first request of the burst. The request at
+     *            index i must be tagged with firstTag + i.
+     * @param requestListeners The listener of each request of the burst.
+     */
+    public ResponseListenerDispatchTable(long firstTag, List<ResponseListener> requestListeners) {
+        int requestCount = requestListeners.size();
+        mFirstTag = firstTag;
+        mRequestListeners = requestListeners.toArray(new ResponseListener[requestCount]);
+        mListeners = new ResponseListener[requestCount][];
+        mPartialResultListeners = new ResponseListener[requestCount][];
+        for (int i = 0; i < requestCount; i++) {
+            List<ResponseListener> listeners = new ArrayList<>();
+            flatten(mRequestListeners[i], listeners);
+            mListeners[i] = listeners.toArray(NO_LISTENERS);
+
+            List<ResponseListener> partialResultListeners = new ArrayList<>();
+            for (ResponseListener listener : listeners) {
+                if (listener.receivesPartialResults()) {
+                    partialResultListeners.add(listener);
+                }
+            }
+            mPartialResultListeners[i] = partialResultListeners.toArray(NO_LISTENERS);
+        }
+    }
+
+    private static void flatten(ResponseListener listener, List<ResponseListener> output) {
+        if (listener instanceof ResponseListenerBroadcaster) {
+            for (ResponseListener child : ((ResponseListenerBroadcaster) listener)
+                    .getListeners()) {
+                flatten(child, output);
+            }
+        } else {
+            output.add(listener);
+        }
+    }
+
+    private int getRequestIndex(Object tag) {
+        long index = (Long) tag - mFirstTag;
+        if (index < 0 || index >= mRequestListeners.length) {
+            throw new IllegalArgumentException("Unknown request tag: " + tag);
+        }
+        return (int) index;
+    }
+
+    public void dispatchStarted(Object tag, long timestamp) {
+        ResponseListener[] listeners = mListeners[getRequestIndex(tag)];
+        for (int i = 0; i < listeners.length; i++) {
+            listeners[i].onStarted(timestamp);
+        }
+    }
+
+    public void dispatchProgressed(Object tag, CaptureResult partialResult) {
+        ResponseListener[] listeners = mPartialResultListeners[getRequestIndex(tag)];
+        for (int i = 0; i < listeners.length; i++) {
+            listeners[i].onProgressed(partialResult);
+        }
+    }
+
+    public void dispatchCompleted(Object tag, TotalCaptureResult result) {
+        ResponseListener[] listeners = mListeners[getRequestIndex(tag)];
+        for (int i = 0; i < listeners.length; i++) {
+            listeners[i].onCompleted(result);
+        }
+    }
+
+    public void dispatchFailed(Object tag, CaptureFailure failure) {
+        ResponseListener[] listeners = mListeners[getRequestIndex(tag)];
+        for (int i = 0; i < listeners.length; i++) {
+            listeners[i].onFailed(failure);
+        }
+    }
+
+    /**
+     * Sequence events are not request-specific, so they go to the listener of
+     * every request. As with {@link ResponseListenerBroadcaster}, they are
+     * not forwarded to the listeners combined by a broadcaster.
+     */
+    public void dispatchSequenceAborted(int sequenceId) {
+        for (int i = 0; i < mRequestListeners.length; i++) {
+            mRequestListeners[i].onSequenceAborted(sequenceId);
+        }
+    }
+
+    /**
+     * See {@link #dispatchSequenceAborted}.
+     */
+    public void dispatchSequenceCompleted(int sequenceId, long frameNumber) {
+        for (int i = 0; i < mRequestListeners.length; i++) {
+            mRequestListeners[i].onSequenceCompleted(sequenceId, frameNumber);
+        }
+    }
+}
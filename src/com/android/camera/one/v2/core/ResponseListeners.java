@@ -67,6 +67,11 @@ public final class ResponseListeners {
     public static ResponseListener forFinalMetadata(
             final Updatable<TotalCaptureResultProxy> callback) {
         return new ResponseListenerBase<TotalCaptureResultProxy>(callback) {
+            @Override
+            public boolean receivesPartialResults() {
+                return false;
+            }
+
             @Override
             public void onCompleted(TotalCaptureResult result) {
                 callback.update(new AndroidTotalCaptureResultProxy(result));
@@ -100,6 +105,11 @@ public final class ResponseListeners {
      */
     public static ResponseListener forTimestamps(final Updatable<Long> callback) {
         return new ResponseListenerBase<Long>(callback) {
+            @Override
+            public boolean receivesPartialResults() {
+                return false;
+            }
+
             @Override
             public void onStarted(long timestamp) {
                 callback.update(timestamp);
@@ -113,6 +123,11 @@ public final class ResponseListeners {
      */
     public static ResponseListener forFrameExposure(final Updatable<Void> callback) {
         return new ResponseListenerBase<Void>(callback) {
+            @Override
+            public boolean receivesPartialResults() {
+                return false;
+            }
+
             @Override
             @SuppressWarnings("ConstantConditions")
             public void onStarted(long timestamp) {
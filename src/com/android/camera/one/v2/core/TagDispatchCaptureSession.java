@@ -30,9 +30,7 @@ import com.android.camera.one.v2.camera2proxy.CaptureRequestBuilderProxy;
 import com.google.common.annotations.VisibleForTesting;
 
 import java.util.ArrayList;
-import java.util.HashMap;
 import java.util.List;
-import java.util.Map;
 
 /**
  * Like {@link android.hardware.camera2.CameraCaptureSession}, but takes
@@ -43,57 +41,49 @@ import java.util.Map;
 @VisibleForTesting
 public class TagDispatchCaptureSession implements FrameServer.Session {
     private static class CaptureCallback implements CameraCaptureSessionProxy.CaptureCallback {
-        private final Map<Object, ResponseListener> mListeners;
+        private final ResponseListenerDispatchTable mListeners;
 
         /**
-         * @param listeners A map from tag objects to the listener to be invoked
-         *            for events related to the request with that tag.
+         * @param listeners The table of listeners to be invoked for events
+         *            related to the request with each tag.
          */
-        public CaptureCallback(Map<Object, ResponseListener> listeners) {
-            mListeners = new HashMap<>(listeners);
+        public CaptureCallback(ResponseListenerDispatchTable listeners) {
+            mListeners = listeners;
         }
 
         @Override
         public void onCaptureStarted(CameraCaptureSessionProxy session, CaptureRequest request,
                 long timestamp, long frameNumber) {
-            Object tag = request.getTag();
-            mListeners.get(tag).onStarted(timestamp);
+            mListeners.dispatchStarted(request.getTag(), timestamp);
         }
 
         @Override
         public void onCaptureProgressed(CameraCaptureSessionProxy session, CaptureRequest request,
                 CaptureResult partialResult) {
-            Object tag = request.getTag();
-            mListeners.get(tag).onProgressed(partialResult);
+            mListeners.dispatchProgressed(request.getTag(), partialResult);
         }
 
         @Override
         public void onCaptureCompleted(CameraCaptureSessionProxy session, CaptureRequest request,
                 TotalCaptureResult result) {
-            Object tag = request.getTag();
-            mListeners.get(tag).onCompleted(result);
+            mListeners.dispatchCompleted(request.getTag(), result);
         }
 
         @Override
         public void onCaptureFailed(CameraCaptureSessionProxy session, CaptureRequest request,
                 CaptureFailure failure) {
-            Object tag = request.getTag();
-            mListeners.get(tag).onFailed(failure);
+            mListeners.dispatchFailed(request.getTag(), failure);
         }
 
         @Override
         public void onCaptureSequenceAborted(CameraCaptureSessionProxy session, int sequenceId) {
-            for (ResponseListener listener : mListeners.values()) {
-                listener.onSequenceAborted(sequenceId);
-            }
+            mListeners.dispatchSequenceAborted(sequenceId);
         }
 
         @Override
         public void onCaptureSequenceCompleted(CameraCaptureSessionProxy session, int sequenceId,
                 long frameNumber) {
-            for (ResponseListener listener : mListeners.values()) {
-                listener.onSequenceCompleted(sequenceId, frameNumber);
-            }
+            mListeners.dispatchSequenceCompleted(sequenceId, frameNumber);
         }
     }
 
@@ -135,25 +125,30 @@ public class TagDispatchCaptureSession implements FrameServer.Session {
             CameraAccessException, InterruptedException, CameraCaptureSessionClosedException,
             ResourceAcquisitionFailedException {
         try {
-            Map<Object, ResponseListener> tagListenerMap = new HashMap<Object, ResponseListener>();
+            // Tags are consecutive within the burst, which the dispatch table
+            // relies on to find the listeners for each tag.
+            long firstTag = mTagCounter;
+            List<ResponseListener> listeners = new ArrayList<>(burstRequests.size());
             List<CaptureRequest> captureRequests = new ArrayList<>(burstRequests.size());
 
             for (Request request : burstRequests) {
                 Object tag = generateTag();
 
-                tagListenerMap.put(tag, request.getResponseListener());
+                listeners.add(request.getResponseListener());
 
                 CaptureRequestBuilderProxy builder = request.allocateCaptureRequest();
                 builder.setTag(tag);
                 captureRequests.add(builder.build());
             }
 
+            ResponseListenerDispatchTable dispatchTable = new ResponseListenerDispatchTable(
+                    firstTag, listeners);
             if (requestType == FrameServer.RequestType.REPEATING) {
                 mCaptureSession.setRepeatingBurst(captureRequests, new
-                        CaptureCallback(tagListenerMap), mCameraHandler);
+                        CaptureCallback(dispatchTable), mCameraHandler);
             } else {
                 mCaptureSession.captureBurst(captureRequests, new
-                        CaptureCallback(tagListenerMap), mCameraHandler);
+                        CaptureCallback(dispatchTable), mCameraHandler);
             }
         } catch (Exception e) {
             for (Request r : burstRequests) {
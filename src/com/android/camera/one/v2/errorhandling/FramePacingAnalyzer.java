@@ -0,0 +1,228 @@
+/*
+ * Copyright (C) 2015 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.camera.one.v2.errorhandling;
+
+import javax.annotation.ParametersAreNonnullByDefault;
+import javax.annotation.concurrent.GuardedBy;
+import javax.annotation.concurrent.ThreadSafe;
+
+/**
+ * Tracks the pacing of the frames of a preview session.
+ * <p>
+ * The intervals between consecutive sensor timestamps are kept in a rolling
+ * histogram, from which the typical frame interval and the interval
+ * percentiles are derived. Every frame is then classified:
+ * <ul>
+ * <li>If its sensor interval is much longer than the typical interval, the
+ * sensor did not produce the frames in between, so they are counted as
+ * dropped by the sensor.</li>
+ * <li>If it reached the app much later after exposure than the quickest frame
+ * of the session, it was delayed on its way to the app, e.g. by a busy camera
+ * thread. Since the sensor and arrival clocks may have different bases, only
+ * the difference from the quickest frame is used.</li>
+ * </ul>
+ */
+@ThreadSafe
+@ParametersAreNonnullByDefault
+public final class FramePacingAnalyzer {
+    /** Number of recent intervals which make up the histogram. */
+    private static final int WINDOW_SIZE = 600;
+    /** Width of each histogram bucket. */
+    private static final long BUCKET_WIDTH_NS = 250000;
+    /** Number of histogram buckets. The last one counts all longer intervals. */
+    private static final int NUM_BUCKETS = 400;
+    /** Number of intervals needed before the typical interval is trusted. */
+    private static final int MIN_INTERVALS_FOR_ESTIMATE = 30;
+    /** Intervals this many times the typical one mean the sensor dropped frames. */
+    private static final double SENSOR_DROP_FACTOR = 1.5;
+
+    /** The pacing statistics of a session at some point in time. */
+    public static final class Snapshot {
+        public final long frameCount;
+        public final double p50IntervalMs;
+        public final double p95IntervalMs;
+        public final double p99IntervalMs;
+        /** The number of frames the sensor skipped. */
+        public final long sensorDroppedFrames;
+        /** The number of gaps in which the sensor skipped frames. */
+        public final long sensorDropEvents;
+        /** The number of frames which arrived at least one frame late. */
+        public final long lateDeliveries;
+        public final double maxDeliveryDelayMs;
+
+        private Snapshot(long frameCount, double p50IntervalMs, double p95IntervalMs,
+                double p99IntervalMs, long sensorDroppedFrames, long sensorDropEvents,
+                long lateDeliveries, double maxDeliveryDelayMs) {
+            this.frameCount = frameCount;
+            this.p50IntervalMs = p50IntervalMs;
+            this.p95IntervalMs = p95IntervalMs;
+            this.p99IntervalMs = p99IntervalMs;
+            this.sensorDroppedFrames = sensorDroppedFrames;
+            this.sensorDropEvents = sensorDropEvents;
+            this.lateDeliveries = lateDeliveries;
+            this.maxDeliveryDelayMs = maxDeliveryDelayMs;
+        }
+
+        @Override
+        public String toString() {
+            return String.format("frames = %d, interval p50/p95/p99 = %.2f/%.2f/%.2fms, "
+                    + "sensor drops = %d frames in %d gaps, late deliveries = %d "
+                    + "(max delay %.2fms)", frameCount, p50IntervalMs, p95IntervalMs,
+                    p99IntervalMs, sensorDroppedFrames, sensorDropEvents, lateDeliveries,
+                    maxDeliveryDelayMs);
+        }
+    }
+
+    /** The histogram bucket of each interval in the window, oldest first. */
+    @GuardedBy("this")
+    private final short[] mWindow = new short[WINDOW_SIZE];
+    @GuardedBy("this")
+    private final int[] mHistogram = new int[NUM_BUCKETS];
+    @GuardedBy("this")
+    private int mWindowStart;
+    @GuardedBy("this")
+    private int mWindowCount;
+
+    @GuardedBy("this")
+    private long mFrameCount;
+    @GuardedBy("this")
+    private long mLastSensorTimestampNs;
+    @GuardedBy("this")
+    private long mMinLatencyNs;
+    @GuardedBy("this")
+    private long mSensorDroppedFrames;
+    @GuardedBy("this")
+    private long mSensorDropEvents;
+    @GuardedBy("this")
+    private long mLateDeliveries;
+    @GuardedBy("this")
+    private long mMaxDeliveryDelayNs;
+
+    public FramePacingAnalyzer() {
+        reset();
+    }
+
+    /**
+     * Starts a new session, discarding all statistics.
+     */
+    public synchronized void reset() {
+        mWindowStart = 0;
+        mWindowCount = 0;
+        for (int i = 0; i < NUM_BUCKETS; i++) {
+            mHistogram[i] = 0;
+        }
+        mFrameCount = 0;
+        mLastSensorTimestampNs = 0;
+        mMinLatencyNs = Long.MAX_VALUE;
+        mSensorDroppedFrames = 0;
+        mSensorDropEvents = 0;
+        mLateDeliveries = 0;
+        mMaxDeliveryDelayNs = 0;
+    }
+
+    /**
+     * Records a frame. Frames must be recorded in order.
+     *
+     * @param sensorTimestampNs The start of exposure of the frame, as given by
+     *            {@link android.hardware.camera2.CaptureResult#SENSOR_TIMESTAMP}.
+     * @param arrivalTimeNs The time at which the frame's result reached the
+     *            app, from any monotonic clock.
+     */
+    public synchronized void onFrame(long sensorTimestampNs, long arrivalTimeNs) {
+        mFrameCount++;
+        long latencyNs = arrivalTimeNs - sensorTimestampNs;
+        mMinLatencyNs = Math.min(mMinLatencyNs, latencyNs);
+        if (mFrameCount == 1) {
+            mLastSensorTimestampNs = sensorTimestampNs;
+            return;
+        }
+
+        long intervalNs = sensorTimestampNs - mLastSensorTimestampNs;
+        mLastSensorTimestampNs = sensorTimestampNs;
+        if (intervalNs <= 0) {
+            // Not in order, so there is nothing sensible to record.
+            return;
+        }
+
+        if (mWindowCount >= MIN_INTERVALS_FOR_ESTIMATE) {
+            long expectedIntervalNs = getPercentileNs(0.5);
+            if (intervalNs >= expectedIntervalNs * SENSOR_DROP_FACTOR) {
+                mSensorDropEvents++;
+                mSensorDroppedFrames += Math.max(1,
+                        Math.round((double) intervalNs / expectedIntervalNs) - 1);
+            }
+            long deliveryDelayNs = latencyNs - mMinLatencyNs;
+            if (deliveryDelayNs >= expectedIntervalNs) {
+                mLateDeliveries++;
+            }
+            mMaxDeliveryDelayNs = Math.max(mMaxDeliveryDelayNs, deliveryDelayNs);
+        }
+
+        addInterval(intervalNs);
+    }
+
+    /**
+     * @return The statistics of the current session.
+     */
+    public synchronized Snapshot getSnapshot() {
+        return new Snapshot(mFrameCount,
+                getPercentileNs(0.50) / 1000000.0,
+                getPercentileNs(0.95) / 1000000.0,
+                getPercentileNs(0.99) / 1000000.0,
+                mSensorDroppedFrames, mSensorDropEvents, mLateDeliveries,
+                mMaxDeliveryDelayNs / 1000000.0);
+    }
+
+    @Override
+    public String toString() {
+        return getSnapshot().toString();
+    }
+
+    @GuardedBy("this")
+    private void addInterval(long intervalNs) {
+        int bucket = (int) Math.min(intervalNs / BUCKET_WIDTH_NS, NUM_BUCKETS - 1);
+        if (mWindowCount == WINDOW_SIZE) {
+            mHistogram[mWindow[mWindowStart]]--;
+            mWindow[mWindowStart] = (short) bucket;
+            mWindowStart = (mWindowStart + 1) % WINDOW_SIZE;
+        } else {
+            mWindow[(mWindowStart + mWindowCount) % WINDOW_SIZE] = (short) bucket;
+            mWindowCount++;
+        }
+        mHistogram[bucket]++;
+    }
+
+    /**
+     * @return The upper bound of the bucket holding the given percentile of
+     *         the intervals in the window, or 0 if the window is empty.
+     */
+    @GuardedBy("this")
+    private long getPercentileNs(double percentile) {
+        if (mWindowCount == 0) {
+            return 0;
+        }
+        int rank = (int) Math.ceil(percentile * mWindowCount);
+        int count = 0;
+        for (int bucket = 0; bucket < NUM_BUCKETS; bucket++) {
+            count += mHistogram[bucket];
+            if (count >= rank) {
+                return (bucket + 1) * BUCKET_WIDTH_NS;
+            }
+        }
+        return NUM_BUCKETS * BUCKET_WIDTH_NS;
+    }
+}
@@ -20,29 +20,43 @@ import android.annotation.TargetApi;
 import android.hardware.camera2.CaptureResult;
 import android.hardware.camera2.TotalCaptureResult;
 import android.os.Build.VERSION_CODES;
+import android.os.SystemClock;
 
 import com.android.camera.debug.Log.Tag;
 import com.android.camera.debug.Logger;
 import com.android.camera.one.v2.core.ResponseListener;
 import com.android.camera.stats.UsageStatistics;
 
+import javax.annotation.Nullable;
 import javax.annotation.ParametersAreNonnullByDefault;
 
 /**
  * Detect jank in the preview by detecting large percentage increases in the time
  * delta between the sensor timestamps retrieved from the camera.
+ * <p>
+ * Every frame is also passed to a {@link FramePacingAnalyzer} for the session,
+ * which is periodically logged and can be read by stress tests through
+ * {@link #getLatestSession}.
  */
 @ParametersAreNonnullByDefault
 @TargetApi(VERSION_CODES.LOLLIPOP)
 public final class FramerateJankDetector extends ResponseListener {
     private static final double FRACTIONAL_CHANGE_STATS_THRESHOLD = .5;
     private static final double FRACTIONAL_CHANGE_LOG_THRESHOLD = 1.5;
+    /** Number of frames between logs of the frame pacing. */
+    private static final int PACING_LOG_INTERVAL_FRAMES = 900;
+
+    /** The analyzer of the most recently started preview session. */
+    @Nullable
+    private static volatile FramePacingAnalyzer sLatestSession = null;
 
     private final Logger mLog;
     private final UsageStatistics mUsageStatistics;
+    private final FramePacingAnalyzer mFramePacing;
 
     private long mLastFrameTimestamp = -1;
     private double mLastDeltaMillis = 0.0;
+    private int mFramesSincePacingLog = 0;
 
     /**
      * @param logFactory the logger to use when over the logs threshold.
@@ -53,11 +67,42 @@ public final class FramerateJankDetector extends ResponseListener {
         mLog = logFactory.create(new Tag("FrameJank"));
         mUsageStatistics = usageStatistics;
         mUsageStatistics.jankDetectionEnabled();
+        mFramePacing = new FramePacingAnalyzer();
+        sLatestSession = mFramePacing;
+    }
+
+    /**
+     * @return The frame pacing of the most recently started preview session,
+     *         or null if jank detection has not been enabled.
+     */
+    @Nullable
+    public static FramePacingAnalyzer getLatestSession() {
+        return sLatestSession;
+    }
+
+    /**
+     * @return The frame pacing of this preview session.
+     */
+    public FramePacingAnalyzer getFramePacing() {
+        return mFramePacing;
+    }
+
+    @Override
+    public boolean receivesPartialResults() {
+        return false;
     }
 
     @Override
     public void onCompleted(TotalCaptureResult result) {
+        long arrivalTime = SystemClock.elapsedRealtimeNanos();
         long timestamp = result.get(CaptureResult.SENSOR_TIMESTAMP);
+        mFramePacing.onFrame(timestamp, arrivalTime);
+        mFramesSincePacingLog++;
+        if (mFramesSincePacingLog >= PACING_LOG_INTERVAL_FRAMES) {
+            mFramesSincePacingLog = 0;
+            mLog.v("Frame pacing: " + mFramePacing);
+        }
+
         if (mLastFrameTimestamp >= 0) {
             double deltaMillis = (timestamp - mLastFrameTimestamp) / 1000000.0;
 
@@ -120,21 +120,22 @@ public class JpegImageBackendImageSaver implements ImageSaver.Builder {
                 TaskImageContainer.CompressedPayload payload) {
             if (task.destination == TaskImageContainer.TaskInfo.Destination.FINAL_IMAGE) {
                 // Just start the thumbnail now, since there's no earlier event.
+                final byte[] jpegData = payload.getRetainableData();
 
                 // Downsample and convert the JPEG payload to a reasonably-sized
                 // Bitmap
                 BitmapFactory.Options options = new BitmapFactory.Options();
                 options.inSampleSize = JPEG_DOWNSAMPLE_FOR_FAST_INDICATOR;
-                final Bitmap bitmap = BitmapFactory.decodeByteArray(payload.data, 0,
-                        payload.data.length, options);
+                final Bitmap bitmap = BitmapFactory.decodeByteArray(jpegData, 0,
+                        jpegData.length, options);
 
                 // If the rotation is implemented as an EXIF flag, we need to
                 // pass this information onto the UI call, since the rotation is
                 // NOT applied to the bitmap directly.
-                int rotation = Exif.getOrientation(payload.data);
+                int rotation = Exif.getOrientation(jpegData);
                 mSession.updateCaptureIndicatorThumbnail(bitmap, rotation);
                 // Send image to remote devices
-                mPictureSaverCallback.onRemoteThumbnailAvailable(payload.data);
+                mPictureSaverCallback.onRemoteThumbnailAvailable(jpegData);
             }
 
         }
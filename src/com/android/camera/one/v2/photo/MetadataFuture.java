@@ -36,6 +36,11 @@ public final class MetadataFuture extends ResponseListener {
         mMetadata = SettableFuture.create();
     }
 
+    @Override
+    public boolean receivesPartialResults() {
+        return false;
+    }
+
     @Override
     public void onCompleted(TotalCaptureResult result) {
         super.onCompleted(result);
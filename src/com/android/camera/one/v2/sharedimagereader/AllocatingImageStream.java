@@ -31,6 +31,10 @@ import java.util.concurrent.atomic.AtomicBoolean;
 /**
  * An ImageQueueCaptureStream with a fixed-capacity which can reserve space
  * ahead of time via {@link #allocate}.
+ * <p>
+ * These streams receive the images of captures, so none may be dropped. The
+ * image distributor queues up to the capacity of the stream for it, which is
+ * as many images as it can hold, so that it rarely has to wait on it.
  */
 class AllocatingImageStream extends ImageStreamImpl {
     private final int mCapacity;
@@ -56,7 +60,8 @@ class AllocatingImageStream extends ImageStreamImpl {
             BufferQueue<ImageProxy> imageStream,
             BufferQueueController<ImageProxy> imageStreamController,
             ImageDistributor imageDistributor, Surface surface) {
-        super(imageStream, imageStreamController, imageDistributor, surface);
+        super(imageStream, imageStreamController, imageDistributor, surface,
+                ImageDistributor.DeliveryPolicy.BLOCK, Math.max(1, capacity));
         mCapacity = capacity;
         mTicketPool = ticketPool;
         mAllocated = new AtomicBoolean(false);
@@ -37,14 +37,25 @@ class ImageStreamImpl extends ForwardingBufferQueue<ImageProxy> implements
     private final BufferQueueController<ImageProxy> mImageStreamController;
     private final Surface mSurface;
     private final Lifetime mLifetime;
+    private final ImageDistributor.DeliveryPolicy mDeliveryPolicy;
+    private final int mDeliveryQueueCapacity;
 
+    /**
+     * @param deliveryPolicy What the image distributor does with new images
+     *            while this stream falls behind.
+     * @param deliveryQueueCapacity The number of images the image distributor
+     *            queues for this stream before applying the policy.
+     */
     public ImageStreamImpl(BufferQueue<ImageProxy> imageStream,
             BufferQueueController<ImageProxy> imageStreamController,
-            ImageDistributor imageDistributor, Surface surface) {
+            ImageDistributor imageDistributor, Surface surface,
+            ImageDistributor.DeliveryPolicy deliveryPolicy, int deliveryQueueCapacity) {
         super(imageStream);
         mSurface = surface;
         mImageDistributor = imageDistributor;
         mImageStreamController = imageStreamController;
+        mDeliveryPolicy = deliveryPolicy;
+        mDeliveryQueueCapacity = deliveryQueueCapacity;
         mLifetime = new Lifetime();
         mLifetime.add(imageStream);
         mLifetime.add(mImageStreamController);
@@ -54,7 +65,8 @@ class ImageStreamImpl extends ForwardingBufferQueue<ImageProxy> implements
     public Surface bind(BufferQueue<Long> timestamps) throws InterruptedException,
             ResourceAcquisitionFailedException {
         mLifetime.add(timestamps);
-        mImageDistributor.addRoute(timestamps, mImageStreamController);
+        mImageDistributor.addRoute(timestamps, mImageStreamController, mDeliveryPolicy,
+                mDeliveryQueueCapacity);
         return mSurface;
     }
 
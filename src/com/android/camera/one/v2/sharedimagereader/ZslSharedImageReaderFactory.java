@@ -42,6 +42,13 @@ import com.android.camera.one.v2.sharedimagereader.ticketpool.TicketPool;
  * from the {@link ManagedImageReader}.
  */
 public class ZslSharedImageReaderFactory {
+    /**
+     * The number of images queued for the ZSL ring-buffer while it is busy.
+     * Only the newest images are useful for a ZSL capture, so older ones are
+     * dropped rather than holding back the delivery of capture images.
+     */
+    private static final int ZSL_DELIVERY_QUEUE_CAPACITY = 2;
+
     private final ManagedImageReader mSharedImageReader;
     private final ImageStream mZslCaptureStream;
     private final MetadataPool mMetadataPool;
@@ -64,6 +71,17 @@ public class ZslSharedImageReaderFactory {
      */
     public ZslSharedImageReaderFactory(Lifetime lifetime, ImageReaderProxy imageReader,
             HandlerFactory handlerFactory, int maxRingBufferSize) {
+        this(lifetime, imageReader, handlerFactory, Observables.of(maxRingBufferSize));
+    }
+
+    /**
+     * Like {@link #ZslSharedImageReaderFactory(Lifetime, ImageReaderProxy,
+     * HandlerFactory, int)}, but with a ring-buffer size which may change over
+     * time. When it decreases, the oldest images in the ring-buffer are
+     * released. Images already taken out of the ring-buffer are not affected.
+     */
+    public ZslSharedImageReaderFactory(Lifetime lifetime, ImageReaderProxy imageReader,
+            HandlerFactory handlerFactory, Observable<Integer> maxRingBufferSize) {
         ImageDistributorFactory imageDistributorFactory = new ImageDistributorFactory(lifetime,
                 imageReader, handlerFactory);
         ImageDistributor imageDistributor = imageDistributorFactory.provideImageDistributor();
@@ -76,7 +94,7 @@ public class ZslSharedImageReaderFactory {
         TicketPool rootTicketPool = new FiniteTicketPool(imageReader.getMaxImages() - 2);
 
         DynamicRingBufferFactory ringBufferFactory = new DynamicRingBufferFactory(
-                new Lifetime(lifetime), rootTicketPool, Observables.of(maxRingBufferSize));
+                new Lifetime(lifetime), rootTicketPool, maxRingBufferSize);
 
         MetadataPoolFactory metadataPoolFactory = new MetadataPoolFactory(
                 ringBufferFactory.provideRingBufferInput());
@@ -84,7 +102,8 @@ public class ZslSharedImageReaderFactory {
         mZslCaptureStream = new ImageStreamImpl(
                 ringBufferFactory.provideRingBufferOutput(),
                 metadataPoolFactory.provideImageQueue(),
-                imageDistributor, imageReader.getSurface());
+                imageDistributor, imageReader.getSurface(),
+                ImageDistributor.DeliveryPolicy.DROP_OLDEST, ZSL_DELIVERY_QUEUE_CAPACITY);
 
         mMetadataPool = metadataPoolFactory.provideMetadataPool();
 
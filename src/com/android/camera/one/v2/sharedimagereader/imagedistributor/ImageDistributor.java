@@ -20,10 +20,59 @@ import com.android.camera.async.BufferQueue;
 import com.android.camera.async.BufferQueueController;
 import com.android.camera.one.v2.camera2proxy.ImageProxy;
 
+import java.util.List;
+
 import javax.annotation.ParametersAreNonnullByDefault;
 
 @ParametersAreNonnullByDefault
 public interface ImageDistributor {
+    /**
+     * What to do with a new image for a route whose queue of images waiting
+     * to be delivered is full.
+     */
+    public static enum DeliveryPolicy {
+        /** Close the oldest waiting image to make room for the new one. */
+        DROP_OLDEST,
+        /** Close the new image. */
+        DROP_NEWEST,
+        /**
+         * Wait for room in the queue, which holds back the delivery of later
+         * images to all routes.
+         */
+        BLOCK,
+    }
+
+    /**
+     * Delivery statistics of a single route.
+     */
+    public static final class RouteMetrics {
+        public final DeliveryPolicy policy;
+        /** The number of images handed to the output stream. */
+        public final long deliveredCount;
+        /** The number of images closed because the queue was full. */
+        public final long droppedCount;
+        /** The mean time from an image's arrival to its delivery. */
+        public final long meanLatencyNs;
+        /** The longest time from an image's arrival to its delivery. */
+        public final long maxLatencyNs;
+
+        public RouteMetrics(DeliveryPolicy policy, long deliveredCount, long droppedCount,
+                long meanLatencyNs, long maxLatencyNs) {
+            this.policy = policy;
+            this.deliveredCount = deliveredCount;
+            this.droppedCount = droppedCount;
+            this.meanLatencyNs = meanLatencyNs;
+            this.maxLatencyNs = maxLatencyNs;
+        }
+
+        @Override
+        public String toString() {
+            return policy + " delivered = " + deliveredCount + ", dropped = " + droppedCount
+                    + ", latency mean/max = " + meanLatencyNs / 1000 + "/"
+                    + maxLatencyNs / 1000 + "us";
+        }
+    }
+
     /**
      * Begins routing new images with timestamps matching those found in
      * inputTimestampQueue to outputStream.
@@ -33,6 +82,9 @@ public interface ImageDistributor {
      * <p>
      * If multiple routes request the same image, they will both receive a
      * reference-counted "copy".
+     * <p>
+     * No image is dropped: images are delivered with the
+     * {@link DeliveryPolicy#BLOCK} policy and a small queue.
      *
      * @param inputTimestampQueue A queue containing timestamps of all images to
      *            be routed to outputStream.
@@ -40,4 +92,27 @@ public interface ImageDistributor {
      */
     void addRoute(BufferQueue<Long> inputTimestampQueue,
             BufferQueueController<ImageProxy> outputStream);
+
+    /**
+     * Like {@link #addRoute(BufferQueue, BufferQueueController)}, but with an
+     * explicit policy for when outputStream falls behind. Images are handed
+     * to each route's outputStream on its own thread, so a slow route does
+     * not delay the others unless its policy is {@link DeliveryPolicy#BLOCK}.
+     *
+     * @param inputTimestampQueue A queue containing timestamps of all images to
+     *            be routed to outputStream.
+     * @param outputStream The output queue in which to add images.
+     * @param policy What to do with new images while queueCapacity images
+     *            are waiting to be added to outputStream.
+     * @param queueCapacity The maximum number of images waiting to be added to
+     *            outputStream.
+     */
+    void addRoute(BufferQueue<Long> inputTimestampQueue,
+            BufferQueueController<ImageProxy> outputStream, DeliveryPolicy policy,
+            int queueCapacity);
+
+    /**
+     * @return The delivery statistics of all current routes.
+     */
+    List<RouteMetrics> getRouteMetrics();
 }
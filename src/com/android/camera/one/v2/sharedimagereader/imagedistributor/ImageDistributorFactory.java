@@ -21,10 +21,16 @@ import android.os.Handler;
 import com.android.camera.async.ConcurrentBufferQueue;
 import com.android.camera.async.HandlerFactory;
 import com.android.camera.async.Lifetime;
+import com.android.camera.async.SafeCloseable;
 import com.android.camera.async.Updatable;
 import com.android.camera.debug.Loggers;
 import com.android.camera.one.v2.camera2proxy.ImageReaderProxy;
 
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicInteger;
+
 public class ImageDistributorFactory {
     private final ImageDistributorImpl mImageDistributor;
     private final Updatable<Long> mTimestampStream;
@@ -43,7 +49,29 @@ public class ImageDistributorFactory {
         ConcurrentBufferQueue<Long> globalTimestampStream = new ConcurrentBufferQueue<>();
         mTimestampStream = globalTimestampStream;
         lifetime.add(globalTimestampStream);
-        mImageDistributor = new ImageDistributorImpl(Loggers.tagFactory(), globalTimestampStream);
+
+        // Each route gets its own delivery thread while it has images queued,
+        // so that a slow consumer cannot hold up images for the others.
+        final ExecutorService deliveryExecutor = Executors.newCachedThreadPool(
+                new ThreadFactory() {
+                    private final AtomicInteger mThreadCount = new AtomicInteger(0);
+
+                    @Override
+                    public Thread newThread(Runnable runnable) {
+                        Thread thread = new Thread(runnable, "ImageDistributorDelivery-"
+                                + mThreadCount.getAndIncrement());
+                        thread.setPriority(Thread.MAX_PRIORITY);
+                        return thread;
+                    }
+                });
+        lifetime.add(new SafeCloseable() {
+            @Override
+            public void close() {
+                deliveryExecutor.shutdown();
+            }
+        });
+        mImageDistributor = new ImageDistributorImpl(Loggers.tagFactory(), globalTimestampStream,
+                deliveryExecutor);
 
         // This imageReaderHandler will be created with a very very high thread
         // priority because missing any input event potentially stalls the
@@ -21,11 +21,15 @@ import com.android.camera.async.BufferQueueController;
 import com.android.camera.debug.Log;
 import com.android.camera.debug.Logger;
 import com.android.camera.one.v2.camera2proxy.ImageProxy;
+import com.google.common.base.Preconditions;
 
+import java.util.ArrayDeque;
 import java.util.ArrayList;
 import java.util.HashSet;
 import java.util.List;
 import java.util.Set;
+import java.util.concurrent.Executor;
+import java.util.concurrent.RejectedExecutionException;
 
 import javax.annotation.ParametersAreNonnullByDefault;
 import javax.annotation.concurrent.GuardedBy;
@@ -33,21 +37,168 @@ import javax.annotation.concurrent.GuardedBy;
 /**
  * Distributes incoming images to output {@link BufferQueueController}s
  * according to their timestamp.
+ * <p>
+ * Images are matched to routes on the thread calling
+ * {@link #distributeImage}, and then queued for each route. Every route hands
+ * its images to its output stream in order, on the delivery executor, so
+ * that the routes are served concurrently and a slow output stream only
+ * delays its own images. When a route's queue is full, its
+ * {@link DeliveryPolicy} decides which image to drop, or whether to wait.
  */
 @ParametersAreNonnullByDefault
 class ImageDistributorImpl implements ImageDistributor {
+    /** Queue capacity of routes added without an explicit policy. */
+    private static final int DEFAULT_QUEUE_CAPACITY = 2;
+
+    /** An image waiting to be delivered, and when it arrived. */
+    private static class PendingImage {
+        public final ImageProxy image;
+        public final long arrivalTimeNs;
+
+        private PendingImage(ImageProxy image, long arrivalTimeNs) {
+            this.image = image;
+            this.arrivalTimeNs = arrivalTimeNs;
+        }
+    }
+
     /**
      * An input timestamp stream and an output image stream to receive images
-     * with timestamps which match those found in the input stream.
+     * with timestamps which match those found in the input stream, along with
+     * the queue of images waiting to be added to the output stream.
      */
-    private static class DispatchRecord {
+    private class DispatchRecord implements Runnable {
         public final BufferQueue<Long> timestampBufferQueue;
         public final BufferQueueController<ImageProxy> imageStream;
+        private final DeliveryPolicy mPolicy;
+        private final int mQueueCapacity;
+
+        @GuardedBy("this")
+        private final ArrayDeque<PendingImage> mPendingImages;
+        /** Whether a delivery task is scheduled or running. */
+        @GuardedBy("this")
+        private boolean mDelivering;
+        @GuardedBy("this")
+        private boolean mClosed;
+        @GuardedBy("this")
+        private long mDeliveredCount;
+        @GuardedBy("this")
+        private long mDroppedCount;
+        @GuardedBy("this")
+        private long mTotalLatencyNs;
+        @GuardedBy("this")
+        private long mMaxLatencyNs;
 
         private DispatchRecord(BufferQueue<Long> timestampBufferQueue,
-                BufferQueueController<ImageProxy> imageStream) {
+                BufferQueueController<ImageProxy> imageStream, DeliveryPolicy policy,
+                int queueCapacity) {
             this.timestampBufferQueue = timestampBufferQueue;
             this.imageStream = imageStream;
+            mPolicy = policy;
+            mQueueCapacity = queueCapacity;
+            mPendingImages = new ArrayDeque<>(queueCapacity);
+            mDelivering = false;
+            mClosed = false;
+        }
+
+        /**
+         * Queues the image for delivery, applying the policy if the queue is
+         * full.
+         *
+         * @throws InterruptedException If interrupted while blocked waiting
+         *             for room in the queue, in which case the image is
+         *             closed.
+         */
+        public void enqueue(ImageProxy image, long arrivalTimeNs) throws InterruptedException {
+            ImageProxy imageToClose = null;
+            boolean scheduleDelivery = false;
+            try {
+                synchronized (this) {
+                    while (mPolicy == DeliveryPolicy.BLOCK && !mClosed
+                            && mPendingImages.size() >= mQueueCapacity) {
+                        wait();
+                    }
+                    if (mClosed) {
+                        imageToClose = image;
+                    } else if (mPendingImages.size() >= mQueueCapacity) {
+                        mDroppedCount++;
+                        if (mPolicy == DeliveryPolicy.DROP_OLDEST) {
+                            imageToClose = mPendingImages.poll().image;
+                            mPendingImages.add(new PendingImage(image, arrivalTimeNs));
+                        } else {
+                            imageToClose = image;
+                        }
+                    } else {
+                        mPendingImages.add(new PendingImage(image, arrivalTimeNs));
+                        if (!mDelivering) {
+                            mDelivering = true;
+                            scheduleDelivery = true;
+                        }
+                    }
+                }
+            } catch (InterruptedException e) {
+                image.close();
+                throw e;
+            }
+            if (imageToClose != null) {
+                imageToClose.close();
+            }
+            if (scheduleDelivery) {
+                try {
+                    mDeliveryExecutor.execute(this);
+                } catch (RejectedExecutionException e) {
+                    // The distributor is shutting down.
+                    close();
+                }
+            }
+        }
+
+        /**
+         * Delivers queued images until the queue is empty.
+         */
+        @Override
+        public void run() {
+            while (true) {
+                PendingImage pendingImage;
+                synchronized (this) {
+                    pendingImage = mPendingImages.poll();
+                    if (pendingImage == null) {
+                        mDelivering = false;
+                        return;
+                    }
+                    // Wake the distributor if it is blocked on a full queue.
+                    notifyAll();
+                }
+                imageStream.update(pendingImage.image);
+                long latencyNs = System.nanoTime() - pendingImage.arrivalTimeNs;
+                synchronized (this) {
+                    mDeliveredCount++;
+                    mTotalLatencyNs += latencyNs;
+                    mMaxLatencyNs = Math.max(mMaxLatencyNs, latencyNs);
+                }
+            }
+        }
+
+        /**
+         * Closes all images waiting to be delivered, and any images queued
+         * afterwards.
+         */
+        public void close() {
+            List<PendingImage> imagesToClose;
+            synchronized (this) {
+                mClosed = true;
+                imagesToClose = new ArrayList<>(mPendingImages);
+                mPendingImages.clear();
+                notifyAll();
+            }
+            for (PendingImage pendingImage : imagesToClose) {
+                pendingImage.image.close();
+            }
+        }
+
+        public synchronized RouteMetrics getMetrics() {
+            return new RouteMetrics(mPolicy, mDeliveredCount, mDroppedCount,
+                    mDeliveredCount == 0 ? 0 : mTotalLatencyNs / mDeliveredCount,
+                    mMaxLatencyNs);
         }
     }
 
@@ -68,16 +219,24 @@ class ImageDistributorImpl implements ImageDistributor {
      */
     private final BufferQueue<Long> mGlobalTimestampBufferQueue;
 
+    /**
+     * The executor on which images are handed to the output streams.
+     */
+    private final Executor mDeliveryExecutor;
+
     /*
      * @param globalTimestampStream A stream of timestamps for every capture
      * processed by the underlying {@link CaptureSession}. This is used to
      * synchronize all of the timestamp streams associated with each added
      * output stream.
+     * @param deliveryExecutor The executor on which to add images to the
+     * output streams. It must be able to run a task per route concurrently.
      */
     public ImageDistributorImpl(Logger.Factory logFactory,
-            BufferQueue<Long> globalTimestampBufferQueue) {
+            BufferQueue<Long> globalTimestampBufferQueue, Executor deliveryExecutor) {
         mLogger = logFactory.create(new Log.Tag("ImgDistributorImpl"));
         mGlobalTimestampBufferQueue = globalTimestampBufferQueue;
+        mDeliveryExecutor = deliveryExecutor;
         mDispatchTable = new HashSet<>();
     }
 
@@ -95,6 +254,7 @@ class ImageDistributorImpl implements ImageDistributor {
      * @param image The image to distribute.
      */
     public void distributeImage(ImageProxy image) {
+        final long arrivalTimeNs = System.nanoTime();
         final long timestamp = image.getTimestamp();
 
         // Wait until the global timestamp stream indicates that either the
@@ -119,7 +279,7 @@ class ImageDistributorImpl implements ImageDistributor {
             // up-to-date.
         }
 
-        List<BufferQueueController<ImageProxy>> streamsToReceiveImage = new ArrayList<>();
+        List<DispatchRecord> routesToReceiveImage = new ArrayList<>();
         Set<DispatchRecord> deadRecords = new HashSet<>();
 
         // mDispatchTable may be modified in {@link #addRoute} while iterating,
@@ -166,29 +326,43 @@ class ImageDistributorImpl implements ImageDistributor {
             if (requestedImageTimestamp == timestamp) {
                 // Discard the value we just looked at.
                 dispatchRecord.timestampBufferQueue.discardNext();
-                streamsToReceiveImage.add(dispatchRecord.imageStream);
+                routesToReceiveImage.add(dispatchRecord);
             }
         }
 
         synchronized (mDispatchTable) {
             mDispatchTable.removeAll(deadRecords);
         }
+        // Free the images still waiting for the removed routes.
+        for (DispatchRecord deadRecord : deadRecords) {
+            deadRecord.close();
+        }
 
-        int streamsToReceiveImageSize = streamsToReceiveImage.size();
+        int routesToReceiveImageSize = routesToReceiveImage.size();
         // If nobody needs the image, just close the image.
-        if (streamsToReceiveImageSize == 0) {
+        if (routesToReceiveImageSize == 0) {
             image.close();
             return;
         }
 
         RefCountedImageProxy sharedImage = new RefCountedImageProxy(image,
-                streamsToReceiveImageSize);
-        for (BufferQueueController<ImageProxy> outputStream : streamsToReceiveImage) {
+                routesToReceiveImageSize);
+        for (int i = 0; i < routesToReceiveImageSize; i++) {
             // Wrap shared image to ensure that *each* stream must close the
             // image before the underlying reference count is decremented,
             // regardless of how many times it is closed from each stream.
             ImageProxy singleCloseImage = new SingleCloseImageProxy(sharedImage);
-            outputStream.update(singleCloseImage);
+            try {
+                routesToReceiveImage.get(i).enqueue(singleCloseImage, arrivalTimeNs);
+            } catch (InterruptedException e) {
+                // Release the references of the remaining routes, since they
+                // will not receive the image.
+                for (int j = i + 1; j < routesToReceiveImageSize; j++) {
+                    new SingleCloseImageProxy(sharedImage).close();
+                }
+                Thread.currentThread().interrupt();
+                return;
+            }
         }
     }
 
@@ -208,8 +382,29 @@ class ImageDistributorImpl implements ImageDistributor {
     @Override
     public void addRoute(BufferQueue<Long> inputTimestampBufferQueue,
             BufferQueueController<ImageProxy> outputStream) {
+        addRoute(inputTimestampBufferQueue, outputStream, DeliveryPolicy.BLOCK,
+                DEFAULT_QUEUE_CAPACITY);
+    }
+
+    @Override
+    public void addRoute(BufferQueue<Long> inputTimestampBufferQueue,
+            BufferQueueController<ImageProxy> outputStream, DeliveryPolicy policy,
+            int queueCapacity) {
+        Preconditions.checkArgument(queueCapacity > 0);
+        synchronized (mDispatchTable) {
+            mDispatchTable.add(new DispatchRecord(inputTimestampBufferQueue, outputStream,
+                    policy, queueCapacity));
+        }
+    }
+
+    @Override
+    public List<RouteMetrics> getRouteMetrics() {
+        List<RouteMetrics> metrics = new ArrayList<>();
         synchronized (mDispatchTable) {
-            mDispatchTable.add(new DispatchRecord(inputTimestampBufferQueue, outputStream));
+            for (DispatchRecord dispatchRecord : mDispatchTable) {
+                metrics.add(dispatchRecord.getMetrics());
+            }
         }
+        return metrics;
     }
 }
@@ -27,4 +27,10 @@ import javax.annotation.Nonnull;
 public interface MetadataPool {
     @Nonnull
     public ListenableFuture<TotalCaptureResultProxy> removeMetadataFuture(long timestamp);
+
+    /**
+     * Frees the metadata for the image with the given timestamp, which has
+     * been closed, whether or not the metadata has arrived yet.
+     */
+    public void releaseMetadata(long timestamp);
 }
@@ -22,74 +22,391 @@ import com.android.camera.async.Futures2;
 import com.android.camera.async.Updatable;
 import com.android.camera.one.v2.camera2proxy.TotalCaptureResultProxy;
 import com.google.common.annotations.VisibleForTesting;
-import com.google.common.util.concurrent.FutureCallback;
 import com.google.common.util.concurrent.Futures;
 import com.google.common.util.concurrent.ListenableFuture;
-import com.google.common.util.concurrent.MoreExecutors;
 import com.google.common.util.concurrent.SettableFuture;
 
-import java.util.HashMap;
-import java.util.Map;
+import java.util.concurrent.TimeoutException;
 
 import javax.annotation.Nonnull;
+import javax.annotation.Nullable;
 import javax.annotation.ParametersAreNonnullByDefault;
 import javax.annotation.concurrent.GuardedBy;
 
+/**
+ * Matches capture results with images by their sensor timestamp.
+ * <p>
+ * Entries are kept in a fixed-size, open-addressing table keyed by the
+ * primitive timestamp, so that the per-frame path of storing metadata and
+ * releasing it when its image is closed does not allocate. Futures are only
+ * created when metadata is requested for an image, e.g. for a ZSL capture.
+ * <p>
+ * Metadata for which no image ever arrives, and images for which no metadata
+ * ever arrives, would otherwise be held forever. When the table is full, the
+ * entry with the oldest timestamp is evicted and counted as unmatched. An
+ * image or capture result which arrives after entries at least as new were
+ * evicted is stale: it is not inserted, since its counterpart was either
+ * evicted already or will never be waited for, and it is counted as
+ * unmatched only if its timestamp was not counted already.
+ */
 @ParametersAreNonnullByDefault
 public class MetadataPoolImpl implements Updatable<TotalCaptureResultProxy>, MetadataPool {
-    @GuardedBy("mLock")
-    private final Map<Long, SettableFuture<TotalCaptureResultProxy>> mMetadataFutures;
+    /** Maximum number of entries, about one second of frames at 60 fps. */
+    @VisibleForTesting
+    static final int MAX_ENTRIES = 64;
+    /** Number of slots in the table, kept at twice MAX_ENTRIES. */
+    @VisibleForTesting
+    static final int TABLE_SIZE = 128;
+    private static final int TABLE_MASK = TABLE_SIZE - 1;
+    private static final int TABLE_SHIFT = 64 - Integer.numberOfTrailingZeros(TABLE_SIZE);
+
+    // Entry flags. A slot is free if and only if its flags are 0.
+    private static final int FLAG_OCCUPIED = 1;
+    /** The metadata has arrived, and is the value of the entry. */
+    private static final int FLAG_HAS_METADATA = 1 << 1;
+    /** The metadata was requested early, and a future is the value. */
+    private static final int FLAG_HAS_FUTURE = 1 << 2;
+    /** The image was closed before its metadata arrived. */
+    private static final int FLAG_IMAGE_RELEASED = 1 << 3;
+    /** The metadata was handed out for its image. */
+    private static final int FLAG_MATCHED = 1 << 4;
+
     private final Object mLock;
+    @GuardedBy("mLock")
+    private final long[] mTimestamps;
+    @GuardedBy("mLock")
+    private final int[] mFlags;
+    @GuardedBy("mLock")
+    private final Object[] mValues;
+    @GuardedBy("mLock")
+    private int mSize;
+    /** A future evicted from the table, to be failed outside of the lock. */
+    @GuardedBy("mLock")
+    @Nullable
+    private SettableFuture<TotalCaptureResultProxy> mEvictedFuture;
+    @GuardedBy("mLock")
+    private long mUnmatchedMetadataCount;
+    @GuardedBy("mLock")
+    private long mUnmatchedImageCount;
+    /** The newest timestamp evicted so far. */
+    @GuardedBy("mLock")
+    private long mNewestEvictedTimestamp;
+    /**
+     * The timestamps of the last MAX_ENTRIES evicted or stale entries, which
+     * have been counted already.
+     */
+    @GuardedBy("mLock")
+    private final long[] mCountedTimestamps;
+    @GuardedBy("mLock")
+    private int mCountedTimestampsSize;
+    @GuardedBy("mLock")
+    private int mNextCountedTimestamp;
 
     public MetadataPoolImpl() {
-        mMetadataFutures = new HashMap<>();
         mLock = new Object();
+        mTimestamps = new long[TABLE_SIZE];
+        mFlags = new int[TABLE_SIZE];
+        mValues = new Object[TABLE_SIZE];
+        mSize = 0;
+        mEvictedFuture = null;
+        mUnmatchedMetadataCount = 0;
+        mUnmatchedImageCount = 0;
+        mNewestEvictedTimestamp = Long.MIN_VALUE;
+        mCountedTimestamps = new long[MAX_ENTRIES];
+        mCountedTimestampsSize = 0;
+        mNextCountedTimestamp = 0;
     }
 
     @VisibleForTesting
     public int getMapSize() {
         synchronized (mLock) {
-            return mMetadataFutures.size();
+            return mSize;
         }
     }
 
-    private SettableFuture<TotalCaptureResultProxy> getOrCreateFuture(long timestamp) {
-        SettableFuture<TotalCaptureResultProxy> metadataFuture;
+    /**
+     * @return The number of capture results which were evicted before any
+     *         image with the same timestamp was seen.
+     */
+    public long getUnmatchedMetadataCount() {
         synchronized (mLock) {
-            if (!mMetadataFutures.containsKey(timestamp)) {
-                mMetadataFutures.put(timestamp, SettableFuture.<TotalCaptureResultProxy> create());
-            }
+            return mUnmatchedMetadataCount;
+        }
+    }
 
-            metadataFuture = mMetadataFutures.get(timestamp);
+    /**
+     * @return The number of images whose metadata had still not arrived when
+     *         they were evicted, or which arrived after their metadata could
+     *         no longer be matched.
+     */
+    public long getUnmatchedImageCount() {
+        synchronized (mLock) {
+            return mUnmatchedImageCount;
         }
-        return metadataFuture;
     }
 
     @Nonnull
     @Override
-    public ListenableFuture<TotalCaptureResultProxy> removeMetadataFuture(final long timestamp) {
-        ListenableFuture<TotalCaptureResultProxy> future = getOrCreateFuture(timestamp);
-        // Remove the future from the map when it is done to free the memory.
-        Futures.addCallback(future, new FutureCallback<TotalCaptureResultProxy>() {
-            @Override
-            public void onSuccess(TotalCaptureResultProxy totalCaptureResultProxy) {
-                synchronized (mLock) {
-                    mMetadataFutures.remove(timestamp);
+    public ListenableFuture<TotalCaptureResultProxy> removeMetadataFuture(long timestamp) {
+        ListenableFuture<TotalCaptureResultProxy> result;
+        SettableFuture<TotalCaptureResultProxy> evictedFuture;
+        synchronized (mLock) {
+            int slot = findSlot(timestamp);
+            if (slot < 0 && isStale(timestamp)) {
+                if (countOnce(timestamp)) {
+                    mUnmatchedImageCount++;
                 }
+                return Futures.immediateFailedFuture(
+                        new TimeoutException("Metadata evicted before it was requested"));
+            }
+            if (slot < 0) {
+                slot = insertSlot(timestamp);
             }
+            int flags = mFlags[slot];
+            if ((flags & FLAG_HAS_METADATA) != 0) {
+                result = Futures.immediateFuture((TotalCaptureResultProxy) mValues[slot]);
+                mFlags[slot] |= FLAG_MATCHED;
+            } else {
+                if ((flags & FLAG_HAS_FUTURE) == 0) {
+                    mValues[slot] = SettableFuture.<TotalCaptureResultProxy> create();
+                    mFlags[slot] |= FLAG_HAS_FUTURE;
+                }
+                @SuppressWarnings("unchecked")
+                ListenableFuture<TotalCaptureResultProxy> future =
+                        (ListenableFuture<TotalCaptureResultProxy>) mValues[slot];
+                result = Futures2.nonCancellationPropagating(future);
+            }
+            evictedFuture = takeEvictedFuture();
+        }
+        failEvictedFuture(evictedFuture);
+        return result;
+    }
 
-            @Override
-            public void onFailure(Throwable throwable) {
-                throw new UnsupportedOperationException();
+    @Override
+    public void releaseMetadata(long timestamp) {
+        SettableFuture<TotalCaptureResultProxy> evictedFuture;
+        synchronized (mLock) {
+            int slot = findSlot(timestamp);
+            if (slot < 0 && isStale(timestamp)) {
+                if (countOnce(timestamp)) {
+                    mUnmatchedImageCount++;
+                }
+                return;
+            }
+            if (slot < 0) {
+                slot = insertSlot(timestamp);
+            }
+            if ((mFlags[slot] & FLAG_HAS_METADATA) != 0) {
+                removeSlot(slot);
+            } else {
+                // Keep the entry until the metadata arrives, so that it is
+                // known to belong to an image.
+                mFlags[slot] |= FLAG_IMAGE_RELEASED;
             }
-        }, MoreExecutors.directExecutor());
-        return Futures2.nonCancellationPropagating(future);
+            evictedFuture = takeEvictedFuture();
+        }
+        failEvictedFuture(evictedFuture);
     }
 
     @Override
     public void update(@Nonnull TotalCaptureResultProxy metadata) {
         long timestamp = metadata.get(CaptureResult.SENSOR_TIMESTAMP);
-        SettableFuture<TotalCaptureResultProxy> future = getOrCreateFuture(timestamp);
-        future.set(metadata);
+        SettableFuture<TotalCaptureResultProxy> future = null;
+        SettableFuture<TotalCaptureResultProxy> evictedFuture;
+        synchronized (mLock) {
+            int slot = findSlot(timestamp);
+            if (slot < 0 && isStale(timestamp)) {
+                if (countOnce(timestamp)) {
+                    mUnmatchedMetadataCount++;
+                }
+                return;
+            }
+            if (slot < 0) {
+                slot = insertSlot(timestamp);
+            }
+            int flags = mFlags[slot];
+            if ((flags & FLAG_HAS_FUTURE) != 0) {
+                @SuppressWarnings("unchecked")
+                SettableFuture<TotalCaptureResultProxy> pendingFuture =
+                        (SettableFuture<TotalCaptureResultProxy>) mValues[slot];
+                future = pendingFuture;
+            }
+            if ((flags & FLAG_IMAGE_RELEASED) != 0) {
+                removeSlot(slot);
+            } else {
+                mValues[slot] = metadata;
+                mFlags[slot] = (flags & ~FLAG_HAS_FUTURE) | FLAG_HAS_METADATA
+                        | (future != null ? FLAG_MATCHED : 0);
+            }
+            evictedFuture = takeEvictedFuture();
+        }
+        if (future != null) {
+            future.set(metadata);
+        }
+        failEvictedFuture(evictedFuture);
+    }
+
+    @Override
+    public String toString() {
+        synchronized (mLock) {
+            return "MetadataPool size = " + mSize + ", unmatched metadata/images = "
+                    + mUnmatchedMetadataCount + "/" + mUnmatchedImageCount;
+        }
+    }
+
+    /**
+     * @return The slot of the entry for the given timestamp, or -1 if there is
+     *         none.
+     */
+    @GuardedBy("mLock")
+    private int findSlot(long timestamp) {
+        int slot = getHomeSlot(timestamp);
+        while (mFlags[slot] != 0) {
+            if (mTimestamps[slot] == timestamp) {
+                return slot;
+            }
+            slot = (slot + 1) & TABLE_MASK;
+        }
+        return -1;
+    }
+
+    /**
+     * @return The slot of a new, empty entry for the given timestamp, which
+     *         has none, evicting the oldest entry if needed.
+     */
+    @GuardedBy("mLock")
+    private int insertSlot(long timestamp) {
+        int slot = getHomeSlot(timestamp);
+        while (mFlags[slot] != 0) {
+            slot = (slot + 1) & TABLE_MASK;
+        }
+        if (mSize == MAX_ENTRIES) {
+            evictOldest();
+            // Eviction may have moved entries into the free slot.
+            slot = getHomeSlot(timestamp);
+            while (mFlags[slot] != 0) {
+                slot = (slot + 1) & TABLE_MASK;
+            }
+        }
+        mTimestamps[slot] = timestamp;
+        mFlags[slot] = FLAG_OCCUPIED;
+        mValues[slot] = null;
+        mSize++;
+        return slot;
+    }
+
+    @GuardedBy("mLock")
+    private void evictOldest() {
+        int oldestSlot = -1;
+        for (int slot = 0; slot < TABLE_SIZE; slot++) {
+            if (mFlags[slot] != 0
+                    && (oldestSlot < 0 || mTimestamps[slot] < mTimestamps[oldestSlot])) {
+                oldestSlot = slot;
+            }
+        }
+        int flags = mFlags[oldestSlot];
+        if ((flags & FLAG_HAS_FUTURE) != 0) {
+            @SuppressWarnings("unchecked")
+            SettableFuture<TotalCaptureResultProxy> future =
+                    (SettableFuture<TotalCaptureResultProxy>) mValues[oldestSlot];
+            mEvictedFuture = future;
+            mUnmatchedImageCount++;
+        } else if ((flags & FLAG_IMAGE_RELEASED) != 0) {
+            mUnmatchedImageCount++;
+        } else if ((flags & (FLAG_HAS_METADATA | FLAG_MATCHED)) == FLAG_HAS_METADATA) {
+            // No image with this timestamp was closed or requested its
+            // metadata in MAX_ENTRIES frames.
+            mUnmatchedMetadataCount++;
+        }
+        mNewestEvictedTimestamp = Math.max(mNewestEvictedTimestamp, mTimestamps[oldestSlot]);
+        rememberCounted(mTimestamps[oldestSlot]);
+        removeSlot(oldestSlot);
+    }
+
+    /**
+     * @return Whether an entry without a slot is older than an evicted one,
+     *         so that it should not be inserted.
+     */
+    @GuardedBy("mLock")
+    private boolean isStale(long timestamp) {
+        return timestamp <= mNewestEvictedTimestamp;
+    }
+
+    /**
+     * Remembers that the stale entry with the given timestamp is counted.
+     * This is only reached by late images and capture results, so a linear
+     * scan is fine.
+     *
+     * @return False if it was counted already.
+     */
+    @GuardedBy("mLock")
+    private boolean countOnce(long timestamp) {
+        for (int i = 0; i < mCountedTimestampsSize; i++) {
+            if (mCountedTimestamps[i] == timestamp) {
+                return false;
+            }
+        }
+        rememberCounted(timestamp);
+        return true;
+    }
+
+    @GuardedBy("mLock")
+    private void rememberCounted(long timestamp) {
+        mCountedTimestamps[mNextCountedTimestamp] = timestamp;
+        mNextCountedTimestamp = (mNextCountedTimestamp + 1) % MAX_ENTRIES;
+        mCountedTimestampsSize = Math.min(mCountedTimestampsSize + 1, MAX_ENTRIES);
+    }
+
+    /**
+     * Removes the entry at the given slot, shifting back the entries after it
+     * so that every entry stays reachable from its home slot.
+     */
+    @GuardedBy("mLock")
+    private void removeSlot(int slot) {
+        int free = slot;
+        int next = slot;
+        while (true) {
+            next = (next + 1) & TABLE_MASK;
+            if (mFlags[next] == 0) {
+                break;
+            }
+            int home = getHomeSlot(mTimestamps[next]);
+            // Move the entry into the free slot, unless its home slot lies
+            // cyclically in (free, next].
+            boolean reachable = (free <= next)
+                    ? (free < home && home <= next)
+                    : (free < home || home <= next);
+            if (!reachable) {
+                mTimestamps[free] = mTimestamps[next];
+                mFlags[free] = mFlags[next];
+                mValues[free] = mValues[next];
+                free = next;
+            }
+        }
+        mFlags[free] = 0;
+        mValues[free] = null;
+        mSize--;
+    }
+
+    @GuardedBy("mLock")
+    @Nullable
+    private SettableFuture<TotalCaptureResultProxy> takeEvictedFuture() {
+        SettableFuture<TotalCaptureResultProxy> future = mEvictedFuture;
+        mEvictedFuture = null;
+        return future;
+    }
+
+    private static void failEvictedFuture(
+            @Nullable SettableFuture<TotalCaptureResultProxy> future) {
+        if (future != null) {
+            future.setException(new TimeoutException("Metadata evicted before it arrived"));
+        }
+    }
+
+    @VisibleForTesting
+    static int getHomeSlot(long timestamp) {
+        // Fibonacci hashing, since sensor timestamps are not uniformly
+        // distributed in their low bits.
+        return (int) ((timestamp * 0x9E3779B97F4A7C15L) >>> TABLE_SHIFT);
     }
 }
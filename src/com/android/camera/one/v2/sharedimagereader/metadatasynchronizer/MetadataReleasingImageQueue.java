@@ -44,7 +44,7 @@ public class MetadataReleasingImageQueue implements BufferQueueController<ImageP
             super.close();
             // Free the metadata when the image is closed to not leak
             // memory.
-            mMetadataPool.removeMetadataFuture(timestamp);
+            mMetadataPool.releaseMetadata(timestamp);
         }
     }
 
@@ -0,0 +1,247 @@
+/*
+ * Copyright (C) 2015 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.camera.one.v2.sharedimagereader.ringbuffer;
+
+import android.os.Handler;
+
+import com.android.camera.app.MemoryManager;
+import com.android.camera.async.ConcurrentState;
+import com.android.camera.async.Observable;
+import com.android.camera.async.SafeCloseable;
+import com.android.camera.debug.Log;
+import com.android.camera.debug.Logger;
+import com.android.camera.ui.motion.AnimationClock;
+import com.google.common.base.Preconditions;
+
+import javax.annotation.ParametersAreNonnullByDefault;
+import javax.annotation.concurrent.GuardedBy;
+import javax.annotation.concurrent.ThreadSafe;
+
+/**
+ * Chooses the maximum size of the ZSL ring-buffer from shutter activity and
+ * memory pressure, to be passed to {@link DynamicRingBufferFactory}.
+ * <p>
+ * Every image held by the ring-buffer pins a full-resolution ImageReader
+ * buffer, so the ring-buffer should only be deep while the user is actually
+ * shooting:
+ * <ul>
+ * <li>While shots are taken in quick succession, or right after the user
+ * showed the intent to shoot (e.g. by triggering focus), the ring-buffer
+ * grows to its active depth.</li>
+ * <li>Otherwise it keeps its base depth, enough for single-frame ZSL.</li>
+ * <li>After a period without any activity it shrinks to its idle depth, which
+ * should be enough for the first shot after a pause to still be ZSL.</li>
+ * <li>While memory is low, it shrinks to its low memory depth. Captures then
+ * fall back to non-ZSL requests until the ring-buffer refills.</li>
+ * </ul>
+ * Shrinking only discards images which are waiting in the ring-buffer. Images
+ * which have been taken out of it by a capture hold their own tickets, and are
+ * not affected.
+ */
+@ThreadSafe
+@ParametersAreNonnullByDefault
+public class AdaptiveRingBufferDepth implements MemoryManager.MemoryListener, SafeCloseable {
+    /** Time after a shot or a capture intent during which to stay deep. */
+    static final long ACTIVE_HOLD_MS = 3000;
+    /** Time without any shutter activity after which to shrink to idle. */
+    static final long IDLE_TIMEOUT_MS = 10000;
+
+    private final Logger mLog;
+    private final AnimationClock mClock;
+    private final Handler mHandler;
+    private final MemoryManager mMemoryManager;
+    private final int mLowMemoryDepth;
+    private final int mIdleDepth;
+    private final int mBaseDepth;
+    private final int mActiveDepth;
+    private final long mBytesPerImage;
+    private final ConcurrentState<Integer> mDepth;
+    private final Object mLock;
+    private final Runnable mReevaluateRunnable;
+
+    @GuardedBy("mLock")
+    private long mLastActivityMs;
+    @GuardedBy("mLock")
+    private long mActiveUntilMs;
+    @GuardedBy("mLock")
+    private boolean mLowMemory;
+    @GuardedBy("mLock")
+    private boolean mClosed;
+
+    /**
+     * @param logFactory Used to report depth changes and the memory they save.
+     * @param handler The handler on which to shrink the ring-buffer once
+     *            shutter activity stops.
+     * @param memoryManager The memory manager to listen to for memory
+     *            pressure. This registers itself until {@link #close}d.
+     * @param lowMemoryDepth The depth when low on memory.
+     * @param idleDepth The depth when idle.
+     * @param baseDepth The depth when the camera is in use.
+     * @param activeDepth The depth while the user is shooting.
+     * @param bytesPerImage The approximate size of a single image held by the
+     *            ring-buffer.
+     */
+    public AdaptiveRingBufferDepth(Logger.Factory logFactory, Handler handler,
+            MemoryManager memoryManager, int lowMemoryDepth, int idleDepth, int baseDepth,
+            int activeDepth, long bytesPerImage) {
+        this(logFactory, new AnimationClock.SystemTimeClock(), handler, memoryManager,
+                lowMemoryDepth, idleDepth, baseDepth, activeDepth, bytesPerImage);
+    }
+
+    /**
+     * Reads the time from the given clock, so that tests can control it.
+     */
+    AdaptiveRingBufferDepth(Logger.Factory logFactory, AnimationClock clock, Handler handler,
+            MemoryManager memoryManager, int lowMemoryDepth, int idleDepth, int baseDepth,
+            int activeDepth, long bytesPerImage) {
+        Preconditions.checkArgument(0 <= lowMemoryDepth && lowMemoryDepth <= idleDepth
+                && idleDepth <= baseDepth && baseDepth <= activeDepth);
+        mLog = logFactory.create(new Log.Tag("AdaptiveRingDepth"));
+        mClock = clock;
+        mHandler = handler;
+        mMemoryManager = memoryManager;
+        mLowMemoryDepth = lowMemoryDepth;
+        mIdleDepth = idleDepth;
+        mBaseDepth = baseDepth;
+        mActiveDepth = activeDepth;
+        mBytesPerImage = bytesPerImage;
+        mDepth = new ConcurrentState<>(baseDepth);
+        mLock = new Object();
+        mReevaluateRunnable = new Runnable() {
+            @Override
+            public void run() {
+                reevaluate();
+            }
+        };
+
+        // The camera was just opened, so assume the user is about to shoot.
+        mLastActivityMs = mClock.getTimeMillis();
+        mActiveUntilMs = 0;
+        mLowMemory = false;
+        mClosed = false;
+        mMemoryManager.addListener(this);
+        reevaluate();
+    }
+
+    /**
+     * @return The maximum size of the ring-buffer.
+     */
+    public Observable<Integer> getDepth() {
+        return mDepth;
+    }
+
+    /**
+     * @return The number of bytes not pinned by the ring-buffer because it is
+     *         currently shallower than its active depth.
+     */
+    public long getSavedBytes() {
+        return (long) (mActiveDepth - mDepth.get()) * mBytesPerImage;
+    }
+
+    /**
+     * Signals that a picture was taken. A shot shortly after another one grows
+     * the ring-buffer to its active depth.
+     */
+    public void onShotTaken() {
+        synchronized (mLock) {
+            long now = mClock.getTimeMillis();
+            if (now - mLastActivityMs < ACTIVE_HOLD_MS) {
+                mActiveUntilMs = now + ACTIVE_HOLD_MS;
+            }
+            mLastActivityMs = now;
+        }
+        reevaluate();
+    }
+
+    /**
+     * Signals that the user is about to shoot, e.g. by triggering focus, which
+     * grows the ring-buffer to its active depth.
+     */
+    public void onCaptureIntent() {
+        synchronized (mLock) {
+            long now = mClock.getTimeMillis();
+            mActiveUntilMs = now + ACTIVE_HOLD_MS;
+            mLastActivityMs = now;
+        }
+        reevaluate();
+    }
+
+    @Override
+    public void onMemoryStateChanged(int state) {
+        synchronized (mLock) {
+            mLowMemory = (state != MemoryManager.STATE_OK);
+        }
+        reevaluate();
+    }
+
+    @Override
+    public void onLowMemory() {
+        onMemoryStateChanged(MemoryManager.STATE_LOW_MEMORY);
+    }
+
+    @Override
+    public void close() {
+        synchronized (mLock) {
+            mClosed = true;
+        }
+        mHandler.removeCallbacks(mReevaluateRunnable);
+        mMemoryManager.removeListener(this);
+    }
+
+    /**
+     * Updates the depth for the current time and schedules the next update
+     * for when the current state times out.
+     */
+    private void reevaluate() {
+        int oldDepth;
+        int newDepth;
+        boolean lowMemory;
+        synchronized (mLock) {
+            if (mClosed) {
+                return;
+            }
+            long now = mClock.getTimeMillis();
+            long nextReevaluationMs = 0;
+            if (mLowMemory) {
+                newDepth = mLowMemoryDepth;
+            } else if (now < mActiveUntilMs) {
+                newDepth = mActiveDepth;
+                nextReevaluationMs = mActiveUntilMs;
+            } else if (now - mLastActivityMs < IDLE_TIMEOUT_MS) {
+                newDepth = mBaseDepth;
+                nextReevaluationMs = mLastActivityMs + IDLE_TIMEOUT_MS;
+            } else {
+                newDepth = mIdleDepth;
+            }
+
+            mHandler.removeCallbacks(mReevaluateRunnable);
+            if (nextReevaluationMs != 0) {
+                mHandler.postDelayed(mReevaluateRunnable, nextReevaluationMs - now);
+            }
+
+            lowMemory = mLowMemory;
+            oldDepth = mDepth.get();
+            if (oldDepth == newDepth) {
+                return;
+            }
+            mDepth.update(newDepth);
+        }
+        mLog.i("ZSL ring-buffer depth " + oldDepth + " -> " + newDepth + ", saving "
+                + getSavedBytes() / (1024 * 1024) + "MB of " + (long) mActiveDepth
+                * mBytesPerImage / (1024 * 1024) + "MB" + (lowMemory ? " (low memory)" : ""));
+    }
+}
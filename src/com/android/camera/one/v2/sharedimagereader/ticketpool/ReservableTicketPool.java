@@ -24,7 +24,9 @@ import java.util.ArrayDeque;
 import java.util.ArrayList;
 import java.util.Collection;
 import java.util.List;
+import java.util.concurrent.ConcurrentLinkedQueue;
 import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
 import java.util.concurrent.locks.Condition;
 import java.util.concurrent.locks.ReentrantLock;
 
@@ -46,6 +48,12 @@ import javax.annotation.concurrent.GuardedBy;
  * Decreases in capacity result in the returning of tickets to the parent pool
  * as soon as possible, which may depend on consumers of this ticket pool
  * closing tickets which had previously been acquired.
+ * <p>
+ * {@link #tryAcquire} and the closing of tickets are called for every frame,
+ * so they only claim and return tickets with atomic operations. The lock is
+ * only taken by blocking {@link #acquire} calls, by capacity changes, and to
+ * wake waiters, which are served in order. While there are waiters,
+ * {@link #tryAcquire} fails so that waiters are never starved.
  */
 @ParametersAreNonnullByDefault
 public class ReservableTicketPool implements TicketPool, SafeCloseable {
@@ -86,26 +94,20 @@ public class ReservableTicketPool implements TicketPool, SafeCloseable {
             if (mClosed.getAndSet(true)) {
                 return;
             }
-            boolean releaseToParent;
-            mLock.lock();
-            try {
-                // If mParentTickets is already at capacity, then we "overflow"
-                // and return the ticket to the parent by closing it.
-                // Otherwise, add it back to the local pool (mParentTickets) and
-                // update any waiters which may want it.
-                releaseToParent = (mParentTickets.size() == mCapacity);
-                if (!releaseToParent) {
-                    mParentTickets.add(mParentTicket);
-                    updateCurrentTicketCount();
-                    releaseWaitersOnTicketAvailability();
-                }
-            } finally {
-                mLock.unlock();
-            }
-
-            if (releaseToParent) {
+            // If the capacity was decreased while this ticket was acquired,
+            // then we "overflow" and return the ticket to the parent by
+            // closing it. Otherwise, add it back to the local pool
+            // (mParentTickets) and update any waiters which may want it.
+            if (tryDecrementIfPositive(mOverflowTicketCount, 1)) {
                 mParentTicket.close();
+                return;
             }
+            addParentTicket(mParentTicket);
+            releaseOverflowTickets();
+            if (mWaiterCount != 0) {
+                releaseWaitersOnTicketAvailability();
+            }
+            updateCurrentTicketCount();
         }
     }
 
@@ -116,22 +118,36 @@ public class ReservableTicketPool implements TicketPool, SafeCloseable {
      */
     private final TicketPool mParentPool;
     /**
-     * Lock for mutable state: {@link #mParentTickets}, {@link #mCapacity}, and
-     * {@link #mTicketWaiters}.
+     * Lock for {@link #mCapacity} and {@link #mTicketWaiters}.
      */
     private final ReentrantLock mLock;
     /**
      * A Queue containing the number of tickets requested by each thread
-     * currently blocked in {@link #acquire}.
+     * currently blocked in {@link #acquire}. Waiters stay in the queue until
+     * they return, so that tickets are not taken from under them.
      */
     @GuardedBy("mLock")
     private final ArrayDeque<Waiter> mTicketWaiters;
+    /**
+     * The size of {@link #mTicketWaiters}, readable without the lock.
+     */
+    private volatile int mWaiterCount;
     /**
      * Tickets from mParentPool which have not been given to clients via
-     * {@link #acquire}.
+     * {@link #acquire}. A ticket is only taken from the queue after it is
+     * claimed from {@link #mParentTicketCount}, and only counted there after
+     * it is added to the queue, so a claimed ticket is always in the queue.
      */
-    @GuardedBy("mLock")
-    private final ArrayDeque<Ticket> mParentTickets;
+    private final ConcurrentLinkedQueue<Ticket> mParentTickets;
+    /**
+     * The number of unclaimed tickets in {@link #mParentTickets}.
+     */
+    private final AtomicInteger mParentTicketCount;
+    /**
+     * The number of acquired tickets which must be returned to the parent pool
+     * when they are closed because the capacity has since been decreased.
+     */
+    private final AtomicInteger mOverflowTicketCount;
     /**
      * Maintains an observable count of the number of tickets which are readily
      * available at any time.
@@ -148,25 +164,35 @@ public class ReservableTicketPool implements TicketPool, SafeCloseable {
         mParentPool = parentPool;
         mLock = new ReentrantLock(true);
         mTicketWaiters = new ArrayDeque<>();
-        mParentTickets = new ArrayDeque<>();
+        mWaiterCount = 0;
+        mParentTickets = new ConcurrentLinkedQueue<>();
+        mParentTicketCount = new AtomicInteger(0);
+        mOverflowTicketCount = new AtomicInteger(0);
         mCapacity = 0;
         mAvailableTicketCount = new ConcurrentState<>(0);
     }
 
-    @GuardedBy("mLock")
+    /**
+     * Publishes the number of readily available tickets. Since this may run
+     * concurrently on several threads, the count is re-read after publishing
+     * it, so that the last value published is never stale.
+     */
     private void updateCurrentTicketCount() {
-        mLock.lock();
-        try {
-            if (mTicketWaiters.size() != 0) {
-                mAvailableTicketCount.update(0);
-            } else {
-                mAvailableTicketCount.update(mParentTickets.size());
+        int count = getReadilyAvailableTicketCount();
+        while (true) {
+            mAvailableTicketCount.update(count);
+            int newCount = getReadilyAvailableTicketCount();
+            if (newCount == count) {
+                return;
             }
-        } finally {
-            mLock.unlock();
+            count = newCount;
         }
     }
 
+    private int getReadilyAvailableTicketCount() {
+        return mWaiterCount != 0 ? 0 : mParentTicketCount.get();
+    }
+
     @Nonnull
     @Override
     public Collection<Ticket> acquire(int tickets) throws InterruptedException,
@@ -188,18 +214,11 @@ public class ReservableTicketPool implements TicketPool, SafeCloseable {
 
     @Override
     public Ticket tryAcquire() {
-        Ticket parentTicket;
-        mLock.lock();
-        try {
-            if (mParentTickets.isEmpty() || mTicketWaiters.size() > 0) {
-                return null;
-            }
-            parentTicket = mParentTickets.remove();
-            updateCurrentTicketCount();
-        } finally {
-            mLock.unlock();
+        if (mWaiterCount != 0 || !tryDecrementIfPositive(mParentTicketCount, 1)) {
+            return null;
         }
-
+        Ticket parentTicket = mParentTickets.poll();
+        updateCurrentTicketCount();
         return new TicketImpl(parentTicket);
     }
 
@@ -219,7 +238,7 @@ public class ReservableTicketPool implements TicketPool, SafeCloseable {
             mCapacity += additionalCapacity;
 
             for (Ticket ticket : tickets) {
-                mParentTickets.add(ticket);
+                addParentTicket(ticket);
             }
 
             releaseWaitersOnTicketAvailability();
@@ -242,8 +261,6 @@ public class ReservableTicketPool implements TicketPool, SafeCloseable {
         if (capacityToRelease <= 0) {
             return;
         }
-        List<Ticket> parentTicketsToRelease = new ArrayList<>();
-
         mLock.lock();
         try {
             if (capacityToRelease > mCapacity) {
@@ -252,20 +269,16 @@ public class ReservableTicketPool implements TicketPool, SafeCloseable {
 
             mCapacity -= capacityToRelease;
 
-            // Release as many tickets as necessary, immediately.
-            int numParentTicketsToRelease = Math.min(mParentTickets.size(), capacityToRelease);
-            for (int i = 0; i < numParentTicketsToRelease; i++) {
-                parentTicketsToRelease.add(mParentTickets.remove());
-            }
+            // Tickets which are currently acquired are released to the parent
+            // as soon as they are closed, the others are released below.
+            mOverflowTicketCount.addAndGet(capacityToRelease);
 
             abortWaitersOnCapacityDecrease();
         } finally {
             mLock.unlock();
         }
 
-        for (Ticket ticket : parentTicketsToRelease) {
-            ticket.close();
-        }
+        releaseOverflowTickets();
 
         updateCurrentTicketCount();
     }
@@ -306,14 +319,25 @@ public class ReservableTicketPool implements TicketPool, SafeCloseable {
             }
             Waiter thisWaiter = new Waiter(mLock.newCondition(), tickets);
             mTicketWaiters.add(thisWaiter);
+            mWaiterCount = mTicketWaiters.size();
             updateCurrentTicketCount();
             try {
+                // A ticket may have been returned without the lock between
+                // the attempt above and the waiter being published, so try
+                // again before waiting, but only if first in line.
+                if (acquiredParentTickets == null && mTicketWaiters.peek() == thisWaiter) {
+                    acquiredParentTickets = tryAcquireAtomically(tickets);
+                }
                 while (acquiredParentTickets == null) {
                     thisWaiter.getDoneCondition().await();
                     acquiredParentTickets = tryAcquireAtomically(tickets);
                 }
             } finally {
                 mTicketWaiters.remove(thisWaiter);
+                mWaiterCount = mTicketWaiters.size();
+                // Tickets which were not enough for this waiter may be enough
+                // for the next one.
+                releaseWaitersOnTicketAvailability();
             }
             updateCurrentTicketCount();
         } finally {
@@ -333,23 +357,22 @@ public class ReservableTicketPool implements TicketPool, SafeCloseable {
     @Nullable
     @CheckReturnValue
     private List<Ticket> tryAcquireAtomically(int tickets) throws NoCapacityAvailableException {
-        List<Ticket> acquiredParentTickets = new ArrayList<>();
         mLock.lock();
         try {
             if (tickets > mCapacity) {
                 throw new NoCapacityAvailableException();
             }
-            if (mParentTickets.size() >= tickets) {
-                for (int i = 0; i < tickets; i++) {
-                    acquiredParentTickets.add(mParentTickets.remove());
-                }
-                updateCurrentTicketCount();
-                return acquiredParentTickets;
-            }
         } finally {
             mLock.unlock();
         }
-        return null;
+        if (!tryDecrementIfPositive(mParentTicketCount, tickets)) {
+            return null;
+        }
+        List<Ticket> acquiredParentTickets = new ArrayList<>();
+        for (int i = 0; i < tickets; i++) {
+            acquiredParentTickets.add(mParentTickets.poll());
+        }
+        return acquiredParentTickets;
     }
 
     private void releaseWaitersOnTicketAvailability() {
@@ -357,13 +380,11 @@ public class ReservableTicketPool implements TicketPool, SafeCloseable {
         try {
             // Release waiters, in order, so long as their requests can be
             // fulfilled.
-            int numTicketsReadilyAvailable = mParentTickets.size();
-            while (mTicketWaiters.size() > 0) {
-                Waiter nextWaiter = mTicketWaiters.peek();
+            int numTicketsReadilyAvailable = mParentTicketCount.get();
+            for (Waiter nextWaiter : mTicketWaiters) {
                 if (nextWaiter.getRequestedTicketCount() <= numTicketsReadilyAvailable) {
                     numTicketsReadilyAvailable -= nextWaiter.getRequestedTicketCount();
                     nextWaiter.getDoneCondition().signal();
-                    mTicketWaiters.poll();
                 } else {
                     return;
                 }
@@ -378,17 +399,59 @@ public class ReservableTicketPool implements TicketPool, SafeCloseable {
         try {
             // Release all waiters requesting more tickets than the current
             // capacity
-            List<Waiter> toRemove = new ArrayList<>();
             for (Waiter waiter : mTicketWaiters) {
                 if (waiter.getRequestedTicketCount() > mCapacity) {
-                    toRemove.add(waiter);
+                    waiter.getDoneCondition().signal();
                 }
             }
-            for (Waiter waiter : toRemove) {
-                waiter.getDoneCondition().signal();
-            }
         } finally {
             mLock.unlock();
         }
     }
+
+    /**
+     * Makes a ticket from the parent pool available to be claimed.
+     */
+    private void addParentTicket(Ticket ticket) {
+        mParentTickets.add(ticket);
+        mParentTicketCount.incrementAndGet();
+    }
+
+    /**
+     * Returns available tickets to the parent pool for as long as the capacity
+     * is exceeded.
+     */
+    private void releaseOverflowTickets() {
+        while (mOverflowTicketCount.get() > 0) {
+            if (!tryDecrementIfPositive(mParentTicketCount, 1)) {
+                return;
+            }
+            if (tryDecrementIfPositive(mOverflowTicketCount, 1)) {
+                mParentTickets.poll().close();
+            } else {
+                // The overflow was paid by a ticket being closed in the
+                // meantime, so put back the claimed ticket.
+                mParentTicketCount.incrementAndGet();
+                return;
+            }
+        }
+    }
+
+    /**
+     * Atomically subtracts the given amount from the counter, unless this
+     * would make it negative.
+     *
+     * @return Whether the amount was subtracted.
+     */
+    private static boolean tryDecrementIfPositive(AtomicInteger counter, int amount) {
+        while (true) {
+            int current = counter.get();
+            if (current < amount) {
+                return false;
+            }
+            if (counter.compareAndSet(current, current - amount)) {
+                return true;
+            }
+        }
+    }
 }
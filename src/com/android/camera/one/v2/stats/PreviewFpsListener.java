@@ -45,6 +45,11 @@ public class PreviewFpsListener extends ResponseListener {
         mFpsListener = fpsListener;
     }
 
+    @Override
+    public boolean receivesPartialResults() {
+        return false;
+    }
+
     @Override
     public void onStarted(long timestampNanos) {
         if(mLastFrameTimeNanos == 0) {
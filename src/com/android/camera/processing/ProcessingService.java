@@ -38,12 +38,10 @@ import com.android.camera.session.CaptureSessionManager;
 import com.android.camera.util.AndroidServices;
 import com.android.camera2.R;
 
-import java.util.concurrent.locks.Lock;
-import java.util.concurrent.locks.ReentrantLock;
-
 /**
- * A service that processes a {@code ProcessingTask}. The service uses a fifo
- * queue so that only one {@code ProcessingTask} is processed at a time.
+ * A service that processes {@code ProcessingTask}s. The service runs a worker
+ * thread for each task the {@link ProcessingServiceManager} allows to run
+ * concurrently, and takes the tasks from its queues in priority order.
  * <p>
  * The service is meant to be called via {@code ProcessingService.addTask},
  * which takes care of starting the service and enqueueing the
@@ -94,10 +92,8 @@ public class ProcessingService extends Service implements ProgressListener {
     private CaptureSessionManager mSessionManager;
 
     private ProcessingServiceManager mProcessingServiceManager;
-    private Thread mProcessingThread;
-    private volatile boolean mPaused = false;
-    private ProcessingTask mCurrentTask;
-    private final Lock mSuspendStatusLock = new ReentrantLock();
+    /** Used to name the worker threads. */
+    private int mWorkerCount = 0;
 
     @Override
     public void onCreate() {
@@ -139,7 +135,7 @@ public class ProcessingService extends Service implements ProgressListener {
         // killed easily when memory pressure is building up.
         startForeground(CAMERA_NOTIFICATION_ID, mNotificationBuilder.build());
 
-        asyncProcessAllTasksAndShutdown();
+        startWorkers();
 
         // We want this service to continue running until it is explicitly
         // stopped, so return sticky.
@@ -154,61 +150,41 @@ public class ProcessingService extends Service implements ProgressListener {
 
     private void pause() {
         Log.d(TAG, "Pausing");
-        try {
-            mSuspendStatusLock.lock();
-            mPaused = true;
-            if (mCurrentTask != null) {
-                mCurrentTask.suspend();
-            }
-        } finally {
-            mSuspendStatusLock.unlock();
-        }
+        mProcessingServiceManager.pauseRunningTasks();
     }
 
     private void resume() {
         Log.d(TAG, "Resuming");
-        try {
-            mSuspendStatusLock.lock();
-            mPaused = false;
-            if (mCurrentTask != null) {
-                mCurrentTask.resume();
-            }
-        } finally {
-            mSuspendStatusLock.unlock();
-        }
+        mProcessingServiceManager.resumeRunningTasks();
     }
 
     /**
-     * Starts a thread to process all tasks. When no more tasks are in the
-     * queue, it exits the thread and shuts down the service.
+     * Starts as many threads as the manager allows to process tasks
+     * concurrently. A thread exits when the manager has no more tasks for it,
+     * and the last one to exit shuts down the service.
      */
-    private void asyncProcessAllTasksAndShutdown() {
-        if (mProcessingThread != null) {
-            return;
-        }
-        mProcessingThread = new Thread("CameraProcessingThread") {
-            @Override
-            public void run() {
-                // Set the thread priority
-                android.os.Process.setThreadPriority(THREAD_PRIORITY);
-
-                ProcessingTask task;
-                while ((task = mProcessingServiceManager.popNextSession()) != null) {
-                    mCurrentTask = task;
-                    try {
-                        mSuspendStatusLock.lock();
-                        if (mPaused) {
-                            mCurrentTask.suspend();
+    private void startWorkers() {
+        while (mProcessingServiceManager.addWorker()) {
+            new Thread("CameraProcessingThread-" + mWorkerCount++) {
+                @Override
+                public void run() {
+                    // Set the thread priority
+                    android.os.Process.setThreadPriority(THREAD_PRIORITY);
+
+                    ProcessingTask task;
+                    while ((task = mProcessingServiceManager.popNextSession()) != null) {
+                        try {
+                            processAndNotify(task);
+                        } finally {
+                            mProcessingServiceManager.onTaskDone(task);
                         }
-                    } finally {
-                        mSuspendStatusLock.unlock();
                     }
-                    processAndNotify(task);
+                    if (!mProcessingServiceManager.isServiceRunning()) {
+                        stopSelf();
+                    }
                 }
-                stopSelf();
-            }
-        };
-        mProcessingThread.start();
+            }.start();
+        }
     }
 
     /**
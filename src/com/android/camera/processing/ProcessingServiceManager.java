@@ -18,24 +18,60 @@ package com.android.camera.processing;
 
 import android.content.Context;
 import android.content.Intent;
+import android.os.SystemClock;
 
+import com.android.camera.app.CameraServicesImpl;
+import com.android.camera.app.MemoryManager;
 import com.android.camera.debug.Log;
 import com.android.camera.processing.imagebackend.ImageBackend;
+import com.android.camera.session.CaptureSession;
 import com.android.camera.util.AndroidContext;
 import com.android.camera2.R;
 
-import java.util.LinkedList;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.EnumMap;
+import java.util.Iterator;
+import java.util.List;
+
+import javax.annotation.Nullable;
+import javax.annotation.concurrent.GuardedBy;
 
 /**
- * Manages a queue of processing tasks as well as the processing service
+ * Manages the queues of processing tasks as well as the processing service
  * lifecycle.
  * <p>
+ * Tasks are queued in one of two {@link Lane}s. Tasks of the session the user
+ * is looking at, which is the one just captured unless the filmstrip shows
+ * another one, go into the foreground lane and are always started before
+ * background tasks, so that a slow stitch does not hold up the photo just
+ * taken. Tasks of different sessions run concurrently, on as many workers as
+ * the CPU and memory budget allows. When a foreground task is queued and the
+ * budget is used up by background tasks, one of them is suspended until the
+ * foreground lane has drained, provided it supports being suspended.
+ * <p>
  * Clients should only use this class and not the {@link ProcessingService}
  * directly.
  */
-public class ProcessingServiceManager implements ProcessingTaskConsumer {
+public class ProcessingServiceManager implements ProcessingTaskConsumer,
+        MemoryManager.MemoryListener {
     private static final Log.Tag TAG = new Log.Tag("ProcessingSvcMgr");
 
+    /** The user visibility of a task, which decides the order of processing. */
+    public static enum Lane {
+        /** Tasks of the session in view, or just captured. */
+        FOREGROUND,
+        /** Tasks the user is not waiting on. */
+        BACKGROUND
+    }
+
+    /** Upper bound for concurrently running tasks, regardless of cores. */
+    private static final int MAX_CONCURRENT_TASKS = 3;
+    /** Maximum number of background tasks suspended at any time. */
+    private static final int MAX_PREEMPTED_TASKS = 2;
+    /** Java heap headroom required for each task beyond the first. */
+    private static final long HEAP_HEADROOM_PER_TASK_BYTES = 24 * 1024 * 1024;
+
     private static class Singleton {
         private static final ProcessingServiceManager INSTANCE = new ProcessingServiceManager(
               AndroidContext.instance().get());
@@ -45,70 +81,322 @@ public class ProcessingServiceManager implements ProcessingTaskConsumer {
         return Singleton.INSTANCE;
     }
 
+    /** A queued or running task. */
+    private static class Entry {
+        final ProcessingTask task;
+        final long enqueueTimeMs;
+        Lane lane;
+        /** Whether the task was suspended to make room for foreground work. */
+        boolean preempted = false;
+
+        Entry(ProcessingTask task, Lane lane) {
+            this.task = task;
+            this.lane = lane;
+            this.enqueueTimeMs = SystemClock.elapsedRealtime();
+        }
+    }
+
+    /**
+     * A snapshot of the queue of one lane.
+     */
+    public static class LaneMetrics {
+        /** Number of tasks waiting to be started. */
+        public final int queued;
+        /** Number of tasks being processed, including suspended ones. */
+        public final int running;
+        /** Number of tasks finished since the app was started. */
+        public final long completed;
+        /** Number of times a task of this lane was suspended for another. */
+        public final long preemptions;
+        /** Average time finished tasks waited in the queue. */
+        public final long averageWaitMs;
+        /** Longest time a finished task waited in the queue. */
+        public final long maxWaitMs;
+
+        private LaneMetrics(int queued, int running, long completed, long preemptions,
+                long averageWaitMs, long maxWaitMs) {
+            this.queued = queued;
+            this.running = running;
+            this.completed = completed;
+            this.preemptions = preemptions;
+            this.averageWaitMs = averageWaitMs;
+            this.maxWaitMs = maxWaitMs;
+        }
+
+        @Override
+        public String toString() {
+            return "queued = " + queued + ", running = " + running + ", completed = " + completed
+                    + ", preemptions = " + preemptions + ", wait avg = " + averageWaitMs
+                    + "ms, max = " + maxWaitMs + "ms";
+        }
+    }
+
+    /** Running totals of one lane. */
+    private static class LaneCounters {
+        long completed = 0;
+        long preemptions = 0;
+        long totalWaitMs = 0;
+        long maxWaitMs = 0;
+    }
+
     /** The application context. */
     private final Context mAppContext;
 
-    /** Queue of tasks to be processed. */
-    private final LinkedList<ProcessingTask> mQueue = new LinkedList<ProcessingTask>();
+    /** Queues of tasks to be processed, one per lane. */
+    @GuardedBy("this")
+    private final EnumMap<Lane, ArrayDeque<Entry>> mQueues = new EnumMap<>(Lane.class);
+
+    @GuardedBy("this")
+    private final EnumMap<Lane, LaneCounters> mCounters = new EnumMap<>(Lane.class);
+
+    /** Tasks taken by a worker and not finished yet. */
+    @GuardedBy("this")
+    private final List<Entry> mRunning = new ArrayList<>();
 
     /** Whether a processing service is currently running. */
     private volatile boolean mServiceRunning = false;
 
+    /** Whether a start command has been sent but not handled yet. */
+    @GuardedBy("this")
+    private boolean mStartPending = false;
+
+    /** Number of worker threads of the service. */
+    @GuardedBy("this")
+    private int mWorkers = 0;
+
     /** Can be set to prevent tasks from being processed until released.*/
+    @GuardedBy("this")
     private boolean mHoldProcessing = false;
 
+    /** Whether the service has been asked to pause all tasks. */
+    @GuardedBy("this")
+    private boolean mPaused = false;
+
+    /**
+     * The session whose tasks are in the foreground lane. Tasks of all other
+     * sessions are in the background lane.
+     */
+    @GuardedBy("this")
+    @Nullable
+    private CaptureSession mForegroundSession = null;
+
+    /** Whether the memory manager reports low memory. */
+    private volatile boolean mLowMemory = false;
+
+    private final int mMaxConcurrentTasks;
+
     private final ImageBackend mImageBackend;
 
     private ProcessingServiceManager(Context context) {
         mAppContext = context;
+        for (Lane lane : Lane.values()) {
+            mQueues.put(lane, new ArrayDeque<Entry>());
+            mCounters.put(lane, new LaneCounters());
+        }
+        // Leave a core for the camera pipeline and UI.
+        mMaxConcurrentTasks = Math.max(1,
+                Math.min(MAX_CONCURRENT_TASKS, Runtime.getRuntime().availableProcessors() - 1));
 
         // Read and set the round thumbnail diameter value from resources.
         int tinyThumbnailSize = context.getResources()
               .getDimensionPixelSize(R.dimen.rounded_thumbnail_diameter_max);
-        mImageBackend = new ImageBackend(this, tinyThumbnailSize);
+        MemoryManager memoryManager = CameraServicesImpl.instance().getMemoryManager();
+        int maxNativeMemoryMb = memoryManager.getMaxAllowedNativeMemoryAllocation();
+        mImageBackend = new ImageBackend(this, tinyThumbnailSize, maxNativeMemoryMb);
+        memoryManager.addListener(this);
     }
 
     /**
-     * Enqueues a new task. If the service is not already running, it will be
-     * started.
+     * Enqueues a new task in the foreground lane. The task's session was
+     * just captured, so it becomes the foreground session and the tasks of
+     * the previous one move to the background lane. If the service is not
+     * already running, it will be started.
      *
      * @param task The task to be enqueued.
      */
     @Override
     public synchronized void enqueueTask(ProcessingTask task) {
-        mQueue.add(task);
-        Log.d(TAG, "Task added. Queue size now: " + mQueue.size());
+        if (task.getSession() != null) {
+            setForegroundSession(task.getSession());
+        }
+        enqueueTask(task, Lane.FOREGROUND);
+    }
+
+    /**
+     * Moves the tasks of the given session to the foreground lane, and those
+     * of the previous foreground session to the background lane, e.g. when
+     * the user looks at the session in the filmstrip.
+     *
+     * @param session The session the user is waiting on.
+     */
+    public synchronized void setForegroundSession(CaptureSession session) {
+        if (session == mForegroundSession) {
+            return;
+        }
+        CaptureSession previous = mForegroundSession;
+        mForegroundSession = session;
+        if (previous != null) {
+            setSessionLane(previous, Lane.BACKGROUND);
+        }
+        setSessionLane(session, Lane.FOREGROUND);
+    }
+
+    /**
+     * Enqueues a new task. If the service is not already running, or can run
+     * another task concurrently, a worker will be started.
+     *
+     * @param task The task to be enqueued.
+     * @param lane The lane to process the task in.
+     */
+    public synchronized void enqueueTask(ProcessingTask task, Lane lane) {
+        mQueues.get(lane).add(new Entry(task, lane));
+        Log.d(TAG, "Task added to " + lane + ". Queue sizes now: " + queueSizes());
+
+        if (lane == Lane.FOREGROUND) {
+            preemptBackgroundTask();
+        }
+        startWorkerIfNeeded();
+    }
+
+    /**
+     * Moves the tasks of a session to another lane, e.g. when the user
+     * starts or stops looking at it. Running tasks of the session are not
+     * interrupted, but become eligible for pre-emption, or are resumed.
+     *
+     * @param session The session whose tasks to move.
+     * @param lane The new lane of the tasks.
+     */
+    public synchronized void setSessionLane(CaptureSession session, Lane lane) {
+        boolean moved = false;
+        for (ArrayDeque<Entry> queue : mQueues.values()) {
+            Iterator<Entry> it = queue.iterator();
+            while (it.hasNext()) {
+                Entry entry = it.next();
+                if (entry.task.getSession() == session && entry.lane != lane) {
+                    it.remove();
+                    entry.lane = lane;
+                    mQueues.get(lane).add(entry);
+                    moved = true;
+                }
+            }
+        }
+        for (Entry entry : mRunning) {
+            if (entry.task.getSession() == session && entry.lane != lane) {
+                entry.lane = lane;
+                moved = true;
+            }
+        }
+        if (!moved) {
+            return;
+        }
+        Log.d(TAG, "Moved session tasks to " + lane + ". Queue sizes now: " + queueSizes());
+        if (lane == Lane.FOREGROUND) {
+            preemptBackgroundTask();
+        }
+        resumePreemptedTasksIfIdle();
+        startWorkerIfNeeded();
+    }
 
-        if (!mServiceRunning && !mHoldProcessing) {
-            startService();
+    /**
+     * Registers a new worker of the service, if there is work it can start
+     * within the budget. Called by the service whenever it is started.
+     *
+     * @return Whether the service should start a new worker thread.
+     */
+    synchronized boolean addWorker() {
+        mStartPending = false;
+        if (mHoldProcessing || countIdleWorkers() >= countQueued() || !canStartTask()) {
+            return false;
         }
+        mWorkers++;
+        return true;
     }
 
     /**
-     * Remove the next task from the queue and return it.
+     * Remove the next task from the queues and return it. Foreground tasks
+     * are returned before background tasks, each lane in FIFO order.
      *
      * @return The next Task or <code>null</code>, if no more tasks are in the
-     *         queue or we have a processing hold. If null is returned the
-     *         service is has to shut down as a new service is started if either
-     *         new items enter the queue or the processing is resumed.
+     *         queue, the budget does not allow another concurrent task, or we
+     *         have a processing hold. If null is returned the calling worker
+     *         has to exit; see {@link #isServiceRunning()} for whether the
+     *         whole service has to shut down. A new service is started if
+     *         either new items enter the queue or the processing is resumed.
      */
     public synchronized ProcessingTask popNextSession() {
-        if (!mQueue.isEmpty() && !mHoldProcessing) {
-            Log.d(TAG, "Popping a session. Remaining: " + (mQueue.size() - 1));
-            return mQueue.remove();
-        } else {
+        Entry entry = null;
+        if (!mHoldProcessing && canStartTask()) {
+            entry = pollQueues();
+        }
+        if (entry == null) {
             Log.d(TAG, "Popping null. On hold? " + mHoldProcessing);
-            mServiceRunning = false;
-            // Returning null will shut-down the service.
+            mWorkers--;
+            if (mWorkers == 0 && !mStartPending) {
+                mServiceRunning = false;
+            }
+            // Returning null will shut-down the worker.
             return null;
         }
+        Log.d(TAG, "Popping a session from " + entry.lane + ". Remaining: " + queueSizes());
+        LaneCounters counters = mCounters.get(entry.lane);
+        long waitMs = SystemClock.elapsedRealtime() - entry.enqueueTimeMs;
+        counters.totalWaitMs += waitMs;
+        counters.maxWaitMs = Math.max(counters.maxWaitMs, waitMs);
+        mRunning.add(entry);
+        if (mPaused) {
+            entry.task.suspend();
+        }
+        return entry.task;
+    }
+
+    /**
+     * Called by a worker once it has processed a task returned by
+     * {@link #popNextSession()}.
+     */
+    synchronized void onTaskDone(ProcessingTask task) {
+        for (int i = 0; i < mRunning.size(); i++) {
+            Entry entry = mRunning.get(i);
+            if (entry.task == task) {
+                mRunning.remove(i);
+                mCounters.get(entry.lane).completed++;
+                Log.v(TAG, entry.lane + " task done: " + getLaneMetrics(entry.lane));
+                break;
+            }
+        }
+        resumePreemptedTasksIfIdle();
+        startWorkerIfNeeded();
     }
 
     /**
      * @return Whether the service has queued items or is running.
      */
     public synchronized boolean isRunningOrHasItems() {
-        return mServiceRunning || !mQueue.isEmpty();
+        return mServiceRunning || countQueued() > 0;
+    }
+
+    /**
+     * @return Whether the service has to keep running. Once this returns
+     *         false after a worker exited, the service should stop itself.
+     */
+    synchronized boolean isServiceRunning() {
+        return mServiceRunning;
+    }
+
+    /**
+     * @return A snapshot of the queue of the given lane.
+     */
+    public synchronized LaneMetrics getLaneMetrics(Lane lane) {
+        int running = 0;
+        for (Entry entry : mRunning) {
+            if (entry.lane == lane) {
+                running++;
+            }
+        }
+        LaneCounters counters = mCounters.get(lane);
+        long averageWaitMs = (counters.completed + running == 0) ? 0
+                : counters.totalWaitMs / (counters.completed + running);
+        return new LaneMetrics(mQueues.get(lane).size(), running, counters.completed,
+                counters.preemptions, averageWaitMs, counters.maxWaitMs);
     }
 
     /**
@@ -134,13 +422,38 @@ public class ProcessingServiceManager implements ProcessingTaskConsumer {
      * Releases an existing hold.
      */
     public synchronized void resumeProcessing() {
-        Log.d(TAG, "Resume processing. Queue size: " + mQueue.size());
+        Log.d(TAG, "Resume processing. Queue sizes: " + queueSizes());
         if (mHoldProcessing) {
           mHoldProcessing = false;
-            if (!mQueue.isEmpty()) {
-                startService();
+          startWorkerIfNeeded();
+        }
+    }
+
+    /**
+     * Suspends all running tasks, and tasks started later, until
+     * {@link #resumeRunningTasks()} is called.
+     */
+    synchronized void pauseRunningTasks() {
+        mPaused = true;
+        for (Entry entry : mRunning) {
+            if (!entry.preempted) {
+                entry.task.suspend();
+            }
+        }
+    }
+
+    /**
+     * Resumes the tasks suspended by {@link #pauseRunningTasks()}. Tasks
+     * suspended for foreground work stay suspended until it is done.
+     */
+    synchronized void resumeRunningTasks() {
+        mPaused = false;
+        for (Entry entry : mRunning) {
+            if (!entry.preempted) {
+                entry.task.resume();
             }
         }
+        resumePreemptedTasksIfIdle();
     }
 
     /**
@@ -150,13 +463,162 @@ public class ProcessingServiceManager implements ProcessingTaskConsumer {
         return mImageBackend;
     }
 
+    @Override
+    public void onMemoryStateChanged(int state) {
+        mLowMemory = (state == MemoryManager.STATE_LOW_MEMORY);
+    }
+
+    @Override
+    public void onLowMemory() {
+        mLowMemory = true;
+    }
+
+    /**
+     * Starts the service, or asks the running service for another worker,
+     * if there is a queued task which can be started now.
+     */
+    @GuardedBy("this")
+    private void startWorkerIfNeeded() {
+        if (mHoldProcessing || mStartPending || countQueued() == 0) {
+            return;
+        }
+        if (countIdleWorkers() >= countQueued() || !canStartTask()) {
+            // An idle worker will pick up the task, or one becomes available
+            // when a running task is done.
+            return;
+        }
+        startService();
+    }
+
+    /**
+     * Suspends a running background task if the budget does not allow
+     * another task to start. Tasks which cannot be suspended keep running,
+     * and keep counting against the budget.
+     */
+    @GuardedBy("this")
+    private void preemptBackgroundTask() {
+        if (mHoldProcessing || canStartTask()) {
+            return;
+        }
+        int preempted = 0;
+        Entry victim = null;
+        for (Entry entry : mRunning) {
+            if (entry.preempted) {
+                preempted++;
+            } else if (entry.lane == Lane.BACKGROUND && entry.task.canSuspend()) {
+                // Prefer the most recently started task, which has lost the
+                // least work to the interruption.
+                victim = entry;
+            }
+        }
+        if (victim == null || preempted >= MAX_PREEMPTED_TASKS) {
+            return;
+        }
+        Log.d(TAG, "Suspending a background task for foreground work.");
+        victim.preempted = true;
+        mCounters.get(Lane.BACKGROUND).preemptions++;
+        if (!mPaused) {
+            victim.task.suspend();
+        }
+    }
+
+    /**
+     * Resumes pre-empted tasks once there is no foreground work left.
+     */
+    @GuardedBy("this")
+    private void resumePreemptedTasksIfIdle() {
+        if (!mQueues.get(Lane.FOREGROUND).isEmpty()) {
+            return;
+        }
+        for (Entry entry : mRunning) {
+            if (entry.lane == Lane.FOREGROUND && !entry.preempted) {
+                return;
+            }
+        }
+        for (Entry entry : mRunning) {
+            if (entry.preempted) {
+                entry.preempted = false;
+                if (!mPaused) {
+                    entry.task.resume();
+                }
+            }
+        }
+    }
+
+    /**
+     * @return Whether the CPU and memory budget allows another task to run
+     *         alongside the runnable ones. The first task is always allowed.
+     */
+    @GuardedBy("this")
+    private boolean canStartTask() {
+        int runnable = countRunnable();
+        if (runnable == 0) {
+            return true;
+        }
+        if (mLowMemory || runnable >= mMaxConcurrentTasks) {
+            return false;
+        }
+        Runtime runtime = Runtime.getRuntime();
+        long heapHeadroomBytes =
+                runtime.maxMemory() - (runtime.totalMemory() - runtime.freeMemory());
+        return heapHeadroomBytes >= HEAP_HEADROOM_PER_TASK_BYTES * runnable;
+    }
+
+    /** @return The number of running tasks which are not pre-empted. */
+    @GuardedBy("this")
+    private int countRunnable() {
+        int runnable = 0;
+        for (Entry entry : mRunning) {
+            if (!entry.preempted) {
+                runnable++;
+            }
+        }
+        return runnable;
+    }
+
+    /** @return The number of workers which are between two tasks. */
+    @GuardedBy("this")
+    private int countIdleWorkers() {
+        return mWorkers - mRunning.size();
+    }
+
+    @GuardedBy("this")
+    private int countQueued() {
+        int queued = 0;
+        for (ArrayDeque<Entry> queue : mQueues.values()) {
+            queued += queue.size();
+        }
+        return queued;
+    }
+
+    @Nullable
+    @GuardedBy("this")
+    private Entry pollQueues() {
+        // EnumMap iterates in declaration order, foreground first.
+        for (ArrayDeque<Entry> queue : mQueues.values()) {
+            if (!queue.isEmpty()) {
+                return queue.poll();
+            }
+        }
+        return null;
+    }
+
+    @GuardedBy("this")
+    private String queueSizes() {
+        return mQueues.get(Lane.FOREGROUND).size() + " foreground, "
+                + mQueues.get(Lane.BACKGROUND).size() + " background";
+    }
+
     /**
-     * Starts the service which will then work through the queue. Once the queue
-     * is empty {@link #popNextSession()} returns null), the task will kill
-     * itself automatically and call #stitchingFinished().
+     * Starts the service, which then adds workers as allowed by
+     * {@link #addWorker()}. Each worker takes tasks until
+     * {@link #popNextSession()} returns null, and the service kills itself
+     * once the last worker is done.
      */
+    @GuardedBy("this")
     private void startService() {
         mAppContext.startService(new Intent(mAppContext, ProcessingService.class));
+        mStartPending = true;
         mServiceRunning = true;
     }
 }
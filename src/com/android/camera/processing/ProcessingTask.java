@@ -78,6 +78,12 @@ public interface ProcessingTask {
      */
     public void resume();
 
+    /**
+     * @return Whether {@link #suspend()} actually pauses the task, so that
+     *         other tasks can use its share of the CPU and memory meanwhile.
+     */
+    public boolean canSuspend();
+
     /**
      * @return the name of the task. It can be null to indicate that the task
      *         has no name.
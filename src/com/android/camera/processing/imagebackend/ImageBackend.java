@@ -16,13 +16,14 @@
 
 package com.android.camera.processing.imagebackend;
 
-import android.os.Process;
+import android.graphics.ImageFormat;
 
-import com.android.camera.async.AndroidPriorityThread;
 import com.android.camera.debug.Log;
 import com.android.camera.processing.ProcessingTaskConsumer;
-import com.android.camera.processing.memory.ByteBufferDirectPool;
+import com.android.camera.processing.memory.ByteArrayPool;
+import com.android.camera.processing.memory.IntArrayPool;
 import com.android.camera.processing.memory.LruResourcePool;
+import com.android.camera.processing.memory.SlabByteBufferPool;
 import com.android.camera.session.CaptureSession;
 import com.android.camera.util.Size;
 import com.google.common.base.Optional;
@@ -33,12 +34,11 @@ import java.util.HashSet;
 import java.util.Map;
 import java.util.Set;
 import java.util.concurrent.Executor;
-import java.util.concurrent.ExecutorService;
-import java.util.concurrent.Executors;
-import java.util.concurrent.ThreadFactory;
 import java.util.concurrent.locks.Condition;
 import java.util.concurrent.locks.ReentrantLock;
 
+import javax.annotation.Nullable;
+
 /**
  * This ImageBackend is created for the purpose of creating a task-running
  * infrastructure that has two-level of priority and doing the book-keeping to
@@ -89,18 +89,14 @@ import java.util.concurrent.locks.ReentrantLock;
 public class ImageBackend implements ImageConsumer, ImageTaskManager {
     private static final Log.Tag TAG = new Log.Tag("ImageBackend");
 
-    protected static final int NUM_THREADS_FAST = 2;
-    protected static final int NUM_THREADS_AVERAGE = 2;
-    protected static final int NUM_THREADS_SLOW = 2;
-
-    private static final int FAST_THREAD_PRIORITY = Process.THREAD_PRIORITY_DISPLAY;
-    private static final int AVERAGE_THREAD_PRIORITY = Process.THREAD_PRIORITY_DEFAULT
-            + Process.THREAD_PRIORITY_LESS_FAVORABLE;
-    private static final int SLOW_THREAD_PRIORITY = Process.THREAD_PRIORITY_BACKGROUND
-            + Process.THREAD_PRIORITY_MORE_FAVORABLE;
-
     private static final int IMAGE_BACKEND_HARD_REF_POOL_SIZE = 2;
 
+    /**
+     * Fraction (as a divisor) of the app's native memory allowance that may
+     * be held by the direct byte buffer pool.
+     */
+    private static final int BYTE_BUFFER_POOL_NATIVE_MEMORY_DIVISOR = 8;
+
     protected final ProcessingTaskConsumer mProcessingTaskConsumer;
 
     /**
@@ -113,13 +109,19 @@ public class ImageBackend implements ImageConsumer, ImageTaskManager {
      */
     protected final Map<CaptureSession, ImageShadowTask> mShadowTaskMap;
 
-    // The available threadpools for scheduling
-    protected final ExecutorService mThreadPoolFast;
-    protected final ExecutorService mThreadPoolAverage;
-    protected final ExecutorService mThreadPoolSlow;
+    // The priority-aware worker pool shared by all tasks
+    protected final ImageTaskScheduler mScheduler;
 
     private final LruResourcePool<Integer, ByteBuffer> mByteBufferDirectPool;
 
+    private final LruResourcePool<Integer, int[]> mIntArrayPool;
+
+    /**
+     * Arrays for the NV21 copies of YUV images and their JPEGs, which are
+     * reused for every capture of a given size.
+     */
+    private final LruResourcePool<Integer, byte[]> mByteArrayPool;
+
     /**
      * Approximate viewable size (in pixels) for the fast thumbnail in the
      * current UX definition of the product. Note that these values will be the
@@ -147,39 +149,43 @@ public class ImageBackend implements ImageConsumer, ImageTaskManager {
     // Objects that may be registered to this objects events.
     private ImageProcessorProxyListener mProxyListener = null;
 
+    // Opt-in tracing of image references, null unless enabled.
+    @Nullable
+    private volatile ImageLifecycleTracer mLifecycleTracer = null;
+
     // Default constructor, values are conservatively targeted to the Nexus 6
-    public ImageBackend(ProcessingTaskConsumer processingTaskConsumer, int tinyThumbnailSize) {
-        mThreadPoolFast = Executors.newFixedThreadPool(NUM_THREADS_FAST, new FastThreadFactory());
-        mThreadPoolAverage = Executors.newFixedThreadPool(NUM_THREADS_AVERAGE,
-                new AverageThreadFactory());
-        mThreadPoolSlow = Executors.newFixedThreadPool(NUM_THREADS_SLOW, new SlowThreadFactory());
-        mByteBufferDirectPool = new ByteBufferDirectPool(IMAGE_BACKEND_HARD_REF_POOL_SIZE);
+    public ImageBackend(ProcessingTaskConsumer processingTaskConsumer, int tinyThumbnailSize,
+            int maxNativeMemoryMb) {
+        mScheduler = new ImageTaskScheduler();
+        mByteBufferDirectPool = new SlabByteBufferPool(
+                (long) maxNativeMemoryMb * 1024 * 1024 / BYTE_BUFFER_POOL_NATIVE_MEMORY_DIVISOR);
+        mIntArrayPool = new IntArrayPool(IMAGE_BACKEND_HARD_REF_POOL_SIZE);
+        mByteArrayPool = new ByteArrayPool(IMAGE_BACKEND_HARD_REF_POOL_SIZE);
         mProxyListener = new ImageProcessorProxyListener();
         mImageSemaphoreMap = new HashMap<>();
         mShadowTaskMap = new HashMap<>();
         mProcessingTaskConsumer = processingTaskConsumer;
         mTinyThumbnailTargetSize = new Size(tinyThumbnailSize, tinyThumbnailSize);
+        mLifecycleTracer = ImageLifecycleTracer.createFromDebugProperties();
     }
 
     /**
      * Direct Injection Constructor for Testing purposes.
      *
-     * @param fastService Service where Tasks of FAST Priority are placed.
-     * @param averageService Service where Tasks of AVERAGE Priority are placed.
-     * @param slowService Service where Tasks of SLOW Priority are placed.
+     * @param scheduler Scheduler where Tasks of all priorities are placed.
      * @param imageProcessorProxyListener iamge proxy listener to be used
      */
-    public ImageBackend(ExecutorService fastService,
-            ExecutorService averageService,
-            ExecutorService slowService,
+    public ImageBackend(ImageTaskScheduler scheduler,
             LruResourcePool<Integer, ByteBuffer> byteBufferDirectPool,
+            LruResourcePool<Integer, int[]> intArrayPool,
+            LruResourcePool<Integer, byte[]> byteArrayPool,
             ImageProcessorProxyListener imageProcessorProxyListener,
             ProcessingTaskConsumer processingTaskConsumer,
             int tinyThumbnailSize) {
-        mThreadPoolFast = fastService;
-        mThreadPoolAverage = averageService;
-        mThreadPoolSlow = slowService;
+        mScheduler = scheduler;
         mByteBufferDirectPool = byteBufferDirectPool;
+        mIntArrayPool = intArrayPool;
+        mByteArrayPool = byteArrayPool;
         mProxyListener = imageProcessorProxyListener;
         mImageSemaphoreMap = new HashMap<>();
         mShadowTaskMap = new HashMap<>();
@@ -197,6 +203,30 @@ public class ImageBackend implements ImageConsumer, ImageTaskManager {
         return mProxyListener;
     }
 
+    /**
+     * Sets the tracer that records which tasks hold each image. Images
+     * received before the tracer is set are not traced, and the previous
+     * tracer stops checking for stalls.
+     *
+     * @param tracer The tracer to use, or null to turn tracing off.
+     */
+    public void setLifecycleTracer(@Nullable ImageLifecycleTracer tracer) {
+        ImageLifecycleTracer previous = mLifecycleTracer;
+        mLifecycleTracer = tracer;
+        if (previous != null && previous != tracer) {
+            previous.shutdown();
+        }
+    }
+
+    /**
+     * @return the tracer that records which tasks hold each image, or null if
+     *         image lifecycle tracing is off.
+     */
+    @Nullable
+    public ImageLifecycleTracer getLifecycleTracer() {
+        return mLifecycleTracer;
+    }
+
     /**
      * Wrapper function for all log messages created by this object. Default
      * implementation is to send messages to the Android logger. For test
@@ -220,6 +250,17 @@ public class ImageBackend implements ImageConsumer, ImageTaskManager {
         }
     }
 
+    /**
+     * Returns the number of tasks of a given priority that are waiting to be
+     * run.
+     *
+     * @param priority The priority of the queue to be inspected
+     * @return The number of tasks currently enqueued at that priority
+     */
+    public int getQueueDepth(TaskImageContainer.ProcessingPriority priority) {
+        return mScheduler.getQueueDepth(priority);
+    }
+
     /**
      * Returns of the number of receiveImage calls that are currently enqueued
      * and/or being processed.
@@ -261,6 +302,10 @@ public class ImageBackend implements ImageConsumer, ImageTaskManager {
             protocol.addCount(-1);
             mOutstandingImageRefs--;
             logWrapper("Ref release.  Total refs = " + mOutstandingImageRefs);
+            ImageLifecycleTracer tracer = mLifecycleTracer;
+            if (tracer != null) {
+                tracer.onReferenceReleased(img, protocol.getCount() == 0);
+            }
             if (protocol.getCount() == 0) {
                 // Image is ready to be released
                 // Remove the image from the map so that it may be submitted
@@ -307,6 +352,11 @@ public class ImageBackend implements ImageConsumer, ImageTaskManager {
             // If you're still holding onto the reference, make sure you keep
             // count
             incrementSemaphoreReferenceCount(img, countImageRefs);
+
+            ImageLifecycleTracer tracer = mLifecycleTracer;
+            if (tracer != null) {
+                tracer.onReferencesAppended(img, tasks);
+            }
         }
 
         // Update the done count on the new tasks.
@@ -396,6 +446,9 @@ public class ImageBackend implements ImageConsumer, ImageTaskManager {
                 "OutstandingImageRefs = " + mOutstandingImageRefs + "\n" +
                 "Proxy Listener Map Size = " + mProxyListener.getMapSize() + "\n" +
                 "Proxy Listener = " + mProxyListener.getNumRegisteredListeners() + "\n" +
+                "Scheduler = " + mScheduler + "\n" +
+                "Byte Buffer Pool = " + mByteBufferDirectPool + "\n" +
+                (mLifecycleTracer != null ? mLifecycleTracer.toString() : "") +
                 "ImageBackend Status END:\n";
     }
 
@@ -449,6 +502,11 @@ public class ImageBackend implements ImageConsumer, ImageTaskManager {
         ImageReleaseProtocol protocol = setSemaphoreReferenceCount(img, countImageRefs,
                 blockUntilImageRelease, closeOnImageRelease);
 
+        ImageLifecycleTracer tracer = mLifecycleTracer;
+        if (tracer != null) {
+            tracer.onImageReceived(img, tasks);
+        }
+
         // Put the tasks on their respective queues.
         scheduleTasks(tasks);
 
@@ -502,12 +560,12 @@ public class ImageBackend implements ImageConsumer, ImageTaskManager {
                 // JPEG compression of the YUV Image, and writes the result to
                 // disk
                 tasksToExecute.add(new TaskPreviewChainedJpeg(img, executor, this, session,
-                        FILMSTRIP_THUMBNAIL_TARGET_SIZE, mByteBufferDirectPool));
+                        FILMSTRIP_THUMBNAIL_TARGET_SIZE, mByteBufferDirectPool, mIntArrayPool,
+                        mByteArrayPool));
             } else {
                 // Request job that only does JPEG compression and writes the
                 // result to disk
-                tasksToExecute.add(new TaskCompressImageToJpeg(img, executor, this, session,
-                      mByteBufferDirectPool));
+                tasksToExecute.add(createTaskCompressImageToJpeg(img, executor, this, session));
             }
         }
 
@@ -516,7 +574,8 @@ public class ImageBackend implements ImageConsumer, ImageTaskManager {
             tasksToExecute.add(new TaskConvertImageToRGBPreview(img, executor,
                     this, TaskImageContainer.ProcessingPriority.FAST, session,
                     mTinyThumbnailTargetSize,
-                    TaskConvertImageToRGBPreview.ThumbnailShape.SQUARE_ASPECT_CIRCULAR_INSET));
+                    TaskConvertImageToRGBPreview.ThumbnailShape.SQUARE_ASPECT_CIRCULAR_INSET,
+                    mIntArrayPool));
         }
 
         // Wrap the listener in a runnable that will be fired when all tasks are
@@ -557,13 +616,30 @@ public class ImageBackend implements ImageConsumer, ImageTaskManager {
             TaskConvertImageToRGBPreview.ThumbnailShape thumbnailShape) {
         return new TaskConvertImageToRGBPreview(image, executor, imageBackend,
                 TaskImageContainer.ProcessingPriority.FAST, session,
-                mTinyThumbnailTargetSize, thumbnailShape);
+                mTinyThumbnailTargetSize, thumbnailShape, mIntArrayPool);
     }
 
-    public TaskCompressImageToJpeg createTaskCompressImageToJpeg(ImageToProcess image,
-            Executor executor, ImageBackend imageBackend, CaptureSession session) {
-        return new TaskCompressImageToJpeg(image, executor, imageBackend, session,
-              mByteBufferDirectPool);
+    public TaskJpegEncode createTaskCompressImageToJpeg(ImageToProcess image,
+            Executor executor, ImageTaskManager imageTaskManager, CaptureSession session) {
+        return createTaskCompressImageToJpeg(image, executor, imageTaskManager, session,
+                mByteBufferDirectPool, mByteArrayPool);
+    }
+
+    /**
+     * Creates the task which compresses an image to the final JPEG and saves
+     * it. YUV images are copied to pooled NV21 arrays and released before
+     * they are compressed; JPEG images are passed through.
+     */
+    static TaskJpegEncode createTaskCompressImageToJpeg(ImageToProcess image,
+            Executor executor, ImageTaskManager imageTaskManager, CaptureSession session,
+            LruResourcePool<Integer, ByteBuffer> byteBufferDirectPool,
+            LruResourcePool<Integer, byte[]> byteArrayPool) {
+        if (image.proxy.getFormat() == ImageFormat.YUV_420_888) {
+            return new TaskChainedCompressImageToJpeg(image, executor, imageTaskManager,
+                    session, byteArrayPool);
+        }
+        return new TaskCompressImageToJpeg(image, executor, imageTaskManager, session,
+                byteBufferDirectPool);
     }
 
     /**
@@ -571,8 +647,7 @@ public class ImageBackend implements ImageConsumer, ImageTaskManager {
      */
     @Override
     public void shutdown() {
-        mThreadPoolSlow.shutdown();
-        mThreadPoolFast.shutdown();
+        mScheduler.shutdown();
     }
 
     /**
@@ -658,8 +733,8 @@ public class ImageBackend implements ImageConsumer, ImageTaskManager {
     }
 
     /**
-     * Puts the tasks on the specified queue. May be more complicated in the
-     * future.
+     * Puts the tasks on the scheduler lane that matches their processing
+     * priority.
      *
      * @param tasks The set of tasks to be run
      */
@@ -673,20 +748,8 @@ public class ImageBackend implements ImageConsumer, ImageTaskManager {
                 // Before scheduling, wrap TaskImageContainer inside of the
                 // TaskDoneWrapper to add
                 // instrumentation for managing ImageShadowTasks
-                switch (task.getProcessingPriority()) {
-                    case FAST:
-                        mThreadPoolFast.execute(new TaskDoneWrapper(this, shadowTask, task));
-                        break;
-                    case AVERAGE:
-                        mThreadPoolAverage.execute(new TaskDoneWrapper(this, shadowTask, task));
-                        break;
-                    case SLOW:
-                        mThreadPoolSlow.execute(new TaskDoneWrapper(this, shadowTask, task));
-                        break;
-                    default:
-                        mThreadPoolSlow.execute(new TaskDoneWrapper(this, shadowTask, task));
-                        break;
-                }
+                mScheduler.execute(new TaskDoneWrapper(this, shadowTask, task),
+                        task.getProcessingPriority());
             }
         }
     }
@@ -826,7 +889,17 @@ public class ImageBackend implements ImageConsumer, ImageTaskManager {
          */
         @Override
         public void run() {
-            mWrappedTask.run();
+            if (mLifecycleTracer != null) {
+                // Attribute the image releases made by the task to it.
+                ImageLifecycleTracer.setCurrentTask(mWrappedTask);
+                try {
+                    mWrappedTask.run();
+                } finally {
+                    ImageLifecycleTracer.setCurrentTask(null);
+                }
+            } else {
+                mWrappedTask.run();
+            }
             // Decrement count
             if (mImageBackend.decrementTaskDone(mImageShadowTask)) {
                 // If you're the last one...
@@ -923,29 +996,4 @@ public class ImageBackend implements ImageConsumer, ImageTaskManager {
 
     }
 
-    // Thread factories for a default constructor
-    private class FastThreadFactory implements ThreadFactory {
-        @Override
-        public Thread newThread(Runnable r) {
-            Thread t = new AndroidPriorityThread(FAST_THREAD_PRIORITY, r);
-            return t;
-        }
-    }
-
-    private class AverageThreadFactory implements ThreadFactory {
-        @Override
-        public Thread newThread(Runnable r) {
-            Thread t = new AndroidPriorityThread(AVERAGE_THREAD_PRIORITY, r);
-            return t;
-        }
-    }
-
-    private class SlowThreadFactory implements ThreadFactory {
-        @Override
-        public Thread newThread(Runnable r) {
-            Thread t = new AndroidPriorityThread(SLOW_THREAD_PRIORITY, r);
-            return t;
-        }
-    }
-
 }
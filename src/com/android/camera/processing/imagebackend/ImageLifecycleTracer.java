@@ -0,0 +1,400 @@
+/*
+ * Copyright (C) 2015 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.camera.processing.imagebackend;
+
+import android.os.SystemClock;
+
+import com.android.camera.debug.DebugPropertyHelper;
+import com.android.camera.debug.Log;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+
+import javax.annotation.Nullable;
+import javax.annotation.concurrent.GuardedBy;
+
+/**
+ * Opt-in book-keeping of which ImageBackend tasks hold a reference to which
+ * image. Every image reference is attributed to the TaskImageContainer that
+ * it was handed to, and every release to the task that is running on the
+ * releasing thread. When an image is fully released, the time each task held
+ * it is added to a hold-time histogram of that task's class. Images that are
+ * still held after the stall threshold are logged once, along with their
+ * holders, which is usually enough to find the task that starves the
+ * ImageReader of buffers. Each image is checked once its threshold expires,
+ * on a timer rather than on the next event, since no more images arrive once
+ * the ImageReader is out of buffers. When stack capture is on, the stacks of
+ * the calls that acquired and released each reference are kept and logged as
+ * well.
+ * <p>
+ * The tracer is off unless enabled through {@link DebugPropertyHelper}, in
+ * which case ImageBackend does nothing more than a null check per event.
+ */
+public class ImageLifecycleTracer {
+    private static final Log.Tag TAG = new Log.Tag("ImageLifecycle");
+
+    /** Default time after which a held image is reported as stalled. */
+    public static final long DEFAULT_STALL_THRESHOLD_MS = 1000;
+
+    /**
+     * Number of hold-time histogram buckets. Bucket 0 counts holds shorter
+     * than 1ms, bucket i counts holds in [2^(i-1), 2^i) ms, and the last one
+     * everything longer.
+     */
+    private static final int NUM_HISTOGRAM_BUCKETS = 13;
+
+    /** Name under which releases from outside of any task are recorded. */
+    private static final String UNATTRIBUTED = "<unattributed>";
+
+    /** Histogram key of the time from receiveImage to the last release. */
+    private static final String IMAGE_LIFETIME = "<image>";
+
+    /** The task that the current ImageBackend thread is running, if any. */
+    private static final ThreadLocal<TaskImageContainer> sCurrentTask =
+            new ThreadLocal<TaskImageContainer>();
+
+    /** An acquire or a release of a single image reference. */
+    private static class Event {
+        @Nullable
+        final TaskImageContainer task;
+        final String taskName;
+        final long timeMs;
+        @Nullable
+        final Throwable stack;
+
+        Event(@Nullable TaskImageContainer aTask, String aTaskName, long aTimeMs,
+                @Nullable Throwable aStack) {
+            task = aTask;
+            taskName = aTaskName;
+            timeMs = aTimeMs;
+            stack = aStack;
+        }
+    }
+
+    /** The references currently held on, and released from, one image. */
+    private static class ImageTrace {
+        final long receiveTimeMs;
+        final List<Event> holds = new ArrayList<>();
+        final List<Event> releases = new ArrayList<>();
+        boolean stallReported = false;
+
+        ImageTrace(long aReceiveTimeMs) {
+            receiveTimeMs = aReceiveTimeMs;
+        }
+    }
+
+    private final boolean mCaptureStacks;
+    private final long mStallThresholdMs;
+    /** Runs the stall check of each image once its threshold expires. */
+    private final ScheduledExecutorService mStallCheckExecutor;
+
+    private final Runnable mStallCheck = new Runnable() {
+        @Override
+        public void run() {
+            reportStalls();
+        }
+    };
+
+    @GuardedBy("this")
+    private final Map<ImageToProcess, ImageTrace> mTraces = new HashMap<>();
+    @GuardedBy("this")
+    private final Map<String, long[]> mHoldHistograms = new TreeMap<>();
+    @GuardedBy("this")
+    private int mImagesTraced = 0;
+    @GuardedBy("this")
+    private int mStalledImages = 0;
+    @GuardedBy("this")
+    private int mUnattributedReleases = 0;
+
+    /**
+     * @param captureStacks Whether to keep the stacks of every acquire and
+     *            release, in addition to task names.
+     * @param stallThresholdMs Time after which a held image is reported.
+     */
+    public ImageLifecycleTracer(boolean captureStacks, long stallThresholdMs) {
+        this(captureStacks, stallThresholdMs, Executors.newSingleThreadScheduledExecutor());
+    }
+
+    /**
+     * @param captureStacks Whether to keep the stacks of every acquire and
+     *            release, in addition to task names.
+     * @param stallThresholdMs Time after which a held image is reported.
+     * @param stallCheckExecutor Executor on which held images are checked
+     *            for stalls.
+     */
+    public ImageLifecycleTracer(boolean captureStacks, long stallThresholdMs,
+            ScheduledExecutorService stallCheckExecutor) {
+        mCaptureStacks = captureStacks;
+        mStallThresholdMs = stallThresholdMs;
+        mStallCheckExecutor = stallCheckExecutor;
+    }
+
+    /**
+     * @return a tracer configured from the debug properties, or null if image
+     *         lifecycle tracing is off.
+     */
+    @Nullable
+    public static ImageLifecycleTracer createFromDebugProperties() {
+        if (!DebugPropertyHelper.traceImageLifecycle()) {
+            return null;
+        }
+        return new ImageLifecycleTracer(DebugPropertyHelper.traceImageLifecycleStacks(),
+                DEFAULT_STALL_THRESHOLD_MS);
+    }
+
+    /**
+     * Marks the task that runs on the calling thread, so that the releases it
+     * makes may be attributed to it. Pass null once the task is done.
+     */
+    static void setCurrentTask(@Nullable TaskImageContainer task) {
+        sCurrentTask.set(task);
+    }
+
+    /**
+     * Records the initial references of an image submitted by receiveImage,
+     * and schedules the check of whether it is still held once the stall
+     * threshold expires.
+     */
+    public synchronized void onImageReceived(ImageToProcess img, Set<TaskImageContainer> tasks) {
+        long now = SystemClock.elapsedRealtime();
+        ImageTrace trace = new ImageTrace(now);
+        mTraces.put(img, trace);
+        mImagesTraced++;
+        addHolds(trace, tasks, now);
+        mStallCheckExecutor.schedule(mStallCheck, mStallThresholdMs, TimeUnit.MILLISECONDS);
+    }
+
+    /** Records the references that a running task hands to its new tasks. */
+    public synchronized void onReferencesAppended(ImageToProcess img,
+            Set<TaskImageContainer> tasks) {
+        ImageTrace trace = mTraces.get(img);
+        if (trace == null) {
+            // Tracing was turned on after this image was received.
+            return;
+        }
+        addHolds(trace, tasks, SystemClock.elapsedRealtime());
+    }
+
+    /**
+     * Records the release of one reference to an image by the task running on
+     * the calling thread.
+     *
+     * @param img The image whose reference is released.
+     * @param lastReference Whether no references to the image remain.
+     */
+    public synchronized void onReferenceReleased(ImageToProcess img, boolean lastReference) {
+        ImageTrace trace = mTraces.get(img);
+        if (trace == null) {
+            return;
+        }
+        long now = SystemClock.elapsedRealtime();
+        Event hold = removeHold(trace, sCurrentTask.get());
+        if (hold != null) {
+            addToHistogram(hold.taskName, now - hold.timeMs);
+            trace.releases.add(new Event(null, hold.taskName, now, captureStack("Released")));
+        }
+        if (lastReference) {
+            addToHistogram(IMAGE_LIFETIME, now - trace.receiveTimeMs);
+            mTraces.remove(img);
+        }
+    }
+
+    /**
+     * Logs every image that has been held past the stall threshold and has
+     * not been reported yet. This runs for each image once its threshold
+     * expires, and may also be called to check right away.
+     *
+     * @return the number of images newly reported.
+     */
+    public synchronized int reportStalls() {
+        return reportStalls(SystemClock.elapsedRealtime());
+    }
+
+    /**
+     * @return the number of images reported as stalled so far.
+     */
+    public synchronized int getNumberOfStalledImages() {
+        return mStalledImages;
+    }
+
+    /**
+     * Stops checking for stalls. Images received afterwards are not checked.
+     */
+    public void shutdown() {
+        mStallCheckExecutor.shutdownNow();
+    }
+
+    /**
+     * @return the number of images currently held by ImageBackend tasks.
+     */
+    public synchronized int getNumberOfTracedImages() {
+        return mTraces.size();
+    }
+
+    /**
+     * @return a multi-line summary of the hold-time histograms and of the
+     *         images that are currently held.
+     */
+    @Override
+    public synchronized String toString() {
+        long now = SystemClock.elapsedRealtime();
+        StringBuilder builder = new StringBuilder();
+        builder.append("ImageLifecycleTracer: traced = ").append(mImagesTraced)
+                .append(", held = ").append(mTraces.size())
+                .append(", stalled = ").append(mStalledImages)
+                .append(", unattributed releases = ").append(mUnattributedReleases)
+                .append('\n');
+        for (Map.Entry<String, long[]> histogram : mHoldHistograms.entrySet()) {
+            builder.append("  ").append(histogram.getKey()).append(" hold ms:");
+            appendHistogram(builder, histogram.getValue());
+            builder.append('\n');
+        }
+        for (ImageTrace trace : mTraces.values()) {
+            appendTrace(builder, trace, now);
+        }
+        return builder.toString();
+    }
+
+    @GuardedBy("this")
+    private void addHolds(ImageTrace trace, Set<TaskImageContainer> tasks, long now) {
+        for (TaskImageContainer task : tasks) {
+            if (task.mImage == null) {
+                continue;
+            }
+            trace.holds.add(new Event(task, getTaskName(task), now, captureStack("Acquired")));
+        }
+    }
+
+    /**
+     * Removes the hold of the given task, falling back to the oldest hold
+     * when the release does not come from a task holding the image.
+     */
+    @GuardedBy("this")
+    @Nullable
+    private Event removeHold(ImageTrace trace, @Nullable TaskImageContainer task) {
+        if (task != null) {
+            Iterator<Event> holds = trace.holds.iterator();
+            while (holds.hasNext()) {
+                Event hold = holds.next();
+                if (hold.task == task) {
+                    holds.remove();
+                    return hold;
+                }
+            }
+        }
+        mUnattributedReleases++;
+        if (trace.holds.isEmpty()) {
+            return null;
+        }
+        Event oldest = trace.holds.remove(0);
+        return new Event(null, oldest.taskName + " " + UNATTRIBUTED, oldest.timeMs,
+                oldest.stack);
+    }
+
+    @GuardedBy("this")
+    private int reportStalls(long now) {
+        int reported = 0;
+        for (ImageTrace trace : mTraces.values()) {
+            if (trace.stallReported || now - trace.receiveTimeMs < mStallThresholdMs) {
+                continue;
+            }
+            trace.stallReported = true;
+            mStalledImages++;
+            reported++;
+            StringBuilder builder = new StringBuilder("Image held past ")
+                    .append(mStallThresholdMs).append("ms\n");
+            appendTrace(builder, trace, now);
+            Log.w(TAG, builder.toString());
+            for (Event hold : trace.holds) {
+                if (hold.stack != null) {
+                    Log.w(TAG, "Held by " + hold.taskName, hold.stack);
+                }
+            }
+            for (Event release : trace.releases) {
+                if (release.stack != null) {
+                    Log.w(TAG, "Released by " + release.taskName, release.stack);
+                }
+            }
+        }
+        return reported;
+    }
+
+    @GuardedBy("this")
+    private void addToHistogram(String taskName, long holdMs) {
+        long[] histogram = mHoldHistograms.get(taskName);
+        if (histogram == null) {
+            histogram = new long[NUM_HISTOGRAM_BUCKETS];
+            mHoldHistograms.put(taskName, histogram);
+        }
+        histogram[getBucket(holdMs)]++;
+    }
+
+    @Nullable
+    private Throwable captureStack(String what) {
+        return mCaptureStacks ? new Throwable(what + " on " + Thread.currentThread().getName())
+                : null;
+    }
+
+    private static void appendTrace(StringBuilder builder, ImageTrace trace, long now) {
+        builder.append("  image held ").append(now - trace.receiveTimeMs).append("ms by [");
+        for (int i = 0; i < trace.holds.size(); i++) {
+            Event hold = trace.holds.get(i);
+            builder.append(i == 0 ? "" : ", ").append(hold.taskName)
+                    .append(" (").append(now - hold.timeMs).append("ms)");
+        }
+        builder.append("], released by [");
+        for (int i = 0; i < trace.releases.size(); i++) {
+            builder.append(i == 0 ? "" : ", ").append(trace.releases.get(i).taskName);
+        }
+        builder.append("]\n");
+    }
+
+    private static void appendHistogram(StringBuilder builder, long[] histogram) {
+        for (int bucket = 0; bucket < histogram.length; bucket++) {
+            if (histogram[bucket] == 0) {
+                continue;
+            }
+            if (bucket == histogram.length - 1) {
+                builder.append(" >=").append(1L << (bucket - 1));
+            } else {
+                builder.append(" <").append(1L << bucket);
+            }
+            builder.append(':').append(histogram[bucket]);
+        }
+    }
+
+    private static int getBucket(long holdMs) {
+        if (holdMs < 1) {
+            return 0;
+        }
+        int bucket = 64 - Long.numberOfLeadingZeros(holdMs);
+        return Math.min(bucket, NUM_HISTOGRAM_BUCKETS - 1);
+    }
+
+    private static String getTaskName(TaskImageContainer task) {
+        String name = task.getClass().getSimpleName();
+        return name.isEmpty() ? task.getClass().getName() : name;
+    }
+}
@@ -119,6 +119,11 @@ class ImageShadowTask implements ProcessingTask {
         // Do nothing. We are unresumable.
     }
 
+    @Override
+    public boolean canSuspend() {
+        return false;
+    }
+
     @Override
     public String getName() {
         // Name is only required when Session is NULL. Session should never be
@@ -0,0 +1,300 @@
+/*
+ * Copyright (C) 2014 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.camera.processing.imagebackend;
+
+import android.os.Process;
+
+import com.android.camera.debug.Log;
+import com.android.camera.processing.imagebackend.TaskImageContainer.ProcessingPriority;
+
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * A single pool of worker threads, sized to the number of available cores,
+ * that schedules ImageBackend tasks by their ProcessingPriority. Every
+ * priority has its own lane, and every worker has a home lane that it serves
+ * first. A worker whose home lane is empty steals work from the other lanes,
+ * highest priority first, so that no core sits idle while work is queued. A
+ * task that has been waiting longer than the aging threshold is served ahead
+ * of the home lane of the next worker that becomes free, which bounds the
+ * latency of low priority work during bursts of high priority work. Workers
+ * adopt the Android thread priority of the lane of the task being run.
+ */
+public class ImageTaskScheduler {
+    private static final Log.Tag TAG = new Log.Tag("ImageTaskSched");
+
+    /** Minimum number of workers, so that every lane has a home worker. */
+    private static final int MIN_NUM_WORKERS = ProcessingPriority.values().length;
+
+    /** Default wait after which a queued task is served regardless of lane. */
+    private static final long DEFAULT_AGING_THRESHOLD_MS = 300;
+
+    private static final int[] LANE_THREAD_PRIORITY = new int[] {
+            // FAST
+            Process.THREAD_PRIORITY_DISPLAY,
+            // AVERAGE
+            Process.THREAD_PRIORITY_DEFAULT + Process.THREAD_PRIORITY_LESS_FAVORABLE,
+            // SLOW
+            Process.THREAD_PRIORITY_BACKGROUND + Process.THREAD_PRIORITY_MORE_FAVORABLE,
+    };
+
+    /**
+     * Queue entry that remembers when the task was enqueued so that it may be
+     * aged.
+     */
+    private static class PendingTask {
+        final Runnable runnable;
+        final int lane;
+        final long enqueueTimeNs;
+
+        PendingTask(Runnable aRunnable, int aLane, long anEnqueueTimeNs) {
+            runnable = aRunnable;
+            lane = aLane;
+            enqueueTimeNs = anEnqueueTimeNs;
+        }
+    }
+
+    private final ConcurrentLinkedQueue<PendingTask>[] mLanes;
+    private final AtomicInteger[] mLaneDepth;
+    private final AtomicInteger[] mAgedTaskCount;
+    private final AtomicInteger[] mStolenTaskCount;
+
+    /** One permit per queued task, plus one per worker once shut down. */
+    private final Semaphore mAvailableTasks = new Semaphore(0);
+    private final Worker[] mWorkers;
+    private final long mAgingThresholdNs;
+    private volatile boolean mShutdown = false;
+
+    /**
+     * Creates a scheduler with one worker per available core and the default
+     * aging threshold.
+     */
+    public ImageTaskScheduler() {
+        this(Math.max(MIN_NUM_WORKERS, Runtime.getRuntime().availableProcessors()),
+                DEFAULT_AGING_THRESHOLD_MS);
+    }
+
+    /**
+     * @param numWorkers Number of worker threads. At least one worker is
+     *            homed on each lane.
+     * @param agingThresholdMs Wait after which a queued task is served ahead
+     *            of higher priority lanes.
+     */
+    @SuppressWarnings("unchecked")
+    public ImageTaskScheduler(int numWorkers, long agingThresholdMs) {
+        int numLanes = ProcessingPriority.values().length;
+        mLanes = new ConcurrentLinkedQueue[numLanes];
+        mLaneDepth = new AtomicInteger[numLanes];
+        mAgedTaskCount = new AtomicInteger[numLanes];
+        mStolenTaskCount = new AtomicInteger[numLanes];
+        for (int lane = 0; lane < numLanes; lane++) {
+            mLanes[lane] = new ConcurrentLinkedQueue<>();
+            mLaneDepth[lane] = new AtomicInteger(0);
+            mAgedTaskCount[lane] = new AtomicInteger(0);
+            mStolenTaskCount[lane] = new AtomicInteger(0);
+        }
+        mAgingThresholdNs = TimeUnit.MILLISECONDS.toNanos(agingThresholdMs);
+
+        numWorkers = Math.max(MIN_NUM_WORKERS, numWorkers);
+        mWorkers = new Worker[numWorkers];
+        for (int i = 0; i < numWorkers; i++) {
+            mWorkers[i] = new Worker(i % numLanes);
+            mWorkers[i].setName("ImageBackend-" + i);
+            mWorkers[i].start();
+        }
+    }
+
+    /**
+     * Enqueues a task on the lane of the given priority.
+     *
+     * @param runnable The task to be run.
+     * @param priority The lane on which the task is enqueued.
+     * @throws RejectedExecutionException if the scheduler has been shut down.
+     */
+    public void execute(Runnable runnable, ProcessingPriority priority) {
+        if (mShutdown) {
+            throw new RejectedExecutionException("ImageTaskScheduler has been shut down.");
+        }
+        int lane = priority.ordinal();
+        mLanes[lane].add(new PendingTask(runnable, lane, System.nanoTime()));
+        mLaneDepth[lane].incrementAndGet();
+        mAvailableTasks.release();
+    }
+
+    /**
+     * @return The number of tasks currently waiting on the lane of the given
+     *         priority.
+     */
+    public int getQueueDepth(ProcessingPriority priority) {
+        return mLaneDepth[priority.ordinal()].get();
+    }
+
+    /**
+     * @return The number of tasks of the given priority that were served
+     *         ahead of their lane because they waited past the aging threshold.
+     */
+    public int getAgedTaskCount(ProcessingPriority priority) {
+        return mAgedTaskCount[priority.ordinal()].get();
+    }
+
+    /**
+     * @return The number of tasks of the given priority that were run by a
+     *         worker homed on another lane.
+     */
+    public int getStolenTaskCount(ProcessingPriority priority) {
+        return mStolenTaskCount[priority.ordinal()].get();
+    }
+
+    /**
+     * @return The number of worker threads.
+     */
+    public int getNumWorkers() {
+        return mWorkers.length;
+    }
+
+    /**
+     * Stops accepting new tasks. Tasks that are already queued are still run,
+     * after which the workers exit.
+     */
+    public void shutdown() {
+        if (mShutdown) {
+            return;
+        }
+        mShutdown = true;
+        // Wake every worker so that it may notice the shutdown once the lanes
+        // are drained.
+        mAvailableTasks.release(mWorkers.length);
+    }
+
+    @Override
+    public String toString() {
+        StringBuilder builder = new StringBuilder("ImageTaskScheduler workers = ")
+                .append(mWorkers.length);
+        for (ProcessingPriority priority : ProcessingPriority.values()) {
+            builder.append(", ").append(priority)
+                    .append(" depth/aged/stolen = ")
+                    .append(getQueueDepth(priority)).append('/')
+                    .append(getAgedTaskCount(priority)).append('/')
+                    .append(getStolenTaskCount(priority));
+        }
+        return builder.toString();
+    }
+
+    /**
+     * Removes the next task to be run by a worker homed on the given lane, or
+     * null if all the lanes are empty.
+     */
+    private PendingTask pollNext(int homeLane) {
+        // Aged tasks are served first, lowest priority lane first since its
+        // tasks are the ones that are starved by design.
+        long now = System.nanoTime();
+        for (int lane = mLanes.length - 1; lane > 0; lane--) {
+            PendingTask head = mLanes[lane].peek();
+            if (head != null && now - head.enqueueTimeNs > mAgingThresholdNs) {
+                PendingTask aged = pollLane(lane);
+                if (aged != null) {
+                    mAgedTaskCount[lane].incrementAndGet();
+                    return aged;
+                }
+            }
+        }
+
+        PendingTask task = pollLane(homeLane);
+        if (task != null) {
+            return task;
+        }
+
+        // Home lane is empty, steal from the others, highest priority first.
+        for (int lane = 0; lane < mLanes.length; lane++) {
+            if (lane == homeLane) {
+                continue;
+            }
+            task = pollLane(lane);
+            if (task != null) {
+                mStolenTaskCount[lane].incrementAndGet();
+                return task;
+            }
+        }
+        return null;
+    }
+
+    private boolean isEmpty() {
+        for (ConcurrentLinkedQueue<PendingTask> lane : mLanes) {
+            if (!lane.isEmpty()) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    private PendingTask pollLane(int lane) {
+        PendingTask task = mLanes[lane].poll();
+        if (task != null) {
+            mLaneDepth[lane].decrementAndGet();
+        }
+        return task;
+    }
+
+    private class Worker extends Thread {
+        private final int mHomeLane;
+        private int mCurrentThreadPriority;
+
+        Worker(int homeLane) {
+            mHomeLane = homeLane;
+            mCurrentThreadPriority = LANE_THREAD_PRIORITY[homeLane];
+        }
+
+        @Override
+        public void run() {
+            Process.setThreadPriority(mCurrentThreadPriority);
+            while (true) {
+                try {
+                    mAvailableTasks.acquire();
+                } catch (InterruptedException e) {
+                    Log.w(TAG, "Worker interrupted, exiting.");
+                    return;
+                }
+
+                PendingTask task = pollNext(mHomeLane);
+                if (task == null) {
+                    if (mShutdown && isEmpty()) {
+                        return;
+                    }
+                    // Another worker took the task we raced for while its
+                    // own task is still queued. Hand the permit back.
+                    mAvailableTasks.release();
+                    continue;
+                }
+
+                int threadPriority = LANE_THREAD_PRIORITY[task.lane];
+                if (threadPriority != mCurrentThreadPriority) {
+                    Process.setThreadPriority(threadPriority);
+                    mCurrentThreadPriority = threadPriority;
+                }
+                try {
+                    task.runnable.run();
+                } catch (RuntimeException e) {
+                    Log.e(TAG, "Uncaught exception in image task.", e);
+                }
+            }
+        }
+    }
+}
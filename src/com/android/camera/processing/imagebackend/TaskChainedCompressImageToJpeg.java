@@ -17,12 +17,18 @@
 package com.android.camera.processing.imagebackend;
 
 import android.graphics.ImageFormat;
-
 import android.graphics.Rect;
+
 import com.android.camera.debug.Log;
+import com.android.camera.exif.ExifInterface;
 import com.android.camera.one.v2.camera2proxy.ImageProxy;
+import com.android.camera.processing.memory.LruResourcePool;
+import com.android.camera.processing.memory.LruResourcePool.Resource;
+import com.android.camera.processing.memory.PooledByteArrayOutputStream;
 import com.android.camera.session.CaptureSession;
+import com.google.common.base.Optional;
 
+import java.nio.ByteBuffer;
 import java.util.List;
 import java.util.concurrent.Executor;
 
@@ -30,16 +36,25 @@ import java.util.concurrent.Executor;
  * Implements the conversion of a YUV_420_888 image to compressed JPEG byte
  * array, as two separate tasks: the first to copy from the image to NV21 memory
  * layout, and the second to convert the image into JPEG, using the built-in
- * Android compressor.
- *
- * TODO: Implement cropping, if required.
+ * Android compressor, and to save it. Splitting the work returns the image to
+ * the camera as soon as it is copied, rather than once it is compressed. Both
+ * the NV21 copy and the JPEG output are held in arrays from a pool, and the
+ * JPEG is handed to the listeners without copying.
+ * <p>
+ * The pixels are compressed as captured, and the rotation of the image is
+ * recorded in the EXIF orientation of the JPEG, as for JPEGs delivered by the
+ * camera.
  */
 class TaskChainedCompressImageToJpeg extends TaskJpegEncode {
     private final static Log.Tag TAG = new Log.Tag("TaskChainJpg");
 
+    private final LruResourcePool<Integer, byte[]> mByteArrayPool;
+
     TaskChainedCompressImageToJpeg(ImageToProcess image, Executor executor,
-            ImageTaskManager imageTaskManager, CaptureSession captureSession) {
+            ImageTaskManager imageTaskManager, CaptureSession captureSession,
+            LruResourcePool<Integer, byte[]> byteArrayPool) {
         super(image, executor, imageTaskManager, ProcessingPriority.SLOW, captureSession);
+        mByteArrayPool = byteArrayPool;
     }
 
     private void logWrapper(String message) {
@@ -49,15 +64,23 @@ class TaskChainedCompressImageToJpeg extends TaskJpegEncode {
     @Override
     public void run() {
         ImageToProcess img = mImage;
+        mSession.getCollector().markProcessingTimeStart();
+        // YuvImage crops NV21 images at even coordinates.
         Rect safeCrop = guaranteedSafeCrop(img.proxy, img.crop);
+        final Rect evenCrop = new Rect(safeCrop.left & ~1, safeCrop.top & ~1,
+                (safeCrop.left & ~1) + (safeCrop.width() & ~1),
+                (safeCrop.top & ~1) + (safeCrop.height() & ~1));
         final List<ImageProxy.Plane> planeList = img.proxy.getPlanes();
 
-        final TaskImage inputImage = new TaskImage(mImage.rotation, img.proxy.getWidth(),
-                img.proxy.getHeight(), img.proxy.getFormat(), safeCrop);
-        final TaskImage resultImage = new TaskImage(mImage.rotation, img.proxy.getWidth(),
-                img.proxy.getHeight(), ImageFormat.JPEG , safeCrop);
-        byte[] dataCopy;
-        int[] strides = new int[3];
+        final int width = img.proxy.getWidth();
+        final int height = img.proxy.getHeight();
+        final TaskImage inputImage = new TaskImage(img.rotation, width, height,
+                img.proxy.getFormat(), evenCrop);
+        final TaskImage resultImage = new TaskImage(img.rotation, evenCrop.width(),
+                evenCrop.height(), ImageFormat.JPEG, null);
+        Resource<byte[]> dataCopy;
+        // NV21 has a luma plane followed by a single interleaved VU plane.
+        int[] strides = new int[2];
 
         try {
             onStart(mId, inputImage, resultImage, TaskInfo.Destination.FINAL_IMAGE);
@@ -65,19 +88,17 @@ class TaskChainedCompressImageToJpeg extends TaskJpegEncode {
             // Do the byte copy
             strides[0] = planeList.get(0).getRowStride()
                     / planeList.get(0).getPixelStride();
-            strides[1] = planeList.get(1).getRowStride()
-                    / planeList.get(1).getPixelStride();
-            strides[2] = 2 * planeList.get(2).getRowStride()
+            strides[1] = 2 * planeList.get(2).getRowStride()
                     / planeList.get(2).getPixelStride();
 
-            // TODO: For performance, use a cache subsystem for buffer reuse.
-            dataCopy = convertYUV420ImageToPackedNV21(img.proxy);
+            dataCopy = convertYUV420ImageToPackedNV21(img.proxy, mByteArrayPool);
         } finally {
             // Release the image now that you have a usable copy
             mImageTaskManager.releaseSemaphoreReference(img, mExecutor);
         }
 
-        final byte[] chainedDataCopy = dataCopy;
+        final Resource<byte[]> chainedDataCopy = dataCopy;
+        final int jpegQuality = getJpegCompressionQuality();
         final int[] chainedStrides = strides;
 
         // This task drops the image reference.
@@ -86,10 +107,29 @@ class TaskChainedCompressImageToJpeg extends TaskJpegEncode {
             @Override
             public void run() {
                 // Image is closed by now. Do NOT reference image directly.
-                byte[] compressedData = convertNv21toJpeg(chainedDataCopy,
-                        resultImage.height, resultImage.width, chainedStrides);
-                onJpegEncodeDone(mId, inputImage, resultImage, compressedData,
-                        TaskInfo.Destination.FINAL_IMAGE);
+                PooledByteArrayOutputStream compressedData;
+                try {
+                    compressedData = convertNv21toJpeg(chainedDataCopy.get(), width, height,
+                            chainedStrides, evenCrop, jpegQuality,
+                            mByteArrayPool);
+                } finally {
+                    chainedDataCopy.close();
+                }
+                byte[] writeOut;
+                try {
+                    ByteBuffer jpeg = compressedData.toByteBuffer();
+                    onJpegEncodeDone(mId, inputImage, resultImage, jpeg,
+                            TaskInfo.Destination.FINAL_IMAGE);
+                    // The session keeps the bytes until they are written, so
+                    // they are copied out of the pool once.
+                    writeOut = new byte[jpeg.remaining()];
+                    jpeg.get(writeOut);
+                } finally {
+                    compressedData.close();
+                }
+                // Saved by the outer task, which holds the capture metadata.
+                TaskChainedCompressImageToJpeg.this.saveJpeg(writeOut, inputImage, resultImage,
+                        Optional.<ExifInterface>absent());
                 logWrapper("Finished off a chained task now that image is released.");
             }
         };
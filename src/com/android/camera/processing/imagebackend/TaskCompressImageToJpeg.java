@@ -18,33 +18,22 @@ package com.android.camera.processing.imagebackend;
 
 import android.graphics.ImageFormat;
 import android.graphics.Rect;
-import android.location.Location;
-import android.media.CameraProfile;
-import android.net.Uri;
 
 import com.android.camera.Exif;
 import com.android.camera.app.OrientationManager.DeviceOrientation;
 import com.android.camera.debug.Log;
 import com.android.camera.exif.ExifInterface;
-import com.android.camera.one.v2.camera2proxy.CaptureResultProxy;
 import com.android.camera.one.v2.camera2proxy.ImageProxy;
-import com.android.camera.one.v2.camera2proxy.TotalCaptureResultProxy;
 import com.android.camera.processing.memory.LruResourcePool;
 import com.android.camera.processing.memory.LruResourcePool.Resource;
 import com.android.camera.session.CaptureSession;
-import com.android.camera.util.ExifUtil;
 import com.android.camera.util.JpegUtilNative;
 import com.android.camera.util.Size;
 import com.google.common.base.Optional;
-import com.google.common.util.concurrent.FutureCallback;
-import com.google.common.util.concurrent.Futures;
-import com.google.common.util.concurrent.ListenableFuture;
-import com.google.common.util.concurrent.MoreExecutors;
 
 import java.nio.ByteBuffer;
 import java.util.HashMap;
 import java.util.Map;
-import java.util.concurrent.ExecutionException;
 import java.util.concurrent.Executor;
 
 /**
@@ -284,10 +273,11 @@ public class TaskCompressImageToJpeg extends TaskJpegEncode {
                             img.crop, inputImage.orientation.getDegrees());
 
                     // If the compression overflows the size of the buffer, the
-                    // actual number of bytes will be returned.
-                    if (numBytes > jpgBufferSize) {
+                    // actual number of bytes will be returned. Pooled buffers
+                    // may be larger than requested, so check the capacity.
+                    if (numBytes > compressedData.capacity()) {
                         byteBufferResource.close();
-                        mByteBufferDirectPool.acquire(maxPossibleJpgSize);
+                        byteBufferResource = mByteBufferDirectPool.acquire(maxPossibleJpgSize);
                         compressedData = byteBufferResource.get();
 
                         // On memory allocation failure, fail gracefully.
@@ -331,52 +321,7 @@ public class TaskCompressImageToJpeg extends TaskJpegEncode {
         onJpegEncodeDone(mId, inputImage, resultImage, writeOut,
                 TaskInfo.Destination.FINAL_IMAGE);
 
-        // In rare cases, TaskCompressImageToJpeg might complete before
-        // TaskConvertImageToRGBPreview. However, session should take care
-        // of out-of-order completion.
-        // EXIF tags are rewritten so that output from this task is normalized.
-        final TaskImage finalInput = inputImage;
-        final TaskImage finalResult = resultImage;
-
-        final ExifInterface exif = createExif(Optional.fromNullable(exifData), resultImage,
-                img.metadata);
-        mSession.getCollector().decorateAtTimeWriteToDisk(exif);
-        ListenableFuture<Optional<Uri>> futureUri = mSession.saveAndFinish(writeOut,
-                resultImage.width, resultImage.height, resultImage.orientation.getDegrees(), exif);
-        Futures.addCallback(futureUri, new FutureCallback<Optional<Uri>>() {
-            @Override
-            public void onSuccess(Optional<Uri> uriOptional) {
-                if (uriOptional.isPresent()) {
-                    onUriResolved(mId, finalInput, finalResult, uriOptional.get(),
-                            TaskInfo.Destination.FINAL_IMAGE);
-                }
-            }
-
-            @Override
-            public void onFailure(Throwable throwable) {
-            }
-        }, MoreExecutors.directExecutor());
-
-        final ListenableFuture<TotalCaptureResultProxy> requestMetadata = img.metadata;
-        // If TotalCaptureResults are available add them to the capture event.
-        // Otherwise, do NOT wait for them, since we'd be stalling the ImageBackend
-        if (requestMetadata.isDone()) {
-            try {
-                mSession.getCollector()
-                        .decorateAtTimeOfCaptureRequestAvailable(requestMetadata.get());
-            } catch (InterruptedException e) {
-                Log.e(TAG,
-                        "CaptureResults not added to photoCaptureDoneEvent event due to Interrupted Exception.");
-            } catch (ExecutionException e) {
-                Log.w(TAG,
-                        "CaptureResults not added to photoCaptureDoneEvent event due to Execution Exception.");
-            } finally {
-                mSession.getCollector().photoCaptureDoneEvent();
-            }
-        } else {
-            Log.w(TAG, "CaptureResults unavailable to photoCaptureDoneEvent event.");
-            mSession.getCollector().photoCaptureDoneEvent();
-        }
+        saveJpeg(writeOut, inputImage, resultImage, Optional.fromNullable(exifData));
     }
 
     /**
@@ -388,41 +333,6 @@ public class TaskCompressImageToJpeg extends TaskJpegEncode {
         // Do nothing.
     }
 
-    /**
-     * Wraps EXIF Interface for JPEG Metadata creation. Can be overridden for
-     * testing
-     *
-     * @param image Metadata for a jpeg image to create EXIF Interface
-     * @return the created Exif Interface
-     */
-    protected ExifInterface createExif(Optional<ExifInterface> exifData, TaskImage image,
-                                       ListenableFuture<TotalCaptureResultProxy> totalCaptureResultProxyFuture) {
-        ExifInterface exif;
-        if (exifData.isPresent()) {
-            exif = exifData.get();
-        } else {
-            exif = new ExifInterface();
-        }
-        Optional<Location> location = Optional.fromNullable(mSession.getLocation());
-
-        try {
-            new ExifUtil(exif).populateExif(Optional.of(image),
-                    Optional.<CaptureResultProxy>of(totalCaptureResultProxyFuture.get()), location);
-        } catch (InterruptedException | ExecutionException e) {
-            new ExifUtil(exif).populateExif(Optional.of(image),
-                    Optional.<CaptureResultProxy>absent(), location);
-        }
-
-        return exif;
-    }
-
-    /**
-     * @return Quality level to use for JPEG compression.
-     */
-    protected int getJpegCompressionQuality () {
-        return CameraProfile.getJpegEncodingQualityParameter(CameraProfile.QUALITY_HIGH);
-    }
-
     /**
      * @param originalWidth the width of the original image captured from the
      *            camera
@@ -19,12 +19,18 @@ package com.android.camera.processing.imagebackend;
 import android.graphics.Rect;
 import com.android.camera.debug.Log;
 import com.android.camera.one.v2.camera2proxy.ImageProxy;
+import com.android.camera.processing.memory.LruResourcePool;
+import com.android.camera.processing.memory.LruResourcePool.Resource;
 import com.android.camera.session.CaptureSession;
 import com.android.camera.util.Size;
 
 import java.nio.ByteBuffer;
+import java.util.HashSet;
 import java.util.List;
+import java.util.Set;
+import java.util.concurrent.CountDownLatch;
 import java.util.concurrent.Executor;
+import java.util.concurrent.atomic.AtomicInteger;
 
 /**
  * Implements the conversion of a YUV_420_888 image to subsampled image targeted
@@ -42,7 +48,10 @@ import java.util.concurrent.Executor;
  * maintain even values of width and height for the image</li>
  * </ol>
  * This task does NOT implement rotation at the byte-level, since it is best
- * implemented when displayed at the view level.
+ * implemented when displayed at the view level. Conversions are run by
+ * {@link YuvToArgbKernel} into pooled output arrays; large conversions are
+ * split into bands of rows that are shared with helper tasks spawned on the
+ * ImageBackend.
  */
 public class TaskConvertImageToRGBPreview extends TaskImageContainer {
     public enum ThumbnailShape {
@@ -73,8 +82,16 @@ public class TaskConvertImageToRGBPreview extends TaskImageContainer {
 
     protected final static Log.Tag TAG = new Log.Tag("TaskRGBPreview");
 
+    /**
+     * Minimum number of 2-row blocks that are worth handing to another worker,
+     * and maximum number of bands that a single conversion is split into.
+     */
+    private final static int MIN_BLOCK_ROWS_PER_BAND = 64;
+    private final static int MAX_BANDS = 4;
+
     protected final ThumbnailShape mThumbnailShape;
     protected final Size mTargetSize;
+    protected final LruResourcePool<Integer, int[]> mIntArrayPool;
 
     /**
      * Constructor
@@ -88,13 +105,17 @@ public class TaskConvertImageToRGBPreview extends TaskImageContainer {
      *            preview Image (Resultant image may NOT be of this width)
      * @param thumbnailShape the desired thumbnail shape for resultant image
      *            artifact
+     * @param intArrayPool pool from which the resultant image artifact is
+     *            allocated
      */
     TaskConvertImageToRGBPreview(ImageToProcess image, Executor executor,
             ImageTaskManager imageTaskManager, ProcessingPriority processingPriority,
-            CaptureSession captureSession, Size targetSize, ThumbnailShape thumbnailShape) {
+            CaptureSession captureSession, Size targetSize, ThumbnailShape thumbnailShape,
+            LruResourcePool<Integer, int[]> intArrayPool) {
         super(image, executor, imageTaskManager, processingPriority, captureSession);
         mTargetSize = targetSize;
         mThumbnailShape = thumbnailShape;
+        mIntArrayPool = intArrayPool;
     }
 
     public void logWrapper(String message) {
@@ -837,28 +858,117 @@ public class TaskConvertImageToRGBPreview extends TaskImageContainer {
     }
 
     /**
-     * Runs the correct image conversion routine, based upon the selected
-     * thumbnail shape.
+     * Creates the conversion kernel for the selected thumbnail shape, with the
+     * same read boundaries as colorInscribedDataCircleFromYuvImage and
+     * colorSubSampleFromYuvImage.
      *
      * @param img Image to be converted
+     * @param crop Crop to be applied, already intersected with the image
      * @param subsample Amount of image subsampling
-     * @return an ARGB_888 packed array ready for Bitmap conversion
+     * @return the kernel, or null for the debug shape.
      */
-    protected int[] runSelectedConversion(ImageProxy img, Rect crop, int subsample) {
+    protected YuvToArgbKernel createKernel(ImageProxy img, Rect crop, int subsample) {
+        final int outputWidth = crop.width() / subsample;
+        final int outputHeight = crop.height() / subsample;
+        final int inputVerticalOffset = quantizeBy2(crop.top);
+        final int inputHorizontalOffset = quantizeBy2(crop.left);
+
         switch (mThumbnailShape) {
-            case DEBUG_SQUARE_ASPECT_CIRCULAR_INSET:
-                return dummyColorInscribedDataCircleFromYuvImage(img, subsample);
             case SQUARE_ASPECT_CIRCULAR_INSET:
-                return colorInscribedDataCircleFromYuvImage(img, crop, subsample);
-            case SQUARE_ASPECT_NO_INSET:
-                return colorSubSampleFromYuvImage(img, crop, subsample, true);
+            case SQUARE_ASPECT_NO_INSET: {
+                final int r = inscribedCircleRadius(outputWidth, outputHeight);
+                final int inscribedXMin;
+                final int inscribedXMax;
+                final int inscribedYMin;
+                final int inscribedYMax;
+                // since we're 2x2 blocks we need to quantize these values by 2
+                if (outputWidth > outputHeight) {
+                    inscribedXMin = quantizeBy2(outputWidth / 2 - r);
+                    inscribedXMax = quantizeBy2(outputWidth / 2 + r);
+                    inscribedYMin = 0;
+                    inscribedYMax = outputHeight;
+                } else {
+                    inscribedXMin = 0;
+                    inscribedXMax = outputWidth;
+                    inscribedYMin = quantizeBy2(outputHeight / 2 - r);
+                    inscribedYMax = quantizeBy2(outputHeight / 2 + r);
+                }
+                return new YuvToArgbKernel(img, inputHorizontalOffset, inputVerticalOffset,
+                        subsample, inscribedXMin, inscribedXMax, inscribedYMin, inscribedYMax,
+                        r * 2, mThumbnailShape == ThumbnailShape.SQUARE_ASPECT_CIRCULAR_INSET, r,
+                        outputWidth / 2, outputHeight / 2);
+            }
             case MAINTAIN_ASPECT_NO_INSET:
-                return colorSubSampleFromYuvImage(img, crop, subsample, false);
+                return new YuvToArgbKernel(img, inputHorizontalOffset, inputVerticalOffset,
+                        subsample, 0, quantizeBy2(outputWidth), 0, quantizeBy2(outputHeight),
+                        outputWidth, false, 0, 0, 0);
             default:
                 return null;
         }
     }
 
+    /**
+     * Runs the correct image conversion routine, based upon the selected
+     * thumbnail shape.
+     *
+     * @param img Image to be converted
+     * @param crop Crop to be applied, already intersected with the image
+     * @param subsample Amount of image subsampling
+     * @param colors Zeroed output array, large enough for the result image
+     */
+    protected void runSelectedConversion(ImageProxy img, Rect crop, int subsample,
+            int[] colors) {
+        if (mThumbnailShape == ThumbnailShape.DEBUG_SQUARE_ASPECT_CIRCULAR_INSET) {
+            int[] pattern = dummyColorInscribedDataCircleFromYuvImage(img, subsample);
+            System.arraycopy(pattern, 0, colors, 0, pattern.length);
+            return;
+        }
+
+        YuvToArgbKernel kernel = createKernel(img, crop, subsample);
+        if (kernel == null) {
+            return;
+        }
+        int numBlockRows = kernel.getNumBlockRows();
+        int numBands = Math.min(MAX_BANDS, Math.min(Runtime.getRuntime().availableProcessors(),
+                numBlockRows / MIN_BLOCK_ROWS_PER_BAND));
+
+        logWrapper("TIMER_BEGIN Starting YUV420-to-RGB Kernel Conversion in " + numBands
+                + " band(s)");
+        if (numBands <= 1) {
+            kernel.convertBlockRows(0, numBlockRows, colors);
+        } else {
+            BandedConversion conversion = new BandedConversion(kernel, colors, numBands);
+            Set<TaskImageContainer> helpers = new HashSet<>(numBands - 1);
+            for (int i = 1; i < numBands; i++) {
+                helpers.add(new TaskConvertBand(this, conversion));
+            }
+            // The helpers do not hold an image reference of their own; this
+            // task keeps the image open until every band is done.
+            mImageTaskManager.appendTasks(null, helpers);
+            conversion.convertAvailableBands();
+            conversion.awaitAllBands();
+        }
+        logWrapper("TIMER_END Starting YUV420-to-RGB Kernel Conversion");
+    }
+
+    /**
+     * Converts the image with the selected conversion routine into an array
+     * acquired from the pool. The caller must close the returned resource once
+     * the result has been delivered.
+     *
+     * @param img Image to be converted
+     * @param crop Crop to be applied, already intersected with the image
+     * @param subsample Amount of image subsampling
+     * @param resultImage Specification of the result image
+     * @return the pooled, converted ARGB_8888 array
+     */
+    protected Resource<int[]> convertToPooledArray(ImageProxy img, Rect crop, int subsample,
+            TaskImage resultImage) {
+        Resource<int[]> colors = mIntArrayPool.acquire(resultImage.width * resultImage.height);
+        runSelectedConversion(img, crop, subsample, colors.get());
+        return colors;
+    }
+
     /**
      * Runnable implementation
      */
@@ -872,7 +982,7 @@ public class TaskConvertImageToRGBPreview extends TaskImageContainer {
                 new Size(safeCrop.width(), safeCrop.height()),
                 mTargetSize);
         final TaskImage resultImage = calculateResultImage(img, subsample);
-        final int[] convertedImage;
+        final Resource<int[]> convertedImage;
 
         try {
             onStart(mId, inputImage, resultImage, TaskInfo.Destination.FAST_THUMBNAIL);
@@ -882,12 +992,17 @@ public class TaskConvertImageToRGBPreview extends TaskImageContainer {
                     / subsample + " h=" + img.proxy.getHeight() / subsample + " of subsample "
                     + subsample);
 
-            convertedImage = runSelectedConversion(img.proxy, safeCrop, subsample);
+            convertedImage = convertToPooledArray(img.proxy, safeCrop, subsample, resultImage);
         } finally {
             // Signal backend that reference has been released
             mImageTaskManager.releaseSemaphoreReference(img, mExecutor);
         }
-        onPreviewDone(resultImage, inputImage, convertedImage, TaskInfo.Destination.FAST_THUMBNAIL);
+        try {
+            onPreviewDone(resultImage, inputImage, convertedImage.get(),
+                    TaskInfo.Destination.FAST_THUMBNAIL);
+        } finally {
+            convertedImage.close();
+        }
     }
 
     /**
@@ -895,7 +1010,8 @@ public class TaskConvertImageToRGBPreview extends TaskImageContainer {
      *
      * @param resultImage Image specification of result image
      * @param inputImage Image specification of the input image
-     * @param colors Uncompressed data buffer
+     * @param colors Uncompressed data buffer, which is only valid for the
+     *            duration of the listener calls
      * @param destination Specifies the purpose of this image processing
      *            artifact
      */
@@ -907,4 +1023,69 @@ public class TaskConvertImageToRGBPreview extends TaskImageContainer {
         listener.onResultUncompressed(job, new UncompressedPayload(colors));
     }
 
+    /**
+     * Shares the bands of a single conversion between the task that owns the
+     * image and its helper tasks. Bands are claimed, not assigned, so the
+     * conversion completes even if no helper is ever scheduled.
+     */
+    private static class BandedConversion {
+        private final YuvToArgbKernel mKernel;
+        private final int[] mColors;
+        private final int mNumBands;
+        private final int mNumBlockRows;
+        private final AtomicInteger mNextBand = new AtomicInteger(0);
+        private final CountDownLatch mBandsDone;
+
+        BandedConversion(YuvToArgbKernel kernel, int[] colors, int numBands) {
+            mKernel = kernel;
+            mColors = colors;
+            mNumBands = numBands;
+            mNumBlockRows = kernel.getNumBlockRows();
+            mBandsDone = new CountDownLatch(numBands);
+        }
+
+        void convertAvailableBands() {
+            int band;
+            while ((band = mNextBand.getAndIncrement()) < mNumBands) {
+                try {
+                    mKernel.convertBlockRows(band * mNumBlockRows / mNumBands,
+                            (band + 1) * mNumBlockRows / mNumBands, mColors);
+                } finally {
+                    mBandsDone.countDown();
+                }
+            }
+        }
+
+        void awaitAllBands() {
+            boolean interrupted = false;
+            while (true) {
+                try {
+                    mBandsDone.await();
+                    break;
+                } catch (InterruptedException e) {
+                    interrupted = true;
+                }
+            }
+            if (interrupted) {
+                Thread.currentThread().interrupt();
+            }
+        }
+    }
+
+    /**
+     * Helper task that converts bands of a conversion owned by another task.
+     */
+    private static class TaskConvertBand extends TaskImageContainer {
+        private final BandedConversion mConversion;
+
+        TaskConvertBand(TaskImageContainer otherTask, BandedConversion conversion) {
+            super(otherTask, otherTask.getProcessingPriority());
+            mConversion = conversion;
+        }
+
+        @Override
+        public void run() {
+            mConversion.convertAvailableBands();
+        }
+    }
 }
@@ -21,7 +21,9 @@ import com.android.camera.app.OrientationManager;
 import com.android.camera.debug.Log;
 import com.android.camera.one.v2.camera2proxy.ImageProxy;
 import com.android.camera.session.CaptureSession;
+import com.google.common.base.Preconditions;
 
+import java.nio.ByteBuffer;
 import java.util.concurrent.Executor;
 
 import javax.annotation.Nullable;
@@ -47,14 +49,40 @@ public abstract class TaskImageContainer implements Runnable {
     }
 
     /**
-     * Simple helper class to encapsulate compressed payloads. Could be more
-     * complex in the future.
+     * Simple helper class to encapsulate compressed payloads. The payload may
+     * be backed by pooled memory which is reused once the listeners have
+     * returned, so listeners which keep the data past the callback must use
+     * {@link #getRetainableData()}.
      */
     static public class CompressedPayload {
-        final public byte[] data;
+        /** The compressed bytes, always backed by an accessible array. */
+        final public ByteBuffer data;
+        /** Whether the backing array belongs to this payload alone. */
+        private final boolean mOwnsArray;
 
         CompressedPayload(byte[] passData) {
-            data = passData;
+            data = ByteBuffer.wrap(passData);
+            mOwnsArray = true;
+        }
+
+        CompressedPayload(ByteBuffer passData) {
+            Preconditions.checkArgument(passData.hasArray());
+            data = passData.slice();
+            mOwnsArray = false;
+        }
+
+        /**
+         * @return The compressed bytes as an array which may be kept after
+         *         the callback. Only copies if the payload is backed by pooled
+         *         memory.
+         */
+        public byte[] getRetainableData() {
+            if (mOwnsArray) {
+                return data.array();
+            }
+            byte[] copy = new byte[data.remaining()];
+            data.duplicate().get(copy);
+            return copy;
         }
     }
 
@@ -18,19 +18,36 @@ package com.android.camera.processing.imagebackend;
 
 import android.graphics.Bitmap;
 import android.graphics.BitmapFactory;
+import android.graphics.BitmapRegionDecoder;
 import android.graphics.ImageFormat;
 import android.graphics.Rect;
 import android.graphics.YuvImage;
+import android.location.Location;
+import android.media.CameraProfile;
 import android.net.Uri;
 
 import com.android.camera.debug.Log;
+import com.android.camera.exif.ExifInterface;
+import com.android.camera.one.v2.camera2proxy.CaptureResultProxy;
 import com.android.camera.one.v2.camera2proxy.ImageProxy;
+import com.android.camera.one.v2.camera2proxy.TotalCaptureResultProxy;
+import com.android.camera.processing.memory.LruResourcePool;
+import com.android.camera.processing.memory.LruResourcePool.Resource;
+import com.android.camera.processing.memory.PooledByteArrayOutputStream;
 import com.android.camera.session.CaptureSession;
+import com.android.camera.util.ExifUtil;
+import com.android.camera.util.JpegUtilNative;
+import com.google.common.base.Optional;
+import com.google.common.util.concurrent.FutureCallback;
+import com.google.common.util.concurrent.Futures;
+import com.google.common.util.concurrent.ListenableFuture;
+import com.google.common.util.concurrent.MoreExecutors;
 
 import java.io.ByteArrayOutputStream;
 import java.io.IOException;
 import java.nio.ByteBuffer;
 import java.util.List;
+import java.util.concurrent.ExecutionException;
 import java.util.concurrent.Executor;
 
 /**
@@ -41,6 +58,14 @@ public abstract class TaskJpegEncode extends TaskImageContainer {
 
     protected final static Log.Tag TAG = new Log.Tag("TaskJpegEnc");
 
+    /**
+     * Expected size ratio of a packed NV21 image to its JPEG, used to pre-size
+     * pooled JPEG output. Camera JPEGs are usually much smaller than this, and
+     * larger ones only cost one extra copy.
+     */
+    private static final int EXPECTED_NV21_TO_JPEG_COMPRESSION_FACTOR = 4;
+    private static final int NV21_JPEG_QUALITY = 90;
+
     /**
      * Constructor to use for NOT passing the image reference forward.
      *
@@ -76,16 +101,39 @@ public abstract class TaskJpegEncode extends TaskImageContainer {
      * @return byte array of NV21 packed image
      */
     public byte[] convertYUV420ImageToPackedNV21(ImageProxy img) {
-        final List<ImageProxy.Plane> planeList = img.getPlanes();
-
-        ByteBuffer y_buffer = planeList.get(0).getBuffer();
-        ByteBuffer u_buffer = planeList.get(1).getBuffer();
-        ByteBuffer v_buffer = planeList.get(2).getBuffer();
-        byte[] dataCopy = new byte[y_buffer.capacity() + u_buffer.capacity() + v_buffer.capacity()];
+        byte[] dataCopy = new byte[getPackedNV21BufferSize(img)];
 
         return convertYUV420ImageToPackedNV21(img, dataCopy);
     }
 
+    /**
+     * Converts the YUV420_888 Image into a packed NV21 array taken from a
+     * pool. The array length only depends on the image size, so the same
+     * array is reused for every image of a capture size.
+     *
+     * @param img image to be converted
+     * @param byteArrayPool pool to take the array from
+     * @return the pooled array holding the NV21 packed image, which must be
+     *         closed once the image has been compressed
+     */
+    public Resource<byte[]> convertYUV420ImageToPackedNV21(ImageProxy img,
+            LruResourcePool<Integer, byte[]> byteArrayPool) {
+        Resource<byte[]> dataCopy = byteArrayPool.acquire(getPackedNV21BufferSize(img));
+        convertYUV420ImageToPackedNV21(img, dataCopy.get());
+        return dataCopy;
+    }
+
+    /**
+     * @return the size of the array required by
+     *         {@link #convertYUV420ImageToPackedNV21(ImageProxy, byte[])}
+     */
+    private static int getPackedNV21BufferSize(ImageProxy img) {
+        final List<ImageProxy.Plane> planeList = img.getPlanes();
+        return planeList.get(0).getRowStride() * img.getHeight()
+                + planeList.get(1).getBuffer().capacity()
+                + planeList.get(2).getBuffer().capacity();
+    }
+
     /**
      * Converts the YUV420_888 Image into a packed NV21 of a single byte array,
      * suitable for JPEG compression by the method convertNv21toJpeg. Creates a
@@ -109,11 +157,14 @@ public abstract class TaskJpegEncode extends TaskImageContainer {
         final int color_pixel_stride = planeList.get(1).getPixelStride();
         final int y_size = y_buffer.capacity();
         final int u_size = u_buffer.capacity();
-        final int data_offset = w * h;
+        // The VU plane starts after as many luma rows as the image has, where
+        // YuvImage expects it; the last row of the luma plane may be short.
+        final int data_offset = planeList.get(0).getRowStride() * h;
 
-        for (int i = 0; i < y_size; i++) {
-            dataCopy[i] = (byte) (y_buffer.get(i) & 255);
-        }
+        // Bulk copy the luma plane, without moving the plane's position.
+        ByteBuffer y_source = y_buffer.duplicate();
+        y_source.clear();
+        y_source.get(dataCopy, 0, y_size);
 
         for (int i = 0; i < u_size / color_pixel_stride; i++) {
             dataCopy[data_offset + 2 * i] = v_buffer.get(i * color_pixel_stride);
@@ -177,16 +228,127 @@ public abstract class TaskJpegEncode extends TaskImageContainer {
         return postViewBytes.toByteArray();
     }
 
+    /**
+     * Compresses a NV21 image like {@link #convertNv21toJpeg(byte[], int, int,
+     * int[])}, but straight into a pooled array pre-sized for the expected
+     * JPEG size, instead of growing a {@link ByteArrayOutputStream} and
+     * copying its contents out.
+     *
+     * @param data_copy byte buffer that contains the NV21 image
+     * @param w width of NV21 image
+     * @param h height of N21 image
+     * @param byteArrayPool pool to take the output array from
+     * @return the stream holding the compressed JPEG image, which must be
+     *         closed once {@link PooledByteArrayOutputStream#toByteBuffer()} is
+     *         no longer used
+     */
+    public PooledByteArrayOutputStream convertNv21toJpeg(byte[] data_copy, int w, int h,
+            int[] strides, LruResourcePool<Integer, byte[]> byteArrayPool) {
+        return convertNv21toJpeg(data_copy, w, h, strides, new Rect(0, 0, w, h),
+                NV21_JPEG_QUALITY, byteArrayPool);
+    }
+
+    /**
+     * Compresses the crop of a NV21 image straight into a pooled array, like
+     * {@link #convertNv21toJpeg(byte[], int, int, int[], LruResourcePool)}.
+     *
+     * @param data_copy byte buffer that contains the NV21 image
+     * @param w width of NV21 image
+     * @param h height of N21 image
+     * @param crop the part of the image to compress, which {@link YuvImage}
+     *            aligns to even coordinates
+     * @param quality JPEG quality, from 0 to 100
+     * @param byteArrayPool pool to take the output array from
+     * @return the stream holding the compressed JPEG image, which must be
+     *         closed once {@link PooledByteArrayOutputStream#toByteBuffer()} is
+     *         no longer used
+     */
+    public PooledByteArrayOutputStream convertNv21toJpeg(byte[] data_copy, int w, int h,
+            int[] strides, Rect crop, int quality,
+            LruResourcePool<Integer, byte[]> byteArrayPool) {
+        YuvImage yuvImage = new YuvImage(data_copy, ImageFormat.NV21, w, h, strides);
+
+        PooledByteArrayOutputStream jpegBytes = new PooledByteArrayOutputStream(byteArrayPool,
+                Math.max(1, crop.width() * crop.height() * 3 / 2
+                        / EXPECTED_NV21_TO_JPEG_COMPRESSION_FACTOR));
+        yuvImage.compressToJpeg(crop, quality, jpegBytes);
+        return jpegBytes;
+    }
+
+    /**
+     * Crops a JPEG. If the left and top edges of the crop lie on the MCU grid
+     * of the JPEG, as they do for most digital zoom crops, the JPEG is cropped
+     * losslessly without decoding it. Otherwise, only the crop rectangle is
+     * decoded, and then re-compressed.
+     *
+     * @param jpegData Compressed Image to be cropped
+     * @param crop Crop to be applied
+     * @param recompressionQuality Recompression quality value for cropped JPEG
+     *            Image, if it has to be re-compressed
+     * @return JPEG compressed byte array representing the cropped image
+     */
+    public byte[] decompressCropAndRecompressJpegData(final byte[] jpegData, Rect crop,
+            int recompressionQuality) {
+        byte[] losslessResult = cropJpegLossless(jpegData, crop);
+        if (losslessResult != null) {
+            return losslessResult;
+        }
+        return decompressRegionAndRecompressJpegData(jpegData, crop, recompressionQuality);
+    }
+
+    /**
+     * Wraps the static call to JpegUtilNative for testability. {@see
+     * JpegUtilNative#cropJpegLossless}
+     */
+    public byte[] cropJpegLossless(byte[] jpegData, Rect crop) {
+        return JpegUtilNative.cropJpegLossless(jpegData, crop);
+    }
+
+    /**
+     * Implement cropping by decoding only the crop rectangle of the JPEG with
+     * {@link BitmapRegionDecoder}, and re-compressing it, so that the whole
+     * image is never held as a bitmap.
+     *
+     * @param jpegData Compressed Image to be cropped
+     * @param crop Crop to be applied
+     * @param recompressionQuality Recompression quality value for cropped JPEG Image
+     * @return JPEG compressed byte array representing the cropped image
+     */
+    public byte[] decompressRegionAndRecompressJpegData(final byte[] jpegData, Rect crop,
+            int recompressionQuality) {
+        BitmapRegionDecoder decoder;
+        try {
+            decoder = BitmapRegionDecoder.newInstance(jpegData, 0, jpegData.length, false);
+        } catch (IOException e) {
+            Log.w(TAG, "Could not decode JPEG region, decoding the whole image.", e);
+            return decompressCropAndRecompressWholeJpegData(jpegData, crop,
+                    recompressionQuality);
+        }
+
+        final Bitmap croppedResult;
+        try {
+            croppedResult = decoder.decodeRegion(crop, null);
+        } finally {
+            decoder.recycle();
+        }
+
+        ByteArrayOutputStream stream = new ByteArrayOutputStream();
+
+        croppedResult.compress(Bitmap.CompressFormat.JPEG, recompressionQuality, stream);
+        croppedResult.recycle();
+        return stream.toByteArray();
+    }
+
     /**
      * Implement cropping through the decompression and re-compression of the JPEG using
-     * the built-in Android bitmap utilities.
+     * the built-in Android bitmap utilities. This decodes the whole image.
      *
      * @param jpegData Compressed Image to be cropped
      * @param crop Crop to be applied
      * @param recompressionQuality Recompression quality value for cropped JPEG Image
      * @return JPEG compressed byte array representing the cropped image
      */
-    public byte[] decompressCropAndRecompressJpegData(final byte[] jpegData, Rect crop,
+    public byte[] decompressCropAndRecompressWholeJpegData(final byte[] jpegData, Rect crop,
             int recompressionQuality) {
         Bitmap original = BitmapFactory.decodeByteArray(jpegData, 0, jpegData.length);
 
@@ -199,6 +361,98 @@ public abstract class TaskJpegEncode extends TaskImageContainer {
         return stream.toByteArray();
     }
 
+    /**
+     * @return Quality level to use for JPEG compression.
+     */
+    protected int getJpegCompressionQuality () {
+        return CameraProfile.getJpegEncodingQualityParameter(CameraProfile.QUALITY_HIGH);
+    }
+
+    /**
+     * Wraps EXIF Interface for JPEG Metadata creation. Can be overridden for
+     * testing
+     *
+     * @param image Metadata for a jpeg image to create EXIF Interface
+     * @return the created Exif Interface
+     */
+    protected ExifInterface createExif(Optional<ExifInterface> exifData, TaskImage image,
+                                       ListenableFuture<TotalCaptureResultProxy> totalCaptureResultProxyFuture) {
+        ExifInterface exif;
+        if (exifData.isPresent()) {
+            exif = exifData.get();
+        } else {
+            exif = new ExifInterface();
+        }
+        Optional<Location> location = Optional.fromNullable(mSession.getLocation());
+
+        try {
+            new ExifUtil(exif).populateExif(Optional.of(image),
+                    Optional.<CaptureResultProxy>of(totalCaptureResultProxyFuture.get()), location);
+        } catch (InterruptedException | ExecutionException e) {
+            new ExifUtil(exif).populateExif(Optional.of(image),
+                    Optional.<CaptureResultProxy>absent(), location);
+        }
+
+        return exif;
+    }
+
+    /**
+     * Saves the final JPEG of the task's image to disk and finishes the
+     * session, with EXIF tags rewritten from the result image and the capture
+     * metadata. Can be overridden for testing.
+     *
+     * @param jpeg The compressed image, which the session keeps until it is
+     *            written
+     * @param inputImage Specification of the input image
+     * @param resultImage Specification of the compressed image
+     * @param exifData EXIF found in the compressed image, if any
+     */
+    protected void saveJpeg(byte[] jpeg, final TaskImage inputImage,
+            final TaskImage resultImage, Optional<ExifInterface> exifData) {
+        // In rare cases, the JPEG task might complete before
+        // TaskConvertImageToRGBPreview. However, session should take care
+        // of out-of-order completion.
+        // EXIF tags are rewritten so that output from this task is normalized.
+        final ExifInterface exif = createExif(exifData, resultImage, mImage.metadata);
+        mSession.getCollector().decorateAtTimeWriteToDisk(exif);
+        ListenableFuture<Optional<Uri>> futureUri = mSession.saveAndFinish(jpeg,
+                resultImage.width, resultImage.height, resultImage.orientation.getDegrees(), exif);
+        Futures.addCallback(futureUri, new FutureCallback<Optional<Uri>>() {
+            @Override
+            public void onSuccess(Optional<Uri> uriOptional) {
+                if (uriOptional.isPresent()) {
+                    onUriResolved(mId, inputImage, resultImage, uriOptional.get(),
+                            TaskInfo.Destination.FINAL_IMAGE);
+                }
+            }
+
+            @Override
+            public void onFailure(Throwable throwable) {
+            }
+        }, MoreExecutors.directExecutor());
+
+        final ListenableFuture<TotalCaptureResultProxy> requestMetadata = mImage.metadata;
+        // If TotalCaptureResults are available add them to the capture event.
+        // Otherwise, do NOT wait for them, since we'd be stalling the ImageBackend
+        if (requestMetadata.isDone()) {
+            try {
+                mSession.getCollector()
+                        .decorateAtTimeOfCaptureRequestAvailable(requestMetadata.get());
+            } catch (InterruptedException e) {
+                Log.e(TAG,
+                        "CaptureResults not added to photoCaptureDoneEvent event due to Interrupted Exception.");
+            } catch (ExecutionException e) {
+                Log.w(TAG,
+                        "CaptureResults not added to photoCaptureDoneEvent event due to Execution Exception.");
+            } finally {
+                mSession.getCollector().photoCaptureDoneEvent();
+            }
+        } else {
+            Log.w(TAG, "CaptureResults unavailable to photoCaptureDoneEvent event.");
+            mSession.getCollector().photoCaptureDoneEvent();
+        }
+    }
+
     /**
      * Wraps the onResultCompressed listener for ease of use.
      *
@@ -214,6 +468,23 @@ public abstract class TaskJpegEncode extends TaskImageContainer {
         listener.onResultCompressed(job, new CompressedPayload(data));
     }
 
+    /**
+     * Wraps the onResultCompressed listener for data in pooled memory, which
+     * is handed to the listeners without copying. The data may be reused once
+     * this method returns.
+     *
+     * @param id Unique content id
+     * @param input Specification of image input size
+     * @param result Specification of resultant input size
+     * @param data Array-backed buffer of the compressed image
+     */
+    public void onJpegEncodeDone(long id, TaskImage input, TaskImage result, ByteBuffer data,
+            TaskInfo.Destination aDestination) {
+        TaskInfo job = new TaskInfo(id, input, result, aDestination);
+        final ImageProcessorListener listener = mImageTaskManager.getProxyListener();
+        listener.onResultCompressed(job, new CompressedPayload(data));
+    }
+
     /**
      * Wraps the onResultUri listener for ease of use.
      *
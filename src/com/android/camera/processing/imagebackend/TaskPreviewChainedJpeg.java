@@ -19,6 +19,7 @@ package com.android.camera.processing.imagebackend;
 import android.graphics.Rect;
 
 import com.android.camera.processing.memory.LruResourcePool;
+import com.android.camera.processing.memory.LruResourcePool.Resource;
 import com.android.camera.session.CaptureSession;
 import com.android.camera.util.Size;
 
@@ -31,6 +32,7 @@ import java.util.concurrent.Executor;
  */
 public class TaskPreviewChainedJpeg extends TaskConvertImageToRGBPreview {
     private final LruResourcePool<Integer, ByteBuffer> mByteBufferDirectPool;
+    private final LruResourcePool<Integer, byte[]> mByteArrayPool;
 
     /**
      * Constructor
@@ -41,16 +43,23 @@ public class TaskPreviewChainedJpeg extends TaskConvertImageToRGBPreview {
      *            and task spawning
      * @param captureSession Capture session that bound to this image
      * @param targetSize Approximate viewable pixel demensions of the desired
-     *            preview Image     */
+     *            preview Image
+     * @param intArrayPool pool from which the preview Image is allocated
+     * @param byteArrayPool pool from which the copy of YUV images is
+     *            allocated for JPEG compression
+     */
     TaskPreviewChainedJpeg(ImageToProcess image,
             Executor executor,
             ImageTaskManager imageTaskManager,
             CaptureSession captureSession,
             Size targetSize,
-            LruResourcePool<Integer, ByteBuffer> byteBufferResourcePool) {
+            LruResourcePool<Integer, ByteBuffer> byteBufferResourcePool,
+            LruResourcePool<Integer, int[]> intArrayPool,
+            LruResourcePool<Integer, byte[]> byteArrayPool) {
         super(image, executor, imageTaskManager, ProcessingPriority.AVERAGE, captureSession,
-                targetSize , ThumbnailShape.MAINTAIN_ASPECT_NO_INSET);
+                targetSize , ThumbnailShape.MAINTAIN_ASPECT_NO_INSET, intArrayPool);
         mByteBufferDirectPool = byteBufferResourcePool;
+        mByteArrayPool = byteArrayPool;
     }
 
     public void logWrapper(String message) {
@@ -68,7 +77,7 @@ public class TaskPreviewChainedJpeg extends TaskConvertImageToRGBPreview {
                 new Size(safeCrop.width(), safeCrop.height()),
                 mTargetSize);
         final TaskImage resultImage = calculateResultImage(img, subsample);
-        final int[] convertedImage;
+        final Resource<int[]> convertedImage;
 
         try {
             onStart(mId, inputImage, resultImage, TaskInfo.Destination.INTERMEDIATE_THUMBNAIL);
@@ -77,19 +86,24 @@ public class TaskPreviewChainedJpeg extends TaskConvertImageToRGBPreview {
                     / subsample + " h=" + img.proxy.getHeight() / subsample + " of subsample "
                     + subsample);
 
-            convertedImage = runSelectedConversion(img.proxy, safeCrop, subsample);
+            convertedImage = convertToPooledArray(img.proxy, safeCrop, subsample, resultImage);
 
             // Chain JPEG task
-            TaskImageContainer jpegTask = new TaskCompressImageToJpeg(img, mExecutor,
-                    mImageTaskManager, mSession, mByteBufferDirectPool);
+            TaskImageContainer jpegTask = ImageBackend.createTaskCompressImageToJpeg(img,
+                    mExecutor, mImageTaskManager, mSession, mByteBufferDirectPool,
+                    mByteArrayPool);
             mImageTaskManager.appendTasks(img, jpegTask);
         } finally {
             // Signal backend that reference has been released
             mImageTaskManager.releaseSemaphoreReference(img, mExecutor);
         }
 
-        onPreviewDone(resultImage, inputImage, convertedImage,
-                TaskInfo.Destination.INTERMEDIATE_THUMBNAIL);
+        try {
+            onPreviewDone(resultImage, inputImage, convertedImage.get(),
+                    TaskInfo.Destination.INTERMEDIATE_THUMBNAIL);
+        } finally {
+            convertedImage.close();
+        }
     }
 
 
@@ -0,0 +1,320 @@
+/*
+ * Copyright (C) 2015 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.camera.processing.imagebackend;
+
+import static com.android.camera.processing.imagebackend.TaskConvertImageToRGBPreview.OUT_OF_BOUNDS_COLOR;
+import static com.android.camera.processing.imagebackend.TaskConvertImageToRGBPreview.SHIFT_APPROXIMATION;
+import static com.android.camera.processing.imagebackend.TaskConvertImageToRGBPreview.U_FACTOR_FOR_B;
+import static com.android.camera.processing.imagebackend.TaskConvertImageToRGBPreview.U_FACTOR_FOR_G;
+import static com.android.camera.processing.imagebackend.TaskConvertImageToRGBPreview.V_FACTOR_FOR_G;
+import static com.android.camera.processing.imagebackend.TaskConvertImageToRGBPreview.V_FACTOR_FOR_R;
+
+import com.android.camera.one.v2.camera2proxy.ImageProxy;
+
+import java.nio.ByteBuffer;
+import java.util.List;
+
+/**
+ * Subsampling YUV_420_888 to ARGB_8888 conversion kernel used by
+ * TaskConvertImageToRGBPreview. Produces the same pixels as the per-pixel
+ * conversion loops of that class, but copies the sampled span of every input
+ * row out of the plane buffers with a single bulk read into thread-local
+ * scratch arrays, and writes into a caller-supplied output array. Output rows
+ * are converted in independent bands, so that a conversion may be split across
+ * several worker threads.
+ */
+final class YuvToArgbKernel {
+    private static final int OPAQUE_ALPHA = 255 << 24;
+    private static final int FEATHERED_ALPHA = 128 << 24;
+
+    /**
+     * Per-thread bulk read destinations for the two luma rows and the chroma
+     * row of a 2x2 block row.
+     */
+    private static final class Scratch {
+        byte[] y0 = new byte[0];
+        byte[] y1 = new byte[0];
+        byte[] u = new byte[0];
+        byte[] v = new byte[0];
+
+        static byte[] ensure(byte[] array, int length) {
+            return array.length >= length ? array : new byte[length];
+        }
+    }
+
+    private static final ThreadLocal<Scratch> sScratch = new ThreadLocal<Scratch>() {
+        @Override
+        protected Scratch initialValue() {
+            return new Scratch();
+        }
+    };
+
+    private final ByteBuffer mBufY;
+    private final ByteBuffer mBufU;
+    private final ByteBuffer mBufV;
+    private final int mYRowStride;
+    private final int mYPixelStride;
+    private final int mURowStride;
+    private final int mUPixelStride;
+    private final int mVRowStride;
+    private final int mVPixelStride;
+
+    private final int mSubsample;
+    private final int mInputHorizontalOffset;
+    private final int mInputVerticalOffset;
+
+    private final int mInscribedXMin;
+    private final int mInscribedXMax;
+    private final int mInscribedYMin;
+    private final int mInscribedYMax;
+    private final int mOutputPixelStride;
+
+    private final boolean mCircular;
+    private final int mRadius;
+    private final int mCenterX;
+    private final int mCenterY;
+
+    /**
+     * @param img YUV420_888 Image to convert
+     * @param inputHorizontalOffset Horizontal input offset of the crop, already
+     *            quantized by 2
+     * @param inputVerticalOffset Vertical input offset of the crop, already
+     *            quantized by 2
+     * @param subsample width/height subsample factor
+     * @param inscribedXMin First subsampled column to be converted
+     * @param inscribedXMax Subsampled column past the last one to be converted
+     * @param inscribedYMin First subsampled row to be converted
+     * @param inscribedYMax Subsampled row past the last one to be converted
+     * @param outputPixelStride Row stride of the packed output image
+     * @param circular true, if pixels outside of the inscribed circle of the
+     *            given radius are cleared and its edge feathered
+     * @param radius Radius of the inscribed circle
+     * @param centerX Center column of the inscribed circle
+     * @param centerY Center row of the inscribed circle
+     */
+    YuvToArgbKernel(ImageProxy img, int inputHorizontalOffset, int inputVerticalOffset,
+            int subsample, int inscribedXMin, int inscribedXMax, int inscribedYMin,
+            int inscribedYMax, int outputPixelStride, boolean circular, int radius,
+            int centerX, int centerY) {
+        final List<ImageProxy.Plane> planeList = img.getPlanes();
+        if (planeList.size() != 3) {
+            throw new IllegalArgumentException("Incorrect number planes (" + planeList.size()
+                    + ") in YUV Image Object");
+        }
+        mBufY = planeList.get(0).getBuffer();
+        mBufU = planeList.get(1).getBuffer();
+        mBufV = planeList.get(2).getBuffer();
+        mYRowStride = planeList.get(0).getRowStride();
+        mYPixelStride = planeList.get(0).getPixelStride();
+        mURowStride = planeList.get(1).getRowStride();
+        mUPixelStride = planeList.get(1).getPixelStride();
+        mVRowStride = planeList.get(2).getRowStride();
+        mVPixelStride = planeList.get(2).getPixelStride();
+
+        mSubsample = subsample;
+        mInputHorizontalOffset = inputHorizontalOffset;
+        mInputVerticalOffset = inputVerticalOffset;
+        mInscribedXMin = inscribedXMin;
+        mInscribedXMax = inscribedXMax;
+        mInscribedYMin = inscribedYMin;
+        mInscribedYMax = inscribedYMax;
+        mOutputPixelStride = outputPixelStride;
+        mCircular = circular;
+        mRadius = radius;
+        mCenterX = centerX;
+        mCenterY = centerY;
+    }
+
+    /**
+     * @return The number of 2-row blocks in the converted region.
+     */
+    int getNumBlockRows() {
+        return Math.max(0, (mInscribedYMax - mInscribedYMin + 1) / 2);
+    }
+
+    /**
+     * Converts a band of 2-row blocks. Bands of the same kernel may be
+     * converted concurrently into the same output array.
+     *
+     * @param firstBlockRow Index of the first 2-row block of the band
+     * @param endBlockRow Index past the last 2-row block of the band
+     * @param colors Output ARGB_8888 array. Pixels outside of the converted
+     *            region are not written.
+     */
+    void convertBlockRows(int firstBlockRow, int endBlockRow, int[] colors) {
+        final int numBlocks = (mInscribedXMax - mInscribedXMin) / 2;
+        if (numBlocks <= 0) {
+            return;
+        }
+
+        // Strides in terms of bytes between consecutive subsampled pixels.
+        final int ySampleStride = mYPixelStride * mSubsample;
+        final int uSampleStride = mUPixelStride * mSubsample;
+        final int vSampleStride = mVPixelStride * mSubsample;
+        final int ySpan = (2 * numBlocks - 1) * ySampleStride + 1;
+        final int uSpan = (numBlocks - 1) * uSampleStride + 1;
+        final int vSpan = (numBlocks - 1) * vSampleStride + 1;
+
+        Scratch scratch = sScratch.get();
+        final byte[] rowY0 = scratch.y0 = Scratch.ensure(scratch.y0, ySpan);
+        final byte[] rowY1 = scratch.y1 = Scratch.ensure(scratch.y1, ySpan);
+        final byte[] rowU = scratch.u = Scratch.ensure(scratch.u, uSpan);
+        final byte[] rowV = scratch.v = Scratch.ensure(scratch.v, vSpan);
+
+        // Plane buffers are shared between bands, so each band reads through
+        // its own position.
+        final ByteBuffer bufY = mBufY.duplicate();
+        final ByteBuffer bufU = mBufU.duplicate();
+        final ByteBuffer bufV = mBufV.duplicate();
+
+        final int outputPixelStride = mOutputPixelStride;
+        final int yEnd = Math.min(mInscribedYMax, mInscribedYMin + 2 * endBlockRow);
+        for (int j = mInscribedYMin + 2 * firstBlockRow; j < yEnd; j += 2) {
+            int offsetY = TaskConvertImageToRGBPreview.calculateMemoryOffsetFromPixelOffsets(
+                    mInscribedXMin, j, mSubsample, 1 /* YComponent */,
+                    mYRowStride * mSubsample, ySampleStride, mInputHorizontalOffset,
+                    mInputVerticalOffset);
+            int offsetU = TaskConvertImageToRGBPreview.calculateMemoryOffsetFromPixelOffsets(
+                    mInscribedXMin, j, mSubsample, 2 /* U Component downsampled by 2 */,
+                    mURowStride * mSubsample, uSampleStride, mInputHorizontalOffset / 2,
+                    mInputVerticalOffset / 2);
+            int offsetV = TaskConvertImageToRGBPreview.calculateMemoryOffsetFromPixelOffsets(
+                    mInscribedXMin, j, mSubsample, 2 /* V Component downsampled by 2 */,
+                    mVRowStride * mSubsample, vSampleStride, mInputHorizontalOffset / 2,
+                    mInputVerticalOffset / 2);
+
+            bufY.position(offsetY);
+            bufY.get(rowY0, 0, ySpan);
+            bufY.position(offsetY + mYRowStride * mSubsample);
+            bufY.get(rowY1, 0, ySpan);
+            bufU.position(offsetU);
+            bufU.get(rowU, 0, uSpan);
+            bufV.position(offsetV);
+            bufV.get(rowV, 0, vSpan);
+
+            final int offsetColor = (j - mInscribedYMin) * outputPixelStride;
+            if (mCircular) {
+                convertCircularBlockRow(j, numBlocks, rowY0, rowY1, rowU, rowV, ySampleStride,
+                        uSampleStride, vSampleStride, colors, offsetColor);
+            } else {
+                convertBlockRow(numBlocks, rowY0, rowY1, rowU, rowV, ySampleStride,
+                        uSampleStride, vSampleStride, colors, offsetColor);
+            }
+        }
+    }
+
+    /**
+     * Converts a row of 2x2 blocks without any clipping.
+     */
+    private void convertBlockRow(int numBlocks, byte[] rowY0, byte[] rowY1, byte[] rowU,
+            byte[] rowV, int ySampleStride, int uSampleStride, int vSampleStride, int[] colors,
+            int offsetColor) {
+        final int outputPixelStride = mOutputPixelStride;
+        for (int block = 0, y0 = 0, u0 = 0, v0 = 0; block < numBlocks; block++,
+                y0 += 2 * ySampleStride, u0 += uSampleStride, v0 += vSampleStride,
+                offsetColor += 2) {
+            // calculate the RGB component of the u/v channels and use it
+            // for all pixels in the 2x2 block
+            int u = (rowU[u0] & 255) - 128;
+            int v = (rowV[v0] & 255) - 128;
+            int redDiff = (v * V_FACTOR_FOR_R) >> SHIFT_APPROXIMATION;
+            int greenDiff = (u * U_FACTOR_FOR_G + v * V_FACTOR_FOR_G) >> SHIFT_APPROXIMATION;
+            int blueDiff = (u * U_FACTOR_FOR_B) >> SHIFT_APPROXIMATION;
+
+            int y1 = y0 + ySampleStride;
+            colors[offsetColor] = toArgb(rowY0[y0] & 255, redDiff, greenDiff, blueDiff,
+                    OPAQUE_ALPHA);
+            colors[offsetColor + 1] = toArgb(rowY0[y1] & 255, redDiff, greenDiff, blueDiff,
+                    OPAQUE_ALPHA);
+            colors[offsetColor + outputPixelStride] = toArgb(rowY1[y0] & 255, redDiff,
+                    greenDiff, blueDiff, OPAQUE_ALPHA);
+            colors[offsetColor + outputPixelStride + 1] = toArgb(rowY1[y1] & 255, redDiff,
+                    greenDiff, blueDiff, OPAQUE_ALPHA);
+        }
+    }
+
+    /**
+     * Converts a row of 2x2 blocks, clearing the pixels outside of the
+     * inscribed circle and feathering its edge.
+     */
+    private void convertCircularBlockRow(int j, int numBlocks, byte[] rowY0, byte[] rowY1,
+            byte[] rowU, byte[] rowV, int ySampleStride, int uSampleStride, int vSampleStride,
+            int[] colors, int offsetColor) {
+        final int outputPixelStride = mOutputPixelStride;
+
+        // Parametrize the circle boundaries w.r.t. the y component.
+        final int r = mRadius;
+        int circleHalfWidth0 =
+                (int) (Math.sqrt((float) (r * r - (j - mCenterY) * (j - mCenterY))) + 0.5f);
+        final int circleMin0 = mCenterX - circleHalfWidth0;
+        final int circleMax0 = mCenterX + circleHalfWidth0;
+        int circleHalfWidth1 = (int) (Math.sqrt((float) (r * r - (j + 1 - mCenterY)
+                * (j + 1 - mCenterY))) + 0.5f);
+        final int circleMin1 = mCenterX - circleHalfWidth1;
+        final int circleMax1 = mCenterX + circleHalfWidth1;
+
+        for (int block = 0, i = mInscribedXMin; block < numBlocks;
+                block++, i += 2, offsetColor += 2) {
+            if ((i > circleMax0 && i > circleMax1) || (i + 1 < circleMin0 && i < circleMin1)) {
+                colors[offsetColor] = OUT_OF_BOUNDS_COLOR;
+                colors[offsetColor + 1] = OUT_OF_BOUNDS_COLOR;
+                colors[offsetColor + outputPixelStride] = OUT_OF_BOUNDS_COLOR;
+                colors[offsetColor + outputPixelStride + 1] = OUT_OF_BOUNDS_COLOR;
+                continue;
+            }
+
+            int u = (rowU[block * uSampleStride] & 255) - 128;
+            int v = (rowV[block * vSampleStride] & 255) - 128;
+            int redDiff = (v * V_FACTOR_FOR_R) >> SHIFT_APPROXIMATION;
+            int greenDiff = (u * U_FACTOR_FOR_G + v * V_FACTOR_FOR_G) >> SHIFT_APPROXIMATION;
+            int blueDiff = (u * U_FACTOR_FOR_B) >> SHIFT_APPROXIMATION;
+
+            int y0 = 2 * block * ySampleStride;
+            int y1 = y0 + ySampleStride;
+
+            colors[offsetColor] = convertPixel(rowY0[y0], redDiff, greenDiff, blueDiff,
+                    i, circleMin0, circleMax0);
+            colors[offsetColor + 1] = convertPixel(rowY0[y1], redDiff, greenDiff, blueDiff,
+                    i + 1, circleMin0, circleMax0);
+            colors[offsetColor + outputPixelStride] = convertPixel(rowY1[y0], redDiff,
+                    greenDiff, blueDiff, i, circleMin1, circleMax1);
+            colors[offsetColor + outputPixelStride + 1] = convertPixel(rowY1[y1], redDiff,
+                    greenDiff, blueDiff, i + 1, circleMin1, circleMax1);
+        }
+    }
+
+    private static int convertPixel(byte luma, int redDiff, int greenDiff, int blueDiff,
+            int column, int circleMin, int circleMax) {
+        if (column > circleMax || column < circleMin) {
+            return OUT_OF_BOUNDS_COLOR;
+        }
+        // Do a little alpha feathering on the edges
+        int alpha = (column == circleMax || column == circleMin) ? FEATHERED_ALPHA
+                : OPAQUE_ALPHA;
+
+        return toArgb(luma & 255, redDiff, greenDiff, blueDiff, alpha);
+    }
+
+    private static int toArgb(int y, int redDiff, int greenDiff, int blueDiff, int alpha) {
+        return clamp(y + redDiff) << 16 | clamp(y + greenDiff) << 8 | clamp(y + blueDiff)
+                | alpha;
+    }
+
+    private static int clamp(int value) {
+        return value < 0 ? 0 : (value > 255 ? 255 : value);
+    }
+}
@@ -0,0 +1,33 @@
+/*
+ * Copyright (C) 2015 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.camera.processing.memory;
+
+/**
+ * Resource pool for byte arrays, such as packed NV21 images and compressed
+ * JPEGs. The integer key represents the length of the array. Recycled arrays
+ * are not cleared, since their users overwrite the part they read.
+ */
+public final class ByteArrayPool extends SimpleLruResourcePool<Integer, byte[]> {
+    public ByteArrayPool(int lruSize) {
+        super(lruSize);
+    }
+
+    @Override
+    protected byte[] create(Integer length) {
+        return new byte[length];
+    }
+}
@@ -0,0 +1,41 @@
+/*
+ * Copyright (C) 2015 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.camera.processing.memory;
+
+import java.util.Arrays;
+
+/**
+ * Resource pool for packed ARGB_8888 pixel arrays. The integer key represents
+ * the length of the array. Recycled arrays are zeroed so that they are
+ * indistinguishable from newly allocated ones.
+ */
+public final class IntArrayPool extends SimpleLruResourcePool<Integer, int[]> {
+    public IntArrayPool(int lruSize) {
+        super(lruSize);
+    }
+
+    @Override
+    protected int[] create(Integer length) {
+        return new int[length];
+    }
+
+    @Override
+    protected int[] recycle(Integer length, int[] array) {
+        Arrays.fill(array, 0);
+        return array;
+    }
+}
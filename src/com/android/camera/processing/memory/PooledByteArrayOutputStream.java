@@ -0,0 +1,108 @@
+/*
+ * Copyright (C) 2015 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.camera.processing.memory;
+
+import com.android.camera.processing.memory.LruResourcePool.Resource;
+import com.google.common.base.Preconditions;
+
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+
+/**
+ * An output stream which writes into a byte array taken from a pool, instead
+ * of growing and finally copying its own array as
+ * {@link java.io.ByteArrayOutputStream} does. The initial array should be
+ * sized for the expected output; if it overflows, a larger array is taken from
+ * the pool and the bytes written so far are copied over once.
+ * <p>
+ * The written bytes are exposed with {@link #toByteBuffer()}, which wraps
+ * the pooled array. It stays valid until the stream is closed, which returns
+ * the array to the pool. Not thread safe.
+ */
+public final class PooledByteArrayOutputStream extends OutputStream {
+    private final LruResourcePool<Integer, byte[]> mPool;
+    private Resource<byte[]> mResource;
+    private byte[] mBuffer;
+    private int mCount = 0;
+
+    /**
+     * @param pool The pool to take arrays from.
+     * @param initialCapacity The expected number of bytes to be written.
+     */
+    public PooledByteArrayOutputStream(LruResourcePool<Integer, byte[]> pool,
+            int initialCapacity) {
+        Preconditions.checkArgument(initialCapacity > 0);
+        mPool = pool;
+        mResource = pool.acquire(initialCapacity);
+        mBuffer = mResource.get();
+    }
+
+    @Override
+    public void write(int b) {
+        ensureCapacity(mCount + 1);
+        mBuffer[mCount++] = (byte) b;
+    }
+
+    @Override
+    public void write(byte[] buffer, int offset, int length) {
+        ensureCapacity(mCount + length);
+        System.arraycopy(buffer, offset, mBuffer, mCount, length);
+        mCount += length;
+    }
+
+    /**
+     * @return The number of bytes written.
+     */
+    public int size() {
+        return mCount;
+    }
+
+    /**
+     * @return A buffer over the bytes written, backed by the pooled array
+     *         and only valid until this stream is closed.
+     */
+    public ByteBuffer toByteBuffer() {
+        Preconditions.checkState(mBuffer != null, "Stream is closed");
+        return ByteBuffer.wrap(mBuffer, 0, mCount).slice();
+    }
+
+    /**
+     * Returns the array to the pool. Closing the stream more than once has no
+     * effect.
+     */
+    @Override
+    public void close() {
+        if (mResource != null) {
+            mResource.close();
+            mResource = null;
+            mBuffer = null;
+        }
+    }
+
+    private void ensureCapacity(int capacity) {
+        Preconditions.checkState(mBuffer != null, "Stream is closed");
+        if (capacity <= mBuffer.length) {
+            return;
+        }
+        Resource<byte[]> resource = mPool.acquire(Math.max(capacity, mBuffer.length * 2));
+        byte[] buffer = resource.get();
+        System.arraycopy(mBuffer, 0, buffer, 0, mCount);
+        mResource.close();
+        mResource = resource;
+        mBuffer = buffer;
+    }
+}
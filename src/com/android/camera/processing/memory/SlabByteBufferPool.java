@@ -0,0 +1,385 @@
+/*
+ * Copyright (C) 2015 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.camera.processing.memory;
+
+import com.google.common.base.Preconditions;
+
+import java.nio.ByteBuffer;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
+
+import javax.annotation.Nullable;
+import javax.annotation.concurrent.GuardedBy;
+import javax.annotation.concurrent.ThreadSafe;
+
+/**
+ * Resource pool of direct byte buffers, where the integer key is the minimum
+ * number of bytes required. Requests are rounded up to a size class, four
+ * classes per power of two, so that buffers of similar sizes are reused even
+ * when the requested size changes from shot to shot. Buffers are slices carved
+ * from a few large direct arenas, and the total size of the arenas is bounded
+ * by a byte budget. Arenas with no outstanding slices are reclaimed when the
+ * budget is reached; if that is not enough, the request is served by a
+ * one-off allocation which is not retained by the pool.
+ * <p>
+ * Returned buffers have a capacity of at least, and a limit of exactly, the
+ * requested number of bytes.
+ */
+@ThreadSafe
+public final class SlabByteBufferPool implements LruResourcePool<Integer, ByteBuffer> {
+    /** Smallest size class, in bytes. */
+    private static final int MIN_CLASS_SIZE = 4096;
+    /** Size classes per power of two, bounding rounding waste to 25%. */
+    private static final int CLASSES_PER_DOUBLING = 4;
+    private static final int LOG2_CLASSES_PER_DOUBLING = 2;
+    /** Default size of the arenas slices are carved from. */
+    private static final int DEFAULT_ARENA_SIZE = 8 * 1024 * 1024;
+
+    /** A large direct allocation that slabs are carved from. */
+    private static final class Arena {
+        final ByteBuffer memory;
+        final List<Slab> slabs = new ArrayList<>();
+        int carved = 0;
+        int outstanding = 0;
+
+        Arena(int size) {
+            memory = ByteBuffer.allocateDirect(size);
+        }
+    }
+
+    /** A slice of an arena of exactly one size class. */
+    private static final class Slab {
+        @Nullable
+        final Arena arena;
+        final int sizeClass;
+        final ByteBuffer buffer;
+
+        Slab(@Nullable Arena arena, int sizeClass, ByteBuffer buffer) {
+            this.arena = arena;
+            this.sizeClass = sizeClass;
+            this.buffer = buffer;
+        }
+    }
+
+    private final Object mLock = new Object();
+    private final long mBudgetBytes;
+    private final int mArenaSize;
+
+    @GuardedBy("mLock")
+    private final List<Arena> mArenas = new ArrayList<>();
+    @GuardedBy("mLock")
+    private final List<ArrayDeque<Slab>> mFreeSlabs = new ArrayList<>();
+    @GuardedBy("mLock")
+    private long mReservedBytes = 0;
+    @GuardedBy("mLock")
+    private long mRequestedBytesInUse = 0;
+    @GuardedBy("mLock")
+    private long mClassBytesInUse = 0;
+    @GuardedBy("mLock")
+    private long mHitCount = 0;
+    @GuardedBy("mLock")
+    private long mMissCount = 0;
+    @GuardedBy("mLock")
+    private long mOverBudgetCount = 0;
+
+    /**
+     * @param budgetBytes The maximum number of bytes held in arenas.
+     */
+    public SlabByteBufferPool(long budgetBytes) {
+        this(budgetBytes, DEFAULT_ARENA_SIZE);
+    }
+
+    /**
+     * @param budgetBytes The maximum number of bytes held in arenas.
+     * @param arenaSize The size of the arenas that buffers are carved from.
+     *            Requests larger than this get an arena of their own.
+     */
+    public SlabByteBufferPool(long budgetBytes, int arenaSize) {
+        Preconditions.checkArgument(budgetBytes > 0);
+        Preconditions.checkArgument(arenaSize >= MIN_CLASS_SIZE);
+
+        mBudgetBytes = budgetBytes;
+        mArenaSize = arenaSize;
+    }
+
+    @Override
+    public Resource<ByteBuffer> acquire(Integer bytes) {
+        Preconditions.checkArgument(bytes > 0);
+        final int requested = bytes;
+        final int sizeClass = sizeClassOf(requested);
+        final int classSize = classSize(sizeClass);
+
+        Slab slab;
+        synchronized (mLock) {
+            slab = pollFreeSlab(sizeClass);
+            if (slab != null) {
+                mHitCount++;
+            } else {
+                mMissCount++;
+                slab = carveSlab(sizeClass, classSize);
+            }
+            if (slab != null) {
+                slab.arena.outstanding++;
+                mRequestedBytesInUse += requested;
+                mClassBytesInUse += classSize;
+            } else {
+                mOverBudgetCount++;
+            }
+        }
+
+        if (slab == null) {
+            // Over budget, hand out a buffer which is simply dropped on close.
+            slab = new Slab(null, sizeClass, ByteBuffer.allocateDirect(requested));
+        }
+
+        slab.buffer.clear();
+        slab.buffer.limit(requested);
+        return new SlabResource(this, slab, requested);
+    }
+
+    /**
+     * @return The number of requests served by a previously released buffer.
+     */
+    public long getHitCount() {
+        synchronized (mLock) {
+            return mHitCount;
+        }
+    }
+
+    /**
+     * @return The number of requests that required carving a new buffer or a
+     *         one-off allocation.
+     */
+    public long getMissCount() {
+        synchronized (mLock) {
+            return mMissCount;
+        }
+    }
+
+    /**
+     * @return The number of requests that could not be served within the
+     *         budget and were given a one-off allocation.
+     */
+    public long getOverBudgetCount() {
+        synchronized (mLock) {
+            return mOverBudgetCount;
+        }
+    }
+
+    /**
+     * @return The number of bytes currently held in arenas.
+     */
+    public long getReservedBytes() {
+        synchronized (mLock) {
+            return mReservedBytes;
+        }
+    }
+
+    /**
+     * @return The fraction of the reserved bytes that is not available to
+     *         outstanding buffers: rounding waste inside buffers in use plus
+     *         free slices and uncarved arena space. 0 when nothing is reserved.
+     */
+    public float getFragmentation() {
+        synchronized (mLock) {
+            if (mReservedBytes == 0) {
+                return 0f;
+            }
+            return (float) (mReservedBytes - mRequestedBytesInUse) / mReservedBytes;
+        }
+    }
+
+    /**
+     * @return The fraction of the bytes of outstanding buffers lost to
+     *         rounding up to a size class.
+     */
+    public float getInternalFragmentation() {
+        synchronized (mLock) {
+            if (mClassBytesInUse == 0) {
+                return 0f;
+            }
+            return (float) (mClassBytesInUse - mRequestedBytesInUse) / mClassBytesInUse;
+        }
+    }
+
+    @Override
+    public String toString() {
+        synchronized (mLock) {
+            return "SlabByteBufferPool reserved = " + mReservedBytes + "/" + mBudgetBytes
+                    + ", arenas = " + mArenas.size()
+                    + ", hit/miss/overBudget = " + mHitCount + "/" + mMissCount + "/"
+                    + mOverBudgetCount
+                    + ", fragmentation = " + getFragmentation();
+        }
+    }
+
+    /**
+     * Returns the size class of a request: classes grow geometrically, with
+     * {@link #CLASSES_PER_DOUBLING} evenly spaced classes per power of two.
+     */
+    static int sizeClassOf(int bytes) {
+        if (bytes <= MIN_CLASS_SIZE) {
+            return 0;
+        }
+        int minShift = Integer.numberOfTrailingZeros(MIN_CLASS_SIZE);
+        // Position of the highest bit of (bytes - 1), relative to the minimum
+        // class, selects the doubling; the next bits select the class within.
+        int highBit = 31 - Integer.numberOfLeadingZeros(bytes - 1);
+        int stepShift = highBit - LOG2_CLASSES_PER_DOUBLING;
+        int step = ((bytes - 1) >>> stepShift) - CLASSES_PER_DOUBLING;
+        return (highBit - minShift) * CLASSES_PER_DOUBLING + step + 1;
+    }
+
+    /**
+     * Returns the number of bytes of every buffer of the given size class.
+     */
+    static int classSize(int sizeClass) {
+        if (sizeClass == 0) {
+            return MIN_CLASS_SIZE;
+        }
+        int doubling = (sizeClass - 1) / CLASSES_PER_DOUBLING;
+        int step = (sizeClass - 1) % CLASSES_PER_DOUBLING + 1;
+        int base = MIN_CLASS_SIZE << doubling;
+        return base + step * (base >> LOG2_CLASSES_PER_DOUBLING);
+    }
+
+    @GuardedBy("mLock")
+    @Nullable
+    private Slab pollFreeSlab(int sizeClass) {
+        if (sizeClass >= mFreeSlabs.size()) {
+            return null;
+        }
+        return mFreeSlabs.get(sizeClass).poll();
+    }
+
+    /**
+     * Carves a new slab from an arena, creating an arena if none has room,
+     * and reclaiming idle arenas if a new one would exceed the budget.
+     */
+    @GuardedBy("mLock")
+    @Nullable
+    private Slab carveSlab(int sizeClass, int classSize) {
+        Arena arena = null;
+        for (Arena candidate : mArenas) {
+            if (candidate.memory.capacity() - candidate.carved >= classSize) {
+                arena = candidate;
+                break;
+            }
+        }
+
+        if (arena == null) {
+            int arenaSize = Math.max(mArenaSize, classSize);
+            if (mReservedBytes + arenaSize > mBudgetBytes) {
+                reclaimIdleArenas();
+            }
+            if (mReservedBytes + arenaSize > mBudgetBytes) {
+                return null;
+            }
+            try {
+                arena = new Arena(arenaSize);
+            } catch (OutOfMemoryError e) {
+                return null;
+            }
+            mArenas.add(arena);
+            mReservedBytes += arenaSize;
+        }
+
+        ByteBuffer view = arena.memory.duplicate();
+        view.position(arena.carved);
+        view.limit(arena.carved + classSize);
+        Slab slab = new Slab(arena, sizeClass, view.slice());
+        arena.carved += classSize;
+        arena.slabs.add(slab);
+        return slab;
+    }
+
+    /**
+     * Drops every arena none of whose slabs are outstanding, along with its
+     * free slabs.
+     */
+    @GuardedBy("mLock")
+    private void reclaimIdleArenas() {
+        Iterator<Arena> arenas = mArenas.iterator();
+        while (arenas.hasNext()) {
+            Arena arena = arenas.next();
+            if (arena.outstanding > 0) {
+                continue;
+            }
+            for (Slab slab : arena.slabs) {
+                mFreeSlabs.get(slab.sizeClass).remove(slab);
+            }
+            arenas.remove();
+            mReservedBytes -= arena.memory.capacity();
+        }
+    }
+
+    private void release(Slab slab, int requested) {
+        if (slab.arena == null) {
+            return;
+        }
+        synchronized (mLock) {
+            slab.arena.outstanding--;
+            mRequestedBytesInUse -= requested;
+            mClassBytesInUse -= classSize(slab.sizeClass);
+            while (mFreeSlabs.size() <= slab.sizeClass) {
+                mFreeSlabs.add(new ArrayDeque<Slab>());
+            }
+            mFreeSlabs.get(slab.sizeClass).push(slab);
+        }
+    }
+
+    /**
+     * Returns the slab to the pool when closed.
+     */
+    @ThreadSafe
+    private static final class SlabResource implements Resource<ByteBuffer> {
+        private final Object mLock = new Object();
+        private final SlabByteBufferPool mPool;
+        private final int mRequested;
+
+        @GuardedBy("mLock")
+        private Slab mSlab;
+
+        SlabResource(SlabByteBufferPool pool, Slab slab, int requested) {
+            mPool = pool;
+            mSlab = slab;
+            mRequested = requested;
+        }
+
+        @Nullable
+        @Override
+        public ByteBuffer get() {
+            synchronized (mLock) {
+                return mSlab != null ? mSlab.buffer : null;
+            }
+        }
+
+        @Override
+        public void close() {
+            Slab slab;
+            synchronized (mLock) {
+                slab = mSlab;
+                mSlab = null;
+            }
+            if (slab != null) {
+                mPool.release(slab, mRequested);
+            }
+        }
+    }
+}
@@ -16,7 +16,7 @@
 
 package com.android.camera.session;
 
-import android.net.Uri;
+import com.android.camera.app.MediaSaver.OnMediaSavedListener;
 
 import java.io.File;
 
@@ -35,9 +35,12 @@ public interface StackSaver {
      * @param imageOrientation the image orientation in degrees
      * @param captureTimeEpoch the capture time in millis since epoch
      * @param mimeType the mime type of the image
-     * @return The Uri of the saved image, or null, of the image could not be
-     *         saved.
+     * @param listener notified on a background thread with the Uri of the
+     *            saved image, or null, if the image could not be saved. The
+     *            media store insert may be batched with those of other
+     *            images, so this can be called after later images are saved.
      */
-    public Uri saveStackedImage(File inputImagePath, String title, int width, int height,
-            int imageOrientation, long captureTimeEpoch, String mimeType);
+    public void saveStackedImage(File inputImagePath, String title, int width, int height,
+            int imageOrientation, long captureTimeEpoch, String mimeType,
+            OnMediaSavedListener listener);
 }
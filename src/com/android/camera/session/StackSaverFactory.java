@@ -16,9 +16,10 @@
 
 package com.android.camera.session;
 
-import android.content.ContentResolver;
 import android.location.Location;
 
+import com.android.camera.MediaStoreBatchWriter;
+
 import java.io.File;
 
 /**
@@ -26,19 +27,19 @@ import java.io.File;
  */
 public class StackSaverFactory {
     private final String mCameraDirectory;
-    private final ContentResolver mContentResolver;
+    private final MediaStoreBatchWriter mMediaStoreWriter;
 
     /**
      * Create a new stack saver factory.
      *
      * @param cameraDirectory the directory in which the camera stores images.
-     * @param contentResolver the Android content resolver used to include
-     *            images into the media store.
+     * @param mediaStoreWriter the writer used to include images into the
+     *            media store.
      */
     public StackSaverFactory(String cameraDirectory,
-            ContentResolver contentResolver) {
+            MediaStoreBatchWriter mediaStoreWriter) {
         mCameraDirectory = cameraDirectory;
-        mContentResolver = contentResolver;
+        mMediaStoreWriter = mediaStoreWriter;
     }
 
     /**
@@ -50,6 +51,6 @@ public class StackSaverFactory {
      * @return A StackSaver that is set up to save images in a stacked location.
      */
     public StackSaver create(String mTitle, Location location) {
-        return new StackSaverImpl(new File(mCameraDirectory, mTitle), location, mContentResolver);
+        return new StackSaverImpl(new File(mCameraDirectory, mTitle), location, mMediaStoreWriter);
     }
 }
@@ -16,11 +16,12 @@
 
 package com.android.camera.session;
 
-import android.content.ContentResolver;
 import android.location.Location;
 import android.net.Uri;
 
+import com.android.camera.MediaStoreBatchWriter;
 import com.android.camera.Storage;
+import com.android.camera.app.MediaSaver.OnMediaSavedListener;
 import com.android.camera.debug.Log;
 
 import java.io.File;
@@ -37,7 +38,7 @@ public class StackSaverImpl implements StackSaver {
     private static final Log.Tag TAG = new Log.Tag("StackSaverImpl");
     /** The stacked images are stored in this directory. */
     private final File mStackDirectory;
-    private final ContentResolver mContentResolver;
+    private final MediaStoreBatchWriter mMediaStoreWriter;
     private final Location mGpsLocation;
 
     /**
@@ -47,20 +48,20 @@ public class StackSaverImpl implements StackSaver {
      *            be created, into which images belonging to this stack are
      *            belonging.
      * @param gpsLocation the GPS location to attach to all stacked images.
-     * @param contentResolver content resolver for storing the data in media
-     *            store. TODO: Replace with a media storage storer that can be
-     *            mocked out in tests.
+     * @param mediaStoreWriter writer for storing the data in media store,
+     *            batching the inserts of all images of the stack.
      */
     public StackSaverImpl(File stackDirectory, Location gpsLocation,
-            ContentResolver contentResolver) {
+            MediaStoreBatchWriter mediaStoreWriter) {
         mStackDirectory = stackDirectory;
         mGpsLocation = gpsLocation;
-        mContentResolver = contentResolver;
+        mMediaStoreWriter = mediaStoreWriter;
     }
 
     @Override
-    public Uri saveStackedImage(File inputImagePath, String title, int width, int height,
-            int imageOrientation, long captureTimeEpoch, String mimeType) {
+    public void saveStackedImage(File inputImagePath, String title, int width, int height,
+            int imageOrientation, long captureTimeEpoch, String mimeType,
+            final OnMediaSavedListener listener) {
         String filePath =
                 Storage.generateFilepath(mStackDirectory.getAbsolutePath(), title, mimeType);
         Log.d(TAG, "Saving using stack image saver: " + filePath);
@@ -69,15 +70,21 @@ public class StackSaverImpl implements StackSaver {
         if (Storage.renameFile(inputImagePath, outputImagePath)) {
             long fileLength = outputImagePath.length();
             if (fileLength > 0) {
-                return Storage.addImageToMediaStore(mContentResolver, title, captureTimeEpoch,
+                Storage.addImageToMediaStore(mMediaStoreWriter, title, captureTimeEpoch,
                         mGpsLocation, imageOrientation, fileLength, filePath, width, height,
-                        mimeType);
+                        mimeType, new MediaStoreBatchWriter.Callback() {
+                            @Override
+                            public void onComplete(Uri uri) {
+                                listener.onMediaSaved(uri);
+                            }
+                        });
+                return;
             }
         }
 
         Log.e(TAG, String.format("Unable to rename file from %s to %s.",
                 inputImagePath.getPath(),
                 filePath));
-        return null;
+        listener.onMediaSaved(null);
     }
 }
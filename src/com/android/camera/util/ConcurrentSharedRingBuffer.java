@@ -22,11 +22,12 @@ import android.util.Pair;
 import com.android.camera.debug.Log.Tag;
 
 import java.security.InvalidParameterException;
-import java.util.ArrayList;
-import java.util.Collections;
-import java.util.Map;
-import java.util.TreeMap;
-import java.util.concurrent.Semaphore;
+import java.util.Arrays;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicIntegerArray;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.AtomicReferenceArray;
 
 /**
  * Implements a thread-safe fixed-size pool map of integers to objects such that
@@ -36,6 +37,12 @@ import java.util.concurrent.Semaphore;
  * This class enforces the invariant that a new element can always be swapped
  * in. Thus, requests to pin an element for a particular task may be denied if
  * there are not enough unpinned elements which can be removed. <br>
+ * Elements are stored in a fixed array of slots. Every slot carries a single
+ * packed state word holding a generation count and either its pin count or a
+ * marker for a free or in-flight slot, so swapping, pinning and releasing are
+ * all done with compare-and-set operations and never take a lock. The only
+ * waits are a short spin when two swaps insert the same key at the same time,
+ * and {@link #close} waiting for in-flight swaps and outstanding pins.
  */
 public class ConcurrentSharedRingBuffer<E> {
     private static final Tag TAG = new Tag("CncrrntShrdRingBuf");
@@ -106,75 +113,48 @@ public class ConcurrentSharedRingBuffer<E> {
         public void onPinStateChange(boolean pinsAvailable);
     }
 
+    /** State of a slot which does not hold an element. */
+    private static final int FREE = -2;
+    /** State of a slot which is exclusively held by an in-flight swap. */
+    private static final int BUSY = -1;
+
+    private final int mCapacity;
     /**
-     * Wraps E with reference counting.
+     * Per-slot state packed as (generation << 32 | state), where state is
+     * FREE, BUSY, or the number of pins on an element. The generation is
+     * bumped every time a slot is given a new key so that compare-and-set
+     * operations based on a stale read of the key fail.
      */
-    private static class Pinnable<E> {
-        private E mElement;
-
-        /** Reference-counting for the number of tasks holding this element. */
-        private int mPins;
-
-        public Pinnable(E element) {
-            mElement = element;
-            mPins = 0;
-        }
-
-        public E getElement() {
-            return mElement;
-        }
-
-        private boolean isPinned() {
-            return mPins > 0;
-        }
-    }
-
+    private final AtomicLongArray mSlotStates;
+    /** Per-slot key. Only meaningful while the slot is not FREE. */
+    private final AtomicLongArray mKeys;
+    /** Per-slot element. Published by the write of the slot state. */
+    private final AtomicReferenceArray<E> mElements;
     /**
-     * A Semaphore that allows to reduce permits to negative values.
+     * Per-slot ticket of the swap inserting into the slot, used to order two
+     * swaps which insert the same key concurrently.
      */
-    private static class NegativePermitsSemaphore extends Semaphore {
-        public NegativePermitsSemaphore(int permits) {
-            super(permits);
-        }
-
-        /**
-         * Reduces the number of permits by <code>permits</code>.
-         * <p/>
-         * This method can only be called when number of available permits is
-         * zero.
-         */
-        @Override
-        public void reducePermits(int permits) {
-            if (availablePermits() != 0) {
-                throw new IllegalStateException("Called without draining the semaphore.");
-            }
-            super.reducePermits(permits);
-        }
-    }
-
-    /** Allow only one swapping operation at a time. */
-    private final Object mSwapLock = new Object();
+    private final AtomicLongArray mInsertTickets;
+    /** Per-slot count of swaps updating the element in place. */
+    private final AtomicIntegerArray mUpdaters;
+    private final AtomicLong mInsertSequence = new AtomicLong(0);
+    /**
+     * Number of elements which may still be pinned, while leaving at least
+     * one unpinned element available to swap out as the head of the buffer.
+     */
+    private final AtomicInteger mPinPermits;
+    /** Number of swapLeast() calls in flight, which close() waits for. */
+    private final AtomicInteger mActiveSwaps = new AtomicInteger(0);
     /**
-     * Lock all transactions involving mElements, mUnpinnedElements,
-     * mCapacitySemaphore, mPinSemaphore, mClosed, mPinStateHandler, and
-     * mPinStateListener and the state of Pinnable instances. <br>
-     * TODO Replace this with a priority semaphore and allow swapLeast()
-     * operations to run faster at the expense of slower tryPin()/release()
-     * calls.
+     * Number of tryPin() calls in flight, which close() waits for so that no
+     * element is pinned after it checked for pinned elements.
      */
-    private final Object mLock = new Object();
-    /** Stores all elements. */
-    private TreeMap<Long, Pinnable<E>> mElements;
-    /** Stores the subset of mElements which is not pinned. */
-    private TreeMap<Long, Pinnable<E>> mUnpinnedElements;
-    /** Used to acquire space in mElements. */
-    private final Semaphore mCapacitySemaphore;
-    /** This must be acquired while an element is pinned. */
-    private final NegativePermitsSemaphore mPinSemaphore;
-    private boolean mClosed = false;
-
-    private Handler mPinStateHandler = null;
-    private PinStateListener mPinStateListener = null;
+    private final AtomicInteger mActivePins = new AtomicInteger(0);
+    /** Used by close() to wait for outstanding pins to be released. */
+    private final Object mCloseLock = new Object();
+    private volatile boolean mClosed = false;
+
+    private volatile Pair<Handler, PinStateListener> mPinStateListener = null;
 
     /**
      * Constructs a new ring buffer with the specified capacity.
@@ -186,13 +166,19 @@ public class ConcurrentSharedRingBuffer<E> {
             throw new IllegalArgumentException("Capacity must be positive.");
         }
 
-        mElements = new TreeMap<Long, Pinnable<E>>();
-        mUnpinnedElements = new TreeMap<Long, Pinnable<E>>();
-        mCapacitySemaphore = new Semaphore(capacity);
+        mCapacity = capacity;
+        mSlotStates = new AtomicLongArray(capacity);
+        mKeys = new AtomicLongArray(capacity);
+        mElements = new AtomicReferenceArray<E>(capacity);
+        mInsertTickets = new AtomicLongArray(capacity);
+        mUpdaters = new AtomicIntegerArray(capacity);
+        for (int i = 0; i < capacity; i++) {
+            mSlotStates.set(i, pack(0, FREE));
+        }
         // Start with -1 permits to pin elements since we must always have at
         // least one unpinned
         // element available to swap out as the head of the buffer.
-        mPinSemaphore = new NegativePermitsSemaphore(-1);
+        mPinPermits = new AtomicInteger(-1);
     }
 
     /**
@@ -203,10 +189,7 @@ public class ConcurrentSharedRingBuffer<E> {
      *            element changes.
      */
     public void setListener(Handler handler, PinStateListener listener) {
-        synchronized (mLock) {
-            mPinStateHandler = handler;
-            mPinStateListener = listener;
-        }
+        mPinStateListener = Pair.create(handler, listener);
     }
 
     /**
@@ -227,97 +210,132 @@ public class ConcurrentSharedRingBuffer<E> {
      *         {@code swapper.create()} may or may not have been invoked.
      */
     public boolean swapLeast(long newKey, SwapTask<E> swapper) {
-        synchronized (mSwapLock) {
-            Pinnable<E> existingElement = null;
-
-            synchronized (mLock) {
+        mActiveSwaps.incrementAndGet();
+        try {
+            while (true) {
                 if (mClosed) {
                     return false;
                 }
-                existingElement = mElements.get(newKey);
-            }
 
-            if (existingElement != null) {
-                swapper.update(existingElement.getElement());
-                return true;
-            }
-
-            if (mCapacitySemaphore.tryAcquire()) {
-                // If we are under capacity, insert the new element and return.
-                Pinnable<E> p = new Pinnable<E>(swapper.create());
-
-                synchronized (mLock) {
-                    if (mClosed) {
-                        return false;
-                    }
+                int existing = findSlot(newKey, 0);
+                if (existing >= 0 && tryUpdate(existing, newKey, swapper)) {
+                    return true;
+                }
 
-                    // Add the new element and release another permit to pin
-                    // allow pinning another element.
-                    mElements.put(newKey, p);
-                    mUnpinnedElements.put(newKey, p);
-                    mPinSemaphore.release();
-                    if (mPinSemaphore.availablePermits() == 1) {
-                        notifyPinStateChange(true);
+                // Claim a free slot if we are under capacity, otherwise an
+                // unpinned element to swap out.
+                int slot = -1;
+                long claimedState = 0;
+                long evictedKey = 0;
+                for (int i = 0; i < mCapacity; i++) {
+                    long state = mSlotStates.get(i);
+                    if (stateOf(state) == FREE
+                            && mSlotStates.compareAndSet(i, state, withState(state, BUSY))) {
+                        slot = i;
+                        claimedState = state;
+                        break;
                     }
                 }
+                final boolean underCapacity = slot >= 0;
 
-                return true;
-            } else {
-                Pinnable<E> toSwap;
-
-                // Note that this method must be synchronized to avoid
-                // attempting to remove more than one unpinned element at a
-                // time.
-                synchronized (mLock) {
-                    if (mClosed) {
-                        return false;
-                    }
-                    Pair<Long, Pinnable<E>> toSwapEntry = null;
+                if (!underCapacity) {
                     long swapKey = swapper.getSwapKey();
                     // If swapKey is same as the inserted key return early.
                     if (swapKey == newKey) {
                         return false;
                     }
 
-                    if (mUnpinnedElements.containsKey(swapKey)) {
-                        toSwapEntry = Pair.create(swapKey, mUnpinnedElements.remove(swapKey));
-                    } else {
-                        // The returned key from getSwapKey was not found in the
-                        // unpinned elements use the least entry from the
-                        // unpinned elements.
-                        Map.Entry<Long, Pinnable<E>> swapEntry = mUnpinnedElements.pollFirstEntry();
-                        if (swapEntry != null) {
-                            toSwapEntry = Pair.create(swapEntry.getKey(), swapEntry.getValue());
+                    // Prefer the element with swapKey, otherwise use the least
+                    // unpinned element.
+                    int victim = -1;
+                    long victimState = 0;
+                    long victimKey = 0;
+                    for (int i = 0; i < mCapacity; i++) {
+                        long state = mSlotStates.get(i);
+                        if (stateOf(state) != 0 || mUpdaters.get(i) > 0) {
+                            continue;
+                        }
+                        long key = mKeys.get(i);
+                        if (key == swapKey) {
+                            victim = i;
+                            victimState = state;
+                            victimKey = key;
+                            break;
+                        }
+                        if (victim < 0 || key < victimKey) {
+                            victim = i;
+                            victimState = state;
+                            victimKey = key;
                         }
                     }
 
-                    if (toSwapEntry == null) {
+                    if (victim < 0) {
                         // We can get here if no unpinned element was found.
                         return false;
                     }
-
-                    toSwap = toSwapEntry.second;
-
-                    // We must remove the element from both mElements and
-                    // mUnpinnedElements because it must be re-added after the
-                    // swap to be placed in the correct order with newKey.
-                    mElements.remove(toSwapEntry.first);
+                    if (!mSlotStates.compareAndSet(victim, victimState,
+                            withState(victimState, BUSY))) {
+                        // The element was pinned or swapped concurrently.
+                        continue;
+                    }
+                    if (mUpdaters.get(victim) > 0) {
+                        // The element is being updated in place, leave it.
+                        mSlotStates.set(victim, victimState);
+                        continue;
+                    }
+                    slot = victim;
+                    claimedState = victimState;
+                    evictedKey = victimKey;
                 }
 
-                try {
-                    toSwap.mElement = swapper.swap(toSwap.mElement);
-                } finally {
-                    synchronized (mLock) {
-                        if (mClosed) {
-                            return false;
-                        }
+                // Publish the key and our ticket, then make sure that no other
+                // swap is inserting the same key ahead of us.
+                mInsertTickets.set(slot, 0);
+                mKeys.set(slot, newKey);
+                long ticket = mInsertSequence.incrementAndGet();
+                mInsertTickets.set(slot, ticket);
+
+                int conflict = findConflictingInsert(slot, newKey, ticket);
+                if (conflict >= 0) {
+                    // Put the slot back the way we found it, wait for the
+                    // other swap to finish and retry; we will then update its
+                    // element in place.
+                    if (underCapacity) {
+                        mSlotStates.set(slot, nextGeneration(claimedState, FREE));
+                    } else {
+                        mKeys.set(slot, evictedKey);
+                        mSlotStates.set(slot, nextGeneration(claimedState, 0));
+                    }
+                    awaitNotBusy(conflict);
+                    continue;
+                }
 
-                        mElements.put(newKey, toSwap);
-                        mUnpinnedElements.put(newKey, toSwap);
+                if (underCapacity) {
+                    boolean created = false;
+                    try {
+                        mElements.set(slot, swapper.create());
+                        created = true;
+                    } finally {
+                        mSlotStates.set(slot, nextGeneration(claimedState,
+                                created ? 0 : FREE));
+                    }
+                    // Allow pinning another element.
+                    if (mPinPermits.incrementAndGet() == 1) {
+                        notifyPinStateChange(true);
+                    }
+                } else {
+                    try {
+                        mElements.set(slot, swapper.swap(mElements.get(slot)));
+                    } finally {
+                        // The element is re-added with newKey even if the swap
+                        // failed, so that the buffer never loses a slot.
+                        mSlotStates.set(slot, nextGeneration(claimedState, 0));
                     }
                 }
                 return true;
             }
+        } finally {
+            mActiveSwaps.decrementAndGet();
         }
     }
 
@@ -330,82 +348,97 @@ public class ConcurrentSharedRingBuffer<E> {
      *         or null.
      */
     public Pair<Long, E> tryPin(long key) {
+        mActivePins.incrementAndGet();
+        try {
+            return doTryPin(key);
+        } finally {
+            mActivePins.decrementAndGet();
+        }
+    }
 
-        boolean acquiredLastPin = false;
-        Pinnable<E> entry = null;
-
-        synchronized (mLock) {
+    private Pair<Long, E> doTryPin(long key) {
+        while (true) {
             if (mClosed) {
                 return null;
             }
 
-            if (mElements.isEmpty()) {
+            int slot = findSlot(key, 0);
+            if (slot < 0) {
                 return null;
             }
-
-            entry = mElements.get(key);
-
-            if (entry == null) {
-                return null;
+            long state = mSlotStates.get(slot);
+            if (stateOf(state) < 0 || mKeys.get(slot) != key) {
+                continue;
             }
 
-            if (entry.isPinned()) {
+            int pins = stateOf(state);
+            if (pins > 0) {
                 // If the element is already pinned by another task, simply
                 // increment the pin count.
-                entry.mPins++;
-            } else {
-                // We must ensure that there will still be an unpinned element
-                // after we pin this one.
-                if (mPinSemaphore.tryAcquire()) {
-                    mUnpinnedElements.remove(key);
-                    entry.mPins++;
-
-                    acquiredLastPin = mPinSemaphore.availablePermits() <= 0;
-                } else {
-                    return null;
+                if (mSlotStates.compareAndSet(slot, state, withState(state, pins + 1))) {
+                    return Pair.create(key, mElements.get(slot));
                 }
+                continue;
             }
-        }
 
-        // If we just grabbed the last permit, we must notify listeners of the
-        // pin
-        // state change.
-        if (acquiredLastPin) {
-            notifyPinStateChange(false);
+            // We must ensure that there will still be an unpinned element
+            // after we pin this one.
+            int permits = mPinPermits.get();
+            if (permits <= 0) {
+                return null;
+            }
+            if (!mPinPermits.compareAndSet(permits, permits - 1)) {
+                continue;
+            }
+            if (mSlotStates.compareAndSet(slot, state, withState(state, 1))) {
+                // If we just grabbed the last permit, we must notify
+                // listeners of the pin state change.
+                if (permits - 1 <= 0) {
+                    notifyPinStateChange(false);
+                }
+                return Pair.create(key, mElements.get(slot));
+            }
+            // The element changed under us, give the permit back and retry.
+            mPinPermits.incrementAndGet();
         }
-
-        return Pair.create(key, entry.getElement());
     }
 
     public void release(long key) {
-        synchronized (mLock) {
-            // Note that this must proceed even if the buffer has been closed.
-
-            Pinnable<E> element = mElements.get(key);
-
-            if (element == null) {
+        // Note that this must proceed even if the buffer has been closed.
+        while (true) {
+            int slot = findSlot(key, 0);
+            if (slot < 0) {
                 throw new InvalidParameterException(
                         "No entry found for the given key: " + key + ".");
             }
+            long state = mSlotStates.get(slot);
+            if (stateOf(state) < 0 || mKeys.get(slot) != key) {
+                continue;
+            }
 
-            if (!element.isPinned()) {
+            int pins = stateOf(state);
+            if (pins == 0) {
                 throw new IllegalArgumentException("Calling release() with unpinned element.");
             }
 
             // Unpin the element
-            element.mPins--;
-
-            if (!element.isPinned()) {
-                // If there are now 0 tasks pinning this element...
-                mUnpinnedElements.put(key, element);
-
-                // Allow pinning another element.
-                mPinSemaphore.release();
+            if (!mSlotStates.compareAndSet(slot, state, withState(state, pins - 1))) {
+                continue;
+            }
 
-                if (mPinSemaphore.availablePermits() == 1) {
+            if (pins == 1) {
+                // If there are now 0 tasks pinning this element, allow
+                // pinning another element.
+                if (mPinPermits.incrementAndGet() == 1) {
                     notifyPinStateChange(true);
                 }
+                if (mClosed) {
+                    synchronized (mCloseLock) {
+                        mCloseLock.notifyAll();
+                    }
+                }
             }
+            return;
         }
     }
 
@@ -420,17 +453,27 @@ public class ConcurrentSharedRingBuffer<E> {
      *         or null.
      */
     public Pair<Long, E> tryPinGreatest() {
-        synchronized (mLock) {
-            if (mClosed) {
-                return null;
-            }
+        if (mClosed) {
+            return null;
+        }
 
-            if (mElements.isEmpty()) {
-                return null;
+        boolean found = false;
+        long greatestKey = Long.MIN_VALUE;
+        for (int i = 0; i < mCapacity; i++) {
+            if (stateOf(mSlotStates.get(i)) >= 0) {
+                long key = mKeys.get(i);
+                if (!found || key > greatestKey) {
+                    greatestKey = key;
+                    found = true;
+                }
             }
+        }
 
-            return tryPin(mElements.lastKey());
+        if (!found) {
+            return null;
         }
+
+        return tryPin(greatestKey);
     }
 
     /**
@@ -440,27 +483,30 @@ public class ConcurrentSharedRingBuffer<E> {
      * @see #pinGreatest
      */
     public Pair<Long, E> tryPinGreatestSelected(Selector<E> selector) {
-        // (Quickly) get the list of elements to search through.
-        ArrayList<Long> keys = new ArrayList<Long>();
-        synchronized (mLock) {
-            if (mClosed) {
-                return null;
-            }
+        if (mClosed) {
+            return null;
+        }
 
-            if (mElements.isEmpty()) {
-                return null;
+        // (Quickly) get the list of elements to search through.
+        long[] keys = new long[mCapacity];
+        int numKeys = 0;
+        for (int i = 0; i < mCapacity; i++) {
+            if (stateOf(mSlotStates.get(i)) >= 0) {
+                keys[numKeys++] = mKeys.get(i);
             }
+        }
 
-            keys.addAll(mElements.keySet());
+        if (numKeys == 0) {
+            return null;
         }
 
-        Collections.sort(keys);
+        Arrays.sort(keys, 0, numKeys);
 
         // Pin each element, from greatest key to least, until we find the one
         // we want (the element with the greatest key for which
         // selector.selected() returns true).
-        for (int i = keys.size() - 1; i >= 0; i--) {
-            Pair<Long, E> pinnedCandidate = tryPin(keys.get(i));
+        for (int i = numKeys - 1; i >= 0; i--) {
+            Pair<Long, E> pinnedCandidate = tryPin(keys[i]);
             if (pinnedCandidate != null) {
                 boolean selected = false;
 
@@ -489,32 +535,32 @@ public class ConcurrentSharedRingBuffer<E> {
      * @throws InterruptedException
      */
     public void close(Task<E> task) throws InterruptedException {
-        int numPinnedElements;
+        mClosed = true;
 
-        // Ensure that any pending swap tasks complete before closing.
-        synchronized (mSwapLock) {
-            synchronized (mLock) {
-                mClosed = true;
-                numPinnedElements = mElements.size() - mUnpinnedElements.size();
-            }
+        // Ensure that any pending swap and pin tasks complete before closing.
+        // Those starting from now on see mClosed and fail.
+        while (mActiveSwaps.get() > 0 || mActivePins.get() > 0) {
+            Thread.yield();
         }
 
         notifyPinStateChange(false);
 
         // Wait for all pinned tasks to complete.
-        if (numPinnedElements > 0) {
-            mPinSemaphore.acquire(numPinnedElements);
+        synchronized (mCloseLock) {
+            while (hasPinnedElements()) {
+                mCloseLock.wait();
+            }
         }
 
-        for (Pinnable<E> element : mElements.values()) {
-            task.run(element.mElement);
-            // Release the capacity permits.
-            mCapacitySemaphore.release();
+        for (int i = 0; i < mCapacity; i++) {
+            long state = mSlotStates.get(i);
+            if (stateOf(state) == FREE) {
+                continue;
+            }
+            task.run(mElements.get(i));
+            mElements.set(i, null);
+            mSlotStates.set(i, nextGeneration(state, FREE));
         }
-
-        mUnpinnedElements.clear();
-
-        mElements.clear();
     }
 
     /**
@@ -524,19 +570,19 @@ public class ConcurrentSharedRingBuffer<E> {
      * @return (key, value) pair if found otherwise null.
      */
     public Pair<Long, E> tryGetPinned(long key) {
-        synchronized (mLock) {
-            if (mClosed) {
-                return null;
-            }
-            for (java.util.Map.Entry<Long, Pinnable<E>> element : mElements.entrySet()) {
-                if (element.getKey() == key) {
-                    if (element.getValue().isPinned()) {
-                        return Pair.create(element.getKey(), element.getValue().getElement());
-                    } else {
-                        return null;
-                    }
-                }
-            }
+        if (mClosed) {
+            return null;
+        }
+        int slot = findSlot(key, 1);
+        if (slot < 0) {
+            return null;
+        }
+        // Elements cannot be swapped out while pinned, so the element is
+        // stable as long as the slot still carries the same key.
+        E element = mElements.get(slot);
+        long state = mSlotStates.get(slot);
+        if (stateOf(state) > 0 && mKeys.get(slot) == key) {
+            return Pair.create(key, element);
         }
         return null;
     }
@@ -555,24 +601,18 @@ public class ConcurrentSharedRingBuffer<E> {
     public void reopenBuffer(int unpinnedReservedSlotCount)
             throws InterruptedException {
         if (unpinnedReservedSlotCount < 0
-                || unpinnedReservedSlotCount >= mCapacitySemaphore.availablePermits()) {
+                || unpinnedReservedSlotCount >= mCapacity) {
             throw new IllegalArgumentException("Invalid unpinned reserved slot count: " +
                     unpinnedReservedSlotCount);
         }
 
-        // Ensure that any pending swap tasks complete before closing.
-        synchronized (mSwapLock) {
-            synchronized (mLock) {
-                if (!mClosed) {
-                    throw new IllegalStateException(
-                            "Attempt to reopen the buffer when it is not closed.");
-                }
-
-                mPinSemaphore.drainPermits();
-                mPinSemaphore.reducePermits(unpinnedReservedSlotCount);
-                mClosed = false;
-            }
+        if (!mClosed) {
+            throw new IllegalStateException(
+                    "Attempt to reopen the buffer when it is not closed.");
         }
+
+        mPinPermits.set(-unpinnedReservedSlotCount);
+        mClosed = false;
     }
 
     /**
@@ -584,16 +624,14 @@ public class ConcurrentSharedRingBuffer<E> {
      *            {@link IllegalArgumentException} is thrown.
      */
     public void releaseIfPinned(long key) {
-        synchronized (mLock) {
-            Pinnable<E> element = mElements.get(key);
+        int slot = findSlot(key, 0);
 
-            if (element == null) {
-                throw new IllegalArgumentException("Invalid key." + key);
-            }
+        if (slot < 0) {
+            throw new IllegalArgumentException("Invalid key." + key);
+        }
 
-            if (element.isPinned()) {
-                release(key);
-            }
+        if (stateOf(mSlotStates.get(slot)) > 0) {
+            release(key);
         }
     }
 
@@ -603,33 +641,125 @@ public class ConcurrentSharedRingBuffer<E> {
      * Note: it only calls {@link #release(long)} only once on a pinned element.
      */
     public void releaseAll() {
-        synchronized (mSwapLock) {
-            synchronized (mLock) {
-                if (mClosed || mElements.isEmpty()
-                        || mElements.size() == mUnpinnedElements.size()) {
-                    return;
+        if (mClosed) {
+            return;
+        }
+        for (int i = 0; i < mCapacity; i++) {
+            if (stateOf(mSlotStates.get(i)) > 0) {
+                release(mKeys.get(i));
+            }
+        }
+    }
+
+    /**
+     * Returns the index of the slot holding the element with the given key,
+     * if that element has at least {@code minPins} pins, or -1.
+     */
+    private int findSlot(long key, int minPins) {
+        for (int i = 0; i < mCapacity; i++) {
+            if (stateOf(mSlotStates.get(i)) >= minPins && mKeys.get(i) == key) {
+                return i;
+            }
+        }
+        return -1;
+    }
+
+    /**
+     * Updates the element in the given slot in place, unless the slot has
+     * been claimed for a swap in the meantime.
+     */
+    private boolean tryUpdate(int slot, long key, SwapTask<E> swapper) {
+        mUpdaters.incrementAndGet(slot);
+        try {
+            // A swap claims its victim before checking for updaters, and we
+            // announce ourselves before checking the claim, so at least one of
+            // us backs off.
+            if (stateOf(mSlotStates.get(slot)) < 0 || mKeys.get(slot) != key) {
+                return false;
+            }
+            // Updates of the same element are still serialized with each
+            // other, as they were when the whole buffer was locked.
+            E element = mElements.get(slot);
+            synchronized (element) {
+                swapper.update(element);
+            }
+            return true;
+        } finally {
+            mUpdaters.decrementAndGet(slot);
+        }
+    }
+
+    /**
+     * Returns the slot of an element with the same key which was already
+     * published, or which is being inserted by a swap with an earlier ticket,
+     * or -1 if this swap may proceed. Tickets are taken after the key is
+     * published, so of two swaps inserting the same key, the later one is
+     * guaranteed to see the earlier one.
+     */
+    private int findConflictingInsert(int slot, long key, long ticket) {
+        for (int i = 0; i < mCapacity; i++) {
+            if (i == slot || mKeys.get(i) != key) {
+                continue;
+            }
+            int state = stateOf(mSlotStates.get(i));
+            if (state >= 0) {
+                return i;
+            }
+            if (state == BUSY) {
+                long otherTicket;
+                while ((otherTicket = mInsertTickets.get(i)) == 0
+                        && stateOf(mSlotStates.get(i)) == BUSY) {
+                    Thread.yield();
                 }
-                for (java.util.Map.Entry<Long, Pinnable<E>> entry : mElements.entrySet()) {
-                    if (entry.getValue().isPinned()) {
-                        release(entry.getKey());
-                    }
+                if (otherTicket != 0 && otherTicket < ticket && mKeys.get(i) == key) {
+                    return i;
                 }
             }
         }
+        return -1;
     }
 
-    private void notifyPinStateChange(final boolean pinsAvailable) {
-        synchronized (mLock) {
-            // We must synchronize on mPinStateHandler and mPinStateListener.
-            if (mPinStateHandler != null) {
-                final PinStateListener listener = mPinStateListener;
-                mPinStateHandler.post(new Runnable() {
-                        @Override
-                    public void run() {
-                        listener.onPinStateChange(pinsAvailable);
-                    }
-                });
+    private void awaitNotBusy(int slot) {
+        while (stateOf(mSlotStates.get(slot)) == BUSY) {
+            Thread.yield();
+        }
+    }
+
+    private boolean hasPinnedElements() {
+        for (int i = 0; i < mCapacity; i++) {
+            if (stateOf(mSlotStates.get(i)) > 0) {
+                return true;
             }
         }
+        return false;
+    }
+
+    private static long pack(long generation, int state) {
+        return (generation << 32) | (state & 0xFFFFFFFFL);
+    }
+
+    private static int stateOf(long packedState) {
+        return (int) packedState;
+    }
+
+    private static long withState(long packedState, int state) {
+        return pack(packedState >>> 32, state);
+    }
+
+    private static long nextGeneration(long packedState, int state) {
+        return pack((packedState >>> 32) + 1, state);
+    }
+
+    private void notifyPinStateChange(final boolean pinsAvailable) {
+        final Pair<Handler, PinStateListener> registration = mPinStateListener;
+        if (registration != null && registration.first != null) {
+            final PinStateListener listener = registration.second;
+            registration.first.post(new Runnable() {
+                    @Override
+                public void run() {
+                    listener.onPinStateChange(pinsAvailable);
+                }
+            });
+        }
     }
 }
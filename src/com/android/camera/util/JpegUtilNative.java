@@ -25,8 +25,11 @@ import com.android.camera.one.v2.camera2proxy.ImageProxy;
 import com.google.common.base.Preconditions;
 
 import java.nio.ByteBuffer;
+import java.util.Arrays;
 import java.util.List;
 
+import javax.annotation.Nullable;
+
 /**
  * Provides direct access to libjpeg-turbo via the NDK.
  */
@@ -36,6 +39,7 @@ public class JpegUtilNative {
     }
 
     public static final int ERROR_OUT_BUF_TOO_SMALL = -1;
+    public static final int ERROR_CROP_NOT_ALIGNED = -2;
     private static final Log.Tag TAG = new Log.Tag("JpegUtilNative");
 
     /**
@@ -102,6 +106,56 @@ public class JpegUtilNative {
             int cropLeft, int cropTop, int cropRight, int cropBottom,
             int rot90);
 
+    /**
+     * Crops a JPEG by copying the DCT coefficients of the blocks inside the
+     * crop into a new JPEG, without decoding and re-encoding the image.
+     *
+     * @param inArray the JPEG to crop
+     * @param inLength the number of bytes of the JPEG in inArray
+     * @param outArray the array to write the cropped JPEG to. The result
+     *            must fit into its length, or an error code is returned.
+     * @param cropLeft left-edge of the crop, which must be a multiple of the
+     *            MCU width of the JPEG
+     * @param cropTop top-edge of the crop, which must be a multiple of the
+     *            MCU height of the JPEG
+     * @param cropRight right-edge of the crop
+     * @param cropBottom bottom-edge of the crop
+     * @return the number of bytes written to outArray,
+     *         {@link #ERROR_OUT_BUF_TOO_SMALL} if the result does not fit or
+     *         the JPEG could not be read, or {@link #ERROR_CROP_NOT_ALIGNED}
+     *         if the crop is not MCU-aligned or exceeds the image
+     */
+    private static native int cropJpegLosslessNative(byte[] inArray, int inLength,
+            byte[] outArray, int cropLeft, int cropTop, int cropRight, int cropBottom);
+
+    /**
+     * Crops a JPEG without generation loss, if the left and top edges of the
+     * crop are aligned to its MCUs, i.e. to 16 pixels for the usual 4:2:0
+     * JPEGs of cameras. This neither decodes the image into memory nor
+     * re-encodes it, so it is much faster than cropping a decoded bitmap. APPn
+     * markers such as EXIF are preserved; their dimension tags are not
+     * updated.
+     *
+     * @param jpeg the JPEG to crop
+     * @param crop the crop rectangle, in the coordinates of the JPEG
+     * @return the cropped JPEG, or null if the crop is not MCU-aligned or the
+     *         JPEG could not be transcoded
+     */
+    @Nullable
+    public static byte[] cropJpegLossless(byte[] jpeg, Rect crop) {
+        // The coefficients of the cropped image are a subset of the input's,
+        // and they are encoded with optimized tables, so the input size is
+        // enough for all but degenerate inputs.
+        byte[] out = new byte[jpeg.length];
+        int numBytes = cropJpegLosslessNative(jpeg, jpeg.length, out, crop.left, crop.top,
+                crop.right, crop.bottom);
+        if (numBytes < 0) {
+            Log.v(TAG, "Lossless crop not possible: " + numBytes);
+            return null;
+        }
+        return Arrays.copyOf(out, numBytes);
+    }
+
     /**
      * Copies the Image.Plane specified by planeBuf, pStride, and rStride to the
      * Bitmap.
@@ -113,6 +113,12 @@ public class FilmstripView extends ViewGroup {
     private static final int SWIPE_TIME_OUT = 500;
     private static final int DECELERATION_FACTOR = 4;
     private static final float MOUSE_SCROLL_FACTOR = 128f;
+    // Above this fling speed, in screen widths per second, the items go by
+    // too fast to be seen, so none of them is upgraded from its tiny render.
+    private static final float FAST_FLING_SCREENS_PER_SECOND = 2f;
+    // The number of recycled views kept for each view type. More than a
+    // buffer's worth is never needed at once.
+    private static final int MAX_RECYCLED_VIEWS_PER_TYPE = BUFFER_SIZE;
 
     private CameraActivity mActivity;
     private VideoClickedCallback mVideoClickedCallback;
@@ -228,6 +234,16 @@ public class FilmstripView extends ViewGroup {
             }
         }
 
+        /**
+         * Renders the item at thumbnail size if it is currently rendered at
+         * full resolution, releasing the full resolution decode.
+         */
+        public void releaseFullRes() {
+            if (mRenderSize == RenderSize.FULL_RES) {
+                renderThumbnail();
+            }
+        }
+
         public void lockAtFullOpacity() {
             if (!mLockAtFullOpacity) {
                 mLockAtFullOpacity = true;
@@ -681,10 +697,12 @@ public class FilmstripView extends ViewGroup {
         if (viewType > 0) {
             Queue<View> recycledViewsForType = recycledViews.get(viewType);
             if (recycledViewsForType == null) {
-                recycledViewsForType = new ArrayDeque<View>();
+                recycledViewsForType = new ArrayDeque<View>(MAX_RECYCLED_VIEWS_PER_TYPE);
                 recycledViews.put(viewType, recycledViewsForType);
             }
-            recycledViewsForType.offer(view);
+            if (recycledViewsForType.size() < MAX_RECYCLED_VIEWS_PER_TYPE) {
+                recycledViewsForType.offer(view);
+            }
         }
     }
 
@@ -862,9 +880,76 @@ public class FilmstripView extends ViewGroup {
             return;
         }
 
+        releaseFullResExcept(bufferIndex);
         item.renderFullRes();
     }
 
+    /**
+     * Full resolution decodes are large, so only the item being zoomed may
+     * hold one. This drops all other items back to thumbnails.
+     */
+    private void releaseFullResExcept(int bufferIndex) {
+        for (int i = 0; i < BUFFER_SIZE; i++) {
+            if (i != bufferIndex && mViewItems[i] != null) {
+                mViewItems[i].releaseFullRes();
+            }
+        }
+    }
+
+    /**
+     * Picks the render size of the buffered items from where the current
+     * fling is predicted to land. The items around the landing position are
+     * upgraded to thumbnails before the fling ends, unless it is still too
+     * fast for them to be seen. All other items are about to be flung past,
+     * so they are dropped back to tiny, which cancels any of their thumbnail
+     * loads that are still pending.
+     */
+    private void scheduleRenderSizesForFling() {
+        if (!mController.isFlinging()) {
+            return;
+        }
+        int landingBufferIndex = findLandingBufferIndex(mController.getFlingFinalX());
+        boolean tooFast = mController.getFlingVelocity()
+                > FAST_FLING_SCREENS_PER_SECOND * getWidth();
+        for (int i = 0; i < BUFFER_SIZE; i++) {
+            ViewItem item = mViewItems[i];
+            if (item == null) {
+                continue;
+            }
+            if (landingBufferIndex != -1 && Math.abs(i - landingBufferIndex) <= 1) {
+                if (!tooFast) {
+                    item.renderThumbnail();
+                }
+            } else {
+                item.renderTiny();
+            }
+        }
+    }
+
+    /**
+     * @return The buffer index of the item at which the filmstrip will stop
+     *         when scrolled to {@code landingX}, or -1 if that item is not
+     *         buffered yet.
+     */
+    private int findLandingBufferIndex(int landingX) {
+        int nearest = findTheNearestView(landingX);
+        if (nearest == -1) {
+            return -1;
+        }
+        ViewItem item = mViewItems[nearest];
+        int centerX = item.getCenterX();
+        // Scrolling stops at the first and at the last item.
+        if ((item.getAdapterIndex() == 0 && landingX <= centerX)
+                || (item.getAdapterIndex() == mDataAdapter.getTotalNumber() - 1
+                        && landingX >= centerX)) {
+            return nearest;
+        }
+        if (Math.abs(landingX - centerX) > item.getMeasuredWidth() + mViewGapInPixel) {
+            return -1;
+        }
+        return nearest;
+    }
+
     private void renderThumbnail(int bufferIndex) {
         ViewItem item = mViewItems[bufferIndex];
         if (item == null) {
@@ -947,6 +1032,7 @@ public class FilmstripView extends ViewGroup {
                 }
             }
         }
+        releaseFullResExcept(BUFFER_CENTER);
         invalidate();
         if (mListener != null) {
             mListener.onDataFocusChanged(prevIndex, mViewItems[BUFFER_CENTER]
@@ -1584,6 +1670,27 @@ public class FilmstripView extends ViewGroup {
                 renderAllThumbnails();
             }
 
+            @Override
+            public void onFilmstripItemsAppended(int index, int count) {
+                if (mViewItems[BUFFER_CENTER] == null) {
+                    reload();
+                } else {
+                    // Only the items right after the buffered ones are
+                    // built; the others are picked up while scrolling.
+                    for (int i = index; i < index + count; i++) {
+                        if (findItemInBufferByAdapterIndex(i - 1) == -1) {
+                            break;
+                        }
+                        updateInsertion(i);
+                    }
+                }
+                if (mListener != null) {
+                    mListener.onDataFocusChanged(index, getCurrentItemAdapterIndex());
+                }
+                Log.d(TAG, "onFilmstripItemsAppended()");
+                renderAllThumbnails();
+            }
+
             @Override
             public void onFilmstripItemRemoved(int index, FilmstripItem item) {
                 animateItemRemoval(index);
@@ -1929,6 +2036,8 @@ public class FilmstripView extends ViewGroup {
                         if (stopScroll) {
                             Log.d(TAG, "[fling] onScrollUpdate() - stopScrolling!");
                             mController.stopScrolling(true);
+                        } else {
+                            scheduleRenderSizesForFling();
                         }
                         invalidate();
                     }
@@ -2055,6 +2164,18 @@ public class FilmstripView extends ViewGroup {
             return !mScrollGesture.isFinished();
         }
 
+        boolean isFlinging() {
+            return mScrollGesture.isFlinging();
+        }
+
+        int getFlingFinalX() {
+            return mScrollGesture.getFinalX();
+        }
+
+        float getFlingVelocity() {
+            return mScrollGesture.getCurrVelocity();
+        }
+
         @Override
         public boolean isScaling() {
             return mScaleAnimator.isRunning();
@@ -2585,6 +2706,21 @@ public class FilmstripView extends ViewGroup {
             return (mScroller.isFinished() && !mXScrollAnimator.isRunning());
         }
 
+        /** Whether a fling or a scroll started on the scroller is running. */
+        public boolean isFlinging() {
+            return !mScroller.isFinished();
+        }
+
+        /** The x position at which the scroller will stop. */
+        public int getFinalX() {
+            return mScroller.getFinalX();
+        }
+
+        /** The current speed of the scroller, in pixels per second. */
+        public float getCurrVelocity() {
+            return mScroller.getCurrVelocity();
+        }
+
         public void forceFinished(boolean finished) {
             mScroller.forceFinished(finished);
             if (finished) {
@@ -25,6 +25,8 @@ import android.net.Uri;
 import com.android.camera.CameraModule;
 import com.android.camera.app.AppController;
 
+import java.io.InputStream;
+
 public class PhotoSphereHelper {
     public static class PanoramaMetadata {
         // Whether a panorama viewer should be used
@@ -88,6 +90,15 @@ public class PhotoSphereHelper {
         return NOT_PANORAMA;
     }
 
+    /**
+     * Like {@link #getPanoramaMetadata(Context, Uri)}, but parses the
+     * metadata segments of a JPEG which were already read, up to its SOS
+     * marker.
+     */
+    public static PanoramaMetadata getPanoramaMetadata(Context context, InputStream header) {
+        return NOT_PANORAMA;
+    }
+
     public static CameraModule createPanoramaModule(AppController app) {
         return null;
     }
@@ -23,6 +23,8 @@ import com.android.camera.CameraModule;
 import com.android.camera.app.AppController;
 import com.android.camera.app.CameraServices;
 
+import java.io.InputStream;
+
 public class RefocusHelper {
     public static CameraModule createRefocusModule(AppController app) {
         return null;
@@ -35,4 +37,12 @@ public class RefocusHelper {
     public static boolean isRGBZ(Context context, Uri contentUri) {
         return false;
     }
+
+    /**
+     * Like {@link #isRGBZ(Context, Uri)}, but parses the metadata segments of
+     * a JPEG which were already read, up to its SOS marker.
+     */
+    public static boolean isRGBZ(Context context, InputStream header) {
+        return false;
+    }
 }
@@ -0,0 +1,159 @@
+/*
+ * Copyright (C) 2015 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.camera.data;
+
+import android.content.ContentValues;
+import android.database.Cursor;
+import android.database.sqlite.SQLiteDatabase;
+import android.net.Uri;
+import android.provider.MediaStore;
+import android.test.AndroidTestCase;
+import android.test.mock.MockContentProvider;
+import android.test.mock.MockContentResolver;
+import android.test.suitebuilder.annotation.SmallTest;
+
+import com.android.camera.Storage;
+import com.android.camera.filmstrip.FilmstripDataAdapter;
+
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Loads the adapter from a SQLite table standing in for the media store, and
+ * checks the order of the items once all the pages are appended.
+ */
+@SmallTest
+public class CameraFilmstripDataAdapterTest extends AndroidTestCase {
+    private static final String TABLE = "images";
+    /** More than the adapter's first page, so that a page task follows. */
+    private static final int PHOTO_COUNT = 70;
+    private static final long TIMEOUT_MS = 5000;
+
+    private SQLiteDatabase mDatabase;
+    private MockContentResolver mResolver;
+
+    @Override
+    protected void setUp() throws Exception {
+        super.setUp();
+        mDatabase = SQLiteDatabase.create(null);
+        mDatabase.execSQL("CREATE TABLE " + TABLE + " ("
+                + MediaStore.Images.ImageColumns._ID + " INTEGER PRIMARY KEY, "
+                + MediaStore.Images.ImageColumns.TITLE + " TEXT, "
+                + MediaStore.Images.ImageColumns.MIME_TYPE + " TEXT, "
+                + MediaStore.Images.ImageColumns.DATE_TAKEN + " INTEGER, "
+                + MediaStore.Images.ImageColumns.DATE_MODIFIED + " INTEGER, "
+                + MediaStore.Images.ImageColumns.DATA + " TEXT, "
+                + MediaStore.Images.ImageColumns.ORIENTATION + " INTEGER, "
+                + MediaStore.Images.ImageColumns.WIDTH + " INTEGER, "
+                + MediaStore.Images.ImageColumns.HEIGHT + " INTEGER, "
+                + MediaStore.Images.ImageColumns.SIZE + " INTEGER, "
+                + MediaStore.Images.ImageColumns.LATITUDE + " DOUBLE, "
+                + MediaStore.Images.ImageColumns.LONGITUDE + " DOUBLE)");
+
+        mResolver = new MockContentResolver();
+        mResolver.addProvider(PhotoDataQuery.CONTENT_URI.getAuthority(),
+                new MockContentProvider() {
+                    @Override
+                    public Cursor query(Uri uri, String[] projection, String selection,
+                            String[] selectionArgs, String sortOrder) {
+                        if (!uri.equals(PhotoDataQuery.CONTENT_URI)) {
+                            // No videos.
+                            return null;
+                        }
+                        return mDatabase.query(TABLE, projection, selection, selectionArgs,
+                                null, null, sortOrder);
+                    }
+                });
+    }
+
+    @Override
+    protected void tearDown() throws Exception {
+        mDatabase.close();
+        super.tearDown();
+    }
+
+    private void insertPhoto(long id, long dateTaken, long dateModified) {
+        ContentValues values = new ContentValues();
+        values.put(MediaStore.Images.ImageColumns._ID, id);
+        values.put(MediaStore.Images.ImageColumns.TITLE, "IMG_" + id);
+        values.put(MediaStore.Images.ImageColumns.MIME_TYPE, "image/jpeg");
+        values.put(MediaStore.Images.ImageColumns.DATE_TAKEN, dateTaken);
+        values.put(MediaStore.Images.ImageColumns.DATE_MODIFIED, dateModified);
+        values.put(MediaStore.Images.ImageColumns.DATA,
+                Storage.DIRECTORY + "/IMG_" + id + ".jpg");
+        values.put(MediaStore.Images.ImageColumns.WIDTH, 640);
+        values.put(MediaStore.Images.ImageColumns.HEIGHT, 480);
+        mDatabase.insert(TABLE, null, values);
+    }
+
+    /**
+     * The photo with the highest id is the oldest, so it is not in the first
+     * page, but is found by the look for changes which runs between the first
+     * page and the next, while the newer photos of the next page are not
+     * appended yet.
+     */
+    public void testChangeOlderThanLoadedPagesKeepsListSorted() throws Exception {
+        for (long id = 1; id < PHOTO_COUNT; id++) {
+            insertPhoto(id, id * 1000, id);
+        }
+        insertPhoto(PHOTO_COUNT, 500, PHOTO_COUNT);
+
+        final CameraFilmstripDataAdapter adapter = new CameraFilmstripDataAdapter(getContext(),
+                new PhotoItemFactory(getContext(), null, mResolver, new PhotoDataFactory()),
+                new VideoItemFactory(getContext(), null, mResolver, new VideoDataFactory()));
+        final CountDownLatch loaded = new CountDownLatch(1);
+        adapter.setListener(new FilmstripDataAdapter.Listener() {
+            private void checkLoaded() {
+                if (adapter.getTotalNumber() == PHOTO_COUNT) {
+                    loaded.countDown();
+                }
+            }
+
+            @Override
+            public void onFilmstripItemLoaded() {
+                checkLoaded();
+            }
+
+            @Override
+            public void onFilmstripItemUpdated(FilmstripDataAdapter.UpdateReporter reporter) {
+            }
+
+            @Override
+            public void onFilmstripItemInserted(int index, FilmstripItem item) {
+                checkLoaded();
+            }
+
+            @Override
+            public void onFilmstripItemsAppended(int index, int count) {
+                checkLoaded();
+            }
+
+            @Override
+            public void onFilmstripItemRemoved(int index, FilmstripItem item) {
+            }
+        });
+        adapter.requestLoad(null);
+
+        assertTrue("Not loaded", loaded.await(TIMEOUT_MS, TimeUnit.MILLISECONDS));
+        for (int i = 0; i < PHOTO_COUNT - 1; i++) {
+            assertEquals(PHOTO_COUNT - 1 - i,
+                    adapter.getFilmstripItemAt(i).getData().getContentId());
+        }
+        assertEquals(PHOTO_COUNT,
+                adapter.getFilmstripItemAt(PHOTO_COUNT - 1).getData().getContentId());
+    }
+}
@@ -0,0 +1,178 @@
+/*
+ * Copyright (C) 2015 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.camera.data;
+
+import android.content.ContentValues;
+import android.database.Cursor;
+import android.database.sqlite.SQLiteDatabase;
+import android.net.Uri;
+import android.provider.MediaStore;
+import android.test.AndroidTestCase;
+import android.test.mock.MockContentProvider;
+import android.test.mock.MockContentResolver;
+import android.test.suitebuilder.annotation.SmallTest;
+
+import com.android.camera.Storage;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Date;
+import java.util.List;
+
+/**
+ * Pages through a SQLite table standing in for the media store, so that the
+ * selections are evaluated the way the media store evaluates them.
+ */
+@SmallTest
+public class FilmstripContentQueriesTest extends AndroidTestCase {
+    private static final String TABLE = "images";
+    private static final int PAGE_SIZE = 4;
+
+    private SQLiteDatabase mDatabase;
+    private MockContentResolver mResolver;
+    private PhotoItemFactory mFactory;
+    private NewestFirstComparator mComparator;
+
+    @Override
+    protected void setUp() throws Exception {
+        super.setUp();
+        mDatabase = SQLiteDatabase.create(null);
+        mDatabase.execSQL("CREATE TABLE " + TABLE + " ("
+                + MediaStore.Images.ImageColumns._ID + " INTEGER PRIMARY KEY, "
+                + MediaStore.Images.ImageColumns.TITLE + " TEXT, "
+                + MediaStore.Images.ImageColumns.MIME_TYPE + " TEXT, "
+                + MediaStore.Images.ImageColumns.DATE_TAKEN + " INTEGER, "
+                + MediaStore.Images.ImageColumns.DATE_MODIFIED + " INTEGER, "
+                + MediaStore.Images.ImageColumns.DATA + " TEXT, "
+                + MediaStore.Images.ImageColumns.ORIENTATION + " INTEGER, "
+                + MediaStore.Images.ImageColumns.WIDTH + " INTEGER, "
+                + MediaStore.Images.ImageColumns.HEIGHT + " INTEGER, "
+                + MediaStore.Images.ImageColumns.SIZE + " INTEGER, "
+                + MediaStore.Images.ImageColumns.LATITUDE + " DOUBLE, "
+                + MediaStore.Images.ImageColumns.LONGITUDE + " DOUBLE)");
+
+        mResolver = new MockContentResolver();
+        mResolver.addProvider(PhotoDataQuery.CONTENT_URI.getAuthority(),
+                new MockContentProvider() {
+                    @Override
+                    public Cursor query(Uri uri, String[] projection, String selection,
+                            String[] selectionArgs, String sortOrder) {
+                        return mDatabase.query(TABLE, projection, selection, selectionArgs,
+                                null, null, sortOrder);
+                    }
+                });
+        mFactory = new PhotoItemFactory(getContext(), null, mResolver, new PhotoDataFactory());
+        mComparator = new NewestFirstComparator(new Date());
+    }
+
+    @Override
+    protected void tearDown() throws Exception {
+        mDatabase.close();
+        super.tearDown();
+    }
+
+    private void insertPhoto(long id, Long dateTaken) {
+        insertPhoto(id, dateTaken, 0);
+    }
+
+    private void insertPhoto(long id, Long dateTaken, long dateModified) {
+        ContentValues values = new ContentValues();
+        values.put(MediaStore.Images.ImageColumns._ID, id);
+        values.put(MediaStore.Images.ImageColumns.TITLE, "IMG_" + id);
+        values.put(MediaStore.Images.ImageColumns.MIME_TYPE, "image/jpeg");
+        values.put(MediaStore.Images.ImageColumns.DATE_TAKEN, dateTaken);
+        values.put(MediaStore.Images.ImageColumns.DATE_MODIFIED, dateModified);
+        values.put(MediaStore.Images.ImageColumns.DATA,
+                Storage.DIRECTORY + "/IMG_" + id + ".jpg");
+        values.put(MediaStore.Images.ImageColumns.WIDTH, 640);
+        values.put(MediaStore.Images.ImageColumns.HEIGHT, 480);
+        mDatabase.insert(TABLE, null, values);
+    }
+
+    private List<FilmstripItem> loadAllItems() {
+        List<FilmstripItem> items = new ArrayList<>();
+        FilmstripContentQueries.PageKey after = null;
+        int pages = 0;
+        do {
+            FilmstripContentQueries.Page<PhotoItem> page =
+                    mFactory.queryPage(mComparator.getFutureCutoff(), after, PAGE_SIZE);
+            items.addAll(page.items);
+            after = page.next;
+            assertTrue("Paging does not advance", ++pages <= 10);
+        } while (after != null);
+        return items;
+    }
+
+    private List<Long> loadAllPages() {
+        List<Long> ids = new ArrayList<>();
+        for (FilmstripItem item : loadAllItems()) {
+            ids.add(item.getData().getContentId());
+        }
+        return ids;
+    }
+
+    public void testPagesThroughAllRowsNewestFirst() {
+        // Shares a date taken across a page boundary, and has rows without
+        // a date taken, which sort as the oldest.
+        insertPhoto(1, 1000L);
+        insertPhoto(2, 3000L);
+        insertPhoto(3, null);
+        insertPhoto(4, 2000L);
+        insertPhoto(5, 2000L);
+        insertPhoto(6, 2000L);
+        insertPhoto(7, 4000L);
+        insertPhoto(8, 2000L);
+        insertPhoto(9, null);
+        insertPhoto(10, 5000L);
+
+        List<Long> expected = new ArrayList<>();
+        for (long id : new long[] { 10, 7, 2, 8, 6, 5, 4, 1, 9, 3 }) {
+            expected.add(id);
+        }
+        assertEquals(expected, loadAllPages());
+    }
+
+    public void testLastFullPageEndsPaging() {
+        for (long id = 1; id <= 2 * PAGE_SIZE; id++) {
+            insertPhoto(id, id * 1000);
+        }
+
+        assertEquals(2 * PAGE_SIZE, loadAllPages().size());
+    }
+
+    public void testPagesAreInComparatorOrder() {
+        long now = System.currentTimeMillis();
+        long year = 365L * 24 * 60 * 60 * 1000;
+        // Dates taken in the future fall back to the modification date,
+        // and equal dates are ordered by modification date.
+        insertPhoto(1, now - 3000, 100);
+        insertPhoto(2, now + year, (now - 1000) / 1000);
+        insertPhoto(3, now - 2000, 200);
+        insertPhoto(4, now - 2000, 300);
+        insertPhoto(5, now + year, (now - 5000) / 1000);
+        insertPhoto(6, now - 2000, 300);
+        insertPhoto(7, null, 400);
+        insertPhoto(8, now + 2 * year, (now - 2000) / 1000);
+        insertPhoto(9, now - 4000, 500);
+
+        List<FilmstripItem> paged = loadAllItems();
+        List<FilmstripItem> sorted = new ArrayList<>(paged);
+        Collections.sort(sorted, mComparator);
+        assertEquals(sorted, paged);
+        assertEquals(9, paged.size());
+    }
+}
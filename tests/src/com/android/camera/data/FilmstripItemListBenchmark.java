@@ -0,0 +1,129 @@
+/*
+ * Copyright (C) 2015 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.camera.data;
+
+import android.content.ContentUris;
+import android.net.Uri;
+import android.provider.MediaStore;
+import android.test.suitebuilder.annotation.LargeTest;
+import android.util.Log;
+
+import junit.framework.TestCase;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Date;
+import java.util.List;
+import java.util.Random;
+
+/**
+ * Checks {@link FilmstripItemList} lookups against the item positions, and
+ * times adding, looking up and removing items of a 50k item camera folder.
+ */
+@LargeTest
+public class FilmstripItemListBenchmark extends TestCase {
+    private static final String TAG = "FilmstripItemListBenchmark";
+
+    private static final int ITEMS = 50000;
+    private static final int REMOVALS = 1000;
+
+    private List<FilmstripItem> mItems;
+
+    @Override
+    protected void setUp() throws Exception {
+        super.setUp();
+        mItems = new ArrayList<>(ITEMS);
+        for (int i = 0; i < ITEMS; i++) {
+            // Interleave photos and videos with overlapping row ids.
+            Uri uri = (i % 4 == 0)
+                    ? ContentUris.withAppendedId(
+                            MediaStore.Video.Media.EXTERNAL_CONTENT_URI, i / 4)
+                    : ContentUris.withAppendedId(
+                            MediaStore.Images.Media.EXTERNAL_CONTENT_URI, i);
+            mItems.add(createItem(uri, i * 1000L));
+        }
+    }
+
+    public void testLookupsMatchPositions() {
+        FilmstripItemList list = new FilmstripItemList();
+        List<FilmstripItem> shuffled = new ArrayList<>(mItems.subList(0, 2000));
+        Collections.shuffle(shuffled, new Random(0));
+        for (FilmstripItem item : shuffled) {
+            list.insertSorted(item);
+        }
+
+        Random random = new Random(1);
+        for (int i = 0; i < 500; i++) {
+            list.remove(random.nextInt(list.size()));
+        }
+        for (int i = 0; i < list.size(); i++) {
+            FilmstripItem item = list.get(i);
+            assertEquals(i, list.indexOf(item.getData().getUri()));
+            assertSame(item, list.get(item.getData().getUri()));
+            if (i > 0) {
+                // Newest first.
+                assertTrue(item.getData().getCreationDate().getTime()
+                        <= list.get(i - 1).getData().getCreationDate().getTime());
+            }
+        }
+        assertEquals(-1, list.indexOf(ContentUris.withAppendedId(
+                MediaStore.Images.Media.EXTERNAL_CONTENT_URI, ITEMS)));
+    }
+
+    public void testBenchmark() {
+        FilmstripItemList list = new FilmstripItemList();
+        long start = System.nanoTime();
+        for (FilmstripItem item : mItems) {
+            list.insertSorted(item);
+        }
+        long addNs = System.nanoTime() - start;
+
+        start = System.nanoTime();
+        for (FilmstripItem item : mItems) {
+            assertTrue(list.indexOf(item.getData().getUri()) >= 0);
+        }
+        long lookupNs = System.nanoTime() - start;
+
+        Random random = new Random(0);
+        start = System.nanoTime();
+        for (int i = 0; i < REMOVALS; i++) {
+            list.remove(random.nextInt(list.size()));
+        }
+        long removeNs = System.nanoTime() - start;
+
+        start = System.nanoTime();
+        for (FilmstripItem item : mItems) {
+            list.indexOf(item.getData().getUri());
+        }
+        long lookupAfterRemoveNs = System.nanoTime() - start;
+
+        Log.i(TAG, ITEMS + " items: add " + addNs / ITEMS + "ns, indexOf "
+                + lookupNs / ITEMS + "ns, remove " + removeNs / REMOVALS
+                + "ns, indexOf after removals " + lookupAfterRemoveNs / ITEMS + "ns");
+        assertEquals(ITEMS - REMOVALS, list.size());
+    }
+
+    private static FilmstripItem createItem(Uri uri, long dateTaken) {
+        FilmstripItemData data = new FilmstripItemData.Builder(uri)
+                .withContentId(ContentUris.parseId(uri))
+                .withTitle(uri.getLastPathSegment())
+                .withCreationDate(new Date(dateTaken))
+                .withLastModifiedDate(new Date(dateTaken))
+                .build();
+        return new PhotoItem(null, null, data, null);
+    }
+}
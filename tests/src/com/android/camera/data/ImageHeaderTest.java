@@ -0,0 +1,140 @@
+/*
+ * Copyright (C) 2015 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.camera.data;
+
+import android.test.suitebuilder.annotation.SmallTest;
+
+import junit.framework.TestCase;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.InputStream;
+import java.nio.charset.Charset;
+
+@SmallTest
+public class ImageHeaderTest extends TestCase {
+    private static final byte[] XMP_SIGNATURE = "http://ns.adobe.com/xap/1.0/\0"
+            .getBytes(Charset.forName("US-ASCII"));
+    private static final int IMAGE_DATA_BYTES = 256 * 1024;
+
+    private File mFile;
+
+    @Override
+    protected void setUp() throws Exception {
+        super.setUp();
+        mFile = File.createTempFile("header", ".jpg");
+    }
+
+    @Override
+    protected void tearDown() throws Exception {
+        mFile.delete();
+        super.tearDown();
+    }
+
+    private static void writeSegment(ByteArrayOutputStream out, int marker, byte[] prefix,
+            int bodyBytes) {
+        int length = 2 + prefix.length + bodyBytes;
+        out.write(0xff);
+        out.write(marker);
+        out.write(length >> 8);
+        out.write(length & 0xff);
+        out.write(prefix, 0, prefix.length);
+        out.write(new byte[bodyBytes], 0, bodyBytes);
+    }
+
+    /**
+     * Writes a JPEG with an Exif segment, an optional XMP segment, and image
+     * data after its SOS marker.
+     *
+     * @return The number of bytes up to and including the SOS marker and its
+     *         length.
+     */
+    private int writeJpeg(boolean withXmp, int exifBytes) throws Exception {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        out.write(0xff);
+        out.write(0xd8);
+        writeSegment(out, 0xe1, "Exif\0\0".getBytes("US-ASCII"), exifBytes);
+        if (withXmp) {
+            writeSegment(out, 0xe1, XMP_SIGNATURE, 1024);
+        }
+        out.write(0xff);
+        out.write(0xda);
+        out.write(0);
+        out.write(12);
+        int headerBytes = out.size();
+        out.write(new byte[IMAGE_DATA_BYTES], 0, IMAGE_DATA_BYTES);
+
+        FileOutputStream file = new FileOutputStream(mFile);
+        file.write(out.toByteArray());
+        file.close();
+        return headerBytes;
+    }
+
+    private static int countBytes(InputStream in) throws Exception {
+        int count = 0;
+        while (in.read() >= 0) {
+            count++;
+        }
+        return count;
+    }
+
+    public void testStopsAtStartOfScan() throws Exception {
+        int headerBytes = writeJpeg(true, 8 * 1024);
+
+        ImageHeader header = ImageHeader.read(mFile.getPath());
+        assertTrue(header.isJpeg());
+        assertTrue(header.isComplete());
+        assertTrue(header.mayHaveXmp());
+        assertEquals(headerBytes, countBytes(header.newInputStream()));
+    }
+
+    public void testJpegWithoutXmp() throws Exception {
+        writeJpeg(false, 32 * 1024);
+
+        ImageHeader header = ImageHeader.read(mFile.getPath());
+        assertTrue(header.isComplete());
+        assertFalse(header.mayHaveXmp());
+    }
+
+    public void testSegmentsPastTheLimitMayHaveXmp() throws Exception {
+        // Two full Exif-sized segments leave no room for the XMP one.
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        out.write(0xff);
+        out.write(0xd8);
+        writeSegment(out, 0xe1, new byte[0], 65533);
+        writeSegment(out, 0xe2, new byte[0], 65533);
+        writeSegment(out, 0xe1, XMP_SIGNATURE, 1024);
+        FileOutputStream file = new FileOutputStream(mFile);
+        file.write(out.toByteArray());
+        file.close();
+
+        ImageHeader header = ImageHeader.read(mFile.getPath());
+        assertFalse(header.isComplete());
+        assertTrue(header.mayHaveXmp());
+    }
+
+    public void testOtherFilesAreNotJpegs() throws Exception {
+        FileOutputStream file = new FileOutputStream(mFile);
+        file.write(new byte[] { (byte) 0x89, 'P', 'N', 'G' });
+        file.close();
+
+        ImageHeader header = ImageHeader.read(mFile.getPath());
+        assertFalse(header.isJpeg());
+        assertFalse(header.isComplete());
+    }
+}
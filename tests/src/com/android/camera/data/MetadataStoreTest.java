@@ -0,0 +1,120 @@
+/*
+ * Copyright (C) 2015 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.camera.data;
+
+import android.test.suitebuilder.annotation.SmallTest;
+
+import junit.framework.TestCase;
+
+import java.io.File;
+import java.io.FileOutputStream;
+
+@SmallTest
+public class MetadataStoreTest extends TestCase {
+    private static final long KEY = 42;
+    private static final long DATE_MODIFIED = 1420070400000L;
+
+    private File mFile;
+
+    @Override
+    protected void setUp() throws Exception {
+        super.setUp();
+        mFile = File.createTempFile("metadata", null);
+        mFile.delete();
+    }
+
+    @Override
+    protected void tearDown() throws Exception {
+        mFile.delete();
+        super.tearDown();
+    }
+
+    private static Metadata createMetadata() {
+        Metadata metadata = new Metadata();
+        metadata.setPanorama(true);
+        metadata.setUsePanoramaViewer(true);
+        metadata.setVideoOrientation("90");
+        metadata.setVideoWidth(1920);
+        metadata.setVideoHeight(1080);
+        return metadata;
+    }
+
+    private static void assertRestored(Metadata metadata) {
+        assertTrue(metadata.isPanorama());
+        assertFalse(metadata.isPanorama360());
+        assertTrue(metadata.isUsePanoramaViewer());
+        assertFalse(metadata.isHasRgbzData());
+        assertEquals("90", metadata.getVideoOrientation());
+        assertEquals(1920, metadata.getVideoWidth());
+        assertEquals(1080, metadata.getVideoHeight());
+    }
+
+    public void testRestoresWhatWasPut() {
+        MetadataStore store = new MetadataStore(mFile);
+        store.put(KEY, DATE_MODIFIED, createMetadata());
+
+        Metadata metadata = new Metadata();
+        assertTrue(store.restore(KEY, DATE_MODIFIED, metadata));
+        assertRestored(metadata);
+        assertFalse(store.restore(KEY + 1, DATE_MODIFIED, new Metadata()));
+    }
+
+    public void testModifiedItemIsNotRestored() {
+        MetadataStore store = new MetadataStore(mFile);
+        store.put(KEY, DATE_MODIFIED, createMetadata());
+
+        assertFalse(store.restore(KEY, DATE_MODIFIED + 1000, new Metadata()));
+    }
+
+    public void testSurvivesReopening() {
+        MetadataStore store = new MetadataStore(mFile);
+        store.put(KEY, DATE_MODIFIED, createMetadata());
+        store.flush();
+
+        MetadataStore reopened = new MetadataStore(mFile);
+        Metadata metadata = new Metadata();
+        assertTrue(reopened.restore(KEY, DATE_MODIFIED, metadata));
+        assertRestored(metadata);
+    }
+
+    public void testKeepsMostRecentlyUsedEntries() {
+        MetadataStore store = new MetadataStore(mFile);
+        for (int i = 0; i < MetadataStore.MAX_ENTRIES; i++) {
+            store.put(i, DATE_MODIFIED, createMetadata());
+        }
+        assertTrue(store.restore(0, DATE_MODIFIED, new Metadata()));
+        store.put(MetadataStore.MAX_ENTRIES, DATE_MODIFIED, createMetadata());
+        store.flush();
+
+        MetadataStore reopened = new MetadataStore(mFile);
+        assertEquals(MetadataStore.MAX_ENTRIES, reopened.size());
+        assertTrue(reopened.restore(0, DATE_MODIFIED, new Metadata()));
+        assertFalse(reopened.restore(1, DATE_MODIFIED, new Metadata()));
+    }
+
+    public void testCorruptFileIsDiscarded() throws Exception {
+        FileOutputStream out = new FileOutputStream(mFile);
+        out.write(new byte[] { 1, 2, 3 });
+        out.close();
+
+        MetadataStore store = new MetadataStore(mFile);
+        assertEquals(0, store.size());
+        store.put(KEY, DATE_MODIFIED, createMetadata());
+        store.flush();
+        assertTrue(new MetadataStore(mFile).restore(KEY, DATE_MODIFIED, new Metadata()));
+    }
+}
@@ -0,0 +1,176 @@
+/*
+ * Copyright (C) 2015 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.camera.data;
+
+import android.test.suitebuilder.annotation.SmallTest;
+
+import junit.framework.TestCase;
+
+import java.io.File;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+
+@SmallTest
+public class ThumbnailJournalTest extends TestCase {
+    private static final long MAX_BYTES = 64 * 1024;
+    private static final int KIND = 3;
+
+    private File mFile;
+
+    @Override
+    protected void setUp() throws Exception {
+        super.setUp();
+        mFile = File.createTempFile("thumbnails", null);
+    }
+
+    @Override
+    protected void tearDown() throws Exception {
+        mFile.delete();
+        super.tearDown();
+    }
+
+    private static ByteBuffer pixels(int size, int seed) {
+        ByteBuffer buffer = ByteBuffer.allocate(size);
+        for (int i = 0; i < size; i++) {
+            buffer.put((byte) (seed + i));
+        }
+        buffer.flip();
+        return buffer;
+    }
+
+    private static void assertThumbnail(ThumbnailJournal.Thumbnail thumbnail, int size,
+            int seed) {
+        assertNotNull(thumbnail);
+        assertEquals(size, thumbnail.pixels.remaining());
+        assertEquals(pixels(size, seed), thumbnail.pixels);
+    }
+
+    public void testGetReturnsWhatWasPut() throws Exception {
+        ThumbnailJournal journal = new ThumbnailJournal(mFile, MAX_BYTES);
+        journal.put(42, KIND, 1000, 4, 2, 7, pixels(16, 1));
+
+        ThumbnailJournal.Thumbnail thumbnail = journal.get(42, KIND, 1000);
+        assertThumbnail(thumbnail, 16, 1);
+        assertEquals(4, thumbnail.width);
+        assertEquals(2, thumbnail.height);
+        assertEquals(7, thumbnail.format);
+        assertNull(journal.get(42, KIND + 1, 1000));
+        journal.close();
+    }
+
+    public void testNewerDateModifiedSupersedes() throws Exception {
+        ThumbnailJournal journal = new ThumbnailJournal(mFile, MAX_BYTES);
+        journal.put(42, KIND, 1000, 4, 2, 7, pixels(16, 1));
+        journal.put(42, KIND, 2000, 4, 2, 7, pixels(16, 2));
+
+        assertNull(journal.get(42, KIND, 1000));
+        assertThumbnail(journal.get(42, KIND, 2000), 16, 2);
+        assertEquals(1, journal.size());
+        journal.close();
+    }
+
+    public void testThumbnailsSurviveReopening() throws Exception {
+        ThumbnailJournal journal = new ThumbnailJournal(mFile, MAX_BYTES);
+        journal.put(1, KIND, 1000, 4, 2, 7, pixels(16, 1));
+        journal.put(2, KIND, 1000, 4, 2, 7, pixels(16, 2));
+        journal.close();
+
+        journal = new ThumbnailJournal(mFile, MAX_BYTES);
+        assertThumbnail(journal.get(1, KIND, 1000), 16, 1);
+        assertThumbnail(journal.get(2, KIND, 1000), 16, 2);
+        assertEquals(2, journal.getNewest(10).size());
+        assertEquals(2, journal.getNewest(10).get(0)[0]);
+        journal.close();
+    }
+
+    public void testAppendedAndReopenedThumbnailsAreBothReadable() throws Exception {
+        ThumbnailJournal journal = new ThumbnailJournal(mFile, MAX_BYTES);
+        journal.put(1, KIND, 1000, 4, 2, 7, pixels(16, 1));
+        journal.close();
+
+        // Record 1 is read from the mapping made on open, and the records
+        // appended afterwards from the file.
+        journal = new ThumbnailJournal(mFile, MAX_BYTES);
+        journal.put(2, KIND, 1000, 4, 2, 7, pixels(16, 2));
+        assertThumbnail(journal.get(1, KIND, 1000), 16, 1);
+        assertThumbnail(journal.get(2, KIND, 1000), 16, 2);
+        journal.put(3, KIND, 1000, 4, 2, 7, pixels(32, 3));
+        assertThumbnail(journal.get(1, KIND, 1000), 16, 1);
+        assertThumbnail(journal.get(3, KIND, 1000), 32, 3);
+        journal.close();
+    }
+
+    public void testPartialRecordIsTruncated() throws Exception {
+        ThumbnailJournal journal = new ThumbnailJournal(mFile, MAX_BYTES);
+        journal.put(1, KIND, 1000, 4, 2, 7, pixels(16, 1));
+        journal.put(2, KIND, 1000, 4, 2, 7, pixels(16, 2));
+        long length = journal.getLength();
+        journal.close();
+
+        // Lose the end of the last record, as if the process died mid-write.
+        RandomAccessFile file = new RandomAccessFile(mFile, "rw");
+        file.setLength(length - 5);
+        file.close();
+
+        journal = new ThumbnailJournal(mFile, MAX_BYTES);
+        assertThumbnail(journal.get(1, KIND, 1000), 16, 1);
+        assertNull(journal.get(2, KIND, 1000));
+        journal.put(3, KIND, 1000, 4, 2, 7, pixels(16, 3));
+        journal.close();
+
+        journal = new ThumbnailJournal(mFile, MAX_BYTES);
+        assertThumbnail(journal.get(3, KIND, 1000), 16, 3);
+        journal.close();
+    }
+
+    public void testCorruptFileIsDiscarded() throws Exception {
+        RandomAccessFile file = new RandomAccessFile(mFile, "rw");
+        file.write(new byte[100]);
+        file.close();
+
+        ThumbnailJournal journal = new ThumbnailJournal(mFile, MAX_BYTES);
+        assertEquals(0, journal.size());
+        journal.put(1, KIND, 1000, 4, 2, 7, pixels(16, 1));
+        assertThumbnail(journal.get(1, KIND, 1000), 16, 1);
+        journal.close();
+    }
+
+    public void testCompactionDropsSupersededAndOldestRecords() throws Exception {
+        ThumbnailJournal journal = new ThumbnailJournal(mFile, MAX_BYTES);
+        int size = 4 * 1024;
+        for (int i = 0; i < 20; i++) {
+            journal.put(i, KIND, 1000, 32, 64, 7, pixels(size, i));
+        }
+        ThumbnailJournal.Thumbnail beforeCompaction = journal.get(19, KIND, 1000);
+        assertTrue(journal.needsCompaction());
+
+        journal.compact();
+
+        assertFalse("still needs compaction", journal.needsCompaction());
+        assertTrue(journal.getLength() <= MAX_BYTES / 2);
+        assertNull(journal.get(0, KIND, 1000));
+        assertThumbnail(journal.get(19, KIND, 1000), size, 19);
+        // Thumbnails read before compaction stay readable.
+        assertThumbnail(beforeCompaction, size, 19);
+        journal.close();
+
+        journal = new ThumbnailJournal(mFile, MAX_BYTES);
+        assertThumbnail(journal.get(19, KIND, 1000), size, 19);
+        assertEquals(19, journal.getNewest(1).get(0)[0]);
+        journal.close();
+    }
+}
@@ -0,0 +1,132 @@
+/*
+ * Copyright (C) 2015 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.camera.exif;
+
+import android.os.Debug;
+import android.test.suitebuilder.annotation.LargeTest;
+import android.util.Log;
+
+import junit.framework.TestCase;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+
+/**
+ * Compares {@link ExifInterface#readExifLazily} against
+ * {@link ExifInterface#readExif} for the filmstrip's use case of reading a few
+ * tags from many images, logging the time and allocations of each, and checks
+ * that both return the same tag values.
+ */
+@LargeTest
+public class ExifLazyParseBenchmark extends TestCase {
+    private static final String TAG = "ExifLazyParseBenchmark";
+
+    private static final int IMAGES = 500;
+    private static final int THUMBNAIL_SIZE = 16 * 1024;
+
+    private static final int[] TAGS_READ = new int[] {
+            ExifInterface.TAG_ORIENTATION,
+            ExifInterface.TAG_IMAGE_WIDTH,
+            ExifInterface.TAG_IMAGE_LENGTH,
+            ExifInterface.TAG_DATE_TIME,
+    };
+
+    private byte[] mJpeg;
+
+    @Override
+    protected void setUp() throws Exception {
+        super.setUp();
+        ExifInterface exif = new ExifInterface();
+        exif.setTag(exif.buildTag(ExifInterface.TAG_MAKE, "Camera maker"));
+        exif.setTag(exif.buildTag(ExifInterface.TAG_MODEL, "Camera model"));
+        exif.setTag(exif.buildTag(ExifInterface.TAG_ORIENTATION,
+                ExifInterface.Orientation.RIGHT_TOP));
+        exif.setTag(exif.buildTag(ExifInterface.TAG_IMAGE_WIDTH, 4000));
+        exif.setTag(exif.buildTag(ExifInterface.TAG_IMAGE_LENGTH, 3000));
+        exif.setTag(exif.buildTag(ExifInterface.TAG_EXPOSURE_TIME, new Rational(1, 60)));
+        exif.setTag(exif.buildTag(ExifInterface.TAG_F_NUMBER, new Rational(20, 10)));
+        exif.setTag(exif.buildTag(ExifInterface.TAG_ISO_SPEED_RATINGS, 100));
+        exif.addDateTimeStampTag(ExifInterface.TAG_DATE_TIME, 1420070400000L, null);
+        exif.addGpsTags(37.422, -122.084);
+        exif.addGpsDateTimeStampTag(1420070400000L);
+        exif.setCompressedThumbnail(new byte[THUMBNAIL_SIZE]);
+
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        OutputStream out = exif.getExifWriterStream(bytes);
+        out.write(new byte[] {
+                (byte) 0xff, (byte) 0xd8, (byte) 0xff, (byte) 0xc0, 0, 2, (byte) 0xff,
+                (byte) 0xd9
+        });
+        out.close();
+        mJpeg = bytes.toByteArray();
+    }
+
+    public void testLazyMatchesEager() throws IOException {
+        ExifInterface eager = new ExifInterface();
+        eager.readExif(mJpeg);
+        ExifInterface lazy = new ExifInterface();
+        lazy.readExifLazily(mJpeg);
+
+        for (ExifTag tag : eager.getAllTags()) {
+            int tagId = ExifInterface.defineTag(tag.getIfd(), tag.getTagId());
+            assertEquals(tag, lazy.getTag(tagId, tag.getIfd()));
+        }
+        // Anything else falls back to a full parse.
+        assertEquals(THUMBNAIL_SIZE, lazy.getThumbnailBytes().length);
+        assertEquals(eager.getAllTags().size(), lazy.getAllTags().size());
+    }
+
+    public void testBenchmark() throws IOException {
+        // Warm up.
+        readTags(false, IMAGES);
+        readTags(true, IMAGES);
+
+        long[] eager = readTags(false, IMAGES);
+        long[] lazy = readTags(true, IMAGES);
+
+        Log.i(TAG, IMAGES + " images: eager " + eager[0] / IMAGES / 1000 + "us, "
+                + eager[1] / IMAGES + " allocations/image; lazy " + lazy[0] / IMAGES / 1000
+                + "us, " + lazy[1] / IMAGES + " allocations/image");
+        assertTrue(lazy[1] < eager[1]);
+    }
+
+    /**
+     * @return the time taken in ns and the number of allocations.
+     */
+    private long[] readTags(boolean lazily, int images) throws IOException {
+        Debug.resetThreadAllocCount();
+        Debug.startAllocCounting();
+        long start = System.nanoTime();
+        for (int i = 0; i < images; i++) {
+            ExifInterface exif = new ExifInterface();
+            if (lazily) {
+                exif.readExifLazily(mJpeg);
+            } else {
+                exif.readExif(mJpeg);
+            }
+            for (int tag : TAGS_READ) {
+                assertNotNull(exif.getTag(tag));
+            }
+        }
+        long time = System.nanoTime() - start;
+        Debug.stopAllocCounting();
+        return new long[] {
+                time, Debug.getThreadAllocCount()
+        };
+    }
+}
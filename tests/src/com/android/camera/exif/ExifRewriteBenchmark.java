@@ -0,0 +1,161 @@
+/*
+ * Copyright (C) 2015 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.camera.exif;
+
+import android.test.AndroidTestCase;
+import android.test.suitebuilder.annotation.LargeTest;
+import android.util.Log;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Random;
+
+/**
+ * Times {@link ExifInterface#forceRewriteExif} on jpeg files of typical 5, 12
+ * and 24 MP sizes, for a header which fits in the old one and one which does
+ * not, against reading and writing back the whole file. Also checks that the
+ * image data is left untouched.
+ */
+@LargeTest
+public class ExifRewriteBenchmark extends AndroidTestCase {
+    private static final String TAG = "ExifRewriteBenchmark";
+
+    private static final int[] MEGAPIXELS = new int[] {5, 12, 24};
+    /** Rough size of a camera jpeg: 3 bits per pixel. */
+    private static final int BITS_PER_PIXEL = 3;
+    private static final int ITERATIONS = 5;
+
+    private File mFile;
+    private byte[] mImageData;
+
+    @Override
+    protected void setUp() throws Exception {
+        super.setUp();
+        mFile = new File(getContext().getCacheDir(), "exif_rewrite_benchmark.jpg");
+    }
+
+    @Override
+    protected void tearDown() throws Exception {
+        mFile.delete();
+        super.tearDown();
+    }
+
+    public void testRewrite() throws IOException {
+        for (int megapixels : MEGAPIXELS) {
+            mImageData = new byte[megapixels * 1000000 / 8 * BITS_PER_PIXEL];
+            new Random(megapixels).nextBytes(mImageData);
+
+            long patchNs = 0;
+            long spliceNs = 0;
+            long copyNs = 0;
+            for (int i = 0; i < ITERATIONS; i++) {
+                writeJpeg("A long camera make which leaves room to shrink");
+                ExifInterface exif = new ExifInterface();
+                long start = System.nanoTime();
+                ExifInterface.RewritePath path = exif.forceRewriteExif(mFile.getPath(),
+                        Collections.singleton(exif.buildTag(ExifInterface.TAG_MAKE, "Make")));
+                patchNs += System.nanoTime() - start;
+                assertEquals(ExifInterface.RewritePath.PATCHED_SEGMENT, path);
+                assertMake("Make");
+
+                char[] description = new char[4096];
+                Arrays.fill(description, 'd');
+                start = System.nanoTime();
+                path = exif.forceRewriteExif(mFile.getPath(), Collections.singleton(
+                        exif.buildTag(ExifInterface.TAG_IMAGE_DESCRIPTION,
+                                new String(description))));
+                spliceNs += System.nanoTime() - start;
+                assertEquals(ExifInterface.RewritePath.SPLICED, path);
+                assertMake("Make");
+
+                start = System.nanoTime();
+                rewriteWholeFile("Other");
+                copyNs += System.nanoTime() - start;
+                assertMake("Other");
+            }
+
+            Log.i(TAG, megapixels + "MP (" + mImageData.length / 1024 + "KB):"
+                    + " patch=" + patchNs / ITERATIONS / 1000 + "us"
+                    + " splice=" + spliceNs / ITERATIONS / 1000 + "us"
+                    + " full copy=" + copyNs / ITERATIONS / 1000 + "us");
+        }
+    }
+
+    /**
+     * Writes SOI, an Exif header with the given make, SOF and the image data.
+     */
+    private void writeJpeg(String make) throws IOException {
+        ExifInterface exif = new ExifInterface();
+        exif.setTag(exif.buildTag(ExifInterface.TAG_MAKE, make));
+        exif.setTag(exif.buildTag(ExifInterface.TAG_ORIENTATION,
+                ExifInterface.Orientation.TOP_LEFT));
+        OutputStream out = exif.getExifWriterStream(mFile.getPath());
+        try {
+            out.write(new byte[] {
+                    (byte) 0xff, (byte) 0xd8, (byte) 0xff, (byte) 0xc0, 0, 2
+            });
+            out.write(mImageData);
+            out.write(new byte[] {
+                    (byte) 0xff, (byte) 0xd9
+            });
+        } finally {
+            out.close();
+        }
+    }
+
+    /** The legacy fallback: read the whole file and write it back out. */
+    private void rewriteWholeFile(String make) throws IOException {
+        byte[] jpeg = readFile();
+        ExifInterface exif = new ExifInterface();
+        exif.readExif(jpeg);
+        exif.setTags(Collections.singleton(exif.buildTag(ExifInterface.TAG_MAKE, make)));
+        exif.writeExif(jpeg, mFile.getPath());
+    }
+
+    private void assertMake(String make) throws IOException {
+        ExifInterface exif = new ExifInterface();
+        exif.readExif(mFile.getPath());
+        assertTrue(exif.getTagStringValue(ExifInterface.TAG_MAKE).startsWith(make));
+        assertEquals(ExifInterface.Orientation.TOP_LEFT,
+                (short) (int) exif.getTagIntValue(ExifInterface.TAG_ORIENTATION));
+
+        byte[] jpeg = readFile();
+        byte[] imageData = Arrays.copyOfRange(jpeg, jpeg.length - 2 - mImageData.length,
+                jpeg.length - 2);
+        assertTrue(Arrays.equals(mImageData, imageData));
+    }
+
+    private byte[] readFile() throws IOException {
+        FileInputStream in = new FileInputStream(mFile);
+        try {
+            ByteArrayOutputStream bytes = new ByteArrayOutputStream((int) mFile.length());
+            byte[] buf = new byte[64 * 1024];
+            int read;
+            while ((read = in.read(buf)) != -1) {
+                bytes.write(buf, 0, read);
+            }
+            return bytes.toByteArray();
+        } finally {
+            in.close();
+        }
+    }
+}
@@ -0,0 +1,112 @@
+/*
+ * Copyright (C) 2015 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.camera.exif;
+
+import android.test.suitebuilder.annotation.SmallTest;
+
+import junit.framework.TestCase;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.Arrays;
+
+@SmallTest
+public class ExifThumbnailTest extends TestCase {
+    /** Bytes of image data following the EXIF header. */
+    private static final int IMAGE_DATA_SIZE = 1024 * 1024;
+
+    private static byte[] createJpeg(ExifInterface exif) throws IOException {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        OutputStream out = exif.getExifWriterStream(bytes);
+        out.write(new byte[] {
+                (byte) 0xff, (byte) 0xd8, (byte) 0xff, (byte) 0xc0, 0, 2
+        });
+        out.write(new byte[IMAGE_DATA_SIZE]);
+        out.write(new byte[] {
+                (byte) 0xff, (byte) 0xd9
+        });
+        out.close();
+        return bytes.toByteArray();
+    }
+
+    private static byte[] createThumbnail(int size) {
+        byte[] thumbnail = new byte[size];
+        for (int i = 0; i < size; i++) {
+            thumbnail[i] = (byte) i;
+        }
+        return thumbnail;
+    }
+
+    public void testReadsThumbnailAndOrientation() throws IOException {
+        byte[] thumbnail = createThumbnail(20 * 1024);
+        ExifInterface exif = new ExifInterface();
+        exif.setTag(exif.buildTag(ExifInterface.TAG_MAKE, "Camera maker"));
+        exif.setTag(exif.buildTag(ExifInterface.TAG_ORIENTATION,
+                ExifInterface.Orientation.RIGHT_TOP));
+        exif.addGpsTags(37.422, -122.084);
+        exif.setCompressedThumbnail(thumbnail);
+
+        ExifThumbnail result = ExifThumbnail.read(new ByteArrayInputStream(createJpeg(exif)));
+
+        assertNotNull(result);
+        assertTrue(Arrays.equals(thumbnail, result.getJpeg()));
+        assertEquals(ExifInterface.Orientation.RIGHT_TOP, result.getOrientation());
+    }
+
+    public void testOrientationDefaultsToTopLeft() throws IOException {
+        ExifInterface exif = new ExifInterface();
+        exif.setCompressedThumbnail(createThumbnail(1024));
+
+        ExifThumbnail result = ExifThumbnail.read(new ByteArrayInputStream(createJpeg(exif)));
+
+        assertNotNull(result);
+        assertEquals(ExifInterface.Orientation.TOP_LEFT, result.getOrientation());
+    }
+
+    public void testNoThumbnail() throws IOException {
+        ExifInterface exif = new ExifInterface();
+        exif.setTag(exif.buildTag(ExifInterface.TAG_ORIENTATION,
+                ExifInterface.Orientation.RIGHT_TOP));
+
+        assertNull(ExifThumbnail.read(new ByteArrayInputStream(createJpeg(exif))));
+    }
+
+    public void testNoExifHeader() throws IOException {
+        byte[] jpeg = new byte[] {
+                (byte) 0xff, (byte) 0xd8, (byte) 0xff, (byte) 0xc0, 0, 2, (byte) 0xff,
+                (byte) 0xd9
+        };
+
+        assertNull(ExifThumbnail.read(new ByteArrayInputStream(jpeg)));
+    }
+
+    public void testReadIsBounded() throws IOException {
+        ExifInterface exif = new ExifInterface();
+        exif.setCompressedThumbnail(createThumbnail(1024));
+        ByteArrayInputStream jpegStream = new ByteArrayInputStream(createJpeg(exif));
+
+        assertNotNull(ExifThumbnail.read(jpegStream));
+        assertTrue(jpegStream.available() >= IMAGE_DATA_SIZE);
+
+        ByteArrayInputStream noThumbnailStream =
+                new ByteArrayInputStream(createJpeg(new ExifInterface()));
+        assertNull(ExifThumbnail.read(noThumbnailStream));
+        assertTrue(noThumbnailStream.available() >= IMAGE_DATA_SIZE);
+    }
+}
@@ -0,0 +1,129 @@
+/*
+ * Copyright (C) 2015 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.camera.one.v2.core;
+
+import android.hardware.camera2.CaptureResult;
+import android.hardware.camera2.TotalCaptureResult;
+import android.test.suitebuilder.annotation.LargeTest;
+import android.util.Log;
+
+import junit.framework.TestCase;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Times the per-frame callbacks of a repeating request with nested
+ * broadcasters, as dispatched by {@link ResponseListenerDispatchTable} and by
+ * the tag-to-listener map it replaces.
+ */
+@LargeTest
+public class ResponseListenerDispatchBenchmark extends TestCase {
+    private static final String TAG = "DispatchBenchmark";
+
+    private static final int LISTENERS_PER_GROUP = 4;
+    private static final int GROUPS = 3;
+    private static final int PARTIAL_RESULTS_PER_FRAME = 2;
+    private static final int FRAMES = 500000;
+
+    private static class CountingListener extends ResponseListener {
+        private final boolean mReceivesPartialResults;
+        public long mCount;
+
+        public CountingListener(boolean receivesPartialResults) {
+            mReceivesPartialResults = receivesPartialResults;
+        }
+
+        @Override
+        public boolean receivesPartialResults() {
+            return mReceivesPartialResults;
+        }
+
+        @Override
+        public void onStarted(long timestamp) {
+            mCount++;
+        }
+
+        @Override
+        public void onProgressed(CaptureResult partialResult) {
+            mCount++;
+        }
+
+        @Override
+        public void onCompleted(TotalCaptureResult result) {
+            mCount++;
+        }
+    }
+
+    public void testBenchmark() {
+        // Like the preview request, a few groups of listeners, most of which
+        // only care about the timestamp or the final metadata.
+        List<ResponseListener> groups = new ArrayList<>();
+        for (int g = 0; g < GROUPS; g++) {
+            List<ResponseListener> group = new ArrayList<>();
+            for (int i = 0; i < LISTENERS_PER_GROUP; i++) {
+                group.add(new CountingListener(i == 0));
+            }
+            groups.add(ResponseListeners.forListeners(group));
+        }
+        ResponseListener listener = ResponseListeners.forListeners(groups);
+        Object tag = Long.valueOf(42);
+
+        Map<Object, ResponseListener> map = new HashMap<>();
+        map.put(tag, listener);
+        List<ResponseListener> requestListeners = new ArrayList<>();
+        requestListeners.add(listener);
+        ResponseListenerDispatchTable table = new ResponseListenerDispatchTable(42,
+                requestListeners);
+
+        // Warm up before timing.
+        runMap(map, tag, FRAMES / 10);
+        runTable(table, tag, FRAMES / 10);
+
+        long mapNs = runMap(map, tag, FRAMES);
+        long tableNs = runTable(table, tag, FRAMES);
+        Log.i(TAG, "map: " + mapNs / FRAMES + "ns per frame, table: " + tableNs / FRAMES
+                + "ns per frame");
+    }
+
+    private static long runMap(Map<Object, ResponseListener> map, Object tag, int frames) {
+        long startNs = System.nanoTime();
+        for (int frame = 0; frame < frames; frame++) {
+            map.get(tag).onStarted(frame);
+            for (int i = 0; i < PARTIAL_RESULTS_PER_FRAME; i++) {
+                map.get(tag).onProgressed(null);
+            }
+            map.get(tag).onCompleted(null);
+        }
+        return System.nanoTime() - startNs;
+    }
+
+    private static long runTable(ResponseListenerDispatchTable table, Object tag,
+            int frames) {
+        long startNs = System.nanoTime();
+        for (int frame = 0; frame < frames; frame++) {
+            table.dispatchStarted(tag, frame);
+            for (int i = 0; i < PARTIAL_RESULTS_PER_FRAME; i++) {
+                table.dispatchProgressed(tag, null);
+            }
+            table.dispatchCompleted(tag, null);
+        }
+        return System.nanoTime() - startNs;
+    }
+}
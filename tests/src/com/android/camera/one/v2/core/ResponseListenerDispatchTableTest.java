@@ -0,0 +1,133 @@
+/*
+ * Copyright (C) 2015 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.camera.one.v2.core;
+
+import android.hardware.camera2.CaptureResult;
+import android.test.suitebuilder.annotation.SmallTest;
+
+import junit.framework.TestCase;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+@SmallTest
+public class ResponseListenerDispatchTableTest extends TestCase {
+    /** Records the callbacks it receives, prefixed with its name. */
+    private static class RecordingListener extends ResponseListener {
+        private final String mName;
+        private final boolean mReceivesPartialResults;
+        private final List<String> mEvents;
+
+        public RecordingListener(String name, boolean receivesPartialResults,
+                List<String> events) {
+            mName = name;
+            mReceivesPartialResults = receivesPartialResults;
+            mEvents = events;
+        }
+
+        @Override
+        public boolean receivesPartialResults() {
+            return mReceivesPartialResults;
+        }
+
+        @Override
+        public void onStarted(long timestamp) {
+            mEvents.add(mName + ".onStarted(" + timestamp + ")");
+        }
+
+        @Override
+        public void onProgressed(CaptureResult partialResult) {
+            mEvents.add(mName + ".onProgressed");
+        }
+
+        @Override
+        public void onSequenceCompleted(int sequenceId, long frameNumber) {
+            mEvents.add(mName + ".onSequenceCompleted(" + sequenceId + ")");
+        }
+    }
+
+    private List<String> mEvents;
+
+    @Override
+    protected void setUp() throws Exception {
+        super.setUp();
+        mEvents = new ArrayList<>();
+    }
+
+    public void testDispatchesToTheListenersOfTheTaggedRequest() {
+        ResponseListenerDispatchTable table = new ResponseListenerDispatchTable(10,
+                Arrays.<ResponseListener> asList(
+                        new RecordingListener("a", true, mEvents),
+                        new RecordingListener("b", true, mEvents)));
+
+        table.dispatchStarted(11L, 5);
+        table.dispatchStarted(10L, 6);
+
+        assertEquals(Arrays.asList("b.onStarted(5)", "a.onStarted(6)"), mEvents);
+    }
+
+    public void testFlattensNestedBroadcastersInOrder() {
+        ResponseListener listener = ResponseListeners.forListeners(
+                new RecordingListener("a", true, mEvents),
+                ResponseListeners.forListeners(
+                        new RecordingListener("b", true, mEvents),
+                        new RecordingListener("c", true, mEvents)),
+                new RecordingListener("d", true, mEvents));
+        ResponseListenerDispatchTable table = new ResponseListenerDispatchTable(0,
+                Arrays.asList(listener));
+
+        table.dispatchStarted(0L, 1);
+
+        assertEquals(Arrays.asList("a.onStarted(1)", "b.onStarted(1)", "c.onStarted(1)",
+                "d.onStarted(1)"), mEvents);
+    }
+
+    public void testSkipsListenersWhichDoNotReceivePartialResults() {
+        ResponseListener listener = ResponseListeners.forListeners(
+                new RecordingListener("a", false, mEvents),
+                new RecordingListener("b", true, mEvents));
+        ResponseListenerDispatchTable table = new ResponseListenerDispatchTable(0,
+                Arrays.asList(listener));
+
+        table.dispatchProgressed(0L, null);
+
+        assertEquals(Arrays.asList("b.onProgressed"), mEvents);
+    }
+
+    public void testSequenceEventsAreNotForwardedThroughBroadcasters() {
+        ResponseListener listener = ResponseListeners.forListeners(
+                new RecordingListener("a", true, mEvents));
+        ResponseListenerDispatchTable table = new ResponseListenerDispatchTable(0,
+                Arrays.asList(listener, new RecordingListener("b", true, mEvents)));
+
+        table.dispatchSequenceCompleted(3, 0);
+
+        assertEquals(Arrays.asList("b.onSequenceCompleted(3)"), mEvents);
+    }
+
+    public void testRejectsUnknownTags() {
+        ResponseListenerDispatchTable table = new ResponseListenerDispatchTable(10,
+                Arrays.<ResponseListener> asList(new RecordingListener("a", true, mEvents)));
+        try {
+            table.dispatchStarted(11L, 0);
+            fail();
+        } catch (IllegalArgumentException e) {
+            // Expected.
+        }
+    }
+}
@@ -0,0 +1,93 @@
+/*
+ * Copyright (C) 2015 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.camera.one.v2.errorhandling;
+
+import android.test.suitebuilder.annotation.SmallTest;
+
+import junit.framework.TestCase;
+
+@SmallTest
+public class FramePacingAnalyzerTest extends TestCase {
+    private static final long FRAME_INTERVAL_NS = 33333333;
+    /** Time from exposure until each result arrives, in another clock. */
+    private static final long LATENCY_NS = 1000000000000L;
+
+    private FramePacingAnalyzer mAnalyzer;
+    private long mSensorTimestampNs;
+
+    @Override
+    protected void setUp() throws Exception {
+        super.setUp();
+        mAnalyzer = new FramePacingAnalyzer();
+        mSensorTimestampNs = 5000000000L;
+    }
+
+    private void addFrames(int count) {
+        for (int i = 0; i < count; i++) {
+            mSensorTimestampNs += FRAME_INTERVAL_NS;
+            mAnalyzer.onFrame(mSensorTimestampNs, mSensorTimestampNs + LATENCY_NS);
+        }
+    }
+
+    public void testSteadyFramesHaveNoDrops() {
+        addFrames(100);
+
+        FramePacingAnalyzer.Snapshot snapshot = mAnalyzer.getSnapshot();
+        assertEquals(100, snapshot.frameCount);
+        assertTrue(Math.abs(snapshot.p50IntervalMs - 33.3) < 0.5);
+        assertTrue(Math.abs(snapshot.p99IntervalMs - 33.3) < 0.5);
+        assertEquals(0, snapshot.sensorDroppedFrames);
+        assertEquals(0, snapshot.lateDeliveries);
+    }
+
+    public void testCountsFramesSkippedBySensor() {
+        addFrames(100);
+        // The sensor skips two frames.
+        mSensorTimestampNs += 2 * FRAME_INTERVAL_NS;
+        addFrames(1);
+
+        FramePacingAnalyzer.Snapshot snapshot = mAnalyzer.getSnapshot();
+        assertEquals(1, snapshot.sensorDropEvents);
+        assertEquals(2, snapshot.sensorDroppedFrames);
+        assertEquals(0, snapshot.lateDeliveries);
+    }
+
+    public void testCountsLateDeliveries() {
+        addFrames(100);
+        // The frame is exposed on time, but reaches the app two frames late.
+        mSensorTimestampNs += FRAME_INTERVAL_NS;
+        mAnalyzer.onFrame(mSensorTimestampNs,
+                mSensorTimestampNs + LATENCY_NS + 2 * FRAME_INTERVAL_NS);
+
+        FramePacingAnalyzer.Snapshot snapshot = mAnalyzer.getSnapshot();
+        assertEquals(0, snapshot.sensorDropEvents);
+        assertEquals(1, snapshot.lateDeliveries);
+        assertTrue(snapshot.maxDeliveryDelayMs > 66);
+    }
+
+    public void testResetStartsANewSession() {
+        addFrames(100);
+        mSensorTimestampNs += 2 * FRAME_INTERVAL_NS;
+        addFrames(1);
+
+        mAnalyzer.reset();
+
+        FramePacingAnalyzer.Snapshot snapshot = mAnalyzer.getSnapshot();
+        assertEquals(0, snapshot.frameCount);
+        assertEquals(0, snapshot.sensorDropEvents);
+    }
+}
@@ -0,0 +1,295 @@
+/*
+ * Copyright (C) 2015 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.camera.one.v2.sharedimagereader.imagedistributor;
+
+import android.graphics.Rect;
+import android.test.suitebuilder.annotation.SmallTest;
+
+import com.android.camera.async.BufferQueueController;
+import com.android.camera.async.ConcurrentBufferQueue;
+import com.android.camera.debug.Loggers;
+import com.android.camera.one.v2.camera2proxy.ImageProxy;
+import com.android.camera.one.v2.sharedimagereader.imagedistributor.ImageDistributor.DeliveryPolicy;
+import com.android.camera.one.v2.sharedimagereader.imagedistributor.ImageDistributor.RouteMetrics;
+
+import junit.framework.TestCase;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+
+@SmallTest
+public class ImageDistributorImplTest extends TestCase {
+    private static final long TIMEOUT_MS = 2000;
+
+    private ExecutorService mDeliveryExecutor;
+    private ImageDistributorImpl mDistributor;
+
+    @Override
+    protected void setUp() throws Exception {
+        super.setUp();
+        mDeliveryExecutor = Executors.newCachedThreadPool();
+        // With the global timestamp queue closed, every route's timestamps are
+        // taken to be up-to-date, so images are distributed right away.
+        ConcurrentBufferQueue<Long> globalTimestamps = new ConcurrentBufferQueue<>();
+        globalTimestamps.close();
+        mDistributor = new ImageDistributorImpl(Loggers.tagFactory(), globalTimestamps,
+                mDeliveryExecutor);
+    }
+
+    @Override
+    protected void tearDown() throws Exception {
+        mDeliveryExecutor.shutdownNow();
+        super.tearDown();
+    }
+
+    /** An image which only has a timestamp, and records whether it is closed. */
+    private static class FakeImage implements ImageProxy {
+        private final long mTimestamp;
+        private volatile boolean mClosed = false;
+
+        FakeImage(long timestamp) {
+            mTimestamp = timestamp;
+        }
+
+        boolean isClosed() {
+            return mClosed;
+        }
+
+        @Override
+        public Rect getCropRect() {
+            return null;
+        }
+
+        @Override
+        public void setCropRect(Rect cropRect) {
+        }
+
+        @Override
+        public int getFormat() {
+            return 0;
+        }
+
+        @Override
+        public int getHeight() {
+            return 0;
+        }
+
+        @Override
+        public List<Plane> getPlanes() {
+            return Collections.emptyList();
+        }
+
+        @Override
+        public long getTimestamp() {
+            return mTimestamp;
+        }
+
+        @Override
+        public int getWidth() {
+            return 0;
+        }
+
+        @Override
+        public void close() {
+            mClosed = true;
+        }
+    }
+
+    /**
+     * An output stream which records the timestamps of the images it
+     * receives, and which can be made to hold on to the first one until
+     * {@link #unblock} is called, like a slow consumer.
+     */
+    private static class RecordingStream implements BufferQueueController<ImageProxy> {
+        private final CountDownLatch mFirstUpdate = new CountDownLatch(1);
+        private final CountDownLatch mUnblocked;
+        private final List<Long> mTimestamps = new ArrayList<>();
+        private volatile boolean mClosed = false;
+
+        RecordingStream(boolean blocked) {
+            mUnblocked = new CountDownLatch(blocked ? 1 : 0);
+        }
+
+        void unblock() {
+            mUnblocked.countDown();
+        }
+
+        void awaitFirstUpdate() throws InterruptedException {
+            assertTrue(mFirstUpdate.await(TIMEOUT_MS, TimeUnit.MILLISECONDS));
+        }
+
+        List<Long> awaitTimestamps(int count) throws InterruptedException {
+            long deadline = System.currentTimeMillis() + TIMEOUT_MS;
+            synchronized (this) {
+                while (mTimestamps.size() < count && System.currentTimeMillis() < deadline) {
+                    wait(10);
+                }
+                return new ArrayList<>(mTimestamps);
+            }
+        }
+
+        @Override
+        public void update(ImageProxy element) {
+            mFirstUpdate.countDown();
+            try {
+                mUnblocked.await();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+            synchronized (this) {
+                mTimestamps.add(element.getTimestamp());
+                notifyAll();
+            }
+            element.close();
+        }
+
+        @Override
+        public void close() {
+            mClosed = true;
+        }
+
+        @Override
+        public boolean isClosed() {
+            return mClosed;
+        }
+    }
+
+    /** A route which requests every timestamp from 1 to maxTimestamp. */
+    private ConcurrentBufferQueue<Long> requestTimestamps(long maxTimestamp) {
+        ConcurrentBufferQueue<Long> timestamps = new ConcurrentBufferQueue<>();
+        for (long timestamp = 1; timestamp <= maxTimestamp; timestamp++) {
+            timestamps.update(timestamp);
+        }
+        return timestamps;
+    }
+
+    private RouteMetrics getMetrics(DeliveryPolicy policy) {
+        for (RouteMetrics metrics : mDistributor.getRouteMetrics()) {
+            if (metrics.policy == policy) {
+                return metrics;
+            }
+        }
+        fail("No route with " + policy);
+        return null;
+    }
+
+    public void testSlowRouteDoesNotDelayOtherRoutes() throws Exception {
+        RecordingStream slow = new RecordingStream(true);
+        RecordingStream fast = new RecordingStream(false);
+        mDistributor.addRoute(requestTimestamps(3), slow, DeliveryPolicy.DROP_OLDEST, 1);
+        mDistributor.addRoute(requestTimestamps(3), fast, DeliveryPolicy.DROP_NEWEST, 1);
+
+        mDistributor.distributeImage(new FakeImage(1));
+        slow.awaitFirstUpdate();
+        assertEquals(Collections.singletonList(1L), fast.awaitTimestamps(1));
+        mDistributor.distributeImage(new FakeImage(2));
+        assertEquals(2, fast.awaitTimestamps(2).size());
+        mDistributor.distributeImage(new FakeImage(3));
+
+        assertEquals(3, fast.awaitTimestamps(3).size());
+        assertEquals(0, getMetrics(DeliveryPolicy.DROP_NEWEST).droppedCount);
+        slow.unblock();
+        assertEquals(list(1L, 3L), slow.awaitTimestamps(2));
+    }
+
+    public void testDropOldestKeepsNewestImage() throws Exception {
+        RecordingStream stream = new RecordingStream(true);
+        mDistributor.addRoute(requestTimestamps(3), stream, DeliveryPolicy.DROP_OLDEST, 1);
+        FakeImage image2 = new FakeImage(2);
+
+        mDistributor.distributeImage(new FakeImage(1));
+        stream.awaitFirstUpdate();
+        mDistributor.distributeImage(image2);
+        mDistributor.distributeImage(new FakeImage(3));
+
+        assertTrue(image2.isClosed());
+        stream.unblock();
+        assertEquals(list(1L, 3L), stream.awaitTimestamps(2));
+        assertEquals(1, getMetrics(DeliveryPolicy.DROP_OLDEST).droppedCount);
+        assertEquals(2, getMetrics(DeliveryPolicy.DROP_OLDEST).deliveredCount);
+    }
+
+    public void testDropNewestKeepsQueuedImage() throws Exception {
+        RecordingStream stream = new RecordingStream(true);
+        mDistributor.addRoute(requestTimestamps(3), stream, DeliveryPolicy.DROP_NEWEST, 1);
+        FakeImage image3 = new FakeImage(3);
+
+        mDistributor.distributeImage(new FakeImage(1));
+        stream.awaitFirstUpdate();
+        mDistributor.distributeImage(new FakeImage(2));
+        mDistributor.distributeImage(image3);
+
+        assertTrue(image3.isClosed());
+        stream.unblock();
+        assertEquals(list(1L, 2L), stream.awaitTimestamps(2));
+        assertEquals(1, getMetrics(DeliveryPolicy.DROP_NEWEST).droppedCount);
+    }
+
+    public void testBlockWaitsForRoomWithoutDropping() throws Exception {
+        final RecordingStream stream = new RecordingStream(true);
+        mDistributor.addRoute(requestTimestamps(3), stream, DeliveryPolicy.BLOCK, 1);
+
+        mDistributor.distributeImage(new FakeImage(1));
+        stream.awaitFirstUpdate();
+        mDistributor.distributeImage(new FakeImage(2));
+        Thread distributor = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                mDistributor.distributeImage(new FakeImage(3));
+            }
+        });
+        distributor.start();
+        distributor.join(100);
+        assertTrue("Should wait for room in the queue", distributor.isAlive());
+
+        stream.unblock();
+        distributor.join(TIMEOUT_MS);
+        assertFalse(distributor.isAlive());
+        assertEquals(list(1L, 2L, 3L), stream.awaitTimestamps(3));
+        assertEquals(0, getMetrics(DeliveryPolicy.BLOCK).droppedCount);
+    }
+
+    public void testClosedRouteClosesWaitingImages() throws Exception {
+        RecordingStream stream = new RecordingStream(true);
+        mDistributor.addRoute(requestTimestamps(3), stream, DeliveryPolicy.DROP_NEWEST, 2);
+        FakeImage image2 = new FakeImage(2);
+        FakeImage image3 = new FakeImage(3);
+
+        mDistributor.distributeImage(new FakeImage(1));
+        stream.awaitFirstUpdate();
+        mDistributor.distributeImage(image2);
+        stream.close();
+        mDistributor.distributeImage(image3);
+
+        assertTrue(image2.isClosed());
+        assertTrue(image3.isClosed());
+        assertTrue(mDistributor.getRouteMetrics().isEmpty());
+        stream.unblock();
+        assertEquals(Collections.singletonList(1L), stream.awaitTimestamps(1));
+    }
+
+    private static List<Long> list(Long... timestamps) {
+        List<Long> list = new ArrayList<>();
+        Collections.addAll(list, timestamps);
+        return list;
+    }
+}
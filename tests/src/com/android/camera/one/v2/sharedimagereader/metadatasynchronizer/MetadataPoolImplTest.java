@@ -0,0 +1,204 @@
+/*
+ * Copyright (C) 2015 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.camera.one.v2.sharedimagereader.metadatasynchronizer;
+
+import android.hardware.camera2.CaptureResult;
+import android.test.suitebuilder.annotation.SmallTest;
+
+import com.android.camera.one.v2.camera2proxy.TotalCaptureResultProxy;
+import com.google.common.util.concurrent.ListenableFuture;
+
+import junit.framework.TestCase;
+
+import java.lang.reflect.InvocationHandler;
+import java.lang.reflect.Method;
+import java.lang.reflect.Proxy;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.TimeoutException;
+
+@SmallTest
+public class MetadataPoolImplTest extends TestCase {
+    private MetadataPoolImpl mPool;
+
+    @Override
+    protected void setUp() throws Exception {
+        super.setUp();
+        mPool = new MetadataPoolImpl();
+    }
+
+    /** A capture result which only has a sensor timestamp. */
+    private static TotalCaptureResultProxy createMetadata(final long timestamp) {
+        return (TotalCaptureResultProxy) Proxy.newProxyInstance(
+                TotalCaptureResultProxy.class.getClassLoader(),
+                new Class<?>[] { TotalCaptureResultProxy.class },
+                new InvocationHandler() {
+                    @Override
+                    public Object invoke(Object proxy, Method method, Object[] args) {
+                        if (method.getName().equals("get")) {
+                            return timestamp;
+                        }
+                        if (method.getName().equals("toString")) {
+                            return "Metadata " + timestamp;
+                        }
+                        return null;
+                    }
+                });
+    }
+
+    /**
+     * @return Increasing timestamps whose home slot is the given one, so that
+     *         they collide in the table.
+     */
+    private static List<Long> findTimestampsWithHomeSlot(int slot, int count) {
+        List<Long> timestamps = new ArrayList<>();
+        for (long timestamp = 1; timestamps.size() < count; timestamp++) {
+            if (MetadataPoolImpl.getHomeSlot(timestamp) == slot) {
+                timestamps.add(timestamp);
+            }
+        }
+        return timestamps;
+    }
+
+    private void assertHasMetadata(long timestamp) throws Exception {
+        ListenableFuture<TotalCaptureResultProxy> future = mPool.removeMetadataFuture(timestamp);
+        assertTrue(future.isDone());
+        assertEquals(timestamp, (long) future.get().get(CaptureResult.SENSOR_TIMESTAMP));
+    }
+
+    private static void assertEvicted(ListenableFuture<TotalCaptureResultProxy> future)
+            throws Exception {
+        assertTrue(future.isDone());
+        try {
+            future.get();
+            fail();
+        } catch (ExecutionException e) {
+            assertTrue(e.getCause() instanceof TimeoutException);
+        }
+    }
+
+    public void testCollisionsAcrossTheEndOfTheTable() throws Exception {
+        // Three entries for the last slot wrap around to the first two, and
+        // push out an entry for the first slot.
+        List<Long> lastSlot = findTimestampsWithHomeSlot(MetadataPoolImpl.TABLE_SIZE - 1, 3);
+        List<Long> firstSlot = findTimestampsWithHomeSlot(0, 1);
+        for (long timestamp : lastSlot) {
+            mPool.update(createMetadata(timestamp));
+        }
+        mPool.update(createMetadata(firstSlot.get(0)));
+
+        assertEquals(4, mPool.getMapSize());
+        for (long timestamp : lastSlot) {
+            assertHasMetadata(timestamp);
+        }
+        assertHasMetadata(firstSlot.get(0));
+        assertEquals(4, mPool.getMapSize());
+    }
+
+    public void testDisplacedEntriesAreFoundAfterRemoval() throws Exception {
+        List<Long> lastSlot = findTimestampsWithHomeSlot(MetadataPoolImpl.TABLE_SIZE - 1, 3);
+        List<Long> firstSlot = findTimestampsWithHomeSlot(0, 2);
+        List<Long> all = new ArrayList<>();
+        all.addAll(lastSlot);
+        all.addAll(firstSlot);
+        for (long timestamp : all) {
+            mPool.update(createMetadata(timestamp));
+        }
+
+        // Remove from the front of the cluster, its middle and its end, and
+        // check that the entries shifted back are still found each time.
+        int[] removalOrder = { 0, 3, 4, 1, 2 };
+        for (int i = 0; i < removalOrder.length; i++) {
+            mPool.releaseMetadata(all.get(removalOrder[i]));
+            assertEquals(all.size() - i - 1, mPool.getMapSize());
+            for (int j = i + 1; j < removalOrder.length; j++) {
+                assertHasMetadata(all.get(removalOrder[j]));
+            }
+        }
+    }
+
+    public void testReleaseMetadataBeforeAndAfterItArrives() throws Exception {
+        mPool.update(createMetadata(100));
+        mPool.releaseMetadata(100);
+        assertEquals(0, mPool.getMapSize());
+
+        // An image closed before its metadata arrives keeps its entry, so that
+        // the metadata is dropped rather than held as unmatched.
+        mPool.releaseMetadata(200);
+        assertEquals(1, mPool.getMapSize());
+        mPool.update(createMetadata(200));
+        assertEquals(0, mPool.getMapSize());
+        assertEquals(0, mPool.getUnmatchedMetadataCount());
+        assertEquals(0, mPool.getUnmatchedImageCount());
+    }
+
+    public void testRequestedMetadataCompletesFuture() throws Exception {
+        ListenableFuture<TotalCaptureResultProxy> future = mPool.removeMetadataFuture(100);
+        assertFalse(future.isDone());
+        mPool.update(createMetadata(100));
+        assertEquals(100L, (long) future.get().get(CaptureResult.SENSOR_TIMESTAMP));
+        mPool.releaseMetadata(100);
+        assertEquals(0, mPool.getMapSize());
+    }
+
+    public void testOldestEntryIsEvictedAtMaxEntries() throws Exception {
+        ListenableFuture<TotalCaptureResultProxy> pending = mPool.removeMetadataFuture(1);
+        for (long timestamp = 2; timestamp <= MetadataPoolImpl.MAX_ENTRIES + 1; timestamp++) {
+            mPool.update(createMetadata(timestamp));
+        }
+
+        assertEquals(MetadataPoolImpl.MAX_ENTRIES, mPool.getMapSize());
+        assertEvicted(pending);
+        assertEquals(1, mPool.getUnmatchedImageCount());
+
+        mPool.update(createMetadata(MetadataPoolImpl.MAX_ENTRIES + 2));
+        assertEquals(MetadataPoolImpl.MAX_ENTRIES, mPool.getMapSize());
+        assertEquals(1, mPool.getUnmatchedMetadataCount());
+        for (long timestamp = 3; timestamp <= MetadataPoolImpl.MAX_ENTRIES + 2; timestamp++) {
+            assertHasMetadata(timestamp);
+        }
+    }
+
+    public void testLateImageOfEvictedMetadataIsCountedOnce() throws Exception {
+        for (long timestamp = 1; timestamp <= MetadataPoolImpl.MAX_ENTRIES + 1; timestamp++) {
+            mPool.update(createMetadata(timestamp));
+        }
+        assertEquals(1, mPool.getUnmatchedMetadataCount());
+
+        // The image of the evicted metadata arrives late. It neither takes an
+        // entry nor counts again.
+        assertEvicted(mPool.removeMetadataFuture(1));
+        mPool.releaseMetadata(1);
+        assertEquals(MetadataPoolImpl.MAX_ENTRIES, mPool.getMapSize());
+        assertEquals(1, mPool.getUnmatchedMetadataCount());
+        assertEquals(0, mPool.getUnmatchedImageCount());
+    }
+
+    public void testLateMetadataOfEvictedImageIsCountedOnce() throws Exception {
+        mPool.releaseMetadata(1);
+        for (long timestamp = 2; timestamp <= MetadataPoolImpl.MAX_ENTRIES + 1; timestamp++) {
+            mPool.update(createMetadata(timestamp));
+        }
+        assertEquals(1, mPool.getUnmatchedImageCount());
+
+        mPool.update(createMetadata(1));
+        assertEquals(MetadataPoolImpl.MAX_ENTRIES, mPool.getMapSize());
+        assertEquals(1, mPool.getUnmatchedImageCount());
+        assertEquals(0, mPool.getUnmatchedMetadataCount());
+    }
+}
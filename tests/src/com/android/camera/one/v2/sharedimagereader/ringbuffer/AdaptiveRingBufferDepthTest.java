@@ -0,0 +1,149 @@
+/*
+ * Copyright (C) 2015 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.camera.one.v2.sharedimagereader.ringbuffer;
+
+import android.os.Handler;
+import android.os.Looper;
+import android.test.suitebuilder.annotation.SmallTest;
+
+import com.android.camera.app.MemoryManager;
+import com.android.camera.debug.Loggers;
+import com.android.camera.ui.motion.AnimationClock;
+
+import junit.framework.TestCase;
+
+import java.util.HashMap;
+
+@SmallTest
+public class AdaptiveRingBufferDepthTest extends TestCase {
+    private static final int LOW_MEMORY_DEPTH = 0;
+    private static final int IDLE_DEPTH = 1;
+    private static final int BASE_DEPTH = 2;
+    private static final int ACTIVE_DEPTH = 4;
+
+    private static class FakeClock extends AnimationClock {
+        long mTimeMillis = 1000;
+
+        @Override
+        public long getTimeMillis() {
+            return mTimeMillis;
+        }
+    }
+
+    private static class FakeMemoryManager implements MemoryManager {
+        MemoryListener mListener;
+
+        @Override
+        public void addListener(MemoryListener listener) {
+            mListener = listener;
+        }
+
+        @Override
+        public void removeListener(MemoryListener listener) {
+            mListener = null;
+        }
+
+        @Override
+        public int getMaxAllowedNativeMemoryAllocation() {
+            return 0;
+        }
+
+        @Override
+        public HashMap queryMemory() {
+            return new HashMap();
+        }
+    }
+
+    private FakeClock mClock;
+    private FakeMemoryManager mMemoryManager;
+    private AdaptiveRingBufferDepth mDepth;
+
+    @Override
+    protected void setUp() throws Exception {
+        super.setUp();
+        mClock = new FakeClock();
+        mMemoryManager = new FakeMemoryManager();
+        mDepth = new AdaptiveRingBufferDepth(Loggers.tagFactory(), mClock,
+                new Handler(Looper.getMainLooper()), mMemoryManager, LOW_MEMORY_DEPTH,
+                IDLE_DEPTH, BASE_DEPTH, ACTIVE_DEPTH, 1024);
+    }
+
+    @Override
+    protected void tearDown() throws Exception {
+        mDepth.close();
+        super.tearDown();
+    }
+
+    /**
+     * Advances the clock and makes the depth catch up, as the timeout posted
+     * to the handler would.
+     */
+    private int depthAfter(long millis) {
+        mClock.mTimeMillis += millis;
+        mMemoryManager.mListener.onMemoryStateChanged(MemoryManager.STATE_OK);
+        return mDepth.getDepth().get();
+    }
+
+    public void testStartsAtBaseDepth() {
+        assertEquals(BASE_DEPTH, (int) mDepth.getDepth().get());
+        assertEquals(BASE_DEPTH, depthAfter(AdaptiveRingBufferDepth.IDLE_TIMEOUT_MS - 1));
+    }
+
+    public void testShotsInQuickSuccessionGrowToActiveDepth() {
+        // Opening the camera counts as activity, so wait for it to wear off.
+        mClock.mTimeMillis += AdaptiveRingBufferDepth.ACTIVE_HOLD_MS;
+        mDepth.onShotTaken();
+        assertEquals(BASE_DEPTH, depthAfter(0));
+        mClock.mTimeMillis += AdaptiveRingBufferDepth.ACTIVE_HOLD_MS / 2;
+        mDepth.onShotTaken();
+        assertEquals(ACTIVE_DEPTH, depthAfter(0));
+
+        assertEquals(ACTIVE_DEPTH, depthAfter(AdaptiveRingBufferDepth.ACTIVE_HOLD_MS - 1));
+        assertEquals(BASE_DEPTH, depthAfter(1));
+    }
+
+    public void testCaptureIntentGrowsToActiveDepth() {
+        mDepth.onCaptureIntent();
+        assertEquals(ACTIVE_DEPTH, depthAfter(0));
+        assertEquals(BASE_DEPTH, depthAfter(AdaptiveRingBufferDepth.ACTIVE_HOLD_MS));
+    }
+
+    public void testIdleShrinksToIdleDepthOnly() {
+        assertEquals(IDLE_DEPTH, depthAfter(AdaptiveRingBufferDepth.IDLE_TIMEOUT_MS));
+        assertEquals(IDLE_DEPTH, depthAfter(AdaptiveRingBufferDepth.IDLE_TIMEOUT_MS));
+
+        // The first shot after a pause still finds an image to use.
+        mDepth.onShotTaken();
+        assertEquals(BASE_DEPTH, depthAfter(0));
+    }
+
+    public void testLowMemoryShrinksToLowMemoryDepth() {
+        mDepth.onCaptureIntent();
+        mMemoryManager.mListener.onMemoryStateChanged(MemoryManager.STATE_LOW_MEMORY);
+        assertEquals(LOW_MEMORY_DEPTH, (int) mDepth.getDepth().get());
+        mDepth.onShotTaken();
+        assertEquals(LOW_MEMORY_DEPTH, (int) mDepth.getDepth().get());
+
+        assertEquals(ACTIVE_DEPTH, depthAfter(0));
+    }
+
+    public void testSavedBytes() {
+        assertEquals((ACTIVE_DEPTH - BASE_DEPTH) * 1024L, mDepth.getSavedBytes());
+        mDepth.onCaptureIntent();
+        assertEquals(0, mDepth.getSavedBytes());
+    }
+}
@@ -0,0 +1,91 @@
+/*
+ * Copyright (C) 2015 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.camera.one.v2.sharedimagereader.ticketpool;
+
+import android.test.suitebuilder.annotation.LargeTest;
+import android.util.Log;
+
+import junit.framework.TestCase;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+
+/**
+ * Times tryAcquire and close pairs on {@link ReservableTicketPool}, the
+ * per-frame path of the shared image reader, from one and from several
+ * threads.
+ */
+@LargeTest
+public class ReservableTicketPoolBenchmark extends TestCase {
+    private static final String TAG = "TicketPoolBenchmark";
+
+    private static final int CAPACITY = 8;
+    private static final int OPERATIONS_PER_THREAD = 200000;
+
+    public void testBenchmark() throws Exception {
+        int maxThreads = Math.max(2, Runtime.getRuntime().availableProcessors());
+        for (int threads = 1; threads <= maxThreads; threads *= 2) {
+            // Warm up before timing.
+            run(threads, OPERATIONS_PER_THREAD / 10);
+            long elapsedNs = run(threads, OPERATIONS_PER_THREAD);
+            long operations = (long) threads * OPERATIONS_PER_THREAD;
+            Log.i(TAG, threads + " threads: " + elapsedNs / operations
+                    + "ns per tryAcquire/close, " + operations * 1000000L / elapsedNs
+                    + " per ms");
+        }
+    }
+
+    private static long run(int threadCount, final int operations) throws Exception {
+        FiniteTicketPool parentPool = new FiniteTicketPool(CAPACITY);
+        final ReservableTicketPool pool = new ReservableTicketPool(parentPool);
+        pool.reserveCapacity(CAPACITY);
+
+        final CountDownLatch start = new CountDownLatch(1);
+        List<Thread> threads = new ArrayList<>();
+        for (int t = 0; t < threadCount; t++) {
+            Thread thread = new Thread() {
+                @Override
+                public void run() {
+                    try {
+                        start.await();
+                    } catch (InterruptedException e) {
+                        return;
+                    }
+                    for (int i = 0; i < operations; i++) {
+                        Ticket ticket = pool.tryAcquire();
+                        if (ticket != null) {
+                            ticket.close();
+                        }
+                    }
+                }
+            };
+            threads.add(thread);
+            thread.start();
+        }
+        long startNs = System.nanoTime();
+        start.countDown();
+        for (Thread thread : threads) {
+            thread.join();
+        }
+        long elapsedNs = System.nanoTime() - startNs;
+
+        pool.close();
+        assertEquals(CAPACITY, (int) parentPool.getAvailableTicketCount().get());
+        return elapsedNs;
+    }
+}
@@ -0,0 +1,270 @@
+/*
+ * Copyright (C) 2015 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.camera.one.v2.sharedimagereader.ticketpool;
+
+import android.test.suitebuilder.annotation.MediumTest;
+
+import junit.framework.TestCase;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.CyclicBarrier;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicReference;
+
+/**
+ * Races the lock-free tryAcquire and close paths of
+ * {@link ReservableTicketPool} against each other, against blocking acquires
+ * and against capacity changes, and checks that no ticket is lost, duplicated
+ * or handed out beyond the capacity.
+ */
+@MediumTest
+public class ReservableTicketPoolConcurrencyTest extends TestCase {
+    private static final int CAPACITY = 4;
+    private static final int THREADS = 4;
+    private static final int ITERATIONS = 20000;
+    private static final int RACE_ITERATIONS = 5000;
+    private static final long TIMEOUT_SECONDS = 30;
+
+    private FiniteTicketPool mParentPool;
+    private ReservableTicketPool mPool;
+
+    @Override
+    protected void setUp() throws Exception {
+        super.setUp();
+        mParentPool = new FiniteTicketPool(CAPACITY * 2);
+        mPool = new ReservableTicketPool(mParentPool);
+        mPool.reserveCapacity(CAPACITY);
+    }
+
+    public void testTryAcquireNeverExceedsCapacity() throws Exception {
+        final AtomicInteger outstanding = new AtomicInteger(0);
+        final AtomicInteger maxOutstanding = new AtomicInteger(0);
+        runConcurrently(THREADS, new Runnable() {
+            @Override
+            public void run() {
+                for (int i = 0; i < ITERATIONS; i++) {
+                    Ticket ticket = mPool.tryAcquire();
+                    if (ticket == null) {
+                        continue;
+                    }
+                    int held = outstanding.incrementAndGet();
+                    if (held > maxOutstanding.get()) {
+                        maxOutstanding.set(held);
+                    }
+                    outstanding.decrementAndGet();
+                    ticket.close();
+                }
+            }
+        });
+
+        assertTrue(maxOutstanding.get() <= CAPACITY);
+        assertAllTicketsReturned(CAPACITY);
+    }
+
+    public void testDoubleCloseReturnsTicketOnce() throws Exception {
+        runConcurrently(THREADS, new Runnable() {
+            @Override
+            public void run() {
+                for (int i = 0; i < ITERATIONS; i++) {
+                    Ticket ticket = mPool.tryAcquire();
+                    if (ticket != null) {
+                        ticket.close();
+                        ticket.close();
+                    }
+                }
+            }
+        });
+
+        assertAllTicketsReturned(CAPACITY);
+    }
+
+    public void testBlockingAcquireIsNotStarved() throws Exception {
+        final AtomicBoolean done = new AtomicBoolean(false);
+        final AtomicReference<Throwable> failure = new AtomicReference<>();
+        Thread blockingThread = new Thread() {
+            @Override
+            public void run() {
+                try {
+                    for (int i = 0; i < ITERATIONS / 100; i++) {
+                        // Needs every ticket at once, so it can only succeed
+                        // if the tryAcquire threads cannot barge in ahead.
+                        Collection<Ticket> tickets = mPool.acquire(CAPACITY);
+                        assertEquals(CAPACITY, tickets.size());
+                        for (Ticket ticket : tickets) {
+                            ticket.close();
+                        }
+                    }
+                } catch (Throwable t) {
+                    failure.set(t);
+                } finally {
+                    done.set(true);
+                }
+            }
+        };
+        blockingThread.start();
+        runConcurrently(THREADS, new Runnable() {
+            @Override
+            public void run() {
+                while (!done.get()) {
+                    Ticket ticket = mPool.tryAcquire();
+                    if (ticket != null) {
+                        ticket.close();
+                    }
+                }
+            }
+        });
+        blockingThread.join();
+
+        assertNull(failure.get());
+        assertAllTicketsReturned(CAPACITY);
+    }
+
+    public void testCapacityDecreaseReturnsHeldTicketsToParent() throws Exception {
+        final CountDownLatch started = new CountDownLatch(THREADS);
+        final AtomicBoolean done = new AtomicBoolean(false);
+        List<Thread> threads = new ArrayList<>();
+        for (int t = 0; t < THREADS; t++) {
+            Thread thread = new Thread() {
+                @Override
+                public void run() {
+                    started.countDown();
+                    while (!done.get()) {
+                        Ticket ticket = mPool.tryAcquire();
+                        if (ticket != null) {
+                            ticket.close();
+                        }
+                    }
+                }
+            };
+            threads.add(thread);
+            thread.start();
+        }
+        started.await();
+        for (int i = 0; i < ITERATIONS / 100; i++) {
+            mPool.releaseCapacity(CAPACITY / 2);
+            mPool.reserveCapacity(CAPACITY / 2);
+        }
+        mPool.releaseCapacity(CAPACITY / 2);
+        done.set(true);
+        for (Thread thread : threads) {
+            thread.join();
+        }
+
+        assertAllTicketsReturned(CAPACITY - CAPACITY / 2);
+    }
+
+    /**
+     * Like a JCStress test, races two actors many times over and checks that
+     * every outcome leaves the pool in a consistent state.
+     */
+    public void testRaceTryAcquireAgainstClose() throws Exception {
+        mPool.releaseCapacity(CAPACITY - 1);
+        final CyclicBarrier barrier = new CyclicBarrier(2);
+        final AtomicReference<Ticket> held = new AtomicReference<>(mPool.tryAcquire());
+        final AtomicReference<Ticket> acquired = new AtomicReference<>();
+        assertNotNull(held.get());
+        for (int i = 0; i < RACE_ITERATIONS; i++) {
+            runConcurrently(new Runnable() {
+                @Override
+                public void run() {
+                    await(barrier);
+                    held.get().close();
+                }
+            }, new Runnable() {
+                @Override
+                public void run() {
+                    await(barrier);
+                    acquired.set(mPool.tryAcquire());
+                }
+            });
+
+            // Either the ticket was acquired after it was closed, or not at
+            // all, in which case it must still be available.
+            if (acquired.get() == null) {
+                assertEquals(1, (int) mPool.getAvailableTicketCount().get());
+                acquired.set(mPool.tryAcquire());
+            }
+            assertNotNull(acquired.get());
+            assertEquals(0, (int) mPool.getAvailableTicketCount().get());
+            assertNull(mPool.tryAcquire());
+            held.set(acquired.get());
+        }
+        held.get().close();
+
+        assertAllTicketsReturned(1);
+    }
+
+    private void assertAllTicketsReturned(int capacity) throws Exception {
+        assertEquals(capacity, (int) mPool.getAvailableTicketCount().get());
+        assertEquals(CAPACITY * 2 - capacity, (int) mParentPool.getAvailableTicketCount().get());
+        Collection<Ticket> tickets = mPool.acquire(capacity);
+        assertEquals(capacity, tickets.size());
+        assertNull(mPool.tryAcquire());
+        for (Ticket ticket : tickets) {
+            ticket.close();
+        }
+        mPool.close();
+        assertEquals(CAPACITY * 2, (int) mParentPool.getAvailableTicketCount().get());
+    }
+
+    private static void await(CyclicBarrier barrier) {
+        try {
+            barrier.await(TIMEOUT_SECONDS, TimeUnit.SECONDS);
+        } catch (Exception e) {
+            throw new RuntimeException(e);
+        }
+    }
+
+    private static void runConcurrently(int threads, Runnable runnable) throws Exception {
+        Runnable[] runnables = new Runnable[threads];
+        for (int i = 0; i < threads; i++) {
+            runnables[i] = runnable;
+        }
+        runConcurrently(runnables);
+    }
+
+    private static void runConcurrently(Runnable... runnables) throws Exception {
+        final AtomicReference<Throwable> failure = new AtomicReference<>();
+        List<Thread> threads = new ArrayList<>();
+        for (final Runnable runnable : runnables) {
+            Thread thread = new Thread() {
+                @Override
+                public void run() {
+                    try {
+                        runnable.run();
+                    } catch (Throwable t) {
+                        failure.compareAndSet(null, t);
+                    }
+                }
+            };
+            threads.add(thread);
+            thread.start();
+        }
+        for (Thread thread : threads) {
+            thread.join(TimeUnit.SECONDS.toMillis(TIMEOUT_SECONDS));
+            assertFalse("Timed out", thread.isAlive());
+        }
+        if (failure.get() != null) {
+            throw new AssertionError(failure.get());
+        }
+    }
+}
@@ -0,0 +1,79 @@
+/*
+ * Copyright (C) 2015 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.camera.processing.imagebackend;
+
+import android.test.suitebuilder.annotation.SmallTest;
+
+import junit.framework.TestCase;
+
+import java.util.Collections;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+
+@SmallTest
+public class ImageLifecycleTracerTest extends TestCase {
+    private static final long STALL_THRESHOLD_MS = 20;
+    private static final long TIMEOUT_MS = 2000;
+
+    private ScheduledExecutorService mExecutor;
+    private ImageLifecycleTracer mTracer;
+
+    @Override
+    protected void setUp() throws Exception {
+        super.setUp();
+        mExecutor = Executors.newSingleThreadScheduledExecutor();
+        mTracer = new ImageLifecycleTracer(false, STALL_THRESHOLD_MS, mExecutor);
+    }
+
+    @Override
+    protected void tearDown() throws Exception {
+        mTracer.shutdown();
+        super.tearDown();
+    }
+
+    private static ImageToProcess createImage() {
+        return new ImageToProcess(null, null, null, null);
+    }
+
+    private void waitForStalls(int count) throws InterruptedException {
+        long deadline = System.currentTimeMillis() + TIMEOUT_MS;
+        while (mTracer.getNumberOfStalledImages() < count
+                && System.currentTimeMillis() < deadline) {
+            Thread.sleep(5);
+        }
+    }
+
+    public void testHeldImageIsReportedWithoutFurtherImages() throws Exception {
+        mTracer.onImageReceived(createImage(), Collections.<TaskImageContainer>emptySet());
+
+        waitForStalls(1);
+        assertEquals(1, mTracer.getNumberOfStalledImages());
+        assertEquals(0, mTracer.reportStalls());
+    }
+
+    public void testReleasedImageIsNotReported() throws Exception {
+        ImageToProcess released = createImage();
+        mTracer.onImageReceived(released, Collections.<TaskImageContainer>emptySet());
+        mTracer.onReferenceReleased(released, true);
+        mTracer.onImageReceived(createImage(), Collections.<TaskImageContainer>emptySet());
+
+        waitForStalls(1);
+        Thread.sleep(STALL_THRESHOLD_MS * 2);
+        assertEquals(1, mTracer.getNumberOfStalledImages());
+        assertEquals(1, mTracer.getNumberOfTracedImages());
+    }
+}
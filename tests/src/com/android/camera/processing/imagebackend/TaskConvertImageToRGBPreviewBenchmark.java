@@ -0,0 +1,250 @@
+/*
+ * Copyright (C) 2015 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.camera.processing.imagebackend;
+
+import android.graphics.ImageFormat;
+import android.graphics.Rect;
+import android.test.suitebuilder.annotation.LargeTest;
+import android.util.Log;
+
+import com.android.camera.app.OrientationManager;
+import com.android.camera.one.v2.camera2proxy.ImageProxy;
+import com.android.camera.processing.memory.IntArrayPool;
+import com.android.camera.util.Size;
+
+import junit.framework.TestCase;
+
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Random;
+import java.util.Set;
+import java.util.concurrent.Executor;
+
+/**
+ * Compares the pooled, bulk-read YuvToArgbKernel path of
+ * TaskConvertImageToRGBPreview against the per-pixel conversion loops on a
+ * 12 MP YUV_420_888 image, checking that both produce the same pixels and
+ * logging the time taken by each.
+ */
+@LargeTest
+public class TaskConvertImageToRGBPreviewBenchmark extends TestCase {
+    private static final String TAG = "RGBPreviewBenchmark";
+
+    private static final int WIDTH = 4000;
+    private static final int HEIGHT = 3000;
+    private static final int[] SUBSAMPLE_FACTORS = new int[] {2, 4, 10, 20, 25, 30};
+    private static final int WARMUP_ITERATIONS = 3;
+    private static final int TIMED_ITERATIONS = 10;
+
+    private FakeYuvImage mImage;
+    private ImageToProcess mImageToProcess;
+    private Rect mCrop;
+
+    @Override
+    protected void setUp() throws Exception {
+        super.setUp();
+        mImage = new FakeYuvImage(WIDTH, HEIGHT, new Random(42));
+        mCrop = new Rect(0, 0, WIDTH, HEIGHT);
+        mImageToProcess = new ImageToProcess(mImage,
+                OrientationManager.DeviceOrientation.CLOCKWISE_0, null, mCrop);
+    }
+
+    public void testMaintainAspect() {
+        for (int subsample : SUBSAMPLE_FACTORS) {
+            TaskConvertImageToRGBPreview task = createTask(
+                    TaskConvertImageToRGBPreview.ThumbnailShape.MAINTAIN_ASPECT_NO_INSET);
+            int[] expected = task.colorSubSampleFromYuvImage(mImage, mCrop, subsample, false);
+            int[] actual = new int[(WIDTH / subsample) * (HEIGHT / subsample)];
+            task.runSelectedConversion(mImage, mCrop, subsample, actual);
+            assertTrue("Subsample " + subsample, Arrays.equals(expected, actual));
+
+            benchmark("MAINTAIN_ASPECT_NO_INSET", task, subsample, false);
+        }
+    }
+
+    public void testCircularInset() {
+        for (int subsample : SUBSAMPLE_FACTORS) {
+            TaskConvertImageToRGBPreview task = createTask(
+                    TaskConvertImageToRGBPreview.ThumbnailShape.SQUARE_ASPECT_CIRCULAR_INSET);
+            int[] expected = task.colorInscribedDataCircleFromYuvImage(mImage, mCrop, subsample);
+            int[] actual = new int[expected.length];
+            task.runSelectedConversion(mImage, mCrop, subsample, actual);
+            assertTrue("Subsample " + subsample, Arrays.equals(expected, actual));
+
+            benchmark("SQUARE_ASPECT_CIRCULAR_INSET", task, subsample, true);
+        }
+    }
+
+    private void benchmark(String shape, TaskConvertImageToRGBPreview task, int subsample,
+            boolean circular) {
+        int r = task.inscribedCircleRadius(WIDTH / subsample, HEIGHT / subsample);
+        int[] pooled = new int[circular ? r * r * 4 : (WIDTH / subsample) * (HEIGHT / subsample)];
+
+        for (int i = 0; i < WARMUP_ITERATIONS; i++) {
+            runLegacy(task, subsample, circular);
+            task.runSelectedConversion(mImage, mCrop, subsample, pooled);
+        }
+
+        long legacyStart = System.nanoTime();
+        for (int i = 0; i < TIMED_ITERATIONS; i++) {
+            runLegacy(task, subsample, circular);
+        }
+        long legacyNs = (System.nanoTime() - legacyStart) / TIMED_ITERATIONS;
+
+        long kernelStart = System.nanoTime();
+        for (int i = 0; i < TIMED_ITERATIONS; i++) {
+            task.runSelectedConversion(mImage, mCrop, subsample, pooled);
+        }
+        long kernelNs = (System.nanoTime() - kernelStart) / TIMED_ITERATIONS;
+
+        Log.i(TAG, shape + " subsample=" + subsample + " legacy=" + legacyNs / 1000 + "us"
+                + " kernel=" + kernelNs / 1000 + "us");
+    }
+
+    private int[] runLegacy(TaskConvertImageToRGBPreview task, int subsample,
+            boolean circular) {
+        return circular ? task.colorInscribedDataCircleFromYuvImage(mImage, mCrop, subsample)
+                : task.colorSubSampleFromYuvImage(mImage, mCrop, subsample, false);
+    }
+
+    private TaskConvertImageToRGBPreview createTask(
+            TaskConvertImageToRGBPreview.ThumbnailShape shape) {
+        return new TaskConvertImageToRGBPreview(mImageToProcess, null, new InlineTaskManager(),
+                TaskImageContainer.ProcessingPriority.FAST, null, new Size(WIDTH, HEIGHT), shape,
+                new IntArrayPool(1)) {
+            @Override
+            public void logWrapper(String message) {
+                // Keep logcat out of the timings.
+            }
+        };
+    }
+
+    /**
+     * Runs helper tasks inline, so that band splitting is exercised without a
+     * backend.
+     */
+    private static class InlineTaskManager implements ImageTaskManager {
+        @Override
+        public boolean appendTasks(ImageToProcess img, Set<TaskImageContainer> tasks) {
+            for (TaskImageContainer task : tasks) {
+                task.run();
+            }
+            return true;
+        }
+
+        @Override
+        public boolean appendTasks(ImageToProcess img, TaskImageContainer task) {
+            task.run();
+            return true;
+        }
+
+        @Override
+        public void releaseSemaphoreReference(ImageToProcess img, Executor executor) {
+        }
+
+        @Override
+        public ImageProcessorProxyListener getProxyListener() {
+            return null;
+        }
+    }
+
+    /**
+     * Planar YUV_420_888 image backed by direct byte buffers.
+     */
+    private static class FakeYuvImage implements ImageProxy {
+        private final int mWidth;
+        private final int mHeight;
+        private final List<Plane> mPlanes = new ArrayList<>(3);
+
+        FakeYuvImage(int width, int height, Random random) {
+            mWidth = width;
+            mHeight = height;
+            mPlanes.add(new FakePlane(width, height, random));
+            mPlanes.add(new FakePlane(width / 2, height / 2, random));
+            mPlanes.add(new FakePlane(width / 2, height / 2, random));
+        }
+
+        @Override
+        public Rect getCropRect() {
+            return new Rect(0, 0, mWidth, mHeight);
+        }
+
+        @Override
+        public void setCropRect(Rect cropRect) {
+        }
+
+        @Override
+        public int getFormat() {
+            return ImageFormat.YUV_420_888;
+        }
+
+        @Override
+        public int getHeight() {
+            return mHeight;
+        }
+
+        @Override
+        public List<Plane> getPlanes() {
+            return mPlanes;
+        }
+
+        @Override
+        public long getTimestamp() {
+            return 0;
+        }
+
+        @Override
+        public int getWidth() {
+            return mWidth;
+        }
+
+        @Override
+        public void close() {
+        }
+    }
+
+    private static class FakePlane implements ImageProxy.Plane {
+        private final int mRowStride;
+        private final ByteBuffer mBuffer;
+
+        FakePlane(int width, int height, Random random) {
+            mRowStride = width;
+            byte[] data = new byte[width * height];
+            random.nextBytes(data);
+            mBuffer = ByteBuffer.allocateDirect(data.length);
+            mBuffer.put(data);
+            mBuffer.rewind();
+        }
+
+        @Override
+        public int getRowStride() {
+            return mRowStride;
+        }
+
+        @Override
+        public int getPixelStride() {
+            return 1;
+        }
+
+        @Override
+        public ByteBuffer getBuffer() {
+            return mBuffer;
+        }
+    }
+}
@@ -0,0 +1,343 @@
+/*
+ * Copyright (C) 2015 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.camera.processing.imagebackend;
+
+import android.graphics.ImageFormat;
+import android.graphics.Rect;
+import android.os.Debug;
+import android.test.suitebuilder.annotation.SmallTest;
+import android.util.Log;
+
+import com.android.camera.app.OrientationManager;
+import com.android.camera.exif.ExifInterface;
+import com.android.camera.one.v2.camera2proxy.ImageProxy;
+import com.android.camera.processing.memory.SimpleLruResourcePool;
+import com.android.camera.session.CaptureSession;
+import com.android.camera.stats.CaptureSessionStatsCollector;
+import com.google.common.base.Optional;
+
+import junit.framework.TestCase;
+
+import java.lang.reflect.InvocationHandler;
+import java.lang.reflect.Method;
+import java.lang.reflect.Proxy;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.Executor;
+
+/**
+ * Checks that the pooled NV21 path of TaskJpegEncode produces the same JPEG
+ * as the allocating one, hands it downstream without copying, and allocates
+ * no per-image buffers once its pool is warm.
+ */
+@SmallTest
+public class TaskJpegEncodeAllocationTest extends TestCase {
+    private static final String TAG = "JpegEncodeAllocTest";
+
+    private static final int WIDTH = 640;
+    private static final int HEIGHT = 480;
+    private static final int ITERATIONS = 10;
+    /** The quality of the allocating path. */
+    private static final int JPEG_QUALITY = 90;
+
+    private FakeYuvImage mImage;
+    private CountingByteArrayPool mPool;
+    private CapturingProxyListener mListener;
+    private InlineTaskManager mTaskManager;
+    private CaptureSession mSession;
+    private byte[] mSavedJpeg;
+
+    @Override
+    protected void setUp() throws Exception {
+        super.setUp();
+        mImage = new FakeYuvImage(WIDTH, HEIGHT);
+        mPool = new CountingByteArrayPool();
+        mListener = new CapturingProxyListener();
+        mTaskManager = new InlineTaskManager(mListener);
+        mSession = createSession();
+    }
+
+    public void testPooledJpegMatchesAllocatingPath() {
+        TaskJpegEncode task = createTask();
+        int[] strides = new int[] {WIDTH, WIDTH};
+        byte[] expected = task.convertNv21toJpeg(task.convertYUV420ImageToPackedNV21(mImage),
+                WIDTH, HEIGHT, strides);
+
+        runChainedTask();
+
+        assertEquals(ByteBuffer.wrap(expected), ByteBuffer.wrap(mListener.mPayloadCopy));
+    }
+
+    public void testSavesCompressedJpeg() {
+        runChainedTask();
+
+        assertEquals(ByteBuffer.wrap(mListener.mPayloadCopy), ByteBuffer.wrap(mSavedJpeg));
+    }
+
+    public void testPayloadIsBackedByPooledArray() {
+        runChainedTask();
+
+        assertTrue(mPool.mCreated.contains(mListener.mPayloadArray));
+    }
+
+    public void testPooledArraysAreReused() {
+        for (int i = 0; i < ITERATIONS; i++) {
+            runChainedTask();
+        }
+
+        // One array for the NV21 copy, and one for the JPEG.
+        assertEquals(2, mPool.mCreated.size());
+    }
+
+    public void testAllocatesLessThanAllocatingPath() {
+        TaskJpegEncode task = createTask();
+        int[] strides = new int[] {WIDTH, WIDTH};
+        // Warm up the pool, and the code paths.
+        task.convertNv21toJpeg(task.convertYUV420ImageToPackedNV21(mImage), WIDTH, HEIGHT,
+                strides);
+        runChainedTask();
+
+        Debug.resetThreadAllocCount();
+        Debug.startAllocCounting();
+        for (int i = 0; i < ITERATIONS; i++) {
+            task.convertNv21toJpeg(task.convertYUV420ImageToPackedNV21(mImage), WIDTH, HEIGHT,
+                    strides);
+        }
+        Debug.stopAllocCounting();
+        long allocatingBytes = Debug.getThreadAllocSize();
+
+        Debug.resetThreadAllocCount();
+        Debug.startAllocCounting();
+        for (int i = 0; i < ITERATIONS; i++) {
+            runChainedTask();
+        }
+        Debug.stopAllocCounting();
+        long pooledBytes = Debug.getThreadAllocSize();
+
+        Log.i(TAG, ITERATIONS + " images: allocating path " + allocatingBytes / ITERATIONS
+                + " bytes/image, pooled path " + pooledBytes / ITERATIONS + " bytes/image");
+        // The allocating path copies every image at least once.
+        assertTrue(allocatingBytes >= (long) ITERATIONS * WIDTH * HEIGHT * 3 / 2);
+        // The pooled path allocates less than a single NV21 image in total,
+        // including the copy of each JPEG kept by the session.
+        assertTrue(pooledBytes < WIDTH * HEIGHT * 3 / 2);
+    }
+
+    private TaskJpegEncode createTask() {
+        return new TaskJpegEncode(new ImageToProcess(mImage,
+                OrientationManager.DeviceOrientation.CLOCKWISE_0, null,
+                new Rect(0, 0, WIDTH, HEIGHT)), null, mTaskManager,
+                TaskImageContainer.ProcessingPriority.SLOW, null) {
+            @Override
+            public void run() {
+            }
+        };
+    }
+
+    private void runChainedTask() {
+        new TaskChainedCompressImageToJpeg(new ImageToProcess(mImage,
+                OrientationManager.DeviceOrientation.CLOCKWISE_0, null,
+                new Rect(0, 0, WIDTH, HEIGHT)), null, mTaskManager, mSession, mPool) {
+            @Override
+            public void onStart(long id, TaskImage input, TaskImage result,
+                    TaskInfo.Destination aDestination) {
+            }
+
+            @Override
+            protected int getJpegCompressionQuality() {
+                return JPEG_QUALITY;
+            }
+
+            @Override
+            protected void saveJpeg(byte[] jpeg, TaskImage inputImage, TaskImage resultImage,
+                    Optional<ExifInterface> exifData) {
+                mSavedJpeg = jpeg;
+            }
+        }.run();
+    }
+
+    /**
+     * @return A session which only provides a stats collector.
+     */
+    private static CaptureSession createSession() {
+        final CaptureSessionStatsCollector collector = new CaptureSessionStatsCollector(null);
+        return (CaptureSession) Proxy.newProxyInstance(CaptureSession.class.getClassLoader(),
+                new Class<?>[] { CaptureSession.class }, new InvocationHandler() {
+                    @Override
+                    public Object invoke(Object proxy, Method method, Object[] args) {
+                        return "getCollector".equals(method.getName()) ? collector : null;
+                    }
+                });
+    }
+
+    /**
+     * Byte array pool which remembers the arrays it had to create.
+     */
+    private static class CountingByteArrayPool extends SimpleLruResourcePool<Integer, byte[]> {
+        final List<byte[]> mCreated = new ArrayList<>();
+
+        CountingByteArrayPool() {
+            super(4);
+        }
+
+        @Override
+        protected byte[] create(Integer length) {
+            byte[] array = new byte[length];
+            mCreated.add(array);
+            return array;
+        }
+    }
+
+    /**
+     * Keeps a copy of the last compressed payload, and the array it was
+     * backed by.
+     */
+    private static class CapturingProxyListener extends ImageProcessorProxyListener {
+        byte[] mPayloadCopy;
+        byte[] mPayloadArray;
+
+        @Override
+        public void onResultCompressed(TaskImageContainer.TaskInfo job,
+                TaskImageContainer.CompressedPayload payload) {
+            mPayloadCopy = payload.getRetainableData();
+            mPayloadArray = payload.data.array();
+        }
+    }
+
+    /**
+     * Runs chained tasks inline.
+     */
+    private static class InlineTaskManager implements ImageTaskManager {
+        private final ImageProcessorProxyListener mListener;
+
+        InlineTaskManager(ImageProcessorProxyListener listener) {
+            mListener = listener;
+        }
+
+        @Override
+        public boolean appendTasks(ImageToProcess img, Set<TaskImageContainer> tasks) {
+            for (TaskImageContainer task : tasks) {
+                task.run();
+            }
+            return true;
+        }
+
+        @Override
+        public boolean appendTasks(ImageToProcess img, TaskImageContainer task) {
+            task.run();
+            return true;
+        }
+
+        @Override
+        public void releaseSemaphoreReference(ImageToProcess img, Executor executor) {
+        }
+
+        @Override
+        public ImageProcessorProxyListener getProxyListener() {
+            return mListener;
+        }
+    }
+
+    /**
+     * Planar YUV_420_888 image of smooth gradients, backed by direct byte
+     * buffers.
+     */
+    private static class FakeYuvImage implements ImageProxy {
+        private final int mWidth;
+        private final int mHeight;
+        private final List<Plane> mPlanes = new ArrayList<>(3);
+
+        FakeYuvImage(int width, int height) {
+            mWidth = width;
+            mHeight = height;
+            mPlanes.add(new FakePlane(width, height));
+            mPlanes.add(new FakePlane(width / 2, height / 2));
+            mPlanes.add(new FakePlane(width / 2, height / 2));
+        }
+
+        @Override
+        public Rect getCropRect() {
+            return new Rect(0, 0, mWidth, mHeight);
+        }
+
+        @Override
+        public void setCropRect(Rect cropRect) {
+        }
+
+        @Override
+        public int getFormat() {
+            return ImageFormat.YUV_420_888;
+        }
+
+        @Override
+        public int getHeight() {
+            return mHeight;
+        }
+
+        @Override
+        public List<Plane> getPlanes() {
+            return mPlanes;
+        }
+
+        @Override
+        public long getTimestamp() {
+            return 0;
+        }
+
+        @Override
+        public int getWidth() {
+            return mWidth;
+        }
+
+        @Override
+        public void close() {
+        }
+    }
+
+    private static class FakePlane implements ImageProxy.Plane {
+        private final int mRowStride;
+        private final ByteBuffer mBuffer;
+
+        FakePlane(int width, int height) {
+            mRowStride = width;
+            mBuffer = ByteBuffer.allocateDirect(width * height);
+            for (int y = 0; y < height; y++) {
+                for (int x = 0; x < width; x++) {
+                    mBuffer.put((byte) ((x + y) * 255 / (width + height)));
+                }
+            }
+            mBuffer.rewind();
+        }
+
+        @Override
+        public int getRowStride() {
+            return mRowStride;
+        }
+
+        @Override
+        public int getPixelStride() {
+            return 1;
+        }
+
+        @Override
+        public ByteBuffer getBuffer() {
+            return mBuffer;
+        }
+    }
+}
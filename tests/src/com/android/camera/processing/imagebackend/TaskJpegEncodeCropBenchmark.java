@@ -0,0 +1,244 @@
+/*
+ * Copyright (C) 2015 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.camera.processing.imagebackend;
+
+import android.graphics.Bitmap;
+import android.graphics.BitmapFactory;
+import android.graphics.Canvas;
+import android.graphics.Color;
+import android.graphics.ImageFormat;
+import android.graphics.LinearGradient;
+import android.graphics.Paint;
+import android.graphics.Rect;
+import android.graphics.Shader;
+import android.os.Debug;
+import android.test.suitebuilder.annotation.LargeTest;
+import android.util.Log;
+
+import com.android.camera.app.OrientationManager;
+import com.android.camera.one.v2.camera2proxy.ImageProxy;
+
+import junit.framework.TestCase;
+
+import java.io.ByteArrayOutputStream;
+import java.util.Collections;
+import java.util.List;
+
+/**
+ * Compares the crop paths of TaskJpegEncode on a 12 MP JPEG: decoding the
+ * whole image, decoding only the crop region, and the lossless crop of
+ * MCU-aligned rectangles. Checks the size of each result, and logs the time
+ * taken and the peak memory used by each.
+ */
+@LargeTest
+public class TaskJpegEncodeCropBenchmark extends TestCase {
+    private static final String TAG = "JpegCropBenchmark";
+
+    private static final int WIDTH = 4000;
+    private static final int HEIGHT = 3000;
+    private static final int QUALITY = 95;
+    private static final int ITERATIONS = 3;
+    /** A 2x digital zoom crop whose top left corner is on the MCU grid. */
+    private static final Rect ALIGNED_CROP = new Rect(992, 752, 2992, 2252);
+    /** A 2x digital zoom crop off the MCU grid. */
+    private static final Rect UNALIGNED_CROP = new Rect(1001, 751, 3001, 2251);
+
+    /** Runs one of the crop paths. */
+    private interface CropPath {
+        public byte[] crop(byte[] jpeg, Rect crop);
+    }
+
+    private byte[] mJpeg;
+    private TaskJpegEncode mTask;
+
+    @Override
+    protected void setUp() throws Exception {
+        super.setUp();
+        Bitmap bitmap = Bitmap.createBitmap(WIDTH, HEIGHT, Bitmap.Config.ARGB_8888);
+        Paint paint = new Paint();
+        paint.setShader(new LinearGradient(0, 0, WIDTH, HEIGHT, Color.BLUE, Color.YELLOW,
+                Shader.TileMode.CLAMP));
+        new Canvas(bitmap).drawRect(0, 0, WIDTH, HEIGHT, paint);
+        ByteArrayOutputStream stream = new ByteArrayOutputStream();
+        bitmap.compress(Bitmap.CompressFormat.JPEG, QUALITY, stream);
+        bitmap.recycle();
+        mJpeg = stream.toByteArray();
+
+        ImageToProcess image = new ImageToProcess(new JpegImage(),
+                OrientationManager.DeviceOrientation.CLOCKWISE_0, null, null);
+        mTask = new TaskJpegEncode(image, null, null, TaskImageContainer.ProcessingPriority.SLOW,
+                null) {
+            @Override
+            public void run() {
+            }
+        };
+    }
+
+    public void testLosslessCropOnlyWhenAligned() {
+        byte[] cropped = mTask.cropJpegLossless(mJpeg, ALIGNED_CROP);
+        assertNotNull(cropped);
+        assertSize(ALIGNED_CROP, cropped);
+        assertNull(mTask.cropJpegLossless(mJpeg, UNALIGNED_CROP));
+    }
+
+    public void testBenchmark() {
+        CropPath whole = new CropPath() {
+            @Override
+            public byte[] crop(byte[] jpeg, Rect crop) {
+                return mTask.decompressCropAndRecompressWholeJpegData(jpeg, crop, QUALITY);
+            }
+        };
+        CropPath region = new CropPath() {
+            @Override
+            public byte[] crop(byte[] jpeg, Rect crop) {
+                return mTask.decompressRegionAndRecompressJpegData(jpeg, crop, QUALITY);
+            }
+        };
+        CropPath lossless = new CropPath() {
+            @Override
+            public byte[] crop(byte[] jpeg, Rect crop) {
+                return mTask.cropJpegLossless(jpeg, crop);
+            }
+        };
+
+        long[] wholeStats = benchmark("whole image decode", whole, UNALIGNED_CROP);
+        long[] regionStats = benchmark("region decode", region, UNALIGNED_CROP);
+        long[] losslessStats = benchmark("lossless", lossless, ALIGNED_CROP);
+
+        // The region decode never holds the full-resolution bitmap, which is
+        // four times the size of the crop.
+        assertTrue(regionStats[1] < wholeStats[1]);
+        assertTrue(losslessStats[0] < regionStats[0]);
+    }
+
+    /**
+     * @return The average time taken in ns, and the peak memory used in
+     *         bytes.
+     */
+    private long[] benchmark(String name, CropPath path, Rect crop) {
+        // Warm up.
+        assertSize(crop, path.crop(mJpeg, crop));
+
+        long totalNs = 0;
+        long peakBytes = 0;
+        for (int i = 0; i < ITERATIONS; i++) {
+            Runtime.getRuntime().gc();
+            MemorySampler sampler = new MemorySampler();
+            sampler.start();
+            long start = System.nanoTime();
+            byte[] result = path.crop(mJpeg, crop);
+            totalNs += System.nanoTime() - start;
+            peakBytes = Math.max(peakBytes, sampler.finish());
+            assertSize(crop, result);
+        }
+        Log.i(TAG, name + ": " + totalNs / ITERATIONS / 1000000 + "ms, peak memory "
+                + peakBytes / 1024 / 1024 + "MB");
+        return new long[] {
+                totalNs / ITERATIONS, peakBytes
+        };
+    }
+
+    private static void assertSize(Rect crop, byte[] jpeg) {
+        BitmapFactory.Options options = new BitmapFactory.Options();
+        options.inJustDecodeBounds = true;
+        BitmapFactory.decodeByteArray(jpeg, 0, jpeg.length, options);
+        assertEquals(crop.width(), options.outWidth);
+        assertEquals(crop.height(), options.outHeight);
+    }
+
+    /**
+     * Stands in for the image a crop task is created for; the crop paths
+     * only use the JPEG bytes.
+     */
+    private static class JpegImage implements ImageProxy {
+        @Override
+        public Rect getCropRect() {
+            return new Rect(0, 0, WIDTH, HEIGHT);
+        }
+
+        @Override
+        public void setCropRect(Rect cropRect) {
+        }
+
+        @Override
+        public int getFormat() {
+            return ImageFormat.JPEG;
+        }
+
+        @Override
+        public int getHeight() {
+            return HEIGHT;
+        }
+
+        @Override
+        public List<Plane> getPlanes() {
+            return Collections.emptyList();
+        }
+
+        @Override
+        public long getTimestamp() {
+            return 0;
+        }
+
+        @Override
+        public int getWidth() {
+            return WIDTH;
+        }
+
+        @Override
+        public void close() {
+        }
+    }
+
+    /**
+     * Polls the Java and native heap usage on a separate thread, and keeps
+     * the highest value seen above the usage at start.
+     */
+    private static class MemorySampler extends Thread {
+        private final long mBaselineBytes = usedBytes();
+        private volatile boolean mRunning = true;
+        private long mPeakBytes = 0;
+
+        @Override
+        public void run() {
+            while (mRunning) {
+                mPeakBytes = Math.max(mPeakBytes, usedBytes() - mBaselineBytes);
+                try {
+                    Thread.sleep(1);
+                } catch (InterruptedException e) {
+                    return;
+                }
+            }
+        }
+
+        long finish() {
+            mRunning = false;
+            try {
+                join();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+            return mPeakBytes;
+        }
+
+        private static long usedBytes() {
+            Runtime runtime = Runtime.getRuntime();
+            return runtime.totalMemory() - runtime.freeMemory()
+                    + Debug.getNativeHeapAllocatedSize();
+        }
+    }
+}
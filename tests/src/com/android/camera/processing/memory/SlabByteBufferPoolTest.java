@@ -0,0 +1,175 @@
+/*
+ * Copyright (C) 2015 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.camera.processing.memory;
+
+import android.test.suitebuilder.annotation.SmallTest;
+
+import com.android.camera.processing.memory.LruResourcePool.Resource;
+
+import junit.framework.TestCase;
+
+import java.nio.ByteBuffer;
+
+@SmallTest
+public class SlabByteBufferPoolTest extends TestCase {
+    private static final int ARENA_SIZE = 64 * 1024;
+
+    public void testSizeClassesRoundUpByAtMostAQuarter() {
+        assertEquals(0, SlabByteBufferPool.sizeClassOf(1));
+        assertEquals(0, SlabByteBufferPool.sizeClassOf(4096));
+        assertEquals(4096, SlabByteBufferPool.classSize(0));
+        assertEquals(1, SlabByteBufferPool.sizeClassOf(4097));
+        assertEquals(5120, SlabByteBufferPool.classSize(1));
+        assertEquals(4, SlabByteBufferPool.sizeClassOf(8192));
+        assertEquals(8192, SlabByteBufferPool.classSize(4));
+        assertEquals(5, SlabByteBufferPool.sizeClassOf(8193));
+        assertEquals(10240, SlabByteBufferPool.classSize(5));
+
+        int previousClass = 0;
+        for (int bytes = 4096; bytes < 4 * 1024 * 1024; bytes += 997) {
+            int sizeClass = SlabByteBufferPool.sizeClassOf(bytes);
+            int classSize = SlabByteBufferPool.classSize(sizeClass);
+            assertTrue("Class of " + bytes + " too small", classSize >= bytes);
+            assertTrue("Class of " + bytes + " too large", classSize <= bytes * 5L / 4);
+            assertTrue(sizeClass >= previousClass);
+            previousClass = sizeClass;
+        }
+    }
+
+    public void testClassSizesMapToTheirOwnClass() {
+        for (int sizeClass = 0; sizeClass < 40; sizeClass++) {
+            int classSize = SlabByteBufferPool.classSize(sizeClass);
+            assertEquals(sizeClass, SlabByteBufferPool.sizeClassOf(classSize));
+            assertEquals(sizeClass + 1, SlabByteBufferPool.sizeClassOf(classSize + 1));
+        }
+    }
+
+    public void testBufferHasTheRequestedLimitAndClassCapacity() {
+        SlabByteBufferPool pool = new SlabByteBufferPool(4 * ARENA_SIZE, ARENA_SIZE);
+
+        Resource<ByteBuffer> resource = pool.acquire(5000);
+        ByteBuffer buffer = resource.get();
+        assertTrue(buffer.isDirect());
+        assertEquals(0, buffer.position());
+        assertEquals(5000, buffer.limit());
+        assertEquals(5120, buffer.capacity());
+        assertEquals(ARENA_SIZE, pool.getReservedBytes());
+        resource.close();
+    }
+
+    public void testReleasedBufferIsReusedForTheSameClass() {
+        SlabByteBufferPool pool = new SlabByteBufferPool(4 * ARENA_SIZE, ARENA_SIZE);
+
+        Resource<ByteBuffer> first = pool.acquire(5000);
+        ByteBuffer buffer = first.get();
+        buffer.position(100);
+        first.close();
+        assertNull(first.get());
+
+        Resource<ByteBuffer> second = pool.acquire(4500);
+        assertSame(buffer, second.get());
+        assertEquals(0, second.get().position());
+        assertEquals(4500, second.get().limit());
+        assertEquals(1, pool.getHitCount());
+        assertEquals(1, pool.getMissCount());
+        assertEquals(ARENA_SIZE, pool.getReservedBytes());
+        second.close();
+    }
+
+    public void testOtherClassIsCarvedFromTheSameArena() {
+        SlabByteBufferPool pool = new SlabByteBufferPool(4 * ARENA_SIZE, ARENA_SIZE);
+
+        Resource<ByteBuffer> small = pool.acquire(4096);
+        ByteBuffer smallBuffer = small.get();
+        small.close();
+        Resource<ByteBuffer> large = pool.acquire(8192);
+        assertNotSame(smallBuffer, large.get());
+        assertEquals(0, pool.getHitCount());
+        assertEquals(2, pool.getMissCount());
+        assertEquals(ARENA_SIZE, pool.getReservedBytes());
+        large.close();
+    }
+
+    public void testClosingTwiceReleasesOnce() {
+        SlabByteBufferPool pool = new SlabByteBufferPool(4 * ARENA_SIZE, ARENA_SIZE);
+
+        Resource<ByteBuffer> resource = pool.acquire(4096);
+        resource.close();
+        resource.close();
+        assertNull(resource.get());
+
+        Resource<ByteBuffer> first = pool.acquire(4096);
+        Resource<ByteBuffer> second = pool.acquire(4096);
+        assertNotSame(first.get(), second.get());
+        assertEquals(1, pool.getHitCount());
+        first.close();
+        second.close();
+    }
+
+    public void testRequestLargerThanAnArenaGetsItsOwnArena() {
+        SlabByteBufferPool pool = new SlabByteBufferPool(4 * ARENA_SIZE, ARENA_SIZE);
+
+        Resource<ByteBuffer> resource = pool.acquire(ARENA_SIZE + 1);
+        int classSize = SlabByteBufferPool.classSize(
+                SlabByteBufferPool.sizeClassOf(ARENA_SIZE + 1));
+        assertEquals(classSize, resource.get().capacity());
+        assertEquals(classSize, pool.getReservedBytes());
+        assertEquals(0, pool.getOverBudgetCount());
+        resource.close();
+    }
+
+    public void testOverBudgetRequestGetsOneOffBuffer() {
+        SlabByteBufferPool pool = new SlabByteBufferPool(ARENA_SIZE, ARENA_SIZE);
+
+        Resource<ByteBuffer> held = pool.acquire(ARENA_SIZE / 2);
+        Resource<ByteBuffer> oversize = pool.acquire(ARENA_SIZE);
+        assertEquals(1, pool.getOverBudgetCount());
+        assertTrue(oversize.get().isDirect());
+        assertEquals(ARENA_SIZE, oversize.get().capacity());
+        assertEquals(ARENA_SIZE, oversize.get().limit());
+        assertEquals(ARENA_SIZE, pool.getReservedBytes());
+
+        // The one-off buffer is not retained by the pool.
+        ByteBuffer oneOff = oversize.get();
+        oversize.close();
+        assertEquals(ARENA_SIZE, pool.getReservedBytes());
+        Resource<ByteBuffer> again = pool.acquire(ARENA_SIZE);
+        assertNotSame(oneOff, again.get());
+        assertEquals(0, pool.getHitCount());
+        assertEquals(2, pool.getOverBudgetCount());
+        again.close();
+        held.close();
+    }
+
+    public void testIdleArenaIsReclaimedBeforeFallingBack() {
+        SlabByteBufferPool pool = new SlabByteBufferPool(ARENA_SIZE, ARENA_SIZE);
+
+        Resource<ByteBuffer> half = pool.acquire(ARENA_SIZE / 2);
+        ByteBuffer halfBuffer = half.get();
+        half.close();
+        Resource<ByteBuffer> full = pool.acquire(ARENA_SIZE);
+        assertEquals(0, pool.getOverBudgetCount());
+        assertEquals(ARENA_SIZE, full.get().capacity());
+        assertEquals(ARENA_SIZE, pool.getReservedBytes());
+        full.close();
+
+        // The reclaimed slab is no longer handed out.
+        Resource<ByteBuffer> halfAgain = pool.acquire(ARENA_SIZE / 2);
+        assertNotSame(halfBuffer, halfAgain.get());
+        halfAgain.close();
+    }
+}
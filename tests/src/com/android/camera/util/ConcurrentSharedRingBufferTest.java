@@ -0,0 +1,365 @@
+/*
+ * Copyright (C) 2015 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.camera.util;
+
+import android.test.suitebuilder.annotation.LargeTest;
+import android.util.Log;
+import android.util.Pair;
+
+import junit.framework.TestCase;
+
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReference;
+
+/**
+ * Stress tests ConcurrentSharedRingBuffer with concurrent swaps, pins and
+ * releases, and measures the cost of a swap/pin/release cycle at the frame
+ * rates of a ZSL stream.
+ */
+@LargeTest
+public class ConcurrentSharedRingBufferTest extends TestCase {
+    private static final String TAG = "RingBufferTest";
+
+    private static final int CAPACITY = 8;
+    private static final int NUM_PINNERS = 4;
+    private static final int NUM_FRAMES = 20000;
+    private static final int BENCHMARK_FRAMES = 300;
+    private static final int CLOSE_ROUNDS = 200;
+
+    /** Element which records how it was put into the buffer. */
+    private static class Frame {
+        long key;
+        int updates;
+        volatile boolean closed;
+        /** Pins held by the test, to check close() against. */
+        final AtomicInteger pins = new AtomicInteger(0);
+    }
+
+    private static class FrameSwapper implements ConcurrentSharedRingBuffer.SwapTask<Frame> {
+        private final long mKey;
+
+        FrameSwapper(long key) {
+            mKey = key;
+        }
+
+        @Override
+        public Frame create() {
+            Frame frame = new Frame();
+            frame.key = mKey;
+            return frame;
+        }
+
+        @Override
+        public Frame swap(Frame oldElement) {
+            oldElement.key = mKey;
+            oldElement.updates = 0;
+            return oldElement;
+        }
+
+        @Override
+        public void update(Frame existingElement) {
+            existingElement.updates++;
+        }
+
+        @Override
+        public long getSwapKey() {
+            return -1;
+        }
+    }
+
+    public void testSwapPinRelease() {
+        ConcurrentSharedRingBuffer<Frame> buffer = new ConcurrentSharedRingBuffer<Frame>(2);
+        assertTrue(buffer.swapLeast(1, new FrameSwapper(1)));
+        assertTrue(buffer.swapLeast(2, new FrameSwapper(2)));
+
+        Pair<Long, Frame> pinned = buffer.tryPinGreatest();
+        assertNotNull(pinned);
+        assertEquals(2L, (long) pinned.first);
+        assertEquals(2L, pinned.second.key);
+        // One element must always stay unpinned.
+        assertNull(buffer.tryPin(1));
+
+        // The unpinned element is the only one which may be swapped out.
+        assertTrue(buffer.swapLeast(3, new FrameSwapper(3)));
+        assertNull(buffer.tryPin(1));
+        assertNotNull(buffer.tryGetPinned(2));
+        assertNull(buffer.tryGetPinned(3));
+
+        // Swapping an existing key updates it in place.
+        assertTrue(buffer.swapLeast(3, new FrameSwapper(3)));
+
+        buffer.release(2);
+        Pair<Long, Frame> greatest = buffer.tryPinGreatest();
+        assertNotNull(greatest);
+        assertEquals(3L, (long) greatest.first);
+        assertEquals(1, greatest.second.updates);
+        buffer.release(3);
+
+        try {
+            buffer.release(3);
+            fail("Releasing an unpinned element must throw.");
+        } catch (IllegalArgumentException e) {
+            // Expected.
+        }
+    }
+
+    public void testConcurrentSwapsAndPins() throws Exception {
+        final ConcurrentSharedRingBuffer<Frame> buffer =
+                new ConcurrentSharedRingBuffer<Frame>(CAPACITY);
+        final AtomicLong nextKey = new AtomicLong(0);
+        final AtomicInteger pins = new AtomicInteger(0);
+        final AtomicReference<Throwable> failure = new AtomicReference<Throwable>();
+        final CountDownLatch start = new CountDownLatch(1);
+        final CountDownLatch done = new CountDownLatch(2 + NUM_PINNERS);
+
+        // Two producers share the key sequence, and each key is also swapped
+        // in a second time, as image and metadata arrive on separate threads.
+        for (int i = 0; i < 2; i++) {
+            new Thread() {
+                @Override
+                public void run() {
+                    try {
+                        start.await();
+                        long key;
+                        while ((key = nextKey.getAndIncrement()) < NUM_FRAMES) {
+                            buffer.swapLeast(key, new FrameSwapper(key));
+                            buffer.swapLeast(key, new FrameSwapper(key));
+                        }
+                    } catch (Throwable t) {
+                        failure.compareAndSet(null, t);
+                    } finally {
+                        done.countDown();
+                    }
+                }
+            }.start();
+        }
+
+        for (int i = 0; i < NUM_PINNERS; i++) {
+            new Thread() {
+                @Override
+                public void run() {
+                    try {
+                        start.await();
+                        while (nextKey.get() < NUM_FRAMES || pins.get() == 0) {
+                            Pair<Long, Frame> pinned = buffer.tryPinGreatest();
+                            if (pinned == null) {
+                                Thread.yield();
+                                continue;
+                            }
+                            // The element must not be swapped out while pinned.
+                            assertEquals((long) pinned.first, pinned.second.key);
+                            Thread.yield();
+                            assertEquals((long) pinned.first, pinned.second.key);
+                            buffer.release(pinned.first);
+                            pins.incrementAndGet();
+                        }
+                    } catch (Throwable t) {
+                        failure.compareAndSet(null, t);
+                    } finally {
+                        done.countDown();
+                    }
+                }
+            }.start();
+        }
+
+        start.countDown();
+        assertTrue(done.await(60, TimeUnit.SECONDS));
+        if (failure.get() != null) {
+            throw new AssertionError(failure.get());
+        }
+        assertTrue(pins.get() > 0);
+
+        // Every key must be present at most once, with at most one update.
+        // Pinning is by key, so a duplicated key would hide one of the
+        // elements and fewer than CAPACITY - 1 could be pinned.
+        final long[] seen = new long[CAPACITY];
+        int numSeen = 0;
+        while (true) {
+            final int numSeenSoFar = numSeen;
+            Pair<Long, Frame> pinned = buffer.tryPinGreatestSelected(
+                    new ConcurrentSharedRingBuffer.Selector<Frame>() {
+                        @Override
+                        public boolean select(Frame element) {
+                            for (int i = 0; i < numSeenSoFar; i++) {
+                                if (seen[i] == element.key) {
+                                    return false;
+                                }
+                            }
+                            return true;
+                        }
+                    });
+            if (pinned == null) {
+                break;
+            }
+            assertTrue(pinned.second.updates <= 1);
+            // Leave it pinned so that the next call finds another element.
+            seen[numSeen++] = pinned.first;
+        }
+        assertEquals(CAPACITY - 1, numSeen);
+        buffer.releaseAll();
+
+        final AtomicInteger closed = new AtomicInteger(0);
+        buffer.close(new Task<Frame>() {
+            @Override
+            public void run(Frame element) {
+                assertFalse(element.closed);
+                element.closed = true;
+                closed.incrementAndGet();
+            }
+        });
+        assertEquals(CAPACITY, closed.get());
+        assertFalse(buffer.swapLeast(NUM_FRAMES, new FrameSwapper(NUM_FRAMES)));
+    }
+
+    public void testCloseWaitsForPins() throws Exception {
+        final ConcurrentSharedRingBuffer<Frame> buffer = new ConcurrentSharedRingBuffer<Frame>(2);
+        buffer.swapLeast(1, new FrameSwapper(1));
+        buffer.swapLeast(2, new FrameSwapper(2));
+        assertNotNull(buffer.tryPin(1));
+
+        final CountDownLatch closed = new CountDownLatch(1);
+        new Thread() {
+            @Override
+            public void run() {
+                try {
+                    buffer.close(new Task<Frame>() {
+                        @Override
+                        public void run(Frame element) {
+                        }
+                    });
+                    closed.countDown();
+                } catch (InterruptedException e) {
+                    // Test fails on timeout below.
+                }
+            }
+        }.start();
+
+        assertFalse(closed.await(100, TimeUnit.MILLISECONDS));
+        assertNull(buffer.tryPin(2));
+        buffer.release(1);
+        assertTrue(closed.await(5, TimeUnit.SECONDS));
+
+        buffer.reopenBuffer(0);
+        assertTrue(buffer.swapLeast(3, new FrameSwapper(3)));
+    }
+
+    public void testCloseRacingPinsOnlyClosesUnpinnedElements() throws Exception {
+        for (int round = 0; round < CLOSE_ROUNDS; round++) {
+            final ConcurrentSharedRingBuffer<Frame> buffer =
+                    new ConcurrentSharedRingBuffer<Frame>(CAPACITY);
+            for (long key = 0; key < CAPACITY; key++) {
+                buffer.swapLeast(key, new FrameSwapper(key));
+            }
+            final AtomicReference<Throwable> failure = new AtomicReference<Throwable>();
+            final CountDownLatch done = new CountDownLatch(NUM_PINNERS);
+            for (int i = 0; i < NUM_PINNERS; i++) {
+                final long key = i;
+                new Thread() {
+                    @Override
+                    public void run() {
+                        try {
+                            Pair<Long, Frame> pinned;
+                            while ((pinned = buffer.tryPin(key)) != null) {
+                                pinned.second.pins.incrementAndGet();
+                                assertFalse(pinned.second.closed);
+                                pinned.second.pins.decrementAndGet();
+                                buffer.release(pinned.first);
+                            }
+                        } catch (Throwable t) {
+                            failure.compareAndSet(null, t);
+                        } finally {
+                            done.countDown();
+                        }
+                    }
+                }.start();
+            }
+
+            buffer.close(new Task<Frame>() {
+                @Override
+                public void run(Frame element) {
+                    assertEquals(0, element.pins.get());
+                    element.closed = true;
+                }
+            });
+            assertTrue(done.await(5, TimeUnit.SECONDS));
+            if (failure.get() != null) {
+                throw new AssertionError(failure.get());
+            }
+        }
+    }
+
+    public void testThroughput30Fps() throws Exception {
+        benchmark(30);
+    }
+
+    public void testThroughput60Fps() throws Exception {
+        benchmark(60);
+    }
+
+    /**
+     * Produces frames at the given rate while a consumer pins the greatest
+     * frame, and logs the mean cost of a swap and of a pin/release.
+     */
+    private void benchmark(int fps) throws Exception {
+        final ConcurrentSharedRingBuffer<Frame> buffer =
+                new ConcurrentSharedRingBuffer<Frame>(CAPACITY);
+        final long frameIntervalNs = TimeUnit.SECONDS.toNanos(1) / fps;
+        final AtomicLong pinNs = new AtomicLong(0);
+        final AtomicInteger pinCount = new AtomicInteger(0);
+        final CountDownLatch producerDone = new CountDownLatch(1);
+
+        Thread consumer = new Thread() {
+            @Override
+            public void run() {
+                while (producerDone.getCount() > 0) {
+                    long start = System.nanoTime();
+                    Pair<Long, Frame> pinned = buffer.tryPinGreatest();
+                    if (pinned != null) {
+                        buffer.release(pinned.first);
+                        pinNs.addAndGet(System.nanoTime() - start);
+                        pinCount.incrementAndGet();
+                    }
+                    Thread.yield();
+                }
+            }
+        };
+        consumer.start();
+
+        long swapNs = 0;
+        long nextFrame = System.nanoTime();
+        for (long key = 0; key < BENCHMARK_FRAMES; key++) {
+            long start = System.nanoTime();
+            assertTrue(buffer.swapLeast(key, new FrameSwapper(key)));
+            swapNs += System.nanoTime() - start;
+
+            nextFrame += frameIntervalNs;
+            long sleepNs = nextFrame - System.nanoTime();
+            if (sleepNs > 0) {
+                Thread.sleep(sleepNs / 1000000, (int) (sleepNs % 1000000));
+            }
+        }
+        producerDone.countDown();
+        consumer.join();
+
+        Log.i(TAG, fps + "fps: swap=" + swapNs / BENCHMARK_FRAMES + "ns pin+release="
+                + (pinCount.get() == 0 ? 0 : pinNs.get() / pinCount.get()) + "ns over "
+                + pinCount.get() + " pins");
+    }
+}